@@ -24,6 +24,7 @@ import fr.gael.dhus.search.SolrDao;
 import fr.gael.dhus.server.http.TomcatException;
 import fr.gael.dhus.server.http.TomcatServer;
 import fr.gael.dhus.server.http.webapp.WebApplication;
+import fr.gael.dhus.service.DataStoreMigrationService;
 import fr.gael.dhus.service.ISynchronizerService;
 import fr.gael.dhus.service.SystemService;
 import fr.gael.dhus.spring.context.ApplicationContextProvider;
@@ -51,6 +52,7 @@ import org.apache.logging.log4j.io.IoBuilder;
 import org.dhus.store.datastore.DataStoreFactory;
 import org.dhus.store.datastore.DataStoreManager;
 import org.dhus.store.datastore.config.DataStoreConf;
+import org.dhus.store.derived.DerivedProductGenerator;
 import org.dhus.transformation.TransformationManager;
 
 import org.springframework.context.ApplicationListener;
@@ -208,6 +210,8 @@ public class DHuS
 
          context.getBean(DatabasePostInit.class).init();
          context.getBean(ISynchronizerService.class).init();
+         context.getBean(DataStoreMigrationService.class).resume();
+         context.getBean(DerivedProductGenerator.class).start();
          try
          {
             context.getBean(TransformationManager.class).init();
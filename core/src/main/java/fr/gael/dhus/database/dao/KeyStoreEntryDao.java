@@ -160,4 +160,35 @@ public class KeyStoreEntryDao extends HibernateDao<KeyStoreEntry, Key>
          }
       });
    }
+
+   /**
+    * Keyset pagination over unaltered product entries, ordered by entry key.
+    *
+    * @param keyStoreName name of the keystore
+    * @param afterKey     returned entries have a key strictly greater, may be null
+    * @param top          maximum number of entries to return
+    * @return list of KeyStoreEntry
+    */
+   public List<KeyStoreEntry> getUnalteredProductEntriesAfter(final String keyStoreName, String afterKey, int top)
+   {
+      return getHibernateTemplate().execute(new HibernateCallback<List<KeyStoreEntry>>()
+      {
+         @Override
+         @SuppressWarnings("unchecked")
+         public List<KeyStoreEntry> doInHibernate(Session session) throws HibernateException
+         {
+            Criteria criteria = session.createCriteria(entityClass);
+            criteria.add(Restrictions.eq("key.keyStore", keyStoreName));
+            criteria.add(Restrictions.eq("key.tag", DataStore.UNALTERED_PRODUCT_TAG));
+            if (afterKey != null)
+            {
+               criteria.add(Restrictions.gt("key.entryKey", afterKey));
+            }
+            criteria.addOrder(Order.asc("key.entryKey"));
+            criteria.setMaxResults(top);
+
+            return criteria.list();
+         }
+      });
+   }
 }
@@ -19,6 +19,7 @@
  */
 package fr.gael.dhus.database.dao;
 
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
@@ -206,6 +207,22 @@ public class ProductDao extends HibernateDao<Product, Long>
       });
    }
 
+   /**
+    * Returns the origins of the given list that are the origin of a product, in a single query.
+    *
+    * @param origins a non empty collection of origins
+    * @return a non null list of origins, subset of the given origins
+    */
+   @SuppressWarnings("unchecked")
+   public List<String> getExistingOrigins(java.util.Collection<String> origins)
+   {
+      Session session = getSessionFactory().getCurrentSession();
+      Query query = session.createQuery("SELECT DISTINCT origin FROM Product WHERE origin IN (:origins)");
+      query.setParameterList("origins", origins);
+      query.setReadOnly(true);
+      return query.list();
+   }
+
    @Override
    public synchronized Product create(Product p)
    {
@@ -287,4 +304,53 @@ public class ProductDao extends HibernateDao<Product, Long>
             .collect(Collectors.toList());
    }
 
+   /**
+    * Same as {@link #getProductUUIDs(String, List, int, int)} but also selects the given sort
+    * columns, whose values are set as the sort key of the returned products.
+    * If {@code after} is not null, its values are bound to the parameters following the
+    * {@code hqlParameters}, in the same order.
+    *
+    * @param hql           HQL query without select clause
+    * @param hqlParameters parameters of the HQL query
+    * @param sortColumns   columns of the sort key
+    * @param after         sort key of the last product of the previous page, may be null
+    * @param skip          number of products to skip
+    * @param top           maximum number of products to return
+    * @return a list of products with their sort key
+    */
+   @SuppressWarnings("unchecked")
+   public List<LoggableProduct> getProductUUIDs(String hql, List<SQLVisitorParameter> hqlParameters,
+         List<String> sortColumns, Object[] after, int skip, int top)
+   {
+      Session session = getSessionFactory().getCurrentSession();
+      Query query = session.createQuery("SELECT uuid, identifier, size, " + String.join(", ", sortColumns) + " " + hql);
+      hqlParameters.forEach((t) -> query.setParameter(t.getPosition(), t.getValue(), t.getType()));
+      if (after != null)
+      {
+         for (int i = 0; i < after.length; i++)
+         {
+            query.setParameter(hqlParameters.size() + 1 + i, after[i]);
+         }
+      }
+
+      if (skip > 0)
+      {
+         query.setFirstResult(skip);
+      }
+      if (top > -1)
+      {
+         query.setMaxResults(top);
+      }
+      query.setReadOnly(true);
+
+      return ((List<Object[]>) query.list())
+            .stream()
+            .map(row -> new LoggableProduct(
+                  (String) row[0], // uuid
+                  (String) row[1], // identifier
+                  (Long) row[2],   // size
+                  Arrays.copyOfRange(row, 3, row.length)))
+            .collect(Collectors.toList());
+   }
+
 }
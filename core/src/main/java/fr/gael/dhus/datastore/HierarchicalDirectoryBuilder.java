@@ -22,6 +22,10 @@ package fr.gael.dhus.datastore;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.io.FileUtils;
 
@@ -30,6 +34,11 @@ import org.apache.logging.log4j.Logger;
 
 /**
  * Produce hierarchical directories in depth and limiting occurrences in each directories.
+ * <p>
+ * A striped builder splits the counter space into independent stripes (stripe {@code s} uses the
+ * counters {@code c} such as {@code c % stripes == s}), each calling thread is bound to a stripe.
+ * Each stripe keeps track in memory of the content of its current directory, which is only listed
+ * once, hence a striped builder must be the only one to create files in its hierarchy.
  */
 public class HierarchicalDirectoryBuilder implements DirectoryBuilder
 {
@@ -41,13 +50,34 @@ public class HierarchicalDirectoryBuilder implements DirectoryBuilder
 
    private static boolean isHookInstalled = false;
 
+   /** Number of allocations between two saves of the counter file. */
+   private static final long SAVE_INTERVAL = 200L;
+
    private Long counter = 0L;
    private Long lastSaved = 0L;
    private File root;
    private Long maxOccurence;
    private Long maxItems;
 
+   /** Stripes of a striped builder, null otherwise. */
+   private final Stripe[] stripes;
+   private final AtomicLong allocations = new AtomicLong(0L);
+   private final ReentrantLock saveLock = new ReentrantLock();
+
    public HierarchicalDirectoryBuilder(File root, int max_occurence, int maxItems)
+   {
+      this(root, max_occurence, maxItems, 0);
+   }
+
+   /**
+    * Creates a striped builder if stripes is greater than zero.
+    *
+    * @param root          root directory of the hierarchy
+    * @param max_occurence maximum number of entries per level
+    * @param maxItems      maximum number of files per directory
+    * @param stripes       number of stripes, 0 to create a non-striped builder
+    */
+   public HierarchicalDirectoryBuilder(File root, int max_occurence, int maxItems, int stripes)
    {
       this.root = root;
       this.maxOccurence = Long.valueOf(max_occurence);
@@ -89,6 +119,20 @@ public class HierarchicalDirectoryBuilder implements DirectoryBuilder
          LOGGER.warn("No Counter for '{}' was loaded. The first ingestion might be long as"
                + " the whole incoming folder must be explored", root.getAbsolutePath());
       }
+      if (stripes > 0)
+      {
+         this.stripes = new Stripe[stripes];
+         for (int i = 0; i < stripes; i++)
+         {
+            // first counter of stripe i not below the loaded counter
+            long start = this.counter + Math.floorMod(i - this.counter, (long) stripes);
+            this.stripes[i] = new Stripe(start);
+         }
+      }
+      else
+      {
+         this.stripes = null;
+      }
       // Shutdown hook to save the counter at the end of the system execution: shall be run only once
       if (!isHookInstalled)
       {
@@ -167,7 +211,7 @@ public class HierarchicalDirectoryBuilder implements DirectoryBuilder
       }
 
       // Prepare output path
-      String output_path = "";
+      StringBuilder output_path = new StringBuilder();
 
       // Prepare a quotient, equal to the input counter
       long running_quotient = counter;
@@ -175,10 +219,9 @@ public class HierarchicalDirectoryBuilder implements DirectoryBuilder
       // Loop until quotient reaches 0
       do
       {
-         // Concatenate the remainder to the output path
-         output_path += "/x" +
-               Long.toHexString(running_quotient % max_occurrence)
-                     .toUpperCase();
+         // Append the remainder to the output path
+         output_path.append("/x").append(
+               Long.toHexString(running_quotient % max_occurrence).toUpperCase());
 
          // !update the quotient
          running_quotient = running_quotient / max_occurrence;
@@ -186,13 +229,17 @@ public class HierarchicalDirectoryBuilder implements DirectoryBuilder
       while (running_quotient > 0);
 
       // Return the built path
-      return output_path;
+      return output_path.toString();
 
    }
 
    @Override
    public File getDirectory(String filename)
    {
+      if (stripes != null)
+      {
+         return getStriped(filename);
+      }
       return getUnused(filename);
    }
 
@@ -249,16 +296,69 @@ public class HierarchicalDirectoryBuilder implements DirectoryBuilder
       } while (true);
       // updating counter file every 200 items.
       counter = localCounter - skipped;
-      if (counter >= lastSaved + 200)
+      if (counter >= lastSaved + SAVE_INTERVAL)
       {
          writeCounter();
       }
       return unused;
    }
 
+   /**
+    * Returns a directory from the stripe bound to the calling thread.
+    * Only lists a directory when the stripe moves to it.
+    */
+   private File getStriped(String filename)
+   {
+      Stripe stripe = stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+      File result;
+      synchronized (stripe)
+      {
+         while (stripe.directory == null || stripe.count >= maxItems
+               || (filename != null && stripe.names.contains(filename)))
+         {
+            if (stripe.directory != null)
+            {
+               stripe.counter += stripes.length;
+            }
+            stripe.open(new File(getRoot(), getHierarchicalPath(stripe.counter, maxOccurence)));
+         }
+         stripe.count++;
+         if (filename != null)
+         {
+            stripe.names.add(filename);
+         }
+         result = stripe.directory;
+      }
+      if (allocations.incrementAndGet() % SAVE_INTERVAL == 0 && saveLock.tryLock())
+      {
+         try
+         {
+            writeCounter();
+         }
+         finally
+         {
+            saveLock.unlock();
+         }
+      }
+      return result;
+   }
+
    /** Saves current counter value to file on disk. */
    private void writeCounter()
    {
+      if (stripes != null)
+      {
+         // directories below the lowest stripe counter are all full
+         long lowest = Long.MAX_VALUE;
+         for (Stripe stripe: stripes)
+         {
+            synchronized (stripe)
+            {
+               lowest = Math.min(lowest, stripe.counter);
+            }
+         }
+         counter = lowest;
+      }
       try
       {
          // Recompute the counter path (case of root changed).
@@ -273,4 +373,40 @@ public class HierarchicalDirectoryBuilder implements DirectoryBuilder
       }
    }
 
+   /** State of a stripe, guarded by its own monitor. */
+   private static final class Stripe
+   {
+      private long counter;
+      private File directory = null;
+      private long count = 0L;
+      private final Set<String> names = new HashSet<>();
+
+      private Stripe(long counter)
+      {
+         this.counter = counter;
+      }
+
+      /** Moves this stripe to the given directory, lists its files or creates it. */
+      private void open(File directory)
+      {
+         this.directory = directory;
+         this.count = 0L;
+         this.names.clear();
+         // count only the files. Folder are generated by dhus
+         File[] files = directory.listFiles();
+         if (files == null)
+         {
+            directory.mkdirs();
+            return;
+         }
+         for (File file: files)
+         {
+            names.add(file.getName());
+            if (!file.isDirectory())
+            {
+               count++;
+            }
+         }
+      }
+   }
 }
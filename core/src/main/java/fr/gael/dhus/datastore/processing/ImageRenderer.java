@@ -0,0 +1,220 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.dhus.datastore.processing;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.renderable.ParameterBlock;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.media.jai.JAI;
+import javax.media.jai.PlanarImage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Renders the quicklooks and thumbnails of products.
+ * <p>
+ * The product image is reduced to the quicklook size in a single pass over its tiles, the
+ * thumbnail is then reduced from the quicklook. Rendered images are kept in memory, the memory
+ * of images rendered concurrently is bounded by `dhus.images.memory_budget` (bytes), and the
+ * memory of decoded source tiles by `dhus.images.tile_cache_size` (bytes, JAI default if unset).
+ * JPEG writers are reused by the threads rendering images.
+ */
+public final class ImageRenderer
+{
+   private static final Logger LOGGER = LogManager.getLogger();
+
+   /** Maximum memory of the images rendered concurrently, in bytes. */
+   private static final long MEMORY_BUDGET = Long.getLong("dhus.images.memory_budget", 256L << 20);
+
+   /** Maximum memory of decoded source tiles shared by all renderings, in bytes. */
+   private static final Long TILE_CACHE_SIZE = Long.getLong("dhus.images.tile_cache_size");
+
+   /** Memory budget, one permit per KiB. */
+   private static final int BUDGET_PERMITS = (int) Math.min(Integer.MAX_VALUE, Math.max(1L, MEMORY_BUDGET >> 10));
+   private static final Semaphore BUDGET = new Semaphore(BUDGET_PERMITS, true);
+
+   /** JPEG writer of each rendering thread. */
+   private static final ThreadLocal<ImageWriter> JPEG_WRITER = new ThreadLocal<>();
+
+   static
+   {
+      if (TILE_CACHE_SIZE != null)
+      {
+         JAI.getDefaultInstance().getTileCache().setMemoryCapacity(TILE_CACHE_SIZE);
+      }
+   }
+
+   private ImageRenderer() {}
+
+   /**
+    * Reserves the memory needed to render an image reduced to the given size, blocks until enough
+    * memory is available.
+    *
+    * @param source image to reduce
+    * @param width  target width
+    * @param height target height
+    * @return a reservation to close once the rendered image is no longer used
+    * @throws InconsistentImageScale the source cannot be reduced to the given size
+    * @throws InterruptedException   interrupted while waiting for memory
+    */
+   public static Reservation reserve(RenderedImage source, int width, int height)
+         throws InconsistentImageScale, InterruptedException
+   {
+      float scale = ProcessingUtils.getScale(source.getWidth(), source.getHeight(), width, height);
+      long pixels = (long) Math.ceil(source.getWidth() * scale) * (long) Math.ceil(source.getHeight() * scale);
+      int permits = (int) Math.min(BUDGET_PERMITS, Math.max(1L, (pixels * getPixelSize(source)) >> 10));
+      BUDGET.acquire(permits);
+      return new Reservation(permits);
+   }
+
+   /** Returns the memory available to renderings, in KiB. */
+   static int getAvailableMemory()
+   {
+      return BUDGET.availablePermits();
+   }
+
+   /**
+    * Reduces an image so that it has about as many pixels as an image of the given size, keeping
+    * its aspect ratio.
+    * Large reductions average source pixels, tiles of the source are read only once.
+    *
+    * @param source image to reduce
+    * @param width  target width
+    * @param height target height
+    * @return the reduced image, in memory
+    * @throws InconsistentImageScale the source cannot be reduced to the given size
+    */
+   public static BufferedImage reduce(RenderedImage source, int width, int height) throws InconsistentImageScale
+   {
+      float scale = ProcessingUtils.getScale(source.getWidth(), source.getHeight(), width, height);
+      RenderedImage reduced;
+      if (scale < 1F)
+      {
+         ParameterBlock pb = new ParameterBlock();
+         pb.addSource(source);
+         pb.add((double) scale);
+         pb.add((double) scale);
+         reduced = JAI.create("SubsampleAverage", pb, null);
+      }
+      else
+      {
+         reduced = ProcessingUtils.resizeImage(source, width, height);
+      }
+      LOGGER.debug("Image reduced from {}x{} to {}x{}",
+            source.getWidth(), source.getHeight(), reduced.getWidth(), reduced.getHeight());
+      return PlanarImage.wrapRenderedImage(reduced).getAsBufferedImage();
+   }
+
+   /**
+    * Writes an image in JPEG format.
+    *
+    * @param image  to write
+    * @param output file, replaced if it exists
+    * @return false if the image cannot be encoded in JPEG
+    * @throws IOException could not write the image
+    */
+   public static boolean writeJpeg(RenderedImage image, File output) throws IOException
+   {
+      ImageWriter writer = getJpegWriter();
+      if (writer == null || !writer.getOriginatingProvider().canEncodeImage(image))
+      {
+         return false;
+      }
+      output.delete();
+      try (ImageOutputStream stream = ImageIO.createImageOutputStream(output))
+      {
+         writer.setOutput(stream);
+         writer.write(image);
+      }
+      catch (IOException | RuntimeException e)
+      {
+         // do not reuse a writer in an unknown state
+         JPEG_WRITER.remove();
+         writer.dispose();
+         throw e;
+      }
+      writer.reset();
+      return true;
+   }
+
+   private static ImageWriter getJpegWriter()
+   {
+      ImageWriter writer = JPEG_WRITER.get();
+      if (writer == null)
+      {
+         Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+         if (writers.hasNext())
+         {
+            writer = writers.next();
+            JPEG_WRITER.set(writer);
+         }
+      }
+      return writer;
+   }
+
+   /** Returns the size of a pixel of the given image in bytes. */
+   private static int getPixelSize(RenderedImage image)
+   {
+      SampleModel sampleModel = image.getSampleModel();
+      int bits = 0;
+      for (int size: sampleModel.getSampleSize())
+      {
+         bits += size;
+      }
+      return Math.max(1, (bits + 7) / 8);
+   }
+
+   /** Memory reserved for a rendering. */
+   public static final class Reservation implements AutoCloseable
+   {
+      private int permits;
+
+      private Reservation(int permits)
+      {
+         this.permits = permits;
+      }
+
+      /** Returns the reserved memory in KiB, 0 once released. */
+      int getReservedMemory()
+      {
+         return permits;
+      }
+
+      @Override
+      public void close()
+      {
+         if (permits > 0)
+         {
+            BUDGET.release(permits);
+            permits = 0;
+         }
+      }
+   }
+}
@@ -0,0 +1,267 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.dhus.datastore.processing;
+
+import com.hp.hpl.jena.ontology.OntClass;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+import fr.gael.drbx.cortex.DrbCortexItemClass;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Selects the item classes that may include an item from its name, before their signatures are
+ * evaluated.
+ * <p>
+ * Name patterns are derived from the signatures of each class, its super-classes and its
+ * sub-classes: the `drb:nameMatch` test of a signature, or its `drb:xqueryTest` when it only
+ * matches the name of the item (`matches(name(), "...")`). A class is a candidate for an item
+ * if the name of the item matches one of its patterns. Classes having a signature that does not
+ * test the name of items are candidates for every item.
+ */
+public final class ItemClassIndex
+{
+   private static final Logger LOGGER = LogManager.getLogger();
+
+   private static final String DRB_NAMESPACE = "http://www.gael.fr/drb#";
+
+   /** XQuery signatures only matching the name of the item, with an optional case insensitive flag. */
+   private static final Pattern NAME_XQUERY = Pattern.compile(
+         "\\s*(?:fn:)?matches\\s*\\(\\s*name\\s*\\(\\s*\\)\\s*,\\s*\"((?:[^\"]|\"\")*)\"\\s*(?:,\\s*\"(i?)\"\\s*)?\\)\\s*");
+
+   private final List<Entry> entries;
+
+   /**
+    * Creates the index of the given classes.
+    *
+    * @param classes item classes, in the order they are tested
+    */
+   public ItemClassIndex(List<DrbCortexItemClass> classes)
+   {
+      List<Entry> list = new ArrayList<>(classes.size());
+      int filtered = 0;
+      for (DrbCortexItemClass itemClass: classes)
+      {
+         List<Pattern> patterns;
+         try
+         {
+            patterns = getNamePatterns(itemClass.getOntClass());
+         }
+         catch (RuntimeException e)
+         {
+            LOGGER.warn("Cannot derive name patterns of class \"{}\": {}", itemClass.getLabel(), e.getMessage());
+            patterns = null;
+         }
+         if (patterns != null)
+         {
+            filtered++;
+         }
+         list.add(new Entry(itemClass, patterns));
+      }
+      this.entries = Collections.unmodifiableList(list);
+      LOGGER.debug("Item classes indexed: {} of {} classes filtered by name", filtered, list.size());
+   }
+
+   /**
+    * Returns the classes that may include an item.
+    *
+    * @param name of the item, may be null
+    * @return a non null list of classes, in the order of the indexed classes
+    */
+   public List<DrbCortexItemClass> getCandidates(String name)
+   {
+      List<DrbCortexItemClass> candidates = new ArrayList<>();
+      for (Entry entry: entries)
+      {
+         if (entry.accepts(name))
+         {
+            candidates.add(entry.itemClass);
+         }
+      }
+      return candidates;
+   }
+
+   /**
+    * Returns the patterns of the names of the items that may be included by a class.
+    *
+    * @param ontClass of an item class
+    * @return the patterns, null if items cannot be filtered by name
+    */
+   static List<Pattern> getNamePatterns(OntClass ontClass)
+   {
+      Model model = ontClass.getModel();
+      Property signature = model.getProperty(DRB_NAMESPACE + "signature");
+      Property nameMatch = model.getProperty(DRB_NAMESPACE + "nameMatch");
+      Property xqueryTest = model.getProperty(DRB_NAMESPACE + "xqueryTest");
+
+      Set<OntClass> related = new HashSet<>();
+      related.add(ontClass);
+      addAll(related, ontClass.listSuperClasses(false));
+      addAll(related, ontClass.listSubClasses(false));
+
+      List<Pattern> patterns = new ArrayList<>();
+      for (OntClass cl: related)
+      {
+         StmtIterator signatures = cl.listProperties(signature);
+         try
+         {
+            while (signatures.hasNext())
+            {
+               RDFNode object = signatures.nextStatement().getObject();
+               if (!object.isResource())
+               {
+                  return null;
+               }
+               Pattern pattern = getNamePattern((Resource) object.as(Resource.class), nameMatch, xqueryTest);
+               if (pattern == null)
+               {
+                  return null;
+               }
+               patterns.add(pattern);
+            }
+         }
+         finally
+         {
+            signatures.close();
+         }
+      }
+      // no signature: unknown inclusion rules
+      return patterns.isEmpty() ? null : patterns;
+   }
+
+   /** Returns the name pattern of a signature, null if it does not only accept names matching a pattern. */
+   private static Pattern getNamePattern(Resource signature, Property nameMatch, Property xqueryTest)
+   {
+      String regex = null;
+      int flags = 0;
+      Statement statement = signature.getProperty(nameMatch);
+      if (statement != null)
+      {
+         regex = statement.getString();
+      }
+      else
+      {
+         statement = signature.getProperty(xqueryTest);
+         if (statement == null)
+         {
+            return null;
+         }
+         Matcher matcher = NAME_XQUERY.matcher(statement.getString());
+         if (!matcher.matches())
+         {
+            return null;
+         }
+         regex = matcher.group(1).replace("\"\"", "\"");
+         if ("i".equals(matcher.group(2)))
+         {
+            flags = Pattern.CASE_INSENSITIVE;
+         }
+      }
+      try
+      {
+         // a match anywhere in the name: never stricter than the signature
+         return Pattern.compile(regex.trim(), flags);
+      }
+      catch (PatternSyntaxException e)
+      {
+         LOGGER.debug("Cannot derive a name pattern from signature \"{}\": {}", regex, e.getMessage());
+         return null;
+      }
+   }
+
+   /**
+    * Returns true if an item may be included by a class, according to its name patterns.
+    *
+    * @param patterns name patterns of the class, null if items cannot be filtered by name
+    * @param name     of the item, may be null
+    * @return true if the signatures of the class have to be evaluated
+    */
+   static boolean accepts(List<Pattern> patterns, String name)
+   {
+      if (patterns == null)
+      {
+         return true;
+      }
+      if (name == null)
+      {
+         return false;
+      }
+      for (Pattern pattern: patterns)
+      {
+         if (pattern.matcher(name).find())
+         {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private static void addAll(Set<OntClass> set, ExtendedIterator<?> it)
+   {
+      try
+      {
+         while (it.hasNext())
+         {
+            Object next = it.next();
+            if (next instanceof OntClass)
+            {
+               set.add((OntClass) next);
+            }
+         }
+      }
+      finally
+      {
+         it.close();
+      }
+   }
+
+   private static final class Entry
+   {
+      private final DrbCortexItemClass itemClass;
+      private final List<Pattern> patterns;
+
+      private Entry(DrbCortexItemClass itemClass, List<Pattern> patterns)
+      {
+         this.itemClass = itemClass;
+         this.patterns = patterns;
+      }
+
+      private boolean accepts(String name)
+      {
+         return ItemClassIndex.accepts(patterns, name);
+      }
+   }
+}
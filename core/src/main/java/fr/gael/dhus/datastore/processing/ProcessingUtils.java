@@ -19,6 +19,9 @@
  */
 package fr.gael.dhus.datastore.processing;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import com.hp.hpl.jena.ontology.OntClass;
 import com.hp.hpl.jena.reasoner.IllegalParameterException;
 import com.hp.hpl.jena.util.iterator.ExtendedIterator;
@@ -50,6 +53,7 @@ import java.io.StringReader;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.activation.MimeType;
 import javax.activation.MimeTypeParseException;
@@ -76,6 +80,15 @@ public class ProcessingUtils
    public static final String THUMBNAIL_SUFFIX = "-th.jpg";
    public static final String QUICKLOOK_SUFFIX = "-ql.jpg";
 
+   /**
+    * Classes of the items resolved recently, by path of the items, so that the signatures of the
+    * ontology are evaluated once per item during its ingestion.
+    */
+   private static final Cache<String, DrbCortexItemClass> ITEM_CLASSES = CacheBuilder.newBuilder()
+         .maximumSize(Integer.getInteger("dhus.processing.class_cache_size", 1_000))
+         .expireAfterWrite(Long.getLong("dhus.processing.class_cache_ttl", 600_000L), TimeUnit.MILLISECONDS)
+         .build();
+
    /**
     * Hide utility class constructor
     */
@@ -202,16 +215,41 @@ public class ProcessingUtils
    public static DrbCortexItemClass getClassFromNode(DrbNode node)
       throws IOException
    {
+      String path = node.getPath();
+      DrbCortexItemClass cl = path == null ? null : ITEM_CLASSES.getIfPresent(path);
+      if (cl != null)
+      {
+         return cl;
+      }
       DrbCortexModel model = DrbCortexModel.getDefaultModel();
-      DrbCortexItemClass cl = model.getClassOf(node);
+      cl = model.getClassOf(node);
       if (cl == null)
       {
          throw new UnsupportedOperationException("Class cannot be retrieved for product " + node.getPath());
       }
       LOGGER.debug("Class \"{}\" for product {}", cl.getLabel(), node.getName());
+      if (path != null)
+      {
+         ITEM_CLASSES.put(path, cl);
+      }
       return cl;
    }
 
+   /**
+    * Forgets the class of a node resolved by {@link #getClassFromNode(DrbNode)}, e.g. once the
+    * node has been ingested.
+    *
+    * @param node a node
+    */
+   public static void forgetClassOfNode(DrbNode node)
+   {
+      String path = node.getPath();
+      if (path != null)
+      {
+         ITEM_CLASSES.invalidate(path);
+      }
+   }
+
    /**
     * Returns the Item Class label of given DrbNode
     * @param node non null DrbNode
@@ -19,6 +19,7 @@
  */
 package fr.gael.dhus.datastore.scanner;
 
+import fr.gael.dhus.datastore.processing.ItemClassIndex;
 import fr.gael.dhus.datastore.scanner.listener.AsynchronousLinkedList;
 import fr.gael.dhus.datastore.scanner.listener.Listener;
 import fr.gael.dhus.datastore.scanner.listener.ScannerListener;
@@ -61,8 +62,12 @@ public abstract class AbstractScanner implements Scanner
    private static final Logger LOGGER = LogManager.getLogger();
    private static final SimpleDateFormat SDF = new SimpleDateFormat("EEEE dd MMMM yyyy - HH:mm:ss", Locale.ENGLISH);
 
+   /** Maximum number of discovered products waiting for ingestion, the scan waits beyond. */
+   private static final int QUEUE_SIZE = Math.max(1, Integer.getInteger("dhus.scanner.queue_size", 100));
+
    public URL repository;
    private List<DrbCortexItemClass> supportedClasses;
+   private ItemClassIndex supportedClassIndex;
    private boolean forceNavigate = false;
    private Pattern userPattern = null;
 
@@ -113,6 +118,22 @@ public abstract class AbstractScanner implements Scanner
       return userPattern;
    }
 
+   /**
+    * Returns false if an item of the given name cannot match, without opening the item.
+    *
+    * @param name of an item
+    * @return true if {@link #matches(DrbItem)} has to be called to know whether the item matches
+    */
+   protected boolean mayMatch(String name)
+   {
+      Pattern p = getUserPattern();
+      if (p != null)
+      {
+         return p.matcher(name).matches();
+      }
+      return supportedClassIndex == null || !supportedClassIndex.getCandidates(name).isEmpty();
+   }
+
    protected boolean matches(DrbItem item)
    {
       if (item == null)
@@ -133,7 +154,8 @@ public abstract class AbstractScanner implements Scanner
          return true;
       }
 
-      for (DrbCortexItemClass cl: supportedClasses)
+      // only the classes whose signatures may accept the name of the item are tested
+      for (DrbCortexItemClass cl: supportedClassIndex.getCandidates(item.getName()))
       {
          if (LOGGER.isDebugEnabled())
          {
@@ -193,6 +215,7 @@ public abstract class AbstractScanner implements Scanner
    public void setSupportedClasses(List<DrbCortexItemClass> supported_classes)
    {
       this.supportedClasses = supported_classes;
+      this.supportedClassIndex = supported_classes == null ? null : new ItemClassIndex(supported_classes);
    }
 
    @Override
@@ -262,10 +285,22 @@ public abstract class AbstractScanner implements Scanner
       // reset all listener
       this.getScanList().getListeners().forEach(Listener::reset);
 
+      // products are submitted to ingestion while they are discovered
+      ScannerListener listener = (ScannerListener) getScanList().getListeners().get(0);
+      if (null == listener)
+      {
+         LOGGER.error("No listener registered for scanner:{}, ingestion would not be started", config.getId());
+         return;
+      }
+      List<String> collectionNames = config.getCollectionList();
+      listener.setConsumer((url) -> submit(url, collectionNames));
+
       // perform scan
+      status.startScan();
       try
       {
          scan();
+         listener.flush();
       }
       catch (InterruptedException e)
       {
@@ -281,41 +316,57 @@ public abstract class AbstractScanner implements Scanner
          LOGGER.error("Scanner #{}: There was an error during Scanner execution", config.getId(), e);
          return;
       }
-
-      // prepare ingestion
-      ScannerListener listener = (ScannerListener) getScanList().getListeners().get(0);
-      if (null == listener)
+      finally
       {
-         LOGGER.error("No listener registered for scanner:{}, ingestion would not be started", config.getId());
-         return;
+         listener.setConsumer(null);
+         listener.reset();
+         status.endScan();
       }
 
-      List<URL> waiting_product = listener.newlyProducts();
-      if (waiting_product.isEmpty())
+      if (status.getTotalProcessed() == 0)
       {
          status.setStatus(ScannerStatus.STATUS_OK);
          status.addStatusMessage("No products scanned.");
          LOGGER.info("Scanner #{}: No products scanned", config.getId());
          return;
       }
-
-      List<String> collectionNames = config.getCollectionList();
-      status.setTotalProcessed(waiting_product.size());
       LOGGER.info("Scanner #{}: {} products scanned", config.getId(), status.getTotalProcessed());
+   }
 
-      // perform ingestion
-      for (URL url: waiting_product)
+   /**
+    * Submits a discovered product to ingestion.
+    * Blocks the scan while too many discovered products are waiting for ingestion, does nothing
+    * if the scanner has been stopped.
+    *
+    * @param url             of the product
+    * @param collectionNames collections to add the product to
+    */
+   private void submit(URL url, List<String> collectionNames)
+   {
+      try
       {
-         try
-         {
-            ProcessingManager.processProduct(IngestibleRawProduct.fromURL(url), collectionNames, this, this.getStatus());
-         }
-         catch (RuntimeException e)
-         {
-            LOGGER.error("Unable to start ingestion", e);
-            status.setStatus(ScannerStatus.STATUS_ERROR);
-            status.addStatusMessage(e.getMessage());
-         }
+         status.awaitInbox(QUEUE_SIZE);
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         return;
+      }
+      if (isStopped())
+      {
+         return;
+      }
+
+      status.incrementTotalProcessed();
+      try
+      {
+         ProcessingManager.processProduct(IngestibleRawProduct.fromURL(url), collectionNames, this, status);
+      }
+      catch (RuntimeException e)
+      {
+         LOGGER.error("Unable to start ingestion", e);
+         status.addStatusMessage(e.getMessage());
+         status.error(url.toString(), e);
       }
    }
 }
@@ -0,0 +1,388 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.dhus.datastore.scanner;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import fr.gael.dhus.database.object.KeyStoreEntry;
+import fr.gael.dhus.service.KeyStoreService;
+import fr.gael.dhus.spring.context.ApplicationContextProvider;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * State of the directories scanned by a {@link FileScanner}, saved between scans so that the
+ * entries of unchanged directories are not matched again.
+ * <p>
+ * The state of a directory is its modification date, its number of entries and a hash of the
+ * names of its entries. Directories are identified by their path relative to the scanned
+ * directory. States are saved in a keystore, one entry per directory tagged with a fingerprint
+ * of the scanner configuration. States older than `dhus.scanner.full_scan_period` (ms) are
+ * expired, so that all directories are eventually scanned again, e.g. to retry the products
+ * whose ingestion failed.
+ */
+public final class DirectorySnapshot
+{
+   private static final Logger LOGGER = LogManager.getLogger();
+
+   /** Maximum age of the state of a directory in milliseconds, default is one day. */
+   private static final long FULL_SCAN_PERIOD = Long.getLong("dhus.scanner.full_scan_period", 86_400_000L);
+
+   /** Modification dates that close to the time of the scan (ms) are not trusted. */
+   private static final long RACY_DELAY = 2_000L;
+
+   private static final String KEYSTORE_PREFIX = "FileScannerSnapshot#";
+   private static final String SEPARATOR = "|";
+   private static final String ROOT = "";
+
+   private static final HashFunction HASH = Hashing.murmur3_128();
+
+   private final String keyStoreName;
+   private final String fingerprint;
+   private final long scanTime;
+
+   /** Saved entries, by key. */
+   private final Map<String, KeyStoreEntry> entries = new HashMap<>();
+
+   /** Saved states, by key. */
+   private final Map<String, State> previous = new HashMap<>();
+
+   /** Names of the saved sub-directories, by key of their parent. */
+   private final Map<String, List<String>> subdirectories = new HashMap<>();
+
+   /** Saved entries not matching the configuration of the scanner, to delete. */
+   private final List<KeyStoreEntry> stale = new ArrayList<>();
+
+   /** States of the directories visited by the current scan, by key. */
+   private final Map<String, State> current = new HashMap<>();
+
+   DirectorySnapshot(long scannerId, String fingerprint, long scanTime)
+   {
+      this.keyStoreName = KEYSTORE_PREFIX + scannerId;
+      this.fingerprint = fingerprint;
+      this.scanTime = scanTime;
+   }
+
+   /**
+    * Loads the snapshot saved by the last scan of a scanner.
+    *
+    * @param scannerId   identifier of the scanner
+    * @param fingerprint of the configuration of the scanner, states saved with another configuration are ignored
+    * @return a non null snapshot, empty if nothing was saved
+    */
+   public static DirectorySnapshot load(long scannerId, String fingerprint)
+   {
+      return load(scannerId, fingerprint, System.currentTimeMillis());
+   }
+
+   /**
+    * Loads the snapshot saved by the last scan of a scanner.
+    *
+    * @param scannerId   identifier of the scanner
+    * @param fingerprint of the configuration of the scanner, states saved with another configuration are ignored
+    * @param scanTime    time of the scan, states are expired and modification dates trusted relative to it
+    * @return a non null snapshot, empty if nothing was saved
+    */
+   static DirectorySnapshot load(long scannerId, String fingerprint, long scanTime)
+   {
+      DirectorySnapshot snapshot = new DirectorySnapshot(scannerId, fingerprint, scanTime);
+      Iterator<KeyStoreEntry> it =
+            ApplicationContextProvider.getBean(KeyStoreService.class).getOldestEntries(snapshot.keyStoreName);
+      while (it.hasNext())
+      {
+         snapshot.add(it.next());
+      }
+      LOGGER.debug("Snapshot of {} directories loaded for scanner #{}", snapshot.previous.size(), scannerId);
+      return snapshot;
+   }
+
+   /**
+    * Deletes the snapshot of a scanner.
+    *
+    * @param scannerId identifier of the scanner
+    */
+   public static void clear(long scannerId)
+   {
+      KeyStoreService keyStoreService = ApplicationContextProvider.getBean(KeyStoreService.class);
+      List<KeyStoreEntry> toDelete = new ArrayList<>();
+      Iterator<KeyStoreEntry> it = keyStoreService.getOldestEntries(KEYSTORE_PREFIX + scannerId);
+      while (it.hasNext())
+      {
+         toDelete.add(it.next());
+      }
+      toDelete.forEach(keyStoreService::deleteEntry);
+   }
+
+   /**
+    * Returns the fingerprint of a scanner configuration.
+    *
+    * @param settings values of the settings affecting the result of a scan
+    * @return a fingerprint
+    */
+   public static String fingerprint(Object... settings)
+   {
+      StringBuilder sb = new StringBuilder();
+      for (Object setting: settings)
+      {
+         sb.append(setting).append(SEPARATOR);
+      }
+      return HASH.hashString(sb, StandardCharsets.UTF_8).toString();
+   }
+
+   /**
+    * Returns the relative path of an entry of a directory.
+    *
+    * @param parent relative path of the directory, empty for the scanned directory
+    * @param name   of the entry
+    * @return relative path of the entry
+    */
+   public static String child(String parent, String name)
+   {
+      return parent.isEmpty() ? name : parent + '/' + name;
+   }
+
+   /**
+    * Returns the hash of the name of an entry, the hash of the names of the entries of a directory
+    * is the sum of the hashes of their names.
+    *
+    * @param name of an entry
+    * @return hash of the name
+    */
+   public static long hash(String name)
+   {
+      return HASH.hashString(name, StandardCharsets.UTF_8).asLong();
+   }
+
+   void add(KeyStoreEntry entry)
+   {
+      String[] fields = entry.getValue() == null ? new String[0] : entry.getValue().split("\\" + SEPARATOR, 5);
+      if (!fingerprint.equals(entry.getTag()) || fields.length != 5)
+      {
+         stale.add(entry);
+         return;
+      }
+      try
+      {
+         boolean expired = entry.getInsertionDate() == null
+               || scanTime - entry.getInsertionDate() > FULL_SCAN_PERIOD;
+         State state = new State(Long.parseLong(fields[0]), Integer.parseInt(fields[1]), Long.parseLong(fields[2]),
+               fields[3], fields[4], expired);
+         entries.put(entry.getEntryKey(), entry);
+         previous.put(entry.getEntryKey(), state);
+         if (!state.parentKey.isEmpty() || !state.name.isEmpty())
+         {
+            subdirectories.computeIfAbsent(state.parentKey, k -> new ArrayList<>()).add(state.name);
+         }
+      }
+      catch (NumberFormatException e)
+      {
+         stale.add(entry);
+      }
+   }
+
+   /**
+    * Returns true if the entries of a directory have not changed since the last scan, according
+    * to its modification date.
+    *
+    * @param path     relative path of the directory
+    * @param modified modification date of the directory
+    * @return true if the directory does not have to be listed
+    */
+   public boolean isUnmodified(String path, long modified)
+   {
+      State state = previous.get(key(path));
+      return state != null && !state.expired && state.modified == modified;
+   }
+
+   /**
+    * Returns true if the entries of a directory listed by the current scan are the same as the
+    * entries listed by the last scan.
+    *
+    * @param path      relative path of the directory
+    * @param count     number of entries
+    * @param namesHash hash of the names of the entries
+    * @return true if the entries of the directory do not have to be matched
+    */
+   public boolean hasSameEntries(String path, int count, long namesHash)
+   {
+      State state = previous.get(key(path));
+      return state != null && !state.expired && state.count == count && state.namesHash == namesHash;
+   }
+
+   /**
+    * Returns true if the given directory was scanned by the last scan.
+    *
+    * @param path relative path of the directory
+    * @return true if there is a state for the directory
+    */
+   public boolean isKnown(String path)
+   {
+      State state = previous.get(key(path));
+      return state != null && !state.expired;
+   }
+
+   /**
+    * Returns the names of the sub-directories of a directory scanned by the last scan.
+    *
+    * @param path relative path of the directory
+    * @return a non null list of names
+    */
+   public List<String> getSubdirectories(String path)
+   {
+      List<String> names = subdirectories.get(key(path));
+      return names == null ? Collections.emptyList() : names;
+   }
+
+   /**
+    * Records that a directory was visited by the current scan, its entries were not listed or
+    * have not changed.
+    *
+    * @param path     relative path of the directory
+    * @param modified modification date of the directory
+    */
+   public void keep(String path, long modified)
+   {
+      State state = previous.get(key(path));
+      if (state != null)
+      {
+         put(path, modified, state.count, state.namesHash);
+      }
+   }
+
+   /**
+    * Records the state of a directory visited by the current scan.
+    *
+    * @param path      relative path of the directory
+    * @param modified  modification date of the directory
+    * @param count     number of entries
+    * @param namesHash hash of the names of the entries
+    */
+   public void put(String path, long modified, int count, long namesHash)
+   {
+      // a directory modified during the scan may be modified again with the same date
+      long trusted = scanTime - modified < RACY_DELAY ? -1L : modified;
+      int index = path.lastIndexOf('/');
+      String parentKey = path.isEmpty() ? ROOT : key(index < 0 ? ROOT : path.substring(0, index));
+      String name = path.isEmpty() ? ROOT : path.substring(index + 1);
+      current.put(key(path), new State(trusted, count, namesHash, parentKey, name, false));
+   }
+
+   /**
+    * Saves the states of the directories visited by the current scan, the states of the
+    * directories not visited are deleted.
+    */
+   public void save()
+   {
+      KeyStoreService keyStoreService = ApplicationContextProvider.getBean(KeyStoreService.class);
+      int written = 0;
+      for (Map.Entry<String, State> visited: current.entrySet())
+      {
+         State state = visited.getValue();
+         if (!state.equals(previous.get(visited.getKey())))
+         {
+            KeyStoreEntry entry = entries.get(visited.getKey());
+            if (entry != null)
+            {
+               // deleted and created again to update its insertion date
+               keyStoreService.deleteEntry(entry);
+            }
+            keyStoreService.createEntry(new KeyStoreEntry(keyStoreName, visited.getKey(), fingerprint,
+                  state.encode(), System.currentTimeMillis()));
+            written++;
+         }
+      }
+      int deleted = stale.size();
+      stale.forEach(keyStoreService::deleteEntry);
+      for (Map.Entry<String, KeyStoreEntry> entry: entries.entrySet())
+      {
+         if (!current.containsKey(entry.getKey()))
+         {
+            keyStoreService.deleteEntry(entry.getValue());
+            deleted++;
+         }
+      }
+      LOGGER.debug("Snapshot of {} directories saved in {}: {} written, {} deleted",
+            current.size(), keyStoreName, written, deleted);
+   }
+
+   private static String key(String path)
+   {
+      return HASH.hashString(path, StandardCharsets.UTF_8).toString();
+   }
+
+   /** State of a directory. */
+   private static final class State
+   {
+      private final long modified;
+      private final int count;
+      private final long namesHash;
+      private final String parentKey;
+      private final String name;
+      private final boolean expired;
+
+      private State(long modified, int count, long namesHash, String parentKey, String name, boolean expired)
+      {
+         this.modified = modified;
+         this.count = count;
+         this.namesHash = namesHash;
+         this.parentKey = parentKey;
+         this.name = name;
+         this.expired = expired;
+      }
+
+      private String encode()
+      {
+         return String.join(SEPARATOR, Long.toString(modified), Integer.toString(count), Long.toString(namesHash),
+               parentKey, name);
+      }
+
+      @Override
+      public boolean equals(Object obj)
+      {
+         if (!(obj instanceof State))
+         {
+            return false;
+         }
+         State other = (State) obj;
+         return !expired && !other.expired
+               && modified == other.modified
+               && count == other.count
+               && namesHash == other.namesHash
+               && parentKey.equals(other.parentKey)
+               && name.equals(other.name);
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return Long.hashCode(modified) ^ count ^ Long.hashCode(namesHash);
+      }
+   }
+}
@@ -1,6 +1,6 @@
 /*
  * Data Hub Service (DHuS) - For Space data distribution.
- * Copyright (C) 2013,2014,2015 GAEL Systems
+ * Copyright (C) 2013,2014,2015,2019 GAEL Systems
  *
  * This file is part of DHuS software sources.
  *
@@ -20,8 +20,13 @@
 package fr.gael.dhus.datastore.scanner;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 
 import org.apache.logging.log4j.Logger;
@@ -32,85 +37,222 @@ import fr.gael.drb.DrbNode;
 
 /**
  * This class performs scanning other local file systems.
+ * <p>
+ * Directories are listed one entry at a time. If `dhus.scanner.incremental` is set, the state of
+ * scanned directories is saved after each scan (see {@link DirectorySnapshot}): the entries of
+ * directories that have not changed since the last scan are not matched again, and unchanged
+ * directories are not even listed, only their known sub-directories are scanned.
  */
 public class FileScanner extends AbstractScanner
 {
    private static final Logger LOGGER = LogManager.getLogger(FileScanner.class);
 
+   /** True to only match the entries of directories that changed since the last scan. */
+   private static final boolean INCREMENTAL = Boolean.getBoolean("dhus.scanner.incremental");
+
    protected int scannedFiles = 0;
-   protected int retrievedFile = 0;   
-   
+   protected int retrievedFile = 0;
+   protected int skippedDirectories = 0;
+
    private String uri;
-   
-   public FileScanner (String uri, boolean store_scan_list)
+
+   /** State of the directories of the last scan, null if scans are not incremental. */
+   private DirectorySnapshot snapshot = null;
+
+   public FileScanner(String uri, boolean store_scan_list)
    {
-      super (store_scan_list);
+      super(store_scan_list);
       this.uri = uri;
    }
 
-   private void checkList (List<URLExt>list, String root) 
-         throws InterruptedException
+   private void checkList(List<URLExt> list, Path path, String relativePath) throws InterruptedException
    {
-      if (isStopped ()) throw new InterruptedException ();
-      
-      File root_file = new File (root);
-      if (!root_file.exists ())
-         throw new UnsupportedOperationException (
-            "cannot access repository path \"" + root + "\".");
-      
-      boolean is_root_dir = root_file.isDirectory();
-      String uri;
+      if (isStopped())
+      {
+         throw new InterruptedException();
+      }
+
+      File file = path.toFile();
+      boolean isDirectory = file.isDirectory();
       URL url;
       try
       {
-         url = root_file.toURI ().toURL ();
-         uri = url.toExternalForm ();
+         // same URL as File.toURI: directories end with a slash
+         url = file.toURI().toURL();
       }
       catch (MalformedURLException e)
       {
-         throw new UnsupportedOperationException ("Cannot convert file \"" + 
-            root + "\" to URI.", e); 
+         throw new UnsupportedOperationException("Cannot convert file \"" + path + "\" to URI.", e);
       }
-      DrbNode item = DrbFactory.openURI (uri);
+      DrbNode item = DrbFactory.openURI(url.toExternalForm());
       scannedFiles++;
-      boolean accept = matches (item);
-      
+      boolean accept = matches(item);
+
       if (accept)
       {
-         list.add(new URLExt (url, is_root_dir));
-         retrievedFile ++;
+         list.add(new URLExt(url, isDirectory));
+         retrievedFile++;
       }
 
-      if ((!accept || isForceNavigate ()) && is_root_dir)
+      if ((!accept || isForceNavigate()) && isDirectory)
       {
-         File[]files = root_file.listFiles ();
-         if (files == null)
+         checkDirectory(list, path, relativePath, file.lastModified());
+      }
+   }
+
+   /**
+    * Checks the entries of a directory, skips the entries of unchanged directories.
+    *
+    * @param list         of retrieved products
+    * @param directory    to check
+    * @param relativePath of the directory, empty for the scanned directory
+    * @param modified     modification date of the directory
+    * @throws InterruptedException the scanner has been stopped
+    */
+   private void checkDirectory(List<URLExt> list, Path directory, String relativePath, long modified)
+         throws InterruptedException
+   {
+      if (snapshot != null)
+      {
+         boolean unchanged = snapshot.isUnmodified(relativePath, modified);
+         if (!unchanged && snapshot.isKnown(relativePath))
+         {
+            // modified but may contain the same entries, listing them is cheaper than matching them
+            long[] state = listDirectory(directory);
+            unchanged = state != null && snapshot.hasSameEntries(relativePath, (int) state[0], state[1]);
+         }
+         if (unchanged)
          {
-            LOGGER.error("Directory " + root_file + " not accessible." );
+            skippedDirectories++;
+            snapshot.keep(relativePath, modified);
+            for (String name: snapshot.getSubdirectories(relativePath))
+            {
+               if (isStopped())
+               {
+                  throw new InterruptedException();
+               }
+               Path subdirectory = directory.resolve(name);
+               String subdirectoryPath = DirectorySnapshot.child(relativePath, name);
+               File file = subdirectory.toFile();
+               long subdirectoryModified = file.lastModified();
+               if (snapshot.isUnmodified(subdirectoryPath, subdirectoryModified))
+               {
+                  checkDirectory(list, subdirectory, subdirectoryPath, subdirectoryModified);
+               }
+               else if (file.isDirectory())
+               {
+                  // its entries changed, it may now match
+                  checkList(list, subdirectory, subdirectoryPath);
+               }
+            }
             return;
          }
-         for (File f: files)
-            checkList (list, f.getPath ());
+      }
+
+      int count = 0;
+      long namesHash = 0L;
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory))
+      {
+         for (Path entry: entries)
+         {
+            String name = entry.getFileName().toString();
+            count++;
+            namesHash += DirectorySnapshot.hash(name);
+            checkList(list, entry, DirectorySnapshot.child(relativePath, name));
+         }
+      }
+      catch (IOException | DirectoryIteratorException e)
+      {
+         LOGGER.error("Directory {} not accessible.", directory);
+         return;
+      }
+      if (snapshot != null)
+      {
+         snapshot.put(relativePath, modified, count, namesHash);
+      }
+   }
+
+   /**
+    * Lists the entries of a directory without reading their attributes.
+    *
+    * @param directory to list
+    * @return the number of entries and the hash of their names, null if the directory cannot be listed
+    */
+   private static long[] listDirectory(Path directory)
+   {
+      long[] state = new long[2];
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory))
+      {
+         for (Path entry: entries)
+         {
+            state[0]++;
+            state[1] += DirectorySnapshot.hash(entry.getFileName().toString());
+         }
+         return state;
+      }
+      catch (IOException | DirectoryIteratorException e)
+      {
+         return null;
       }
    }
-   
+
+   /**
+    * Loads the state of the directories of the last scan.
+    *
+    * @return the snapshot of the last scan, null if scans are not incremental
+    */
+   DirectorySnapshot loadSnapshot()
+   {
+      return INCREMENTAL && getConfig() != null
+            ? DirectorySnapshot.load(getConfig().getId(), getFingerprint())
+            : null;
+   }
+
+   /**
+    * @return fingerprint of the settings of this scanner affecting the result of a scan
+    */
+   String getFingerprint()
+   {
+      return DirectorySnapshot.fingerprint(getUri(), getUserPattern(), isForceNavigate());
+   }
+
    /**
     * @return the archive
     */
-   public String getUri ()
+   public String getUri()
    {
       return uri;
    }
-   
+
    @Override
-   public int scan () throws InterruptedException
+   public int scan() throws InterruptedException
    {
       scannedFiles = 0;
       retrievedFile = 0;
-      getScanList ().clear ();
-      checkList (getScanList (), getUri ());
-      LOGGER.info("Filesystem Scan done (" + retrievedFile + "/" +
-            scannedFiles + ").");
+      skippedDirectories = 0;
+      getScanList().clear();
+
+      File root = new File(getUri());
+      if (!root.exists())
+      {
+         throw new UnsupportedOperationException("cannot access repository path \"" + getUri() + "\".");
+      }
+      snapshot = loadSnapshot();
+      try
+      {
+         checkList(getScanList(), root.toPath(), "");
+         if (snapshot != null)
+         {
+            // only saved by complete scans
+            snapshot.save();
+         }
+      }
+      finally
+      {
+         snapshot = null;
+      }
+      LOGGER.info("Filesystem Scan done ({}/{}, {} unchanged directories).",
+            retrievedFile, scannedFiles, skippedDirectories);
       return retrievedFile;
-   }   
+   }
 }
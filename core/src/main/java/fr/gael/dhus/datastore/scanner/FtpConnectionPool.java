@@ -0,0 +1,254 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.dhus.datastore.scanner;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.net.ftp.FTPSClient;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Bounded pool of authenticated connections to an FTP or FTPS server.
+ * <p>
+ * Released connections are kept open to be reused, connections idle for more than
+ * {@link #CHECK_DELAY} milliseconds are checked before being reused.
+ */
+public final class FtpConnectionPool implements AutoCloseable
+{
+   private static final Logger LOGGER = LogManager.getLogger();
+
+   /** Idle connections older than this delay (ms) are checked before being reused. */
+   private static final long CHECK_DELAY = 30_000L;
+
+   /** Timeout of connections, replies and data transfers, in milliseconds. */
+   private static final int TIMEOUT = Integer.getInteger("dhus.scanner.ftp.timeout", 60_000);
+
+   private final URL url;
+   private final String username;
+   private final String password;
+
+   /** One permit per connection that can be borrowed. */
+   private final Semaphore permits;
+
+   /** Idle connections, most recently released first. */
+   private final Deque<IdleConnection> idle = new ArrayDeque<>();
+
+   private volatile boolean closed = false;
+
+   /**
+    * Creates a pool of connections, connections are open when first borrowed.
+    *
+    * @param url            of the server, its protocol is `ftp` or `ftps`
+    * @param username       to log in with
+    * @param password       to log in with
+    * @param maxConnections maximum number of connections borrowed at the same time
+    */
+   public FtpConnectionPool(URL url, String username, String password, int maxConnections)
+   {
+      this.url = url;
+      this.username = username;
+      this.password = password;
+      this.permits = new Semaphore(Math.max(1, maxConnections), true);
+   }
+
+   /**
+    * Borrows a connection, blocks while all connections are borrowed.
+    * The connection must be given back with {@link #release(FTPClient)}, or with
+    * {@link #invalidate(FTPClient)} if it failed.
+    *
+    * @return an authenticated connection in passive mode
+    * @throws IOException          could not connect or log in
+    * @throws InterruptedException interrupted while waiting for a connection
+    */
+   public FTPClient borrow() throws IOException, InterruptedException
+   {
+      if (closed)
+      {
+         throw new IOException("FTP connection pool closed");
+      }
+      permits.acquire();
+      try
+      {
+         IdleConnection connection;
+         while ((connection = pollIdle()) != null)
+         {
+            if (System.currentTimeMillis() - connection.since < CHECK_DELAY || isAlive(connection.client))
+            {
+               return connection.client;
+            }
+            disconnect(connection.client);
+         }
+         return connect();
+      }
+      catch (IOException | RuntimeException e)
+      {
+         permits.release();
+         throw e;
+      }
+   }
+
+   /**
+    * Gives back a borrowed connection, to be reused.
+    *
+    * @param client borrowed connection
+    */
+   public void release(FTPClient client)
+   {
+      if (closed)
+      {
+         disconnect(client);
+      }
+      else
+      {
+         synchronized (idle)
+         {
+            idle.push(new IdleConnection(client, System.currentTimeMillis()));
+         }
+      }
+      permits.release();
+   }
+
+   /**
+    * Gives back a borrowed connection that failed, it is closed.
+    *
+    * @param client borrowed connection
+    */
+   public void invalidate(FTPClient client)
+   {
+      disconnect(client);
+      permits.release();
+   }
+
+   /**
+    * Returns the number of idle connections.
+    *
+    * @return number of open connections that are not borrowed
+    */
+   public int getIdleCount()
+   {
+      synchronized (idle)
+      {
+         return idle.size();
+      }
+   }
+
+   /** Closes the idle connections, borrowed connections are closed when given back. */
+   @Override
+   public void close()
+   {
+      closed = true;
+      IdleConnection connection;
+      while ((connection = pollIdle()) != null)
+      {
+         disconnect(connection.client);
+      }
+   }
+
+   private IdleConnection pollIdle()
+   {
+      synchronized (idle)
+      {
+         return idle.poll();
+      }
+   }
+
+   private FTPClient connect() throws IOException
+   {
+      boolean secure = "ftps".equalsIgnoreCase(url.getProtocol());
+      FTPClient client = secure ? new FTPSClient() : new FTPClient();
+      client.setConnectTimeout(TIMEOUT);
+      client.setDefaultTimeout(TIMEOUT);
+      client.setDataTimeout(TIMEOUT);
+      try
+      {
+         client.connect(url.getHost(), url.getPort() > 0 ? url.getPort() : client.getDefaultPort());
+         if (!FTPReply.isPositiveCompletion(client.getReplyCode()))
+         {
+            throw new IOException("FTP server " + url.getHost() + " refused connection: " + client.getReplyString());
+         }
+         if (!client.login(username, password))
+         {
+            throw new IOException("Cannot log in FTP server " + url.getHost() + " as " + username);
+         }
+         if (secure)
+         {
+            ((FTPSClient) client).execPBSZ(0);
+            ((FTPSClient) client).execPROT("P");
+         }
+         client.enterLocalPassiveMode();
+         LOGGER.debug("Connected to FTP server {}:{}", url.getHost(), url.getPort());
+         return client;
+      }
+      catch (IOException | RuntimeException e)
+      {
+         disconnect(client);
+         throw e;
+      }
+   }
+
+   private static boolean isAlive(FTPClient client)
+   {
+      try
+      {
+         return client.isConnected() && client.sendNoOp();
+      }
+      catch (IOException e)
+      {
+         return false;
+      }
+   }
+
+   private static void disconnect(FTPClient client)
+   {
+      if (client.isConnected())
+      {
+         try
+         {
+            client.logout();
+         }
+         catch (IOException suppressed) {}
+         try
+         {
+            client.disconnect();
+         }
+         catch (IOException suppressed) {}
+      }
+   }
+
+   private static final class IdleConnection
+   {
+      private final FTPClient client;
+      private final long since;
+
+      private IdleConnection(FTPClient client, long since)
+      {
+         this.client = client;
+         this.since = since;
+      }
+   }
+}
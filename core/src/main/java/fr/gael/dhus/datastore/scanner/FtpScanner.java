@@ -1,6 +1,6 @@
 /*
  * Data Hub Service (DHuS) - For Space data distribution.
- * Copyright (C) 2013,2014,2015 GAEL Systems
+ * Copyright (C) 2013,2014,2015,2019 GAEL Systems
  *
  * This file is part of DHuS software sources.
  *
@@ -19,16 +19,29 @@
  */
 package fr.gael.dhus.datastore.scanner;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
-import fr.gael.dhus.datastore.exception.BadLoginException;
 import fr.gael.drb.DrbAttribute;
-import fr.gael.drb.DrbItem;
 import fr.gael.drb.DrbNode;
 import fr.gael.drb.impl.ftp.FtpConnectionFactory;
 import fr.gael.drb.impl.ftp.FtpFactory;
@@ -36,53 +49,78 @@ import fr.gael.drb.impl.ftp.FtpNode;
 
 /**
  * This class performs scanning other FTP/FTPS file systems.
+ * <p>
+ * Directories are listed in parallel by a bounded pool of connections, kept open between scans
+ * (`dhus.scanner.ftp.connections`, 4 by default). Listed entries are matched by the scanning
+ * thread as soon as their directory is listed, entries whose name cannot match are not opened.
+ * <p>
+ * Entries are opened and matched one at a time, DRB nodes and the cortex model are not known to be
+ * thread safe. Each opened DRB node has its own connection, so at most one connection is used
+ * beyond the pool. Products are retrieved with the URLs of their DRB nodes, their origins are
+ * those of the previous releases.
  */
 public class FtpScanner extends AbstractScanner
 {
    private static final Logger LOGGER = LogManager.getLogger(FtpScanner.class);
 
+   /** Maximum number of directories listed in parallel. */
+   private static final int CONNECTIONS = Math.max(1, Integer.getInteger("dhus.scanner.ftp.connections", 4));
+
+   /** Maximum number of listings, per connection, listed and not processed yet. */
+   private static final int LISTINGS_PER_CONNECTION = 4;
+
    protected int scannedFiles = 0;
    protected int retrievedFile = 0;
 
    DrbNode ftpNode;
 
-   public FtpScanner (String uri, boolean store_scan_list, String username,
-         String password)
+   private final URL url;
+   private final String username;
+   private final String password;
+
+   /** Connections listing directories, reused by successive scans. */
+   private final FtpConnectionPool connections;
+
+   public FtpScanner(String uri, boolean store_scan_list, String username, String password)
    {
-      super (store_scan_list);
-      ftpNode = (new FtpFactory()).open(toUrl(uri), username, password);
+      super(store_scan_list);
+      this.url = toUrl(uri);
+      this.username = username;
+      this.password = password;
+      ftpNode = (new FtpFactory()).open(url, username, password);
 
-      if (!FtpConnectionFactory.isArchiveSupported (uri))
-         throw new UnsupportedOperationException ("URI not supported");
+      if (!FtpConnectionFactory.isArchiveSupported(uri))
+      {
+         throw new UnsupportedOperationException("URI not supported");
+      }
+      connections = new FtpConnectionPool(url, username, password, CONNECTIONS);
    }
 
-   private URL toUrl (String uri)
+   private static URL toUrl(String uri)
    {
       try
       {
-         return new URL (uri);
+         return new URL(uri);
       }
       catch (MalformedURLException e)
       {
-         throw new UnsupportedOperationException ("URI not supported", e);
+         throw new UnsupportedOperationException("URI not supported", e);
       }
    }
-   
+
    /*
     * (non-Javadoc)
     * @see fr.gael.dhus.archive.scanner.AbstractScanner#scan()
     */
    @Override
-   public int scan () throws InterruptedException
+   public int scan() throws InterruptedException
    {
       scannedFiles = 0;
       retrievedFile = 0;
 
-      int total = 0;
-
       try
       {
-         total = scanDirectory (ftpNode);
+         retrievedFile = scanTree();
       }
       catch (InterruptedException e)
       {
@@ -90,49 +128,179 @@ public class FtpScanner extends AbstractScanner
       }
       catch (Exception e)
       {
-         LOGGER.error("Cannot scan directory " +  ftpNode, e);
+         LOGGER.error("Cannot scan directory " + ftpNode, e);
          throw new RuntimeException(e);
       }
-      LOGGER.info("FTP Scan done (" + total + ").");
-      return total;
+      LOGGER.info("FTP Scan done ({}/{}).", retrievedFile, scannedFiles);
+      return retrievedFile;
    }
 
    /**
-    * Recursively scans specified directory.
-    * 
-    * @param directory directory to scan
-    * @throws IOException if IO exception occurs
+    * Scans the tree of the scanned directory, sibling directories are listed in parallel.
+    *
+    * @return number of retrieved products
+    * @throws IOException          the scanned directory cannot be listed
     * @throws InterruptedException in user request stop
     */
-   private int scanDirectory (DrbNode path) 
-      throws IOException, BadLoginException, InterruptedException
+   private int scanTree() throws IOException, InterruptedException
    {
-      if (isStopped ()) throw new InterruptedException ();
-      LOGGER.info("LIST " + path);
-      
-      boolean accepted = checkIt (path);
-      
-      int total =0;
-      if (accepted) total++;
-      if ((!accepted || isForceNavigate ()) && !isFile(path))
-      {
-         for (int index=0; index<path.getChildrenCount () ; index++)
+      if (isStopped())
+      {
+         throw new InterruptedException();
+      }
+      // the scanned directory itself may be a product
+      scannedFiles++;
+      boolean isDirectory = !isFile(ftpNode);
+      int total = checkIt(ftpNode, isDirectory) ? 1 : 0;
+      if ((total > 0 && !isForceNavigate()) || !isDirectory)
+      {
+         return total;
+      }
+
+      String rootPath = url.getPath().isEmpty() ? "/" : url.getPath();
+      ExecutorService listers = Executors.newFixedThreadPool(CONNECTIONS, new ThreadFactoryBuilder()
+            .setNameFormat("FtpScanner-%d")
+            .setDaemon(true)
+            .build());
+      CompletionService<Listing> listings = new ExecutorCompletionService<>(listers);
+      Deque<String> directories = new ArrayDeque<>();
+      directories.add(rootPath);
+      int running = 0;
+      try
+      {
+         while (running > 0 || !directories.isEmpty())
          {
-            DrbItem item = path.getChildAt (index);
-            total += scanDirectory((FtpNode)item);
+            while (running < CONNECTIONS * LISTINGS_PER_CONNECTION && !directories.isEmpty())
+            {
+               String directory = directories.poll();
+               listings.submit(() -> list(directory));
+               running++;
+            }
+
+            Future<Listing> done = listings.poll(1, TimeUnit.SECONDS);
+            if (isStopped())
+            {
+               throw new InterruptedException();
+            }
+            if (done == null)
+            {
+               continue;
+            }
+            running--;
+
+            Listing listing = done.get();
+            if (listing.error != null)
+            {
+               if (listing.path.equals(rootPath))
+               {
+                  throw listing.error;
+               }
+               LOGGER.error("Directory {} not accessible: {}", listing.path, listing.error.getMessage());
+               continue;
+            }
+            for (FTPFile entry: listing.entries)
+            {
+               if (isStopped())
+               {
+                  throw new InterruptedException();
+               }
+               total += checkEntry(listing.path, entry, directories);
+            }
          }
       }
+      catch (ExecutionException e)
+      {
+         throw new IOException(e.getCause());
+      }
+      finally
+      {
+         listers.shutdownNow();
+      }
       return total;
    }
 
-   private boolean checkIt(DrbNode node)
+   /**
+    * Checks an entry of a listed directory.
+    *
+    * @param parent      path of the listed directory
+    * @param entry       listed entry
+    * @param directories directories to list, the entry is added if it is a directory to navigate
+    * @return 1 if the entry is a retrieved product, 0 otherwise
+    */
+   private int checkEntry(String parent, FTPFile entry, Deque<String> directories)
+   {
+      String name = entry == null ? null : entry.getName();
+      if (name == null || name.isEmpty() || ".".equals(name) || "..".equals(name))
+      {
+         return 0;
+      }
+      String path = parent.endsWith("/") ? parent + name : parent + '/' + name;
+      scannedFiles++;
+
+      boolean accepted = false;
+      if (mayMatch(name))
+      {
+         try
+         {
+            DrbNode node = (new FtpFactory()).open(
+                  new URL(url.getProtocol(), url.getHost(), url.getPort(), path), username, password);
+            accepted = checkIt(node, entry.isDirectory());
+         }
+         catch (MalformedURLException | RuntimeException e)
+         {
+            LOGGER.warn("Cannot match the item \"{}\": {}", path, e.getMessage());
+         }
+      }
+      if ((!accepted || isForceNavigate()) && entry.isDirectory())
+      {
+         directories.add(path);
+      }
+      return accepted ? 1 : 0;
+   }
+
+   /** Lists a directory with a pooled connection, called by listing threads. */
+   private Listing list(String path)
+   {
+      FTPClient client;
+      try
+      {
+         client = connections.borrow();
+      }
+      catch (IOException e)
+      {
+         return new Listing(path, null, e);
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         return new Listing(path, null, new IOException("Listing interrupted"));
+      }
+      try
+      {
+         LOGGER.debug("LIST {}", path);
+         FTPFile[] entries = client.listFiles(path);
+         if (!FTPReply.isPositiveCompletion(client.getReplyCode()))
+         {
+            connections.release(client);
+            return new Listing(path, null, new IOException(client.getReplyString()));
+         }
+         connections.release(client);
+         return new Listing(path, entries, null);
+      }
+      catch (IOException | RuntimeException e)
+      {
+         connections.invalidate(client);
+         return new Listing(path, null, e instanceof IOException ? (IOException) e : new IOException(e));
+      }
+   }
+
+   private boolean checkIt(DrbNode node, boolean isDirectory)
    {
       boolean check = matches(node) && (node instanceof FtpNode);
-      //String url = toUrl(node);
       if (check)
       {
          FtpNode ftp = (FtpNode) node;
-         check = getScanList().add(new URLExt(ftp.getUrl(), !isFile(node)));
+         check = getScanList().add(new URLExt(ftp.getUrl(), isDirectory));
       }
       return check;
    }
@@ -153,4 +321,25 @@ public class FtpScanner extends AbstractScanner
       }
       return false;
    }
+
+   /** Closes the connections of this scanner, it must not be used afterwards. */
+   public void close()
+   {
+      connections.close();
+   }
+
+   /** Entries of a directory, or the error that prevented listing it. */
+   private static final class Listing
+   {
+      private final String path;
+      private final FTPFile[] entries;
+      private final IOException error;
+
+      private Listing(String path, FTPFile[] entries, IOException error)
+      {
+         this.path = path;
+         this.entries = entries;
+         this.error = error;
+      }
+   }
 }
@@ -46,7 +46,10 @@ public class ScannerStatus
    final AtomicInteger cancelCount;
    final AtomicInteger totalProcessed;
 
-   private boolean stopped = false;
+   private volatile boolean stopped = false;
+
+   /** True while products are being discovered, ingestions cannot complete until the scan ends. */
+   private boolean scanning = false;
 
    private String status = "";
    private final LinkedList<Duo<Long, String>> statuses = new LinkedList<>();
@@ -79,6 +82,7 @@ public class ScannerStatus
          processingErrors += e.getMessage() + message + "\n";
       }
       errorCounter.incrementAndGet();
+      notifyAll();
 
       // As far as endIngestion is not called in case of error, it is
       // necessary to run it manually.
@@ -117,6 +121,7 @@ public class ScannerStatus
    public synchronized void endIngestion()
    {
       endCounter.incrementAndGet();
+      notifyAll();
       logStatus();
 
       // Total number of product processed shall be coherent with
@@ -128,6 +133,44 @@ public class ScannerStatus
       }
    }
 
+   /**
+    * Called when the scanner starts discovering products, ingestions of discovered products
+    * cannot complete before {@link #endScan()} is called.
+    */
+   public synchronized void startScan()
+   {
+      scanning = true;
+   }
+
+   /**
+    * Called when the scanner has discovered all its products: completes if the ingestions of
+    * all discovered products are already done.
+    */
+   public synchronized void endScan()
+   {
+      scanning = false;
+      if (totalProcessed.get() > 0 && isCompleted())
+      {
+         this.status = errorCounter.get() > 0 || STATUS_ERROR.equals(status) ? STATUS_ERROR : STATUS_OK;
+         processingsDone(stopped ? "Scanner stopped" : null);
+      }
+   }
+
+   /**
+    * Waits until less than the given number of discovered products are waiting for or being
+    * ingested, or until the scanner is stopped.
+    *
+    * @param max number of products in the inbox
+    * @throws InterruptedException if the current thread is interrupted
+    */
+   public synchronized void awaitInbox(int max) throws InterruptedException
+   {
+      while (!stopped && getInbox() >= max)
+      {
+         wait();
+      }
+   }
+
    /**
     * Notifies the scanner that the processings are done.
     *
@@ -167,8 +210,8 @@ public class ScannerStatus
     * exception during submission. This count includes submitted products
     * even if they causes exception during processing steps.
     * <p>
-    * To be able to return this value, scanner execution should be finished
-    * with a status. Otherwise, the method waits for the availability.
+    * This count is updated as the scanner submits products, before the end
+    * of the scan.
     */
    public int getTotalProcessed()
    {
@@ -193,7 +236,7 @@ public class ScannerStatus
    private boolean isCompleted()
    {
       int result = endCounter.get() + cancelCount.get() + errorCounter.get();
-      return result >= totalProcessed.get();
+      return !scanning && result >= totalProcessed.get();
    }
 
    /**
@@ -204,6 +247,7 @@ public class ScannerStatus
    public synchronized void cancelProcess(String origin)
    {
       cancelCount.incrementAndGet();
+      notifyAll();
       LOGGER.info("Ingestion cancelled for product located at '{}'", origin);
       if (isCompleted())
       {
@@ -293,8 +337,9 @@ public class ScannerStatus
       return stopped;
    }
 
-   public void setStopped(boolean stopping)
+   public synchronized void setStopped(boolean stopping)
    {
       this.stopped = stopping;
+      notifyAll();
    }
 }
@@ -1,6 +1,6 @@
 /*
  * Data Hub Service (DHuS) - For Space data distribution.
- * Copyright (C) 2016,2018 GAEL Systems
+ * Copyright (C) 2016-2019 GAEL Systems
  *
  * This file is part of DHuS software sources.
  *
@@ -19,78 +19,130 @@
  */
 package fr.gael.dhus.datastore.scanner.listener;
 
-import fr.gael.dhus.database.object.Product;
 import fr.gael.dhus.datastore.scanner.URLExt;
 import fr.gael.dhus.service.ProductService;
 import fr.gael.dhus.spring.context.ApplicationContextProvider;
 
 import java.net.URL;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /*
- * This scanner listener aims to record retrieved products during scan only if products are not
+ * This scanner listener aims to forward retrieved products during scan only if products are not
  * already present in the database.
  * Otherwise the product is not retained.
+ * Retrieved products are checked in batches of `dhus.scanner.origin_batch_size` products, the
+ * last batch is checked by flush().
  */
 public class ScannerListener implements Listener<URLExt>
 {
    private static final Logger LOGGER = LogManager.getLogger();
 
-   private final List<URL> notIngestedProductList = new LinkedList<>();
+   /** Number of retrieved products whose existence is checked at once. */
+   private static final int BATCH_SIZE = Math.max(1, Integer.getInteger("dhus.scanner.origin_batch_size", 500));
+
+   private final int batchSize;
+
+   /** Retrieved products not checked yet, only accessed by the scanning thread. */
+   private final List<URL> batch = new ArrayList<>();
+
+   /** Receives the URL of not ingested products, may block to slow the scan down. */
+   private volatile Consumer<URL> consumer = null;
+
+   public ScannerListener()
+   {
+      this(BATCH_SIZE);
+   }
+
+   ScannerListener(int batchSize)
+   {
+      this.batchSize = batchSize;
+   }
 
    /**
-    * Checks product existence in the system by his origin, and raise the appropriate message.
+    * Returns the origins of the given list that are the origin of an existing product.
     *
-    * @param url element containing the origin of product
-    * @return true if already present, false otherwise
+    * @param origins to check
+    * @return origins of existing products
     */
-   private boolean checkProductExistence(final URL url)
+   protected Set<String> getExistingOrigins(Collection<String> origins)
    {
-      ProductService productService = ApplicationContextProvider.getBean(ProductService.class);
-
-      Product p = productService.getProductByOrigin(url.toString());
-      if (p == null)
-      {
-         LOGGER.info("Product at '{}' is waiting for ingestion", url);
-         return false;
-      }
-      else
-      {
-         LOGGER.info("Product at '{}' is already ingested", url);
-         return true;
-      }
+      return ApplicationContextProvider.getBean(ProductService.class).getExistingOrigins(origins);
    }
 
    /**
-    * Returns the list containing URL of not ingested product by the system.
+    * Sets the consumer of the URLs of products not ingested by the system.
     *
-    * @return a URL list
+    * @param consumer called in the scanning thread, null to ignore products
     */
-   public List<URL> newlyProducts()
+   public void setConsumer(Consumer<URL> consumer)
    {
-      return notIngestedProductList;
+      this.consumer = consumer;
+   }
+
+   /**
+    * Checks the products retrieved since the last check and forwards those not ingested to the
+    * consumer, must be called in the scanning thread at the end of the scan.
+    */
+   public void flush()
+   {
+      if (batch.isEmpty())
+      {
+         return;
+      }
+      List<URL> urls = new ArrayList<>(batch);
+      batch.clear();
+
+      Consumer<URL> current = consumer;
+      if (current == null)
+      {
+         return;
+      }
+      Set<String> existing = getExistingOrigins(
+            urls.stream().map(URL::toString).collect(Collectors.toList()));
+      LOGGER.debug("{} products checked, {} already ingested", urls.size(), existing.size());
+      for (URL url: urls)
+      {
+         if (existing.contains(url.toString()))
+         {
+            LOGGER.debug("Product at '{}' is already ingested", url);
+         }
+         else
+         {
+            LOGGER.info("Product at '{}' is waiting for ingestion", url);
+            current.accept(url);
+         }
+      }
    }
 
    @Override
    public void addedElement(Event<URLExt> e)
    {
-      URL url = e.getElement().getUrl();
-      if (!checkProductExistence(url))
+      if (consumer == null)
+      {
+         return;
+      }
+      batch.add(e.getElement().getUrl());
+      if (batch.size() >= batchSize)
       {
-         notIngestedProductList.add(url);
+         flush();
       }
    }
 
    @Override
    public void removedElement(Event<URLExt> e) {}
 
+   /** Forgets the products retrieved and not checked yet. */
    @Override
    public void reset()
    {
-      notIngestedProductList.clear();
+      batch.clear();
    }
 }
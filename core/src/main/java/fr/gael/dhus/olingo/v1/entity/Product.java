@@ -81,6 +81,7 @@ import org.dhus.ProductConstants;
 import org.dhus.metrics.DownloadMetrics;
 import org.dhus.store.datastore.async.AsyncProduct;
 import org.dhus.store.datastore.openstack.OpenStackProduct;
+import org.dhus.store.derived.DerivedProductGenerator;
 import org.dhus.store.derived.DerivedProductStore;
 import org.dhus.store.derived.DerivedProductStoreService;
 import org.dhus.store.StoreException;
@@ -106,6 +107,9 @@ public class Product extends Node implements Closeable
    private static final DerivedProductStoreService DERIVED_PRODUCT =
          ApplicationContextProvider.getBean(DerivedProductStoreService.class);
 
+   private static final DerivedProductGenerator DERIVED_PRODUCT_GENERATOR =
+         ApplicationContextProvider.getBean(DerivedProductGenerator.class);
+
    private static final OrderService ORDER_SERVICE =
          ApplicationContextProvider.getBean(OrderService.class);
 
@@ -302,6 +306,14 @@ public class Product extends Node implements Closeable
       return product.isOnDemand();
    }
 
+   /**
+    * @return true if the quicklook and thumbnail of this product are not generated yet
+    */
+   public boolean isDerivedProductsPending()
+   {
+      return DERIVED_PRODUCT_GENERATOR.isPending(product.getUuid());
+   }
+
    public String getChecksumAlgorithm()
    {
       if (!(hasChecksum()))
@@ -423,6 +435,31 @@ public class Product extends Node implements Closeable
       }
    }
 
+   /**
+    * Returns the data of this product for a download, data beyond the requested byte range is
+    * not fetched from data stores supporting it.
+    *
+    * @param range value of the HTTP Range header of the download request, may be null
+    * @return the data of this product, or null if it is not available
+    * @throws IOException could not open the data
+    */
+   protected InputStream getInputStream(String range) throws IOException
+   {
+      try
+      {
+         DataStoreProduct data = getPhysicalProduct();
+         if (data instanceof OpenStackProduct)
+         {
+            return ((OpenStackProduct) data).getRangeInputStream(range);
+         }
+      }
+      catch (DataStoreException e)
+      {
+         return null;
+      }
+      return getInputStream();
+   }
+
    @Override
    public Map<String, Object> toEntityResponse(String root_url)
    {
@@ -449,6 +486,7 @@ public class Product extends Node implements Closeable
       res.put(ProductEntitySet.CONTENT_GEOMETRY, getGeometry());
       res.put(ProductEntitySet.ONLINE, isOnline());
       res.put(ProductEntitySet.ON_DEMAND, isOnDemand());
+      res.put(ProductEntitySet.DERIVED_PENDING, isDerivedProductsPending());
 
       try
       {
@@ -487,6 +525,7 @@ public class Product extends Node implements Closeable
          case ProductEntitySet.CONTENT_GEOMETRY: return getGeometry();
          case ProductEntitySet.ONLINE: return isOnline();
          case ProductEntitySet.ON_DEMAND: return isOnDemand();
+         case ProductEntitySet.DERIVED_PENDING: return isDerivedProductsPending();
          case ProductEntitySet.LOCAL_PATH:
             try
             {
@@ -559,7 +598,7 @@ public class Product extends Node implements Closeable
       InputStream input = null;
       try
       {
-         input = attach_stream? getInputStream(): null;
+         input = attach_stream? getInputStream(processor.getContext().getRequestHeader("Range")): null;
          User u = Security.getCurrentUser();
          String user_name = (u == null ? null : u.getUsername());
          DownloadMetrics.DownloadActionListener metrics = null;
@@ -66,6 +66,7 @@ public class ProductEntitySet extends AbstractEntitySet<Product>
    public static final String LOCAL_PATH = "LocalPath";
    public static final String ONLINE = "Online";
    public static final String ON_DEMAND = "OnDemand";
+   public static final String DERIVED_PENDING = "DerivedProductsPending";
 
    public static final FullQualifiedName ASSO_PRODUCT_PRODUCT =
          new FullQualifiedName(Model.NAMESPACE, "Product_Product");
@@ -137,6 +138,11 @@ public class ProductEntitySet extends AbstractEntitySet<Product>
             .setType(EdmSimpleTypeKind.Boolean)
             .setFacets(new Facets().setNullable(false)));
 
+      properties.add(new SimpleProperty()
+            .setName(DERIVED_PENDING)
+            .setType(EdmSimpleTypeKind.Boolean)
+            .setFacets(new Facets().setNullable(false)));
+
       properties.add(new ComplexProperty().setName(CONTENT_DATE).setType(Model.TIME_RANGE));
       properties.add(new ComplexProperty().setName(CHECKSUM).setType(Model.CHECKSUM));
       properties.add(new SimpleProperty().setName(CONTENT_GEOMETRY).setType(EdmSimpleTypeKind.String));
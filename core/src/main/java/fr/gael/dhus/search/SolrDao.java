@@ -525,4 +525,31 @@ public class SolrDao
    {
       solrClient.deleteByQuery("uuid:"+uuid);
    }
+
+   /**
+    * Removes several products in a single delete request followed by one soft-commit.
+    * @param uuids of products to remove.
+    * @throws IOException network error.
+    * @throws SolrServerException solr error.
+    */
+   public void removeProducts(Iterable<String> uuids) throws SolrServerException, IOException
+   {
+      StringBuilder query = new StringBuilder("uuid:(");
+      boolean empty = true;
+      for (String uuid: uuids)
+      {
+         if (!empty)
+         {
+            query.append(" OR ");
+         }
+         query.append(uuid);
+         empty = false;
+      }
+      if (empty)
+      {
+         return;
+      }
+      solrClient.deleteByQuery(query.append(')').toString());
+      solrClient.commit(false, true, true); // mandatory explicit soft-commit.
+   }
 }
@@ -0,0 +1,161 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.dhus.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.dhus.store.datastore.DataStore;
+import org.dhus.store.datastore.DataStoreManager;
+import org.dhus.store.datastore.DataStoreMigration;
+import org.dhus.store.datastore.DataStoreMigration.Status;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Runs migrations of products between DataStores, see {@link DataStoreMigration}.
+ */
+@Service
+public class DataStoreMigrationService
+{
+   private static final Logger LOGGER = LogManager.getLogger();
+
+   @Autowired
+   private DataStoreManager dataStoreManager;
+
+   /** Migrations started since the last start, by name. */
+   private final ConcurrentMap<String, DataStoreMigration> migrations = new ConcurrentHashMap<>();
+
+   private final ExecutorService executor = Executors.newCachedThreadPool(
+         new ThreadFactoryBuilder().setNameFormat("DataStoreMigrationRunner-%d").setDaemon(true).build());
+
+   /**
+    * Starts the migration of all the products of a DataStore to another DataStore.
+    *
+    * @param source       name of the DataStore to migrate products from
+    * @param target       name of the DataStore to migrate products to
+    * @param workers      number of products copied in parallel
+    * @param bandwidth    maximum transfer rate in bytes per second, unlimited if not positive
+    * @param deleteSource true to delete products from the source DataStore once copied
+    * @return the started migration
+    * @throws IllegalArgumentException if a DataStore does not exist, or source and target are the same
+    * @throws IllegalStateException if the same migration is already running
+    */
+   public DataStoreMigration migrate(String source, String target, int workers, long bandwidth, boolean deleteSource)
+   {
+      DataStore sourceDataStore = dataStoreManager.getDataStoreByName(source);
+      DataStore targetDataStore = dataStoreManager.getDataStoreByName(target);
+      if (sourceDataStore == null || targetDataStore == null)
+      {
+         throw new IllegalArgumentException("Unknown DataStore: " + (sourceDataStore == null ? source : target));
+      }
+      if (sourceDataStore == targetDataStore)
+      {
+         throw new IllegalArgumentException("Cannot migrate DataStore " + source + " to itself");
+      }
+      return start(new DataStoreMigration(source, target, workers, bandwidth, deleteSource));
+   }
+
+   /**
+    * Resumes the migrations that were not completed when the DHuS stopped.
+    */
+   public void resume()
+   {
+      for (DataStoreMigration migration: DataStoreMigration.loadUnfinished())
+      {
+         try
+         {
+            start(migration);
+            LOGGER.info("Resuming migration {}", migration.getName());
+         }
+         catch (IllegalStateException e)
+         {
+            LOGGER.warn("Cannot resume migration {}: {}", migration.getName(), e.getMessage());
+         }
+      }
+   }
+
+   /**
+    * Cancels a migration, products already copied are kept in the target DataStore.
+    *
+    * @param name of the migration
+    * @return true if the migration has been cancelled, false if it is not running
+    */
+   public boolean cancel(String name)
+   {
+      DataStoreMigration migration = migrations.get(name);
+      if (migration == null || !isActive(migration))
+      {
+         return false;
+      }
+      migration.cancel();
+      return true;
+   }
+
+   /**
+    * Returns the migrations started since the last start.
+    *
+    * @return a non null list
+    */
+   public List<DataStoreMigration> getMigrations()
+   {
+      return new ArrayList<>(migrations.values());
+   }
+
+   private DataStoreMigration start(DataStoreMigration migration)
+   {
+      DataStoreMigration started = migrations.compute(migration.getName(),
+            (name, previous) -> previous != null && isActive(previous) ? previous : migration);
+      if (started != migration)
+      {
+         throw new IllegalStateException("Migration " + migration.getName() + " is already running");
+      }
+      executor.execute(migration);
+      return migration;
+   }
+
+   private static boolean isActive(DataStoreMigration migration)
+   {
+      return migration.getStatus() == Status.PENDING || migration.getStatus() == Status.RUNNING;
+   }
+
+   /** Stops running migrations, their progress is kept. */
+   @PreDestroy
+   public void shutdown()
+   {
+      for (DataStoreMigration migration: migrations.values())
+      {
+         migration.stop();
+      }
+      executor.shutdownNow();
+   }
+}
@@ -22,6 +22,7 @@ package fr.gael.dhus.service;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
@@ -174,14 +175,17 @@ public class EvictionService extends WebService
     * @param evictionName  name of the eviction that is in the configuration of the DataStore
     * @param dataStoreName name of the DataStore
     * @param dataSize      size to evict (in bytes) from the DataStore
+    * @return completed when the eviction is over, or immediately if it has not been queued
     */
-   public void evictAtLeast(String evictionName, String dataStoreName, long dataSize)
+   public CompletableFuture<Void> evictAtLeast(String evictionName, String dataStoreName, long dataSize)
    {
       if (queueEvict(evictionName))
       {
          // queue eviction in the executor
-         executor.execute(() -> performTimedEviction(evictionName, dataStoreName, dataSize, false));
+         return CompletableFuture.runAsync(
+               () -> performTimedEviction(evictionName, dataStoreName, dataSize, false), executor);
       }
+      return CompletableFuture.completedFuture(null);
    }
 
    /**
@@ -189,10 +193,11 @@ public class EvictionService extends WebService
     *
     * @param dataStoreName name of the DataStore
     * @param sizeToEvict   size to evict in the DataStore
+    * @return completed when the eviction is over
     */
-   public void evictAtLeast(String dataStoreName, long sizeToEvict)
+   public CompletableFuture<Void> evictAtLeast(String dataStoreName, long sizeToEvict)
    {
-      executor.execute(() -> {
+      return CompletableFuture.runAsync(() -> {
          String metric = MetricRegistry.name("eviction", "default", dataStoreName, "timer");
          try (Timer.Context ctx = metricRegistry.timer(metric).time())
          {
@@ -202,7 +207,7 @@ public class EvictionService extends WebService
          {
             LOGGER.error("Error during eviction in DataStore {}", dataStoreName, e);
          }
-      });
+      }, executor);
    }
 
    private long performTimedEviction(String evictionName, String dataStoreName, long dataSize, boolean safeMode)
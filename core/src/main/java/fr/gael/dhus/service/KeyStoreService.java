@@ -207,6 +207,20 @@ public class KeyStoreService
       return keyStoreEntryDao.getUnalteredProductEntries(keyStoreName, skip, top);
    }
 
+   /**
+    * Keyset paginated listing of unaltered product entries, ordered by entry key.
+    *
+    * @param keyStoreName name of the keystore
+    * @param afterKey returned entries have a key strictly greater, null to get the first page
+    * @param top maximum number of entries to return
+    * @return list of KeyStoreEntry
+    */
+   @Transactional(readOnly = true)
+   public List<KeyStoreEntry> getUnalteredProductEntriesAfter(String keyStoreName, String afterKey, int top)
+   {
+      return keyStoreEntryDao.getUnalteredProductEntriesAfter(keyStoreName, afterKey, top);
+   }
+
    @Transactional(readOnly = true)
    public List<KeyStoreEntry> listUnalteredForUuid(String uuid)
    {
@@ -29,6 +29,8 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 import org.apache.olingo.server.api.ODataApplicationException;
 
@@ -39,6 +41,8 @@ import org.hibernate.Hibernate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 @Service
 public class OrderService
@@ -49,6 +53,28 @@ public class OrderService
    @Autowired
    private StoreQuotaService sqService;
 
+   /** Notified of the orders deleted by {@link #deleteOrderByProductUUID(String)}. */
+   private final Set<Consumer<Order>> deletionListeners = ConcurrentHashMap.newKeySet();
+
+   /**
+    * Registers a listener notified of each order deleted by {@link #deleteOrderByProductUUID(String)},
+    * once its deletion is committed.
+    *
+    * @param listener accepting the deleted order
+    */
+   public void addDeletionListener(Consumer<Order> listener)
+   {
+      deletionListeners.add(listener);
+   }
+
+   /**
+    * @param listener registered by {@link #addDeletionListener(Consumer)}
+    */
+   public void removeDeletionListener(Consumer<Order> listener)
+   {
+      deletionListeners.remove(listener);
+   }
+
    /**
     * Refresh status of existing Order or creates it if necessary.
     *
@@ -120,6 +146,33 @@ public class OrderService
          sqService.deleteQuotaEntry(order.getOrderId().getDataStoreName(), FetchLimiterAsyncDataStore.NAME, productUUID);
       }
       orderDao.deleteByProductUUID(productUUID);
+      if (order != null)
+      {
+         afterCommit(() -> deletionListeners.forEach(listener -> listener.accept(order)));
+      }
+   }
+
+   /**
+    * Runs the given action once the current transaction is committed, or immediately if there is
+    * no transaction.
+    */
+   private static void afterCommit(Runnable action)
+   {
+      if (TransactionSynchronizationManager.isSynchronizationActive())
+      {
+         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter()
+         {
+            @Override
+            public void afterCommit()
+            {
+               action.run();
+            }
+         });
+      }
+      else
+      {
+         action.run();
+      }
    }
 
    /**
@@ -19,6 +19,9 @@
  */
 package fr.gael.dhus.service;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
@@ -26,6 +29,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -44,6 +48,11 @@ import org.springframework.cache.annotation.Caching;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterables;
 
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
@@ -66,6 +75,24 @@ public class ProductService extends WebService
 {
    private static final Logger LOGGER = LogManager.getLogger();
 
+   /** Maximum number of origins in a query checking the existence of products. */
+   private static final int ORIGIN_BATCH_SIZE = Math.max(1, Integer.getInteger("dhus.products.origin_batch_size", 500));
+
+   /** Maximum number of origins of existing products kept in memory. */
+   private static final long KNOWN_ORIGINS_SIZE = Long.getLong("dhus.products.known_origins", 1_000_000L);
+
+   /**
+    * Time to live in milliseconds of known origins, products may be deleted by other instances
+    * sharing the database or by other means than this service.
+    */
+   private static final long KNOWN_ORIGINS_TTL = Long.getLong("dhus.products.known_origins_ttl", 3_600_000L);
+
+   /** Origins of existing products, updated when products are added or deleted by this service. */
+   private final Cache<String, Boolean> knownOrigins = CacheBuilder.newBuilder()
+         .maximumSize(KNOWN_ORIGINS_SIZE)
+         .expireAfterWrite(KNOWN_ORIGINS_TTL, TimeUnit.MILLISECONDS)
+         .build();
+
    @Autowired
    private ProductDao productDao;
 
@@ -180,6 +207,11 @@ public class ProductService extends WebService
    public Product addProduct(Product product)
    {
       Product final_product = this.productDao.create(product);
+      String origin = final_product.getOrigin();
+      if (origin != null)
+      {
+         afterCommit(() -> knownOrigins.put(origin, Boolean.TRUE));
+      }
       return final_product;
    }
 
@@ -259,6 +291,43 @@ public class ProductService extends WebService
     */
    @Transactional(readOnly = true)
    public List<LoggableProduct> getProductUUIDs(ProductSQLVisitor visitor, String collectionName, boolean safe, int skip, int top)
+   {
+      return internalGetProductUUIDs(visitor, collectionName, safe, null, null, skip, top);
+   }
+
+   /**
+    * Returns a page of products that match the ProductSQLVisitor {@code visitor} and belong to
+    * the collection named {@code collectionName}, using keyset pagination on (sort key, id).
+    * <p>
+    * Returned products carry their sort key, passing the last product of a page as {@code after}
+    * returns the next page at constant cost, whatever products were deleted in the meantime.
+    * If the order of the visitor cannot be used for keyset pagination (nullable or computed sort
+    * column), returned products have no sort key, {@code after} is ignored and the caller must
+    * page using {@code skip}.
+    *
+    * @param visitor        OData expression visitor
+    * @param collectionName Name of owning collection
+    * @param safe           only list products present in more than one DataStore
+    * @param after          last product of the previous page, null to get the first page
+    * @param skip           number of products to skip
+    * @param top            maximum number of products to return
+    * @return a list of products
+    */
+   @Transactional(readOnly = true)
+   public List<LoggableProduct> getProductUUIDs(ProductSQLVisitor visitor, String collectionName, boolean safe,
+         LoggableProduct after, int skip, int top)
+   {
+      KeysetOrder keysetOrder = KeysetOrder.parse(visitor.getHqlOrder());
+      Object[] afterKey = after == null ? null : after.getSortKey();
+      if (keysetOrder != null && afterKey != null && afterKey.length != keysetOrder.columns.size())
+      {
+         throw new IllegalArgumentException("Sort key does not match the sort order");
+      }
+      return internalGetProductUUIDs(visitor, collectionName, safe, keysetOrder, afterKey, skip, top);
+   }
+
+   private List<LoggableProduct> internalGetProductUUIDs(ProductSQLVisitor visitor, String collectionName,
+         boolean safe, KeysetOrder keysetOrder, Object[] afterKey, int skip, int top)
    {
       String collectionUUID = collectionService.getCollectionUUIDByName(collectionName);
       // No collection exist for given collection name, return an empty list
@@ -289,13 +358,120 @@ public class ProductService extends WebService
          }
          filter += " ((SELECT COUNT(*) FROM fr.gael.dhus.database.object.KeyStoreEntry WHERE ENTRYKEY = UUID AND TAG='unaltered') > 1 )";
       }
-      
-      String hql = prepareHQLQuery(visitor.getHqlPrefix(), filter, visitor.getHqlOrder(), collectionUUID);
+
+      // legacy offset pagination
+      if (keysetOrder == null)
+      {
+         String hql = prepareHQLQuery(visitor.getHqlPrefix(), filter, visitor.getHqlOrder(), collectionUUID);
+         if (hql == null)
+         {
+            return Collections.emptyList();
+         }
+         return productDao.getProductUUIDs(hql, visitor.getHqlParameters(), skip, top);
+      }
+
+      if (afterKey != null)
+      {
+         String predicate = keysetOrder.predicate(visitor.getHqlParameters().size() + 1);
+         filter = (filter == null) ? predicate : "(" + filter + ") and " + predicate;
+      }
+
+      String hql = prepareHQLQuery(visitor.getHqlPrefix(), filter, keysetOrder.orderBy(), collectionUUID);
       if (hql == null)
       {
          return Collections.emptyList();
       }
-      return productDao.getProductUUIDs(hql, visitor.getHqlParameters(), skip, top);
+      return productDao.getProductUUIDs(hql, visitor.getHqlParameters(), keysetOrder.columns, afterKey, skip, top);
+   }
+
+   /**
+    * Sort order usable for keyset pagination: non-nullable columns, always ending with the id.
+    */
+   private static final class KeysetOrder
+   {
+      /** Only non-nullable columns can be compared in a keyset predicate. */
+      private static final Set<String> KEYSET_COLUMNS = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList("id", "uuid", "created", "updated", "online", "onDemand")));
+
+      private final List<String> columns = new ArrayList<>();
+      private final List<Boolean> descending = new ArrayList<>();
+
+      /**
+       * @param hqlOrder order generated by a SQLVisitor, may be null
+       * @return null if the given order cannot be used for keyset pagination
+       */
+      private static KeysetOrder parse(String hqlOrder)
+      {
+         KeysetOrder res = new KeysetOrder();
+         if (hqlOrder != null && !hqlOrder.trim().isEmpty())
+         {
+            for (String item: hqlOrder.split(","))
+            {
+               String column = item.trim();
+               boolean desc = column.endsWith(" desc");
+               if (desc)
+               {
+                  column = column.substring(0, column.length() - 5).trim();
+               }
+               if (!KEYSET_COLUMNS.contains(column))
+               {
+                  return null;
+               }
+               res.columns.add(column);
+               res.descending.add(desc);
+            }
+         }
+         if (res.columns.isEmpty() || !res.columns.get(res.columns.size() - 1).equals("id"))
+         {
+            res.columns.add("id");
+            res.descending.add(false);
+         }
+         return res;
+      }
+
+      private String orderBy()
+      {
+         StringBuilder sb = new StringBuilder();
+         for (int i = 0; i < columns.size(); i++)
+         {
+            if (i > 0)
+            {
+               sb.append(", ");
+            }
+            sb.append(columns.get(i));
+            if (descending.get(i))
+            {
+               sb.append(" desc");
+            }
+         }
+         return sb.toString();
+      }
+
+      /**
+       * Builds {@code (c1 > ?a) or (c1 = ?a and c2 > ?b) or ...}, comparison operators follow
+       * the sort direction of each column.
+       *
+       * @param firstPosition position of the first positional parameter
+       */
+      private String predicate(int firstPosition)
+      {
+         StringBuilder sb = new StringBuilder("(");
+         for (int i = 0; i < columns.size(); i++)
+         {
+            if (i > 0)
+            {
+               sb.append(" or ");
+            }
+            sb.append('(');
+            for (int j = 0; j < i; j++)
+            {
+               sb.append(columns.get(j)).append(" = ?").append(firstPosition + j).append(" and ");
+            }
+            sb.append(columns.get(i)).append(descending.get(i) ? " < ?" : " > ?").append(firstPosition + i);
+            sb.append(')');
+         }
+         return sb.append(')').toString();
+      }
    }
 
    private String prepareHQLQuery(String hqlPrefix, String hqlFilter, String hqlOrder, String collectionUuid)
@@ -468,6 +644,63 @@ public class ProductService extends WebService
       return productDao.uniqueResult(criteria);
    }
 
+   /**
+    * Returns the origins of the given collection that are the origin of a product.
+    * Origins of products known to exist are not queried, others are queried in batches.
+    *
+    * @param origins to check
+    * @return a non null set of origins of existing products, subset of the given origins
+    */
+   @Transactional(readOnly = true)
+   public Set<String> getExistingOrigins(Collection<String> origins)
+   {
+      Set<String> existing = new HashSet<>();
+      List<String> unknown = new ArrayList<>();
+      for (String origin: origins)
+      {
+         if (knownOrigins.getIfPresent(origin) != null)
+         {
+            existing.add(origin);
+         }
+         else
+         {
+            unknown.add(origin);
+         }
+      }
+      for (List<String> batch: Iterables.partition(unknown, ORIGIN_BATCH_SIZE))
+      {
+         for (String origin: productDao.getExistingOrigins(batch))
+         {
+            knownOrigins.put(origin, Boolean.TRUE);
+            existing.add(origin);
+         }
+      }
+      return existing;
+   }
+
+   /**
+    * Runs the given action once the current transaction is committed, or immediately if there is
+    * no transaction.
+    */
+   private static void afterCommit(Runnable action)
+   {
+      if (TransactionSynchronizationManager.isSynchronizationActive())
+      {
+         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter()
+         {
+            @Override
+            public void afterCommit()
+            {
+               action.run();
+            }
+         });
+      }
+      else
+      {
+         action.run();
+      }
+   }
+
    /**
     * @param uuid           the UUID of a Product
     * @param storeAsDeleted whether the Product should be stored as deleted
@@ -497,6 +730,13 @@ public class ProductService extends WebService
          }
          LOGGER.info("Deleting product {} from database", uuid);
          productDao.delete(product);
+         String origin = product.getOrigin();
+         if (origin != null)
+         {
+            // also forgotten after commit, in case it was queried again in the meantime
+            knownOrigins.invalidate(origin);
+            afterCommit(() -> knownOrigins.invalidate(origin));
+         }
          return product;
       }
       else
@@ -589,6 +829,34 @@ public class ProductService extends WebService
       }
    }
 
+   /**
+    * Adds checksums to a product, existing checksums computed with other algorithms are kept.
+    *
+    * @param uuid      of the product to update
+    * @param checksums algorithm to checksum map
+    * @throws ProductNotFoundException no product identified by the given UUID
+    */
+   @Transactional
+   @Caching(evict =
+   {
+      @CacheEvict(value = "product", key = "#uuid"),
+      @CacheEvict(value = "products", allEntries = true)
+   })
+   public void addChecksums(String uuid, Map<String, String> checksums)
+         throws ProductNotFoundException
+   {
+      Product product = productDao.getProductByUuid(uuid);
+      if (product != null)
+      {
+         product.getDownload().getChecksums().putAll(checksums);
+         productDao.update(product);
+      }
+      else
+      {
+         throw new ProductNotFoundException();
+      }
+   }
+
    @Transactional
    @Caching(evict =
    {
@@ -20,6 +20,7 @@
 package fr.gael.dhus.service;
 
 import fr.gael.dhus.database.object.Collection;
+import fr.gael.dhus.database.object.KeyStoreEntry;
 import fr.gael.dhus.database.object.MetadataIndex;
 import fr.gael.dhus.database.object.Product;
 import fr.gael.dhus.search.DHusSearchException;
@@ -48,6 +49,7 @@ import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrInputDocument;
 
 import org.dhus.ProductConstants;
+import org.dhus.store.derived.DerivedProductGenerator;
 import org.dhus.store.ingestion.IngestibleProduct;
 import org.dhus.store.ingestion.MetadataExtractionException;
 
@@ -80,10 +82,24 @@ public class SearchService extends WebService
    @Autowired
    private MetadataTypeService metadataTypeService;
 
+   /** Autowired dependency. */
+   @Autowired
+   private DerivedProductGenerator derivedProductGenerator;
+
    /** Max tries for solr indexing, default is 1 */
    private static final int MAX_TRY =
       Integer.valueOf(System.getProperty("dhus.solr.max.index.try", "1"));
 
+   /** Products whose removal from the index failed, removed again with the next batch. */
+   private static final String PENDING_REMOVALS_KEYSTORE = "PendingIndexRemovals";
+   private static final String PENDING_REMOVALS_TAG = "pending";
+
+   /** Maximum number of pending removals added to a batch, to keep the delete query small. */
+   private static final int MAX_PENDING_REMOVALS = 500;
+
+   @Autowired
+   private KeyStoreService keyStoreService;
+
    /**
     * Indexes or Reindexes a product.
     * {@link Product#getId()} is the unique key in the index.
@@ -548,6 +564,7 @@ public class SearchService extends WebService
       doc.setField("uuid", productUuid);
       doc.setField("path", DEFAULT_PATH);
       doc.setField("ondemand", onDemand);
+      doc.setField("derivedpending", derivedProductGenerator.isPending(productUuid));
 
       // Collections
       if (targetCollectionNames != null)
@@ -599,4 +616,62 @@ public class SearchService extends WebService
          LOGGER.error("Cannot remove product {} from index", uuid, e);
       }
    }
+
+   /**
+    * Removes several products from the index at once, the removal is tried up to
+    * {@link #MAX_TRY} more times.
+    * <p>
+    * Products are usually already removed from the database, so that a failed removal leaves
+    * search results pointing to deleted products. Products whose removal failed are saved in the
+    * {@value #PENDING_REMOVALS_KEYSTORE} keystore and removed again with the next batch, an empty
+    * batch only removes pending products.
+    *
+    * @param uuids the uuids of products to remove
+    */
+   public void removeProducts(List<String> uuids)
+   {
+      List<KeyStoreEntry> pending = new ArrayList<>();
+      Iterator<KeyStoreEntry> it = keyStoreService.getOldestEntries(PENDING_REMOVALS_KEYSTORE);
+      while (it.hasNext() && pending.size() < MAX_PENDING_REMOVALS)
+      {
+         pending.add(it.next());
+      }
+      List<String> batch = new ArrayList<>(uuids);
+      pending.forEach(entry -> batch.add(entry.getEntryKey()));
+      if (batch.isEmpty())
+      {
+         return;
+      }
+
+      for (int tries = 0; tries <= MAX_TRY; tries++)
+      {
+         try
+         {
+            solrDao.removeProducts(batch);
+            pending.forEach(keyStoreService::deleteEntry);
+            if (!pending.isEmpty())
+            {
+               LOGGER.info("{} pending products removed from index", pending.size());
+            }
+            return;
+         }
+         catch (SolrServerException | IOException e)
+         {
+            if (tries == MAX_TRY)
+            {
+               LOGGER.error("Cannot remove {} products from index, saved in keystore {} to be removed later",
+                     batch.size(), PENDING_REMOVALS_KEYSTORE, e);
+            }
+         }
+      }
+      long now = System.currentTimeMillis();
+      for (String uuid: uuids)
+      {
+         if (!keyStoreService.exists(PENDING_REMOVALS_KEYSTORE, uuid, PENDING_REMOVALS_TAG))
+         {
+            keyStoreService.createEntry(
+                  new KeyStoreEntry(PENDING_REMOVALS_KEYSTORE, uuid, PENDING_REMOVALS_TAG, "", now));
+         }
+      }
+   }
 }
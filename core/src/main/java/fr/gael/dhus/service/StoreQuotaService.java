@@ -153,6 +153,24 @@ public class StoreQuotaService
       }
    }
 
+   /**
+    * Deletes the quota entry of the given user, if it exists.
+    *
+    * @param storeName of quota entry to delete
+    * @param quotaName of quota entry to delete
+    * @param user of quota entry to delete
+    * @param identifier of quota entry to delete
+    */
+   @Transactional
+   public void deleteQuotaEntry(String storeName, String quotaName, UUID user, String identifier)
+   {
+      StoreQuota quotaEntry = getAnyQuotaEntry(storeName, quotaName, user.toString(), identifier);
+      if (quotaEntry != null)
+      {
+         storeQuotaDao.delete(quotaEntry);
+      }
+   }
+
    /**
     * Uses callbacks, so everything happens in a transaction.
     *
@@ -19,25 +19,70 @@
  */
 package fr.gael.dhus.util;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.bind.annotation.adapters.HexBinaryAdapter;
 
 /**
  * This class aims to compute more than one digested in a same time.
+ * <p>
+ * When more than one algorithm is configured, read bytes are copied into large buffers that are
+ * handed to one worker per algorithm, digests are therefore computed in parallel of the reading
+ * thread and of each other. At most {@link #BUFFER_COUNT} buffers are in use per stream, the
+ * reading thread blocks when digest workers fall behind.
+ * Digests are complete once the stream has been closed or the digests have been accessed.
  */
 public class MultipleDigestInputStream extends FilterInputStream
 {
    public static final String[] DEFAULT_ALGORITHMS = { "MD5", "SHA-1" };
 
+   /** Size of buffers handed to digest workers. */
+   static final int BUFFER_SIZE =
+      Math.max (4096, Integer.getInteger ("dhus.digest.buffer_size", 1024 * 1024));
+
+   /** Maximum number of buffers in use by a stream. */
+   static final int BUFFER_COUNT =
+      Math.max (2, Integer.getInteger ("dhus.digest.buffer_count", 4));
+
+   /** Shared by all streams, workers only run while they have buffers to digest. */
+   private static final ExecutorService DIGEST_EXECUTOR = Executors.newCachedThreadPool (
+      new ThreadFactoryBuilder ().setNameFormat ("Digest-%d").setDaemon (true).build ());
+
    private Map<String, MessageDigest> digests = new LinkedHashMap<> ();
 
+   /** Digest workers, created on first publication. */
+   private List<DigestWorker> workers = null;
+
+   /** Recycled buffers. */
+   private final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<> (BUFFER_COUNT);
+   private int allocatedBuffers = 0;
+
+   /** Buffer being filled by the reading thread. */
+   private byte[] current = null;
+   private int position = 0;
+
+   /** Number of published chunks not yet digested by every worker, guarded by this. */
+   private int outstanding = 0;
+
    public MultipleDigestInputStream (InputStream is)
       throws NoSuchAlgorithmException
    {
@@ -62,11 +107,13 @@ public class MultipleDigestInputStream extends FilterInputStream
 
    public MessageDigest getMessageDigest (String algorithm)
    {
+      sync ();
       return digests.get (algorithm);
    }
 
    public Map<String, MessageDigest> getDigests ()
    {
+      sync ();
       return digests;
    }
 
@@ -78,7 +125,9 @@ public class MultipleDigestInputStream extends FilterInputStream
 
    public void setDigests (Map<String, MessageDigest> digests)
    {
+      sync ();
       this.digests = digests;
+      this.workers = null;
    }
 
    @Override
@@ -87,8 +136,20 @@ public class MultipleDigestInputStream extends FilterInputStream
       int ch = in.read ();
       if (ch != -1)
       {
-         for (MessageDigest digest: digests.values ())
-            digest.update ((byte) ch);
+         if (isParallel ())
+         {
+            byte[] buffer = currentBuffer ();
+            buffer[position++] = (byte) ch;
+            if (position == buffer.length)
+            {
+               publish ();
+            }
+         }
+         else
+         {
+            for (MessageDigest digest: digests.values ())
+               digest.update ((byte) ch);
+         }
       }
       return ch;
    }
@@ -97,11 +158,213 @@ public class MultipleDigestInputStream extends FilterInputStream
    public int read (byte[] bytes, int off, int len) throws IOException
    {
       int numberOfBytesRead = in.read (bytes, off, len);
-      if (numberOfBytesRead != -1)
+      if (numberOfBytesRead > 0)
       {
-         for (MessageDigest digest: digests.values ())
-            digest.update (bytes, off, numberOfBytesRead);
+         if (isParallel ())
+         {
+            int copied = 0;
+            while (copied < numberOfBytesRead)
+            {
+               byte[] buffer = currentBuffer ();
+               int count = Math.min (buffer.length - position, numberOfBytesRead - copied);
+               System.arraycopy (bytes, off + copied, buffer, position, count);
+               position += count;
+               copied += count;
+               if (position == buffer.length)
+               {
+                  publish ();
+               }
+            }
+         }
+         else
+         {
+            for (MessageDigest digest: digests.values ())
+               digest.update (bytes, off, numberOfBytesRead);
+         }
       }
       return numberOfBytesRead;
    }
+
+   @Override
+   public void close () throws IOException
+   {
+      try
+      {
+         super.close ();
+      }
+      finally
+      {
+         sync ();
+      }
+   }
+
+   private boolean isParallel ()
+   {
+      return digests.size () > 1;
+   }
+
+   /** Returns the buffer to fill, blocks if all buffers are being digested. */
+   private byte[] currentBuffer () throws InterruptedIOException
+   {
+      if (current == null)
+      {
+         current = freeBuffers.poll ();
+         if (current == null)
+         {
+            if (allocatedBuffers < BUFFER_COUNT)
+            {
+               allocatedBuffers++;
+               current = new byte[BUFFER_SIZE];
+            }
+            else
+            {
+               try
+               {
+                  current = freeBuffers.take ();
+               }
+               catch (InterruptedException e)
+               {
+                  Thread.currentThread ().interrupt ();
+                  throw new InterruptedIOException ("Interrupted while waiting for digest workers");
+               }
+            }
+         }
+         position = 0;
+      }
+      return current;
+   }
+
+   /** Hands the current buffer over to every digest worker. */
+   private void publish ()
+   {
+      if (current == null || position == 0)
+      {
+         return;
+      }
+      if (workers == null)
+      {
+         workers = new ArrayList<> (digests.size ());
+         for (MessageDigest digest: digests.values ())
+         {
+            workers.add (new DigestWorker (digest));
+         }
+      }
+      synchronized (this)
+      {
+         outstanding++;
+      }
+      Chunk chunk = new Chunk (current, position, workers.size ());
+      current = null;
+      position = 0;
+      for (DigestWorker worker: workers)
+      {
+         worker.submit (chunk);
+      }
+   }
+
+   /** Publishes pending bytes and waits until every digest is up to date. */
+   private void sync ()
+   {
+      publish ();
+      boolean interrupted = false;
+      synchronized (this)
+      {
+         while (outstanding > 0)
+         {
+            try
+            {
+               wait ();
+            }
+            catch (InterruptedException e)
+            {
+               interrupted = true;
+            }
+         }
+      }
+      if (interrupted)
+      {
+         Thread.currentThread ().interrupt ();
+      }
+   }
+
+   /** Called by workers when a chunk has been digested by every worker. */
+   private void release (Chunk chunk)
+   {
+      freeBuffers.offer (chunk.data);
+      synchronized (this)
+      {
+         outstanding--;
+         notifyAll ();
+      }
+   }
+
+   /** A filled buffer shared by all workers. */
+   private static final class Chunk
+   {
+      private final byte[] data;
+      private final int length;
+      private final AtomicInteger pending;
+
+      private Chunk (byte[] data, int length, int workers)
+      {
+         this.data = data;
+         this.length = length;
+         this.pending = new AtomicInteger (workers);
+      }
+   }
+
+   /**
+    * Updates one digest with the chunks it is given, in order.
+    * Runs on the shared executor only while it has chunks to process.
+    */
+   private final class DigestWorker implements Runnable
+   {
+      private final MessageDigest digest;
+      private final Queue<Chunk> chunks = new ConcurrentLinkedQueue<> ();
+      private final AtomicBoolean scheduled = new AtomicBoolean (false);
+
+      private DigestWorker (MessageDigest digest)
+      {
+         this.digest = digest;
+      }
+
+      private void submit (Chunk chunk)
+      {
+         chunks.offer (chunk);
+         if (scheduled.compareAndSet (false, true))
+         {
+            DIGEST_EXECUTOR.execute (this);
+         }
+      }
+
+      @Override
+      public void run ()
+      {
+         while (true)
+         {
+            Chunk chunk = chunks.poll ();
+            if (chunk == null)
+            {
+               scheduled.set (false);
+               // a chunk may have been submitted after poll() and before set(false)
+               if (chunks.isEmpty () || !scheduled.compareAndSet (false, true))
+               {
+                  return;
+               }
+               continue;
+            }
+            try
+            {
+               digest.update (chunk.data, 0, chunk.length);
+            }
+            finally
+            {
+               if (chunk.pending.decrementAndGet () == 0)
+               {
+                  release (chunk);
+               }
+            }
+         }
+      }
+   }
 }
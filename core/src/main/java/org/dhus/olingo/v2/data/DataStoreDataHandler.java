@@ -24,6 +24,7 @@ import java.sql.Timestamp;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
@@ -36,7 +37,10 @@ import org.apache.olingo.commons.api.data.ComplexValue;
 import org.apache.olingo.commons.api.data.Entity;
 import org.apache.olingo.commons.api.data.EntityCollection;
 import org.apache.olingo.commons.api.data.Link;
+import org.apache.olingo.commons.api.data.Parameter;
 import org.apache.olingo.commons.api.data.Property;
+import org.apache.olingo.commons.api.data.ValueType;
+import org.apache.olingo.commons.api.edm.EdmAction;
 import org.apache.olingo.commons.api.edm.EdmNavigationProperty;
 import org.apache.olingo.commons.api.http.HttpMethod;
 import org.apache.olingo.commons.api.http.HttpStatusCode;
@@ -55,6 +59,8 @@ import org.dhus.olingo.v2.datamodel.OpenstackDataStoreModel;
 import org.dhus.olingo.v2.datamodel.ParamPdgsDataStoreModel;
 import org.dhus.olingo.v2.datamodel.PdgsDataStoreModel;
 import org.dhus.olingo.v2.datamodel.RemoteDhusDataStoreModel;
+import org.dhus.olingo.v2.datamodel.action.CancelMigrationAction;
+import org.dhus.olingo.v2.datamodel.action.MigrateDataStoreAction;
 import org.dhus.olingo.v2.datamodel.complex.CronComplexType;
 import org.dhus.olingo.v2.datamodel.complex.GMPConfigurationComplexType;
 import org.dhus.olingo.v2.datamodel.complex.MySQLConnectionInfoComplexType;
@@ -66,6 +72,7 @@ import org.dhus.store.datastore.DataStore;
 import org.dhus.store.datastore.DataStoreFactory;
 import org.dhus.store.datastore.DataStoreFactory.InvalidConfigurationException;
 import org.dhus.store.datastore.DataStoreManager;
+import org.dhus.store.datastore.DataStoreMigration;
 import org.dhus.store.datastore.config.AsyncDataStoreConf;
 import org.dhus.store.datastore.config.DataStoreConf;
 import org.dhus.store.datastore.config.DataStoreManager.UnavailableNameException;
@@ -88,6 +95,7 @@ import org.dhus.store.datastore.config.RemoteDhusDataStoreConf;
 
 import fr.gael.dhus.database.object.Role;
 import fr.gael.dhus.database.object.config.cron.Cron;
+import fr.gael.dhus.service.DataStoreMigrationService;
 import fr.gael.dhus.service.DataStoreService;
 import fr.gael.dhus.spring.context.ApplicationContextProvider;
 import fr.gael.odata.engine.data.DataHandler;
@@ -106,6 +114,9 @@ public class DataStoreDataHandler implements DataHandler
    private static final DataStoreService DS_SERVICE =
          ApplicationContextProvider.getBean(DataStoreService.class);
 
+   private static final DataStoreMigrationService MIGRATION_SERVICE =
+         ApplicationContextProvider.getBean(DataStoreMigrationService.class);
+
    /** Entity producer for abstract type NamedDataStoreConf. */
    private final TypeStore.Node dataStoreEntityProducerNode;
 
@@ -1240,4 +1251,48 @@ public class DataStoreDataHandler implements DataHandler
       dataStore.setAutoEviction((Boolean) DataHandlerUtil.getPropertyValue(entity, DataStoreModel.PROPERTY_AUTOEVICTION));
       dataStore.setFilter((String) DataHandlerUtil.getPropertyValue(entity, DataStoreModel.PROPERTY_FILTER));
    }
+
+   @Override
+   public Object performBoundAction(List<UriParameter> keyPredicates, EdmAction action, Map<String, Parameter> parameters)
+         throws ODataApplicationException
+   {
+      ODataSecurityManager.checkPermission(Role.SYSTEM_MANAGER);
+
+      String dataStoreName = DataHandlerUtil.trimStringKeyParameter(keyPredicates.get(0));
+      if (action.getFullQualifiedName().equals(MigrateDataStoreAction.ACTION_MIGRATE_FQN))
+      {
+         String target = (String) parameters.get(MigrateDataStoreAction.PARAMETER_TARGET_DATASTORE).asPrimitive();
+         Integer workers = (Integer) parameters.get(MigrateDataStoreAction.PARAMETER_WORKERS).asPrimitive();
+         Long bandwidth = (Long) parameters.get(MigrateDataStoreAction.PARAMETER_BANDWIDTH).asPrimitive();
+         Boolean deleteSource = (Boolean) parameters.get(MigrateDataStoreAction.PARAMETER_DELETE_SOURCE).asPrimitive();
+         try
+         {
+            MIGRATION_SERVICE.migrate(dataStoreName, target,
+                  workers == null ? 1 : workers,
+                  bandwidth == null ? 0L : bandwidth,
+                  deleteSource == null ? false : deleteSource);
+         }
+         catch (IllegalArgumentException | IllegalStateException e)
+         {
+            throw new ODataApplicationException(e.getMessage(),
+                  HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ENGLISH);
+         }
+         return new Property(null, MigrateDataStoreAction.ACTION_MIGRATE, ValueType.PRIMITIVE,
+               "Migration of DataStore '" + dataStoreName + "' to '" + target + "' has been successfully started");
+      }
+      else if (action.getFullQualifiedName().equals(CancelMigrationAction.ACTION_CANCEL_MIGRATION_FQN))
+      {
+         String target = (String) parameters.get(CancelMigrationAction.PARAMETER_TARGET_DATASTORE).asPrimitive();
+         String migration = DataStoreMigration.getName(dataStoreName, target);
+         if (MIGRATION_SERVICE.cancel(migration))
+         {
+            return new Property(null, CancelMigrationAction.ACTION_CANCEL_MIGRATION, ValueType.PRIMITIVE,
+                  "Migration '" + migration + "' has been successfully cancelled");
+         }
+         return new Property(null, CancelMigrationAction.ACTION_CANCEL_MIGRATION, ValueType.PRIMITIVE,
+               "Migration '" + migration + "' is not running");
+      }
+      throw new ODataApplicationException("Action not found",
+            HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ENGLISH);
+   }
 }
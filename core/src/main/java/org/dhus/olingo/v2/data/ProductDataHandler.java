@@ -106,6 +106,7 @@ import org.dhus.store.datastore.ProductNotFoundException;
 import org.dhus.store.datastore.async.AsyncDataStoreException;
 import org.dhus.store.datastore.async.AsyncProduct;
 import org.dhus.store.datastore.openstack.OpenStackProduct;
+import org.dhus.store.derived.DerivedProductGenerator;
 import org.dhus.store.derived.DerivedProductStore;
 import org.dhus.store.derived.DerivedProductStoreService;
 import org.dhus.store.ingestion.IngestibleRawProduct;
@@ -152,6 +153,9 @@ public class ProductDataHandler implements DatabaseStreamDataHandler
    private static final DerivedProductStoreService DERIVED_PS_SERVICE =
          ApplicationContextProvider.getBean(DerivedProductStoreService.class);
 
+   private static final DerivedProductGenerator DERIVED_PRODUCT_GENERATOR =
+         ApplicationContextProvider.getBean(DerivedProductGenerator.class);
+
    private static final StoreService STORE_SERVICE =
          ApplicationContextProvider.getBean(StoreService.class);
 
@@ -315,6 +319,13 @@ public class ProductDataHandler implements DatabaseStreamDataHandler
             ValueType.PRIMITIVE,
             product.isOnDemand()));
 
+      // DerivedProductsPending
+      productEntity.addProperty(new Property(
+            null,
+            ProductModel.PROPERTY_DERIVED_PENDING,
+            ValueType.PRIMITIVE,
+            DERIVED_PRODUCT_GENERATOR.isPending(product.getUuid())));
+
       // Checksum
       productEntity.addProperty(checksumProperty(product.getDownload()));
 
@@ -414,6 +425,13 @@ public class ProductDataHandler implements DatabaseStreamDataHandler
             ValueType.PRIMITIVE,
             product.isOnDemand()));
 
+      // DerivedProductsPending
+      productEntity.addProperty(new Property(
+            null,
+            ProductModel.PROPERTY_DERIVED_PENDING,
+            ValueType.PRIMITIVE,
+            false));
+
       // TODO display GML as string as well?
       productEntity.addProperty(timeRangeProperty(product.getContentStart(), product.getContentEnd()));
       productEntity.setMediaContentType(fr.gael.dhus.database.object.Product.DEFAULT_CONTENT_TYPE);
@@ -1251,7 +1269,7 @@ public class ProductDataHandler implements DatabaseStreamDataHandler
                   contentLength,
                   request,
                   response,
-                  getProductInputStream(productUuid));
+                  getProductInputStream(data, request.getHeader("Range")));
          }
          catch (IOException | DataStoreException e)
          {
@@ -1287,9 +1305,16 @@ public class ProductDataHandler implements DatabaseStreamDataHandler
       return null;
    }
 
-   private InputStream getProductInputStream(String productUuid) throws IOException, DataStoreException
+   /**
+    * Returns the data of a product for a download, data beyond the requested byte range is not
+    * fetched from data stores supporting it.
+    */
+   private InputStream getProductInputStream(DataStoreProduct data, String range) throws IOException
    {
-      DataStoreProduct data = STORE_SERVICE.getPhysicalProduct(productUuid);
+      if (data instanceof OpenStackProduct)
+      {
+         return ((OpenStackProduct) data).getRangeInputStream(range);
+      }
       if (data.hasImpl(InputStream.class))
       {
          return data.getImpl(InputStream.class);
@@ -54,6 +54,7 @@ public class ProductModel implements EntityModel
    public static final String PROPERTY_CONTENTGEOMETRY = "ContentGeometry";
    public static final String PROPERTY_FOOTPRINT = "Footprint";
    public static final String PROPERTY_ONDEMAND = "OnDemand";
+   public static final String PROPERTY_DERIVED_PENDING = "DerivedProductsPending";
 
    @Override
    public CsdlEntityType getEntityType()
@@ -105,6 +106,12 @@ public class ProductModel implements EntityModel
             .setNullable(false);
       properties.add(onDemand);
 
+      CsdlProperty derivedPending = new CsdlProperty()
+            .setName(PROPERTY_DERIVED_PENDING)
+            .setType(EdmPrimitiveTypeKind.Boolean.getFullQualifiedName())
+            .setNullable(false);
+      properties.add(derivedPending);
+
       // Complex Properties
       CsdlProperty contentDate = new CsdlProperty()
             .setName(PROPERTY_CONTENTDATE)
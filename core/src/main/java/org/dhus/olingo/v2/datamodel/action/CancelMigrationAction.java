@@ -0,0 +1,75 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dhus.olingo.v2.datamodel.action;
+
+import fr.gael.odata.engine.model.ActionModel;
+
+import java.util.Arrays;
+
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind;
+import org.apache.olingo.commons.api.edm.FullQualifiedName;
+import org.apache.olingo.commons.api.edm.provider.CsdlAction;
+import org.apache.olingo.commons.api.edm.provider.CsdlParameter;
+import org.apache.olingo.commons.api.edm.provider.CsdlReturnType;
+
+import org.dhus.olingo.v2.datamodel.DataStoreModel;
+import org.dhus.olingo.v2.web.DHuSODataServlet;
+
+public class CancelMigrationAction implements ActionModel
+{
+   public static final String ACTION_CANCEL_MIGRATION = "CancelMigration";
+   public static final FullQualifiedName ACTION_CANCEL_MIGRATION_FQN =
+         new FullQualifiedName(DHuSODataServlet.NAMESPACE, ACTION_CANCEL_MIGRATION);
+
+   public static final String PARAMETER_DATASTORE = "DataStore"; // bound entity
+   public static final String PARAMETER_TARGET_DATASTORE = "TargetDataStore";
+
+   @Override
+   public CsdlAction getAction()
+   {
+      CsdlParameter dataStoreParameter = new CsdlParameter()
+            .setName(PARAMETER_DATASTORE)
+            .setType(DataStoreModel.ABSTRACT_FULL_QUALIFIED_NAME)
+            .setNullable(false);
+
+      CsdlParameter targetDataStoreParameter = new CsdlParameter()
+            .setName(PARAMETER_TARGET_DATASTORE)
+            .setType(EdmPrimitiveTypeKind.String.getFullQualifiedName())
+            .setNullable(false);
+
+      return new CsdlAction()
+            .setName(ACTION_CANCEL_MIGRATION)
+            .setBound(true)
+            .setParameters(Arrays.asList(dataStoreParameter, targetDataStoreParameter))
+            .setReturnType(new CsdlReturnType().setType(EdmPrimitiveTypeKind.String.getFullQualifiedName()));
+   }
+
+   @Override
+   public FullQualifiedName getFQN()
+   {
+      return ACTION_CANCEL_MIGRATION_FQN;
+   }
+
+   @Override
+   public String getName()
+   {
+      return ACTION_CANCEL_MIGRATION;
+   }
+}
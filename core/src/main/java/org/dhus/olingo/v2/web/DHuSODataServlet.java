@@ -82,12 +82,14 @@ import org.dhus.olingo.v2.datamodel.TransformerModel;
 import org.dhus.olingo.v2.datamodel.UserModel;
 import org.dhus.olingo.v2.datamodel.action.AddSearchAction;
 import org.dhus.olingo.v2.datamodel.action.CancelEvictionAction;
+import org.dhus.olingo.v2.datamodel.action.CancelMigrationAction;
 import org.dhus.olingo.v2.datamodel.action.ClearSearchesAction;
 import org.dhus.olingo.v2.datamodel.action.DeleteDeletedProductsAction;
 import org.dhus.olingo.v2.datamodel.action.DeleteProductsAction;
 import org.dhus.olingo.v2.datamodel.action.DeleteSearchAction;
 import org.dhus.olingo.v2.datamodel.action.EnableSearchAction;
 import org.dhus.olingo.v2.datamodel.action.LockUserAction;
+import org.dhus.olingo.v2.datamodel.action.MigrateDataStoreAction;
 import org.dhus.olingo.v2.datamodel.action.OrderProductAction;
 import org.dhus.olingo.v2.datamodel.action.QueueEvictionAction;
 import org.dhus.olingo.v2.datamodel.action.RepairProductAction;
@@ -309,6 +311,10 @@ public class DHuSODataServlet extends AbstractODataServlet
                   new CancelEvictionAction(),
                   new StopEvictionAction(),
 
+                  // datastore
+                  new MigrateDataStoreAction(),
+                  new CancelMigrationAction(),
+
                   // scanner
                   new StartScannerAction(),
                   new StopScannerAction(),
@@ -19,6 +19,9 @@
  */
 package org.dhus.scanner.service;
 
+import fr.gael.dhus.datastore.scanner.DirectorySnapshot;
+import fr.gael.dhus.datastore.scanner.FileScanner;
+import fr.gael.dhus.datastore.scanner.FtpScanner;
 import fr.gael.dhus.datastore.scanner.Scanner;
 import fr.gael.dhus.datastore.scanner.ScannerException;
 import fr.gael.dhus.datastore.scanner.ScannerStatus;
@@ -158,6 +161,10 @@ public class ScannerServiceImpl implements ScannerService
       }
 
       scannerContainer.removeScanner(scannerInfo.getId());
+      if (oldScanner instanceof FtpScanner)
+      {
+         ((FtpScanner) oldScanner).close();
+      }
       Scanner scanner = ScannerFactory.getScanner(scannerInfo);
       scannerContainer.addScanner(scanner);
 
@@ -204,6 +211,14 @@ public class ScannerServiceImpl implements ScannerService
 
       scannerConfigurationManager.delete(scannerID);
       scannerContainer.removeScanner(scannerID);
+      if (scanner instanceof FileScanner)
+      {
+         DirectorySnapshot.clear(scannerID);
+      }
+      else if (scanner instanceof FtpScanner)
+      {
+         ((FtpScanner) scanner).close();
+      }
 
       try
       {
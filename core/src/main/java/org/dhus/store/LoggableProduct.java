@@ -26,6 +26,7 @@ public class LoggableProduct
    private final String uuid;
    private final String identifier;
    private final long size;
+   private final Object[] sortKey;
 
    /**
     * Creates new instance. All parameters may be null.
@@ -35,10 +36,24 @@ public class LoggableProduct
     * @param size       in bytes of a product
     */
    public LoggableProduct(String uuid, String identifier, long size)
+   {
+      this(uuid, identifier, size, null);
+   }
+
+   /**
+    * Creates new instance. All parameters may be null.
+    *
+    * @param uuid       of a product
+    * @param identifier of a product
+    * @param size       in bytes of a product
+    * @param sortKey    position of this product in a keyset paginated listing
+    */
+   public LoggableProduct(String uuid, String identifier, long size, Object[] sortKey)
    {
       this.uuid = uuid;
       this.identifier = identifier;
       this.size = size;
+      this.sortKey = sortKey;
    }
 
    /**
@@ -65,6 +80,17 @@ public class LoggableProduct
       return size;
    }
 
+   /**
+    * Values of the sort columns of this product followed by its database id,
+    * null if this product has not been listed using keyset pagination.
+    *
+    * @return the sort key or null
+    */
+   public Object[] getSortKey()
+   {
+      return sortKey;
+   }
+
    @Override
    public boolean equals(Object obj)
    {
@@ -20,6 +20,7 @@
 package org.dhus.store;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -27,7 +28,16 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -38,12 +48,16 @@ import org.dhus.store.datastore.DataStoreProduct;
 import org.dhus.store.datastore.DataStores;
 import org.dhus.store.datastore.ProductNotFoundException;
 import org.dhus.store.datastore.UnsafeDeletionException;
+import org.dhus.store.derived.DerivedProductGenerator;
 import org.dhus.store.derived.DerivedProductStoreService;
 import org.dhus.store.ingestion.IngestibleProduct;
 import org.dhus.store.ingestion.IngestibleRawProduct;
 import org.dhus.store.metadatastore.MetadataStoreService;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import fr.gael.dhus.database.object.DeletedProduct;
 import fr.gael.dhus.database.object.Product;
 import fr.gael.dhus.datastore.Destination;
@@ -65,18 +79,47 @@ public class StoreService implements Store
 
    private static final String DEFAULT_ORDER_BY = "CreationDate asc";
 
+   /** Number of products evicted concurrently. */
+   private static final int EVICTION_THREADS =
+         Math.max(1, Integer.getInteger("dhus.eviction.threads", 4));
+
+   /** Number of evicted products removed from the index at once. */
+   private static final int EVICTION_INDEX_BATCH_SIZE =
+         Math.max(1, Integer.getInteger("dhus.eviction.index_batch_size", 100));
+
+   /** Shared by all eviction runs, threads are released when no eviction is running. */
+   private final ThreadPoolExecutor evictionExecutor;
+
+   /** Runs the concurrent stages of product insertions. */
+   private final ExecutorService ingestionExecutor = Executors.newCachedThreadPool(
+         new ThreadFactoryBuilder().setNameFormat("IngestionStage-%d").setDaemon(true).build());
+
    @Autowired
    private DataStoreManager dataStoreService;
 
    @Autowired
    private DerivedProductStoreService derivedProductStoreService;
 
+   @Autowired
+   private DerivedProductGenerator derivedProductGenerator;
+
    @Autowired
    private MetadataStoreService metadataStoreService;
 
    @Autowired
    private TransformationService transformationService;
 
+   @Autowired
+   private MetricRegistry metricRegistry;
+
+   public StoreService()
+   {
+      evictionExecutor = new ThreadPoolExecutor(EVICTION_THREADS, EVICTION_THREADS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder().setNameFormat("Eviction-%d").setDaemon(true).build());
+      evictionExecutor.allowCoreThreadTimeOut(true);
+   }
+
    @Override
    public void deleteProduct(String uuid) throws StoreException
    {
@@ -107,6 +150,22 @@ public class StoreService implements Store
     */
    public void deleteProduct(String uuid, Destination destination, boolean storeAsDeleted, String cause)
          throws StoreException
+   {
+      deleteProduct(uuid, destination, storeAsDeleted, cause, true);
+   }
+
+   /**
+    * Deletes a product from all stores.
+    *
+    * @param uuid of product to delete
+    * @param destination to move the product's data to
+    * @param storeAsDeleted {@code true} to keep this product as deleted
+    * @param cause of the deletion
+    * @param removeFromIndex {@code false} if the caller removes the product from the index itself
+    * @throws StoreException could not perform operation
+    */
+   private void deleteProduct(String uuid, Destination destination, boolean storeAsDeleted, String cause,
+         boolean removeFromIndex) throws StoreException
    {
       // start global deletion and time it
       LOGGER.info("Deleting product {} globally", uuid);
@@ -128,6 +187,7 @@ public class StoreService implements Store
       // derived products
       try
       {
+         derivedProductGenerator.cancel(uuid);
          derivedProductStoreService.deleteDerivedProducts(uuid);
       }
       catch (ProductNotFoundException suppressed) {}
@@ -139,7 +199,7 @@ public class StoreService implements Store
       // product metadata
       try
       {
-         metadataStoreService.deleteProduct(uuid, storeAsDeleted, cause);
+         metadataStoreService.deleteProduct(uuid, storeAsDeleted, cause, removeFromIndex);
       }
       catch (ProductNotFoundException suppressed) {}
       catch (StoreException e)
@@ -163,15 +223,15 @@ public class StoreService implements Store
    }
 
    private List<LoggableProduct> listProductUUIDs(String filter, String orderBy, String collectionName,
-         boolean online, boolean safe, int skip, int top) throws StoreException
+         boolean online, boolean safe, LoggableProduct after, int skip, int top) throws StoreException
    {
       if (online)
       {
-         return metadataStoreService.getOnlineProductUUIDs(filter, orderBy, collectionName, safe, skip, top);
+         return metadataStoreService.getOnlineProductUUIDs(filter, orderBy, collectionName, safe, after, skip, top);
       }
       else
       {
-         return metadataStoreService.getProductUUIDs(filter, orderBy, collectionName, safe, skip, top);
+         return metadataStoreService.getProductUUIDs(filter, orderBy, collectionName, safe, after, skip, top);
       }
    }
 
@@ -224,32 +284,29 @@ public class StoreService implements Store
       LOGGER.info("Attempting to evict maximum {} products or maximum {} bytes from DataStore '{}'",
                   maxDeletedProducts, sizeToEvict, dataStoreName);
 
-      long totalEvictedSize = 0;
-      int productsDeleted = 0;
-
       // retrieve datastore product iterator
       DataStoreProductIterator productIterator =
             new DataStoreProductIterator(filter, orderBy, collectionName, dataStoreName, safeMode);
 
-      // eviction stops if enough space is freed
-      // or many enough products have been deleted
-      // or if user requested a stop
-      while (!evictionMustStop.get() && totalEvictedSize < sizeToEvict && productsDeleted < maxDeletedProducts)
+      EvictionRun run = new EvictionRun(dataStoreName, cause, sizeToEvict, maxDeletedProducts, true);
+      try
       {
-         if (!productIterator.hasNext())
+         // eviction stops if enough space is freed
+         // or many enough products have been deleted
+         // or if user requested a stop
+         while (!evictionMustStop.get() && run.acquireSlot())
          {
-            // deleted as many products as possible
-            LOGGER.info("No products left to delete in DataStore '{}'", dataStoreName);
-            break;
-         }
-         else
-         {
-            LoggableProduct logProd = productIterator.next();
-
-            try
+            if (!productIterator.hasNext())
             {
-               long start = System.currentTimeMillis();
+               // deleted as many products as possible
+               run.releaseSlot();
+               LOGGER.info("No products left to delete in DataStore '{}'", dataStoreName);
+               break;
+            }
 
+            LoggableProduct logProd = productIterator.next();
+            run.submit(logProd, () ->
+            {
                if (softEviction)
                {
                   softDeleteProduct(logProd.getUuid(), dataStoreName, destination, safeMode);
@@ -258,36 +315,19 @@ public class StoreService implements Store
                }
                else
                {
-                  deleteProduct(logProd.getUuid(), destination, cause);
+                  deleteProduct(logProd.getUuid(), destination, true, cause, false);
+                  run.deferIndexRemoval(logProd.getUuid());
                }
-
-               // product successfully deleted
-               totalEvictedSize += logProd.getSize();
-               productsDeleted++;
-
-               // sysma logs
-               long totalTime = System.currentTimeMillis() - start;
-               LOGGER.info("Evicted {} ({} bytes, {} bytes compressed) spent {}ms (from datastore {})",
-                     logProd.getIdentifier(),
-                     logProd.getSize(),
-                     logProd.getSize(),
-                     totalTime,
-                     dataStoreName);
-            }
-            catch (ProductNotFoundException ex)
-            {
-               LOGGER.info("Product {} not found in DataStore '{}', skipping...", logProd, dataStoreName);
-               continue;
-            }
-            catch (UnsafeDeletionException e)
-            {
-               LOGGER.info("Cannot safely delete product {} from DataStore {}, this product isn't present in any other DataStore", logProd, dataStoreName);
-               continue;
-            }
+            });
          }
       }
-      LOGGER.info("{} bytes evicted from DataStore '{}'", totalEvictedSize, dataStoreName);
-      return totalEvictedSize;
+      finally
+      {
+         run.complete();
+      }
+      run.rethrowError();
+      LOGGER.info("{} bytes evicted from DataStore '{}'", run.getEvictedSize(), dataStoreName);
+      return run.getEvictedSize();
    }
 
    /**
@@ -311,73 +351,44 @@ public class StoreService implements Store
       // to ensure a previous stop will not prevent this start
       evictionMustStop.set(false);
 
-      int productsDeleted = 0;
-
       LOGGER.info("Attempting to delete {} products...", maxDeletedProducts);
-      long start = System.currentTimeMillis();
 
       // get product iterator and start deletion loop
       ProductIterator productIterator = new ProductIterator(filter, orderBy, collectionName, softDeletion, safeMode);
-      while (productsDeleted < maxDeletedProducts && productIterator.hasNext())
+      EvictionRun run = new EvictionRun(null, cause, Long.MAX_VALUE, maxDeletedProducts, false);
+      try
       {
-         if (evictionMustStop.get())
-         {
-            break;
-         }
-
-         LoggableProduct logProd = productIterator.next();
-
-         // attempt product deletion
-         try
+         while (!evictionMustStop.get() && run.acquireSlot())
          {
-            long deleteStart = System.currentTimeMillis();
-            if (softDeletion)
-            {
-               softDeleteProduct(destination, logProd.getUuid(), safeMode);
-               LOGGER.info("Product {} ({}) ({} bytes) has been successfully soft evicted from all datastore",
-                     logProd.getIdentifier(), logProd.getUuid(), logProd.getSize());
-            }
-            else
+            if (!productIterator.hasNext())
             {
-               // delete product, metadata, and derived products
-               deleteProduct(logProd.getUuid(), destination, cause);
+               run.releaseSlot();
+               break;
             }
-            // increment product deletion counter if successful
-            productsDeleted++;
 
-            // print sysma's dumb logs
-            long deleteTime = System.currentTimeMillis() - deleteStart;
-            switch (cause)
+            LoggableProduct logProd = productIterator.next();
+            run.submit(logProd, () ->
             {
-               case DeletedProduct.AUTO_EVICTION:
-                  LOGGER.info("Evicted {} ({} bytes, {} bytes compressed) spent {}ms",
-                        logProd.getIdentifier(),
-                        logProd.getSize(),
-                        logProd.getSize(),
-                        deleteTime);
-                  break;
-               default:
-                  LOGGER.info("Deletion of product '{}' ({} bytes) successful spent {}ms",
-                        logProd.getIdentifier(),
-                        logProd.getSize(),
-                        deleteTime);
-                  break;
-            }
-         }
-         catch (ProductNotFoundException ex)
-         {
-            continue;
-         }
-         catch (StoreException ex)
-         {
-            LOGGER.warn("Cannot delete product {}: {}", logProd, ex.getMessage());
-         }
-         catch (RuntimeException ex)
-         {
-            LOGGER.error("Cannot delete product {}", logProd, ex);
+               if (softDeletion)
+               {
+                  softDeleteProduct(destination, logProd.getUuid(), safeMode);
+                  LOGGER.info("Product {} ({}) ({} bytes) has been successfully soft evicted from all datastore",
+                        logProd.getIdentifier(), logProd.getUuid(), logProd.getSize());
+               }
+               else
+               {
+                  // delete product, metadata, and derived products
+                  deleteProduct(logProd.getUuid(), destination, true, cause, false);
+                  run.deferIndexRemoval(logProd.getUuid());
+               }
+            });
          }
       }
-      LOGGER.info("Successfully deleted {} products in {}ms", productsDeleted, System.currentTimeMillis() - start);
+      finally
+      {
+         run.complete();
+      }
+      LOGGER.info("Successfully deleted {} products in {}ms", run.getDeletedCount(), run.getElapsedTime());
    }
 
    private void softDeleteProduct(Destination destination, String uuid, boolean safeMode) throws DataStoreException
@@ -491,10 +502,28 @@ public class StoreService implements Store
       LOGGER.info("Inserting product of UUID {} and identifier {}", inProduct.getUuid(), inProduct.getIdentifier());
       inProduct.startTimer();
 
+      // derived products of raw products may be rendered after their publication
+      boolean deferDerivedProducts = DerivedProductGenerator.ASYNC && inProduct instanceof IngestibleRawProduct;
       try
       {
-         dataStoreService.addProduct(inProduct, targetDataStore);
-         derivedProductStoreService.addDefaultDerivedProducts(inProduct);
+         // the data copy runs concurrently with the rendering of derived products and the
+         // extraction of metadata, database and index entries need the checksums and size
+         // computed during the copy
+         runConcurrently(
+               () -> dataStoreService.addProduct(inProduct, targetDataStore),
+               () ->
+               {
+                  if (!deferDerivedProducts)
+                  {
+                     derivedProductStoreService.addDefaultDerivedProducts(inProduct);
+                  }
+                  extractMetadata(inProduct);
+               });
+         if (deferDerivedProducts)
+         {
+            // before publication, to be reported as pending
+            derivedProductGenerator.markPending(inProduct.getUuid(), null);
+         }
          metadataStoreService.addProduct(inProduct, targetCollectionsNames);
       }
       catch (StoreException | RuntimeException | Error ex)
@@ -541,6 +570,11 @@ public class StoreService implements Store
       LOGGER.info("Product of UUID {} and identifier {} successfully inserted in {}ms",
             inProduct.getUuid(), inProduct.getIdentifier(), inProduct.getIngestionTimeMillis());
 
+      if (deferDerivedProducts)
+      {
+         derivedProductGenerator.submit(inProduct.getUuid());
+      }
+
       // sysma logs
       if(inProduct instanceof IngestibleRawProduct)
       {
@@ -552,6 +586,162 @@ public class StoreService implements Store
       }
    }
 
+   /** Extracts metadata of a product, so that they are available to the metadata stores. */
+   private static void extractMetadata(IngestibleProduct inProduct) throws StoreException
+   {
+      inProduct.getItemClass();
+      inProduct.getMetadataIndexes();
+      inProduct.getContentStart();
+      inProduct.getContentEnd();
+      inProduct.getFootprint();
+   }
+
+   /**
+    * Runs the given tasks concurrently and waits for their completion.
+    * If a task fails, the other tasks are cancelled and waited for before the failure is thrown,
+    * so that the caller can roll back safely.
+    *
+    * @param tasks to run
+    * @throws StoreException the first failure of a task
+    */
+   private void runConcurrently(StoreTask... tasks) throws StoreException
+   {
+      BlockingQueue<IngestionStage> completed = new ArrayBlockingQueue<>(tasks.length);
+      IngestionStage[] stages = new IngestionStage[tasks.length];
+      for (int i = 0; i < tasks.length; i++)
+      {
+         stages[i] = new IngestionStage(tasks[i], completed);
+         ingestionExecutor.execute(stages[i]);
+      }
+      try
+      {
+         for (int i = 0; i < stages.length; i++)
+         {
+            IngestionStage stage = completed.take();
+            if (stage.failure != null)
+            {
+               cancelAndAwait(stages);
+               throwFailure(stage.failure);
+            }
+         }
+      }
+      catch (InterruptedException e)
+      {
+         cancelAndAwait(stages);
+         Thread.currentThread().interrupt();
+         throw new StoreException("Ingestion interrupted", e);
+      }
+   }
+
+   private static void cancelAndAwait(IngestionStage[] stages)
+   {
+      for (IngestionStage stage: stages)
+      {
+         stage.cancel();
+      }
+      boolean interrupted = false;
+      for (IngestionStage stage: stages)
+      {
+         while (true)
+         {
+            try
+            {
+               stage.done.await();
+               break;
+            }
+            catch (InterruptedException e)
+            {
+               interrupted = true;
+            }
+         }
+      }
+      if (interrupted)
+      {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private static void throwFailure(Throwable failure) throws StoreException
+   {
+      if (failure instanceof StoreException)
+      {
+         throw (StoreException) failure;
+      }
+      if (failure instanceof RuntimeException)
+      {
+         throw (RuntimeException) failure;
+      }
+      if (failure instanceof Error)
+      {
+         throw (Error) failure;
+      }
+      throw new StoreException(failure);
+   }
+
+   /** A step of the ingestion of a product, may be cancelled by interrupting its thread. */
+   private static final class IngestionStage implements Runnable
+   {
+      private final StoreTask task;
+      private final BlockingQueue<IngestionStage> completed;
+      private final CountDownLatch done = new CountDownLatch(1);
+      private volatile Throwable failure = null;
+      private boolean cancelled = false;
+      private Thread runner = null;
+
+      IngestionStage(StoreTask task, BlockingQueue<IngestionStage> completed)
+      {
+         this.task = task;
+         this.completed = completed;
+      }
+
+      @Override
+      public void run()
+      {
+         try
+         {
+            synchronized (this)
+            {
+               if (cancelled)
+               {
+                  return;
+               }
+               runner = Thread.currentThread();
+            }
+            task.run();
+         }
+         catch (Throwable t)
+         {
+            failure = t;
+         }
+         finally
+         {
+            synchronized (this)
+            {
+               runner = null;
+               // clears an interruption by cancel() so that it does not leak to the next task
+               Thread.interrupted();
+            }
+            done.countDown();
+            completed.add(this);
+         }
+      }
+
+      synchronized void cancel()
+      {
+         cancelled = true;
+         if (runner != null)
+         {
+            runner.interrupt();
+         }
+      }
+   }
+
+   @FunctionalInterface
+   private interface StoreTask
+   {
+      void run() throws StoreException;
+   }
+
    public void restoreProduct(String uuid, Long size, Map<String, String> checksums)
          throws ProductNotFoundException
    {
@@ -663,8 +853,297 @@ public class StoreService implements Store
       return repairedProducts;
    }
 
+   /** A deletion performed by an {@link EvictionRun}. */
+   @FunctionalInterface
+   private interface EvictionTask
+   {
+      void evict() throws StoreException;
+   }
+
+   /**
+    * A single eviction, deletes products concurrently on the shared eviction executor.
+    * <p>
+    * At most {@link StoreService#EVICTION_THREADS} deletions are in flight, products that are being deleted
+    * count towards the requested size so that no more products than necessary are submitted.
+    * Index removals of deleted products are batched.
+    * <p>
+    * If errors are propagated, the first unexpected failure stops the run and is thrown by
+    * {@link #rethrowError()}, otherwise unexpected failures are logged and the run goes on.
+    */
+   private class EvictionRun
+   {
+      private final String dataStoreName;
+      private final String cause;
+      private final long sizeToEvict;
+      private final int maxDeletedProducts;
+      private final long start = System.currentTimeMillis();
+      private final String metricPrefix;
+      private final boolean propagateErrors;
+
+      // guarded by this
+      private int inFlight = 0;
+      private long pendingSize = 0L;
+      private long evictedSize = 0L;
+      private int deletedCount = 0;
+      private int failedCount = 0;
+      private Exception error = null;
+
+      private final List<String> pendingIndexRemovals = new ArrayList<>();
+
+      private EvictionRun(String dataStoreName, String cause, long sizeToEvict, int maxDeletedProducts,
+            boolean propagateErrors)
+      {
+         this.dataStoreName = dataStoreName;
+         this.cause = cause;
+         this.sizeToEvict = sizeToEvict;
+         this.maxDeletedProducts = maxDeletedProducts;
+         this.metricPrefix = MetricRegistry.name("eviction", dataStoreName == null ? "all" : dataStoreName);
+         this.propagateErrors = propagateErrors;
+      }
+
+      /**
+       * Waits until another product can be submitted.
+       *
+       * @return false if the requested size or product count has been reached, or if the run failed
+       */
+      private synchronized boolean acquireSlot()
+      {
+         while (error == null && evictedSize < sizeToEvict && deletedCount < maxDeletedProducts)
+         {
+            if (inFlight < EVICTION_THREADS
+                  && evictedSize + pendingSize < sizeToEvict
+                  && deletedCount + inFlight < maxDeletedProducts)
+            {
+               inFlight++;
+               return true;
+            }
+            // wait for a running deletion to complete
+            try
+            {
+               wait();
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               return false;
+            }
+         }
+         return false;
+      }
+
+      /** Gives back a slot obtained from {@link #acquireSlot()} that has not been used. */
+      private synchronized void releaseSlot()
+      {
+         inFlight--;
+         notifyAll();
+      }
+
+      private void submit(LoggableProduct logProd, EvictionTask task)
+      {
+         synchronized (this)
+         {
+            pendingSize += logProd.getSize();
+         }
+         evictionExecutor.execute(() ->
+         {
+            boolean success = false;
+            long deleteStart = System.currentTimeMillis();
+            try
+            {
+               task.evict();
+               success = true;
+               logEviction(logProd, System.currentTimeMillis() - deleteStart);
+            }
+            catch (ProductNotFoundException ex)
+            {
+               LOGGER.info("Product {} not found in DataStore '{}', skipping...", logProd, dataStoreName);
+            }
+            catch (UnsafeDeletionException ex)
+            {
+               LOGGER.info("Cannot safely delete product {} from DataStore {}, this product isn't present in any other DataStore", logProd, dataStoreName);
+            }
+            catch (StoreException ex)
+            {
+               if (propagateErrors)
+               {
+                  LOGGER.error("Cannot delete product {}, stopping eviction", logProd, ex);
+                  failed(ex);
+               }
+               else
+               {
+                  LOGGER.warn("Cannot delete product {}: {}", logProd, ex.getMessage());
+               }
+            }
+            catch (RuntimeException ex)
+            {
+               LOGGER.error("Cannot delete product {}", logProd, ex);
+               if (propagateErrors)
+               {
+                  failed(ex);
+               }
+            }
+            finally
+            {
+               completed(logProd, success, System.currentTimeMillis() - deleteStart);
+            }
+         });
+      }
+
+      private synchronized void completed(LoggableProduct logProd, boolean success, long deleteTime)
+      {
+         inFlight--;
+         pendingSize -= logProd.getSize();
+         if (success)
+         {
+            evictedSize += logProd.getSize();
+            deletedCount++;
+            metricRegistry.timer(MetricRegistry.name(metricPrefix, "deletion")).update(deleteTime, TimeUnit.MILLISECONDS);
+         }
+         else
+         {
+            failedCount++;
+         }
+         notifyAll();
+      }
+
+      /** Records an unexpected failure, stops submitting products. */
+      private synchronized void failed(Exception ex)
+      {
+         if (error == null)
+         {
+            error = ex;
+         }
+         else
+         {
+            error.addSuppressed(ex);
+         }
+         notifyAll();
+      }
+
+      /**
+       * Throws the first unexpected failure of this run, to be called once it is complete.
+       *
+       * @throws StoreException a product could not be deleted
+       */
+      private synchronized void rethrowError() throws StoreException
+      {
+         if (error instanceof StoreException)
+         {
+            throw (StoreException) error;
+         }
+         if (error instanceof RuntimeException)
+         {
+            throw (RuntimeException) error;
+         }
+      }
+
+      private void logEviction(LoggableProduct logProd, long deleteTime)
+      {
+         // sysma logs
+         if (dataStoreName != null)
+         {
+            LOGGER.info("Evicted {} ({} bytes, {} bytes compressed) spent {}ms (from datastore {})",
+                  logProd.getIdentifier(), logProd.getSize(), logProd.getSize(), deleteTime, dataStoreName);
+         }
+         else if (DeletedProduct.AUTO_EVICTION.equals(cause))
+         {
+            LOGGER.info("Evicted {} ({} bytes, {} bytes compressed) spent {}ms",
+                  logProd.getIdentifier(), logProd.getSize(), logProd.getSize(), deleteTime);
+         }
+         else
+         {
+            LOGGER.info("Deletion of product '{}' ({} bytes) successful spent {}ms",
+                  logProd.getIdentifier(), logProd.getSize(), deleteTime);
+         }
+      }
+
+      /** Registers an evicted product to be removed from the index with the next batch. */
+      private void deferIndexRemoval(String uuid)
+      {
+         List<String> batch = null;
+         synchronized (pendingIndexRemovals)
+         {
+            pendingIndexRemovals.add(uuid);
+            if (pendingIndexRemovals.size() >= EVICTION_INDEX_BATCH_SIZE)
+            {
+               batch = new ArrayList<>(pendingIndexRemovals);
+               pendingIndexRemovals.clear();
+            }
+         }
+         if (batch != null)
+         {
+            metadataStoreService.deleteProductsFromIndex(batch);
+         }
+      }
+
+      /** Waits for running deletions, flushes index removals and reports this run. */
+      private void complete()
+      {
+         boolean interrupted = false;
+         synchronized (this)
+         {
+            while (inFlight > 0)
+            {
+               try
+               {
+                  wait();
+               }
+               catch (InterruptedException e)
+               {
+                  interrupted = true;
+               }
+            }
+         }
+
+         List<String> batch;
+         synchronized (pendingIndexRemovals)
+         {
+            batch = new ArrayList<>(pendingIndexRemovals);
+            pendingIndexRemovals.clear();
+         }
+         metadataStoreService.deleteProductsFromIndex(batch);
+
+         synchronized (this)
+         {
+            long elapsed = getElapsedTime();
+            metricRegistry.meter(MetricRegistry.name(metricPrefix, "products")).mark(deletedCount);
+            metricRegistry.meter(MetricRegistry.name(metricPrefix, "bytes")).mark(evictedSize);
+            metricRegistry.counter(MetricRegistry.name(metricPrefix, "failures")).inc(failedCount);
+            metricRegistry.histogram(MetricRegistry.name(metricPrefix, "run", "products")).update(deletedCount);
+            metricRegistry.timer(MetricRegistry.name(metricPrefix, "run")).update(elapsed, TimeUnit.MILLISECONDS);
+
+            LOGGER.info("Eviction run evicted {} products ({} bytes) with {} failures in {}ms using {} threads",
+                  deletedCount, evictedSize, failedCount, elapsed, EVICTION_THREADS);
+         }
+
+         if (interrupted)
+         {
+            Thread.currentThread().interrupt();
+         }
+      }
+
+      private synchronized long getEvictedSize()
+      {
+         return evictedSize;
+      }
+
+      private synchronized int getDeletedCount()
+      {
+         return deletedCount;
+      }
+
+      private long getElapsedTime()
+      {
+         return System.currentTimeMillis() - start;
+      }
+   }
+
    /**
     * Paginated product iterator.
+    * <p>
+    * Uses keyset pagination on (sort key, id) so that products deleted while iterating do not
+    * shift the following pages, falls back to offset pagination if the sort order does not
+    * allow keyset pagination.
     */
    private class ProductIterator implements Iterator<LoggableProduct>
    {
@@ -675,6 +1154,8 @@ public class StoreService implements Store
       private final boolean safe;
       
       private int skip = 0;
+      private LoggableProduct last = null;
+      private boolean exhausted = false;
       private Iterator<LoggableProduct> productPage = Collections.emptyIterator();
 
       public ProductIterator(String filter, String orderBy, String collectionName, boolean online, boolean safe, int skip) throws StoreException
@@ -692,14 +1173,7 @@ public class StoreService implements Store
 
       public ProductIterator(String filter, String orderBy, String collectionName, boolean online, boolean safe) throws StoreException
       {
-         this.filter = filter;
-         this.orderBy = orderBy;
-         this.collectionName = collectionName;
-         this.online = online;
-         this.safe = safe;
-
-         // fetch next page so that filter can be validated
-         fetchNextPage();
+         this(filter, orderBy, collectionName, online, safe, 0);
       }
 
       @Override
@@ -709,6 +1183,10 @@ public class StoreService implements Store
          {
             return true;
          }
+         else if (exhausted)
+         {
+            return false;
+         }
          else
          {
             try
@@ -727,16 +1205,32 @@ public class StoreService implements Store
       private void fetchNextPage() throws StoreException
       {
          List<LoggableProduct> products = listProductUUIDs(
-               filter, orderBy, collectionName, online, safe, skip, FILTERED_DELETION_PAGE_SIZE);
-
-         skip += FILTERED_DELETION_PAGE_SIZE;
+               filter, orderBy, collectionName, online, safe, last, skip, FILTERED_DELETION_PAGE_SIZE);
 
          // no products left
          if (products.isEmpty())
          {
             LOGGER.debug("No products left for filter {}", filter);
+            exhausted = true;
+         }
+         else
+         {
+            last = products.get(products.size() - 1);
+            if (last.getSortKey() != null)
+            {
+               // keyset pagination, next page starts after the last product
+               skip = 0;
+            }
+            else
+            {
+               skip += FILTERED_DELETION_PAGE_SIZE;
+            }
+            exhausted = products.size() < FILTERED_DELETION_PAGE_SIZE;
          }
 
+         // existence checks of remote data stores for the whole page, as deletions look products up
+         dataStoreService.prefetchProducts(
+               products.stream().map(LoggableProduct::getUuid).collect(Collectors.toList()));
          productPage = products.iterator();
       }
 
@@ -752,9 +1246,8 @@ public class StoreService implements Store
     * Specialized iterator to combine the listing of products from a DataStore
     * and metadata-based filtering.
     * <p>
-    * FIXME: when used by eviction code, products are skipped because the number of
-    * deleted KeyStore entries not subtracted from the skip value.
-    * TODO add a goBack(int) method?
+    * Products of the DataStore are paged by UUID (keyset pagination), so products evicted
+    * while iterating cannot cause other products to be skipped.
     */
    private class DataStoreProductIterator implements Iterator<LoggableProduct>
    {
@@ -764,7 +1257,8 @@ public class StoreService implements Store
       private final String dataStoreName;
       private final Boolean safe;
 
-      private int skip = 0;
+      private String lastUuid = null;
+      private boolean exhausted = false;
       private Iterator<LoggableProduct> productPage = Collections.emptyIterator();
 
       private DataStoreProductIterator(String filter, String orderBy, String collectionName,
@@ -786,6 +1280,10 @@ public class StoreService implements Store
          {
             return true;
          }
+         else if (exhausted)
+         {
+            return false;
+         }
          else
          {
             try
@@ -810,25 +1308,29 @@ public class StoreService implements Store
             // get page from datastore
             dataStoreProductUUIDs = dataStoreService
                   .getDataStoreByName(dataStoreName)
-                  .getProductList(skip, FILTERED_DELETION_PAGE_SIZE);
-
-            skip += FILTERED_DELETION_PAGE_SIZE;
+                  .getProductListAfter(lastUuid, FILTERED_DELETION_PAGE_SIZE);
 
             // page empty, no product left in datastore, return
             if (dataStoreProductUUIDs.isEmpty())
             {
                LOGGER.debug("<Targetted Eviction> No product left in DataStore: {}", dataStoreName);
                productPage = Collections.emptyIterator();
+               exhausted = true;
                return;
             }
             // filter page using metadatastore service
             else
             {
+               lastUuid = dataStoreProductUUIDs.get(dataStoreProductUUIDs.size() - 1);
+               exhausted = dataStoreProductUUIDs.size() < FILTERED_DELETION_PAGE_SIZE;
                productUUIDsWithin = metadataStoreService
                      .getProductUUIDsWithin(filter, orderBy, collectionName, safe, dataStoreProductUUIDs);
             }
-         } while (productUUIDsWithin.isEmpty());
+         } while (productUUIDsWithin.isEmpty() && !exhausted);
 
+         // existence checks of remote data stores for the whole page, safe evictions look products up
+         dataStoreService.prefetchProducts(
+               productUUIDsWithin.stream().map(LoggableProduct::getUuid).collect(Collectors.toList()));
          productPage = productUUIDsWithin.iterator();
       }
 
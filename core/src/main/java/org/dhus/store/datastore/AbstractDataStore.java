@@ -19,6 +19,8 @@
  */
 package org.dhus.store.datastore;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import fr.gael.dhus.database.object.KeyStoreEntry;
 import fr.gael.dhus.service.DataStoreService;
 import fr.gael.dhus.service.EvictionService;
@@ -27,6 +29,14 @@ import fr.gael.dhus.spring.context.ApplicationContextProvider;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
@@ -54,6 +64,45 @@ public abstract class AbstractDataStore implements DataStore, DerivedProductStor
    private static final EvictionService EVICTION_SERVICE =
          ApplicationContextProvider.getBean(EvictionService.class);
 
+   /** Fraction of the maximum size down to which the background eviction frees space. */
+   private static final double LOW_WATERMARK =
+         Double.parseDouble(System.getProperty("dhus.datastore.eviction.low_watermark", "0.9"));
+
+   /** Fraction of the maximum size above which inserts wait for the background eviction. */
+   private static final double HIGH_WATERMARK =
+         Double.parseDouble(System.getProperty("dhus.datastore.eviction.high_watermark", "1.0"));
+
+   /** Period in milliseconds between two saves of the current sizes. */
+   private static final long SIZE_FLUSH_PERIOD = Long.getLong("dhus.datastore.size_flush_period", 60_000L);
+
+   /** Whether to reconcile current sizes with the actual storage usage at startup. */
+   private static final boolean RECONCILE_SIZE =
+         Boolean.parseBoolean(System.getProperty("dhus.datastore.size_reconcile", "true"));
+
+   private static final int RECONCILE_ATTEMPTS = 5;
+
+   /** DataStores whose current size is periodically saved. */
+   private static final Set<AbstractDataStore> LIVE_DATASTORES = ConcurrentHashMap.newKeySet();
+
+   /** Saves current sizes. */
+   private static final ScheduledExecutorService SIZE_EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+         new ThreadFactoryBuilder().setNameFormat("DataStoreSize-%d").setDaemon(true).build());
+
+   /** Runs size reconciliations, which may walk the whole storage of a DataStore. */
+   private static final ScheduledExecutorService RECONCILE_EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+         new ThreadFactoryBuilder().setNameFormat("DataStoreSizeReconcile-%d")
+               .setPriority(Thread.MIN_PRIORITY).setDaemon(true).build());
+
+   static
+   {
+      SIZE_EXECUTOR.scheduleWithFixedDelay(AbstractDataStore::flushAll,
+            SIZE_FLUSH_PERIOD, SIZE_FLUSH_PERIOD, TimeUnit.MILLISECONDS);
+   }
+
+   /** Maximum time in milliseconds an insert waits for free space. */
+   private static final long RESERVATION_TIMEOUT =
+         Long.getLong("dhus.datastore.eviction.reservation_timeout", 600_000L);
+
    private final String name;
    private final DataStoreRestriction restriction;
    private final int priority;
@@ -61,6 +110,28 @@ public abstract class AbstractDataStore implements DataStore, DerivedProductStor
    protected final boolean autoEviction;
    private final AtomicLong currentSize;
 
+   /** Size variation not saved in the configuration yet. */
+   private final AtomicLong unflushedSize = new AtomicLong(0L);
+
+   /** Space reserved by inserts in progress. */
+   private final AtomicLong reservedSize = new AtomicLong(0L);
+
+   /** Number of changes of the storage in progress, whose size may be partially accounted. */
+   private final AtomicInteger storageChanges = new AtomicInteger(0);
+
+   /** Number of changes of the storage started so far. */
+   private final AtomicLong storageChangeCount = new AtomicLong(0L);
+
+   /** True while a background eviction started by this DataStore is running. */
+   private final AtomicBoolean evicting = new AtomicBoolean(false);
+
+   /** Number of background evictions started by this DataStore that completed. */
+   private final AtomicLong completedEvictions = new AtomicLong(0L);
+
+   /** Total size in bytes removed from this DataStore, to know whether an eviction freed space. */
+   private final AtomicLong freedSize = new AtomicLong(0L);
+   private final Object spaceMonitor = new Object();
+
    private KeyStore keystore;
 
    /**
@@ -83,6 +154,32 @@ public abstract class AbstractDataStore implements DataStore, DerivedProductStor
       this.currentSize = new AtomicLong(currentSize);
       this.autoEviction = autoEviction;
       this.keystore = new PersistentKeyStore(name);
+      LIVE_DATASTORES.add(this);
+   }
+
+   /**
+    * Saves the current sizes of all DataStores and stops saving them periodically, called when the
+    * application context is closed.
+    */
+   public static void closeAll()
+   {
+      flushAll();
+      LIVE_DATASTORES.clear();
+   }
+
+   private static void flushAll()
+   {
+      for (AbstractDataStore dataStore: LIVE_DATASTORES)
+      {
+         try
+         {
+            dataStore.flushCurrentSize();
+         }
+         catch (RuntimeException e)
+         {
+            LOGGER.error("Cannot save size of DataStore {}", dataStore.getName(), e);
+         }
+      }
    }
 
    @Override
@@ -415,25 +512,148 @@ public abstract class AbstractDataStore implements DataStore, DerivedProductStor
     */
    protected final void onInsertEviction(long dataSize)
    {
-      // is this condition true in our case?
-      long sizeAfterInsert = currentSize.get() + dataSize;
-      if (autoEviction && maximumSize >= 0 && sizeAfterInsert > maximumSize)
+      checkLowWatermark(dataSize);
+   }
+
+   /**
+    * Starts a background eviction if the used and reserved space, plus the given amount, is above
+    * the low watermark, unless an eviction started by this method is still running.
+    *
+    * @param pending size in bytes not yet accounted for
+    */
+   private void checkLowWatermark(long pending)
+   {
+      if (!autoEviction || maximumSize < 0)
+      {
+         return;
+      }
+      long lowWatermark = (long) (maximumSize * LOW_WATERMARK);
+      long used = currentSize.get() + reservedSize.get() + pending;
+      if (used > lowWatermark && evicting.compareAndSet(false, true))
       {
+         long sizeToEvict = used - lowWatermark;
          String evictionName = getConfiguredEviction();
-         long sizeToEvict = sizeAfterInsert - maximumSize;
+         CompletableFuture<Void> eviction;
          if (evictionName == null)
          {
             // call default automatic eviction
-            EVICTION_SERVICE.evictAtLeast(getName(), sizeToEvict);
+            eviction = EVICTION_SERVICE.evictAtLeast(getName(), sizeToEvict);
          }
          else
          {
             // call customized automatic eviction
-            EVICTION_SERVICE.evictAtLeast(evictionName, getName(), sizeToEvict);
+            eviction = EVICTION_SERVICE.evictAtLeast(evictionName, getName(), sizeToEvict);
          }
+         eviction.whenComplete((result, error) ->
+         {
+            completedEvictions.incrementAndGet();
+            evicting.set(false);
+            synchronized (spaceMonitor)
+            {
+               spaceMonitor.notifyAll();
+            }
+         });
+      }
+   }
+
+   /**
+    * Reserves space for data about to be inserted, must be released by calling
+    * {@link #releaseSpace(long)} once the data has been inserted or on failure.
+    * <p>Starts a background eviction when the low watermark is reached, and blocks while the used
+    * and reserved space exceed the high watermark, until the eviction frees enough space or the
+    * reservation timeout expires. Another eviction is only started once an eviction completed and
+    * freed space, the insert stops waiting as soon as an eviction completed without freeing space.
+    *
+    * @param size in bytes to reserve (0 if unknown)
+    * @throws DataStoreException if interrupted while waiting for space
+    */
+   protected final void reserveSpace(long size) throws DataStoreException
+   {
+      beginStorageChange();
+      reservedSize.addAndGet(size);
+      long evictions = completedEvictions.get();
+      long freed = freedSize.get();
+      checkLowWatermark(0L);
+      if (!autoEviction || maximumSize < 0)
+      {
+         return;
+      }
+
+      long highWatermark = (long) (maximumSize * HIGH_WATERMARK);
+      long deadline = System.currentTimeMillis() + RESERVATION_TIMEOUT;
+      synchronized (spaceMonitor)
+      {
+         while (currentSize.get() + reservedSize.get() > highWatermark)
+         {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+            {
+               LOGGER.warn("DataStore {} still above its high watermark after {}ms, inserting anyway",
+                     name, RESERVATION_TIMEOUT);
+               return;
+            }
+            try
+            {
+               spaceMonitor.wait(remaining);
+            }
+            catch (InterruptedException e)
+            {
+               reservedSize.addAndGet(-size);
+               endStorageChange();
+               Thread.currentThread().interrupt();
+               throw new DataStoreException("Interrupted while waiting for free space in DataStore " + name);
+            }
+            // also woken by inserts and deletions, evictions are only checked once they complete
+            if (completedEvictions.get() != evictions)
+            {
+               evictions = completedEvictions.get();
+               if (freedSize.get() == freed)
+               {
+                  LOGGER.warn("Eviction of DataStore {} freed no space, inserting anyway", name);
+                  return;
+               }
+               freed = freedSize.get();
+               checkLowWatermark(0L);
+            }
+         }
+      }
+   }
+
+   /**
+    * Releases space reserved by {@link #reserveSpace(long)}.
+    *
+    * @param size in bytes that was reserved
+    */
+   protected final void releaseSpace(long size)
+   {
+      reservedSize.addAndGet(-size);
+      endStorageChange();
+      synchronized (spaceMonitor)
+      {
+         spaceMonitor.notifyAll();
       }
    }
 
+   /**
+    * Marks the beginning of a change of the storage whose size is not accounted yet, such as a
+    * deletion, so that the current size is not reconciled while it is in progress.
+    * {@link #reserveSpace(long)} marks the beginning of an insert.
+    * Must be followed by a call to {@link #endStorageChange()}.
+    */
+   protected final void beginStorageChange()
+   {
+      storageChangeCount.incrementAndGet();
+      storageChanges.incrementAndGet();
+   }
+
+   /**
+    * Marks the end of a change of the storage, once its size has been accounted.
+    */
+   protected final void endStorageChange()
+   {
+      storageChanges.decrementAndGet();
+   }
+
    /**
     * Returns the size in bytes of product identified by given id.
     *
@@ -447,16 +667,19 @@ public abstract class AbstractDataStore implements DataStore, DerivedProductStor
     * A DataStore must know its overall size to implement eviction based on disk usage.
     * <p>This implementation has a global size class field to store this information.
     * <p>This method must be called to update this field.
+    * <p>The size is only kept in memory, it is saved periodically, see {@link #flushCurrentSize()}.
     *
     * @see #decreaseCurrentSize(long)
     * @see #getCurrentSize()
     *
     * @param amount to increase
     */
-   protected synchronized final void increaseCurrentSize(long amount)
+   protected final void increaseCurrentSize(long amount)
    {
-      currentSize.set(DS_SERVICE.varyCurrentSize(name, amount));
-      LOGGER.debug("DataStore {} size increased of {} bytes, new total: {} bytes", name, amount, currentSize.get());
+      long total = currentSize.addAndGet(amount);
+      unflushedSize.addAndGet(amount);
+      LOGGER.debug("DataStore {} size increased of {} bytes, new total: {} bytes", name, amount, total);
+      checkLowWatermark(0L);
    }
 
    /**
@@ -465,10 +688,107 @@ public abstract class AbstractDataStore implements DataStore, DerivedProductStor
     *
     * @param amount to decrease
     */
-   protected synchronized final void decreaseCurrentSize(long amount)
+   protected final void decreaseCurrentSize(long amount)
    {
-      currentSize.set(DS_SERVICE.varyCurrentSize(name, -amount));
-      LOGGER.debug("DataStore {} size decreased of {} bytes, new total: {} bytes", name, amount, currentSize.get());
+      long total = currentSize.addAndGet(-amount);
+      unflushedSize.addAndGet(-amount);
+      freedSize.addAndGet(amount);
+      LOGGER.debug("DataStore {} size decreased of {} bytes, new total: {} bytes", name, amount, total);
+      synchronized (spaceMonitor)
+      {
+         spaceMonitor.notifyAll();
+      }
+   }
+
+   /**
+    * Saves the size variation accumulated since the last flush in the configuration.
+    * A variation that cannot be saved is kept, to be saved by the next flush.
+    *
+    * @throws RuntimeException if the variation cannot be saved
+    */
+   public final void flushCurrentSize()
+   {
+      long amount = unflushedSize.getAndSet(0L);
+      if (amount != 0L)
+      {
+         try
+         {
+            DS_SERVICE.varyCurrentSize(name, amount);
+         }
+         catch (RuntimeException e)
+         {
+            unflushedSize.addAndGet(amount);
+            throw e;
+         }
+         LOGGER.debug("DataStore {} size variation of {} bytes saved", name, amount);
+      }
+   }
+
+   /**
+    * Computes the actual size of this DataStore from its storage, used to reconcile the size saved in
+    * the configuration at startup.
+    *
+    * @return size in bytes, or a negative value if this DataStore cannot compute it
+    */
+   protected long scanCurrentSize()
+   {
+      return -1L;
+   }
+
+   /**
+    * Reconciles in the background the current size with the size returned by {@link #scanCurrentSize()}.
+    * Must be called by subclasses once fully initialised.
+    * <p>
+    * The scan is only trusted if the storage did not change while it was running: an insert or a
+    * deletion in progress may be partially counted by the scan and not yet accounted, or the
+    * reverse. Otherwise, the reconciliation is retried later.
+    */
+   protected final void reconcileCurrentSize()
+   {
+      if (RECONCILE_SIZE)
+      {
+         RECONCILE_EXECUTOR.execute(() -> reconcileCurrentSize(1));
+      }
+   }
+
+   private void reconcileCurrentSize(int attempt)
+   {
+      long changeCount = storageChangeCount.get();
+      long accounted = currentSize.get();
+      boolean busy = storageChanges.get() != 0;
+      long scanned = busy ? 0L : scanCurrentSize();
+      if (scanned < 0)
+      {
+         return;
+      }
+      if (busy || storageChanges.get() != 0 || storageChangeCount.get() != changeCount || currentSize.get() != accounted)
+      {
+         if (attempt < RECONCILE_ATTEMPTS)
+         {
+            RECONCILE_EXECUTOR.schedule(() -> reconcileCurrentSize(attempt + 1), SIZE_FLUSH_PERIOD,
+                  TimeUnit.MILLISECONDS);
+         }
+         else
+         {
+            LOGGER.info("DataStore {} too busy to reconcile its size", name);
+         }
+         return;
+      }
+      long drift = scanned - accounted;
+      if (drift != 0L)
+      {
+         LOGGER.info("DataStore {} size corrected of {} bytes after scan", name, drift);
+         currentSize.addAndGet(drift);
+         unflushedSize.addAndGet(drift);
+         flushCurrentSize();
+      }
+   }
+
+   @Override
+   public void close() throws Exception
+   {
+      LIVE_DATASTORES.remove(this);
+      flushCurrentSize();
    }
 
    @Override
@@ -538,6 +858,13 @@ public abstract class AbstractDataStore implements DataStore, DerivedProductStor
       return toKeyList(entryList);
    }
 
+   @Override
+   public List<String> getProductListAfter(String after, int top)
+   {
+      List<KeyStoreEntry> entryList = keystore.getUnalteredProductEntriesAfter(after, top);
+      return toKeyList(entryList);
+   }
+
    private List<String> toKeyList(List<KeyStoreEntry> keyList)
    {
       // map keystore entries to uuids
@@ -19,8 +19,10 @@
  */
 package org.dhus.store.datastore;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import org.dhus.Product;
 import org.dhus.Util;
@@ -90,6 +92,14 @@ public interface DataStore extends Store, AutoCloseable
     */
    public boolean hasProduct(String uuid);
 
+   /**
+    * Announces that the existence of the given products is about to be checked, data stores whose
+    * checks are remote requests may check them all at once and keep the results.
+    *
+    * @param uuids UUIDs of products about to be checked
+    */
+   public default void prefetchProducts(Collection<String> uuids) {} // Default No-Op implementation
+
    /**
     * Checks resource accessibility.
     *
@@ -150,6 +160,23 @@ public interface DataStore extends Store, AutoCloseable
       return Util.subList(productList, skip, top);
    }
 
+   /**
+    * Returns a list of products known to this DataStore, ordered by UUID.
+    * Pages are not shifted by products removed while iterating.
+    *
+    * @param after UUID of the last product of the previous page, null to get the first page
+    * @param top maximum number of product to return
+    * @return return a non-null list of products
+    */
+   public default List<String> getProductListAfter(String after, int top)
+   {
+      return getProductList().stream()
+            .filter(uuid -> after == null || uuid.compareTo(after) > 0)
+            .sorted()
+            .limit(top)
+            .collect(Collectors.toList());
+   }
+
    @Override
    public default void close() throws Exception {} // Default No-Op implementation
 
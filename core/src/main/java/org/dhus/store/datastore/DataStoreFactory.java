@@ -21,6 +21,7 @@ package org.dhus.store.datastore;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.file.Paths;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -49,6 +50,8 @@ import org.dhus.store.datastore.remotedhus.RemoteDhusDataStore;
 import org.dhus.store.filter.FilteredAsyncDataStore;
 import org.dhus.store.filter.FilteredDataStore;
 import org.dhus.store.quota.FetchLimiterAsyncDataStore;
+import org.dhus.store.quota.HotProductCachingDataStore;
+import org.dhus.store.quota.HotProductCachingDataStore.HotProductCachingDerivedDataStore;
 
 import com.codahale.metrics.MetricRegistry;
 
@@ -69,6 +72,12 @@ final public class DataStoreFactory
    /** Metric Registry, for monitoring purposes. */
    private static final MetricRegistry METRIC_REGISTRY = ApplicationContextProvider.getBean(MetricRegistry.class);
 
+   /** Local path of the hot product cache of OpenStack and remote DHuS data stores, disabled if not set. */
+   private static final String HOT_CACHE_PATH = System.getProperty("dhus.hotcache.path");
+
+   /** Maximum size in bytes of the hot product cache, per data store. */
+   private static final long HOT_CACHE_MAX_SIZE = Long.getLong("dhus.hotcache.max_size", 100L * 1024 * 1024 * 1024);
+
    private static String[] getHashAlgorithms()
    {
       String res = CFG_MGR.getDownloadConfiguration().getChecksumAlgorithms();
@@ -142,11 +151,17 @@ final public class DataStoreFactory
                   currentSize,
                   autoEviction,
                   getHashAlgorithms());
+            DataStore dataStore = openStackDataStore;
+            if (HOT_CACHE_PATH != null)
+            {
+               dataStore = new HotProductCachingDataStore<>(openStackDataStore,
+                     Paths.get(HOT_CACHE_PATH, name).toString(), HOT_CACHE_MAX_SIZE);
+            }
             if (filter != null)
             {
-               return new FilteredDataStore(openStackDataStore, visitor);
+               return new FilteredDataStore(dataStore, visitor);
             }
-            return openStackDataStore;
+            return dataStore;
          }
 
          if (configuration instanceof RemoteDhusDataStoreConf)
@@ -165,6 +180,17 @@ final public class DataStoreFactory
                   dhusDataStoreConf.getAliveInterval(),
                   dhusDataStoreConf.getRestriction());
 
+            if (HOT_CACHE_PATH != null)
+            {
+               HotProductCachingDerivedDataStore<RemoteDhusDataStore> cached = new HotProductCachingDerivedDataStore<>(
+                     remoteDhusDataStore, Paths.get(HOT_CACHE_PATH, name).toString(), HOT_CACHE_MAX_SIZE);
+               if (filter != null)
+               {
+                  return new FilteredDataStore.FileteredDerivedDataStore<>(cached, visitor);
+               }
+               return cached;
+            }
+
             if (filter != null)
             {
                return new FilteredDataStore.FileteredDerivedDataStore<>(remoteDhusDataStore, visitor);
@@ -86,6 +86,19 @@ public interface DataStoreManager extends DataStore
    public void deleteProductFromDataStore(String uuid, String dataStoreName, Destination destination, Boolean safeMode)
          throws DataStoreException;
 
+   /**
+    * Copies a product from a DataStore to another.
+    * The copy is verified against the checksums of the product before the source copy is deleted.
+    *
+    * @param uuid            the UUID of the product to copy
+    * @param sourceDataStore the name of the DataStore containing the product
+    * @param targetDataStore the name of the DataStore to copy the product to
+    * @param deleteSource    if `true`, the product is deleted from the source DataStore once copied
+    * @throws DataStoreException could not perform operation
+    */
+   public void copyProduct(String uuid, String sourceDataStore, String targetDataStore, boolean deleteSource)
+         throws DataStoreException;
+
    /**
     * Retrieves all resource locations of a product.
     *
@@ -0,0 +1,543 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dhus.store.datastore;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import fr.gael.dhus.database.object.KeyStoreEntry;
+import fr.gael.dhus.service.KeyStoreService;
+import fr.gael.dhus.spring.context.ApplicationContextProvider;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Copies all the products of a DataStore to another DataStore.
+ * <p>
+ * Products are listed from the source DataStore by increasing UUID, in batches of
+ * {@link #BATCH_SIZE} products, and copied in parallel by low priority worker threads, each
+ * worker starting a new copy as soon as its previous copy completes. The overall transfer rate may
+ * be limited. Progress, the last UUID before which all products have been processed, is saved
+ * regularly so that an interrupted migration resumes where it stopped, products that were already
+ * copied are not copied again.
+ * <p>
+ * Products that cannot be copied are saved in the {@value #FAILURES_KEYSTORE_NAME} keystore and
+ * retried at the end of the migration, at most {@link #MAX_ATTEMPTS} times per run. A migration
+ * leaving products not copied ends with the {@link Status#FAILED} status, its state is kept and it
+ * is resumed, and its failed products retried, on the next start.
+ */
+public final class DataStoreMigration implements Runnable
+{
+   private static final Logger LOGGER = LogManager.getLogger();
+
+   /** Number of products listed from the source DataStore at a time. */
+   private static final int BATCH_SIZE = Integer.getInteger("dhus.migration.batch_size", 100);
+
+   /** Maximum number of copies running or waiting for a worker, per worker. */
+   private static final int WINDOW_PER_WORKER = 2;
+
+   /** Maximum number of attempts to copy a product in a run. */
+   private static final int MAX_ATTEMPTS = Math.max(1, Integer.getInteger("dhus.migration.max_attempts", 3));
+
+   /** Delay in milliseconds before retrying failed copies. */
+   private static final long RETRY_DELAY = Long.getLong("dhus.migration.retry_delay", 60_000L);
+
+   /** Name of the keystore saving the state of migrations. */
+   private static final String KEYSTORE_NAME = "DataStoreMigrations";
+
+   /** Name of the keystore saving the products that could not be copied, tagged by migration. */
+   private static final String FAILURES_KEYSTORE_NAME = "DataStoreMigrationFailures";
+   private static final String STATE_TAG = "state";
+   private static final String SEPARATOR = "|";
+
+   /** Maximum length of the cause of a failure saved in the keystore. */
+   private static final int MAX_FAILURE_LENGTH = 1024;
+
+   public enum Status { PENDING, RUNNING, COMPLETED, STOPPED, CANCELLED, FAILED }
+
+   private final String source;
+   private final String target;
+   private final int workers;
+   private final long bandwidth;
+   private final boolean deleteSource;
+
+   /** UUID before which, included, all products have been processed, null if none. */
+   private volatile String lastUuid;
+
+   private final AtomicLong copied = new AtomicLong();
+   private final AtomicLong failed = new AtomicLong();
+   private final AtomicLong transferred = new AtomicLong();
+
+   private volatile Status status = Status.PENDING;
+   private volatile boolean cancelled = false;
+   private volatile Thread runner = null;
+
+   /**
+    * Creates a new migration.
+    *
+    * @param source       name of the DataStore to migrate products from
+    * @param target       name of the DataStore to migrate products to
+    * @param workers      number of products copied in parallel
+    * @param bandwidth    maximum transfer rate in bytes per second, unlimited if not positive
+    * @param deleteSource true to delete products from the source DataStore once copied
+    */
+   public DataStoreMigration(String source, String target, int workers, long bandwidth, boolean deleteSource)
+   {
+      this(source, target, workers, bandwidth, deleteSource, null);
+   }
+
+   private DataStoreMigration(String source, String target, int workers, long bandwidth, boolean deleteSource,
+         String lastUuid)
+   {
+      this.source = source;
+      this.target = target;
+      this.workers = Math.max(1, workers);
+      this.bandwidth = bandwidth;
+      this.deleteSource = deleteSource;
+      this.lastUuid = lastUuid;
+   }
+
+   /**
+    * Returns the name of this migration, a source DataStore is migrated to a target DataStore by
+    * at most one migration at a time.
+    *
+    * @return `{source}->{target}`
+    */
+   public String getName()
+   {
+      return getName(source, target);
+   }
+
+   /**
+    * Returns the name of the migration of a DataStore to another.
+    *
+    * @param source name of the source DataStore
+    * @param target name of the target DataStore
+    * @return `{source}->{target}`
+    */
+   public static String getName(String source, String target)
+   {
+      return source + "->" + target;
+   }
+
+   public String getSource()
+   {
+      return source;
+   }
+
+   public String getTarget()
+   {
+      return target;
+   }
+
+   public Status getStatus()
+   {
+      return status;
+   }
+
+   public long getCopiedProducts()
+   {
+      return copied.get();
+   }
+
+   public long getFailedProducts()
+   {
+      return failed.get();
+   }
+
+   public long getTransferredBytes()
+   {
+      return transferred.get();
+   }
+
+   @Override
+   public void run()
+   {
+      runner = Thread.currentThread();
+      try
+      {
+         migrate();
+      }
+      finally
+      {
+         runner = null;
+      }
+   }
+
+   /**
+    * Stops this migration, its progress is kept and it will be resumed on the next start.
+    */
+   public void stop()
+   {
+      Thread thread = runner;
+      if (thread != null)
+      {
+         thread.interrupt();
+      }
+   }
+
+   /**
+    * Stops this migration and forgets its progress.
+    */
+   public void cancel()
+   {
+      cancelled = true;
+      stop();
+      if (status != Status.RUNNING)
+      {
+         status = Status.CANCELLED;
+         clear();
+      }
+   }
+
+   private void migrate()
+   {
+      DataStoreManager manager = ApplicationContextProvider.getBean(DataStoreManager.class);
+      DataStore sourceDataStore = manager.getDataStoreByName(source);
+      DataStore targetDataStore = manager.getDataStoreByName(target);
+      if (sourceDataStore == null || targetDataStore == null)
+      {
+         LOGGER.error("Cannot migrate {} to {}: unknown DataStore", source, target);
+         status = Status.FAILED;
+         return;
+      }
+      if (cancelled)
+      {
+         return;
+      }
+
+      RateLimiter limiter = bandwidth > 0 ? RateLimiter.create(bandwidth) : null;
+      ExecutorService pool = Executors.newFixedThreadPool(workers, new ThreadFactoryBuilder()
+            .setNameFormat("DataStoreMigration-" + source + "-%d")
+            .setPriority(Thread.MIN_PRIORITY)
+            .setDaemon(true)
+            .build());
+
+      status = Status.RUNNING;
+      save();
+      LOGGER.info("Migration of DataStore {} to {} started after product {} ({} workers, {} bytes/s)",
+            source, target, lastUuid, workers, bandwidth > 0 ? bandwidth : "unlimited");
+      long start = System.currentTimeMillis();
+      try
+      {
+         Semaphore window = new Semaphore(workers * WINDOW_PER_WORKER);
+         Deque<PendingCopy> pending = new ArrayDeque<>();
+         int processed = 0;
+         String listedAfter = lastUuid;
+         List<String> uuids;
+         while (!(uuids = sourceDataStore.getProductListAfter(listedAfter, BATCH_SIZE)).isEmpty())
+         {
+            for (String uuid: uuids)
+            {
+               pending.add(submit(pool, window, uuid, sourceDataStore, targetDataStore, limiter, false));
+               processed += acknowledge(pending, false);
+               if (processed >= BATCH_SIZE)
+               {
+                  save();
+                  processed = 0;
+                  LOGGER.debug("Migration {}: {} products copied, {} failed, {} bytes", getName(),
+                        copied.get(), failed.get(), transferred.get());
+               }
+            }
+            listedAfter = uuids.get(uuids.size() - 1);
+         }
+         acknowledge(pending, true);
+         save();
+
+         long remaining = retryFailures(pool, window, sourceDataStore, targetDataStore, limiter);
+         failed.set(remaining);
+         if (remaining == 0L)
+         {
+            status = Status.COMPLETED;
+            clear();
+            LOGGER.info("Migration of DataStore {} to {} completed in {}s: {} products copied, {} bytes",
+                  source, target, (System.currentTimeMillis() - start) / 1000, copied.get(), transferred.get());
+         }
+         else
+         {
+            // state is kept, failed products are retried on next start
+            status = Status.FAILED;
+            LOGGER.error("Migration of DataStore {} to {} ended in {}s: {} products copied, {} bytes, "
+                  + "{} products could not be copied (see keystore {})",
+                  source, target, (System.currentTimeMillis() - start) / 1000, copied.get(), transferred.get(),
+                  remaining, FAILURES_KEYSTORE_NAME);
+         }
+      }
+      catch (InterruptedException e)
+      {
+         status = cancelled ? Status.CANCELLED : Status.STOPPED;
+         if (cancelled)
+         {
+            clear();
+         }
+         LOGGER.info("Migration of DataStore {} to {} {} after product {}", source, target,
+               status.name().toLowerCase(), lastUuid);
+      }
+      catch (ExecutionException | RuntimeException e)
+      {
+         status = Status.FAILED;
+         LOGGER.error("Migration of DataStore {} to {} failed after product {}", source, target, lastUuid, e);
+      }
+      finally
+      {
+         pool.shutdownNow();
+      }
+   }
+
+   /** Submits the copy of a product once fewer copies than the window allows are pending. */
+   private PendingCopy submit(ExecutorService pool, Semaphore window, String uuid, DataStore sourceDataStore,
+         DataStore targetDataStore, RateLimiter limiter, boolean retry) throws InterruptedException
+   {
+      window.acquire();
+      try
+      {
+         return new PendingCopy(uuid, pool.submit(() ->
+         {
+            try
+            {
+               copy(uuid, sourceDataStore, targetDataStore, limiter, retry);
+            }
+            finally
+            {
+               window.release();
+            }
+         }));
+      }
+      catch (RuntimeException e)
+      {
+         window.release();
+         throw e;
+      }
+   }
+
+   /**
+    * Removes the completed copies at the head of the given queue and moves the progress past them.
+    *
+    * @param pending copies in submission order
+    * @param all     true to wait for all copies to complete
+    * @return number of removed copies
+    */
+   private int acknowledge(Deque<PendingCopy> pending, boolean all) throws InterruptedException, ExecutionException
+   {
+      int count = 0;
+      PendingCopy head;
+      while ((head = pending.peek()) != null && (all || head.future.isDone()))
+      {
+         head.future.get();
+         lastUuid = head.uuid;
+         pending.poll();
+         count++;
+      }
+      return count;
+   }
+
+   /**
+    * Retries the copy of the products that could not be copied, by this run or a previous run.
+    *
+    * @return number of products still not copied
+    */
+   private long retryFailures(ExecutorService pool, Semaphore window, DataStore sourceDataStore,
+         DataStore targetDataStore, RateLimiter limiter) throws InterruptedException, ExecutionException
+   {
+      List<String> uuids = getFailures();
+      for (int attempt = 2; attempt <= MAX_ATTEMPTS && !uuids.isEmpty(); attempt++)
+      {
+         LOGGER.info("Migration {}: retrying the copy of {} products (attempt {}/{})",
+               getName(), uuids.size(), attempt, MAX_ATTEMPTS);
+         Thread.sleep(RETRY_DELAY);
+         Deque<PendingCopy> pending = new ArrayDeque<>();
+         for (String uuid: uuids)
+         {
+            pending.add(submit(pool, window, uuid, sourceDataStore, targetDataStore, limiter, true));
+         }
+         for (PendingCopy copy: pending)
+         {
+            copy.future.get();
+         }
+         uuids = getFailures();
+      }
+      return uuids.size();
+   }
+
+   private void copy(String uuid, DataStore sourceDataStore, DataStore targetDataStore, RateLimiter limiter,
+         boolean retry)
+   {
+      try
+      {
+         transferred.addAndGet(ProductCopy.copy(uuid, sourceDataStore, targetDataStore, deleteSource, limiter));
+         copied.incrementAndGet();
+         if (retry)
+         {
+            removeFailure(uuid);
+         }
+      }
+      catch (DataStoreException | RuntimeException e)
+      {
+         if (!retry)
+         {
+            failed.incrementAndGet();
+         }
+         LOGGER.warn("Migration {}: cannot copy product {}: {}", getName(), uuid, e.getMessage());
+         saveFailure(uuid, e.getMessage());
+      }
+   }
+
+   /** A copy submitted to the workers. */
+   private static final class PendingCopy
+   {
+      private final String uuid;
+      private final Future<?> future;
+
+      private PendingCopy(String uuid, Future<?> future)
+      {
+         this.uuid = uuid;
+         this.future = future;
+      }
+   }
+
+   private String encode()
+   {
+      return String.join(SEPARATOR, source, target, Integer.toString(workers), Long.toString(bandwidth),
+            Boolean.toString(deleteSource), lastUuid == null ? "" : lastUuid);
+   }
+
+   private static DataStoreMigration decode(String value)
+   {
+      String[] fields = value.split("\\" + SEPARATOR, -1);
+      return new DataStoreMigration(fields[0], fields[1], Integer.parseInt(fields[2]), Long.parseLong(fields[3]),
+            Boolean.parseBoolean(fields[4]), fields[5].isEmpty() ? null : fields[5]);
+   }
+
+   /** Saves the progress of this migration. */
+   private void save()
+   {
+      KeyStoreService keyStoreService = ApplicationContextProvider.getBean(KeyStoreService.class);
+      KeyStoreEntry entry = keyStoreService.getEntry(KEYSTORE_NAME, getName(), STATE_TAG);
+      if (entry == null)
+      {
+         keyStoreService.createEntry(
+               new KeyStoreEntry(KEYSTORE_NAME, getName(), STATE_TAG, encode(), System.currentTimeMillis()));
+      }
+      else
+      {
+         entry.setValue(encode());
+         keyStoreService.updateEntry(entry);
+      }
+   }
+
+   /** Forgets the progress of this migration and its failed products. */
+   private void clear()
+   {
+      KeyStoreService keyStoreService = ApplicationContextProvider.getBean(KeyStoreService.class);
+      KeyStoreEntry entry = keyStoreService.getEntry(KEYSTORE_NAME, getName(), STATE_TAG);
+      if (entry != null)
+      {
+         keyStoreService.deleteEntry(entry);
+      }
+      for (String uuid: getFailures())
+      {
+         removeFailure(uuid);
+      }
+   }
+
+   /** Saves a product that could not be copied, with the cause of the failure. */
+   private void saveFailure(String uuid, String cause)
+   {
+      String value = String.valueOf(cause);
+      if (value.length() > MAX_FAILURE_LENGTH)
+      {
+         value = value.substring(0, MAX_FAILURE_LENGTH);
+      }
+      try
+      {
+         ApplicationContextProvider.getBean(KeyStoreService.class).updateEntry(
+               new KeyStoreEntry(FAILURES_KEYSTORE_NAME, uuid, getName(), value, System.currentTimeMillis()));
+      }
+      catch (RuntimeException e)
+      {
+         LOGGER.error("Migration {}: cannot save failed product {}", getName(), uuid, e);
+      }
+   }
+
+   private void removeFailure(String uuid)
+   {
+      KeyStoreService keyStoreService = ApplicationContextProvider.getBean(KeyStoreService.class);
+      KeyStoreEntry entry = keyStoreService.getEntry(FAILURES_KEYSTORE_NAME, uuid, getName());
+      if (entry != null)
+      {
+         keyStoreService.deleteEntry(entry);
+      }
+   }
+
+   /** Returns the UUIDs of the products this migration could not copy. */
+   private List<String> getFailures()
+   {
+      List<String> uuids = new ArrayList<>();
+      Iterator<KeyStoreEntry> entries =
+            ApplicationContextProvider.getBean(KeyStoreService.class).getOldestEntries(FAILURES_KEYSTORE_NAME);
+      while (entries.hasNext())
+      {
+         KeyStoreEntry entry = entries.next();
+         if (getName().equals(entry.getTag()))
+         {
+            uuids.add(entry.getEntryKey());
+         }
+      }
+      return uuids;
+   }
+
+   /**
+    * Loads the migrations that have not completed.
+    *
+    * @return a non null list of migrations, with their saved progress
+    */
+   public static List<DataStoreMigration> loadUnfinished()
+   {
+      List<DataStoreMigration> migrations = new ArrayList<>();
+      Iterator<KeyStoreEntry> entries =
+            ApplicationContextProvider.getBean(KeyStoreService.class).getOldestEntries(KEYSTORE_NAME);
+      while (entries.hasNext())
+      {
+         KeyStoreEntry entry = entries.next();
+         try
+         {
+            migrations.add(decode(entry.getValue()));
+         }
+         catch (RuntimeException e)
+         {
+            LOGGER.error("Invalid state of migration {}: {}", entry.getEntryKey(), entry.getValue());
+         }
+      }
+      return migrations;
+   }
+}
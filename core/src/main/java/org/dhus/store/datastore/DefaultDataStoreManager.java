@@ -19,6 +19,8 @@
  */
 package org.dhus.store.datastore;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -27,16 +29,28 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
+import javax.annotation.PreDestroy;
+
 import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -53,6 +67,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 
 import fr.gael.dhus.database.object.KeyStoreEntry;
 import fr.gael.dhus.datastore.Destination;
+import fr.gael.dhus.service.DataStoreService;
 import fr.gael.dhus.service.KeyStoreService;
 import fr.gael.dhus.spring.context.ApplicationContextProvider;
 import fr.gael.dhus.system.config.ConfigurationManager;
@@ -68,32 +83,54 @@ public class DefaultDataStoreManager implements DataStoreManager, DerivedProduct
 
    private static final String DATA_STORE_NAME = "DefaultDataStoreService";
 
+   /** Time in milliseconds data stores without keystore have to tell whether they have a product. */
+   private static final long LOOKUP_TIMEOUT = Long.getLong("dhus.datastore.lookup_timeout", 30_000L);
+
+   private static final ExecutorService LOOKUP_EXECUTOR = Executors.newCachedThreadPool(
+         new ThreadFactoryBuilder().setNameFormat("DataStoreLookup-%d").setDaemon(true).build());
+
    private final SortedSet<DataStore> datastores = new ConcurrentSkipListSet<>(
          (DataStore ds1, DataStore ds2) -> DataStores.compare(ds1, ds2));
 
    @Autowired
    private KeyStoreService keyStoreService;
 
+   /** Used by DataStores to save their size, must outlive this bean when the context is closed. */
+   @Autowired
+   private DataStoreService dataStoreService;
+
    @Override
    public String getName()
    {
       return DATA_STORE_NAME;
    }
 
+   /**
+    * Saves the current sizes of the DataStores when the application context is closed.
+    */
+   @PreDestroy
+   public void shutdown()
+   {
+      AbstractDataStore.closeAll();
+   }
+
    @Override
    public Product get(String uuid) throws DataStoreException
    {
       LOGGER.debug("Finding product {} in data stores...", uuid);
-      List<DataStore> datastoreList = listForUuid(uuid, true, true);
-      for (DataStore datastore : datastoreList)
+      // lower priority data stores are only waited for if higher priority ones fail
+      try (Resolution resolution = resolveForUuid(uuid, true, true))
       {
-         try
-         {
-            return datastore.get(uuid);
-         }
-         catch (DataStoreException e)
+         while (resolution.hasNext())
          {
-            continue;
+            try
+            {
+               return resolution.next().get(uuid);
+            }
+            catch (DataStoreException e)
+            {
+               continue;
+            }
          }
       }
       LOGGER.debug("Product {} not found in any data store", uuid);
@@ -442,6 +479,22 @@ public class DefaultDataStoreManager implements DataStoreManager, DerivedProduct
       return !datastoreList.isEmpty();
    }
 
+   /**
+    * Data stores whose content is not known by a keystore check the existence of the given products
+    * at once, so that the following lookups of these products do not query them one by one.
+    */
+   @Override
+   public void prefetchProducts(Collection<String> uuids)
+   {
+      for (DataStore datastore: datastores)
+      {
+         if (!datastore.hasKeyStore())
+         {
+            datastore.prefetchProducts(uuids);
+         }
+      }
+   }
+
    @Override
    public void add(DataStore datastore)
    {
@@ -765,6 +818,23 @@ public class DefaultDataStoreManager implements DataStoreManager, DerivedProduct
       dataStore.deleteProduct(uuid);
    }
 
+   @Override
+   public void copyProduct(String uuid, String sourceDataStore, String targetDataStore, boolean deleteSource)
+         throws DataStoreException
+   {
+      DataStore source = getDataStoreByName(sourceDataStore);
+      if (source == null)
+      {
+         throw new DataStoreException("Unknown DataStore: " + sourceDataStore);
+      }
+      DataStore target = getDataStoreByName(targetDataStore);
+      if (target == null)
+      {
+         throw new DataStoreException("Unknown DataStore: " + targetDataStore);
+      }
+      ProductCopy.copy(uuid, source, target, deleteSource, null);
+   }
+
    private boolean safeToDelete(String dataStoreName, String uuid)
    {
       for (DataStore datastore: datastores)
@@ -859,6 +929,22 @@ public class DefaultDataStoreManager implements DataStoreManager, DerivedProduct
    }
 
    private List<DataStore> listForUuid(String uuid, boolean includeAsync, boolean order)
+   {
+      try (Resolution resolution = resolveForUuid(uuid, includeAsync, order))
+      {
+         List<DataStore> result = new ArrayList<>();
+         resolution.forEachRemaining(result::add);
+         return result;
+      }
+   }
+
+   /**
+    * Lists data stores that have the given product, in priority order.
+    * Data stores whose content is not known by a keystore are queried concurrently.
+    *
+    * @return a lazy resolution, to close to cancel remaining queries
+    */
+   private Resolution resolveForUuid(String uuid, boolean includeAsync, boolean order)
    {
       Set<String> datastoreNames = keyStoreService.listUnalteredForUuid(uuid).stream()
             .map(KeyStoreEntry::getKeyStore)
@@ -867,35 +953,29 @@ public class DefaultDataStoreManager implements DataStoreManager, DerivedProduct
       // return data stores found in keystores
       // and data stores that do no have a keystore
       // and async data stores
-      return datastores.stream()
-            .filter(datastore -> {
-               // standard case, data store with keystore
-               if (datastoreNames.contains(datastore.getName()))
-               {
-                  return true;
-               }
-               // case of data store without keystore, usually a remote data store
-               if (!datastore.hasKeyStore() && datastore.hasProduct(uuid))
-               {
-                  return true;
-               }
-               // case of async data stores if included
-               if (includeAsync
-                     && AsyncDataStore.class.isAssignableFrom(datastore.getClass()) && order == true) 
-                     {
-                       return true;
-                     }               
-               else if (includeAsync
-                     && AsyncDataStore.class.isAssignableFrom(datastore.getClass())
-                     && (AsyncDataStore.class.cast(datastore).hasProduct(uuid))) 
-               {
-                  LOGGER.debug("Found async product in {}", datastore.getName());
-                  // do NOT put async products in registry
-                  return true;
-               }
-               return false;
-            })
-            .collect(Collectors.toList());
+      Resolution resolution = new Resolution(uuid);
+      for (DataStore datastore: datastores)
+      {
+         boolean async = includeAsync && AsyncDataStore.class.isAssignableFrom(datastore.getClass());
+         // standard case, data store with keystore
+         if (datastoreNames.contains(datastore.getName()))
+         {
+            resolution.add(datastore);
+         }
+         // case of async data stores if included
+         else if (async && order)
+         {
+            resolution.add(datastore);
+         }
+         // case of data store without keystore, usually a remote data store
+         // or case of async data stores if included
+         // do NOT put async products in registry
+         else if (!datastore.hasKeyStore() || async)
+         {
+            resolution.add(datastore, () -> datastore.hasProduct(uuid));
+         }
+      }
+      return resolution;
    }
 
    private List<DataStore> listForUuidDerived(String uuid, String tag)
@@ -907,29 +987,143 @@ public class DefaultDataStoreManager implements DataStoreManager, DerivedProduct
       // return data stores found in keystores
       // and data stores that do no have a keystore
       // do not use registry
-      return datastores.stream()
-            .filter(datastore -> {
-               // only check derived product stores
-               if (!datastore.canHandleDerivedProducts())
-               {
-                  return false;
-               }
+      try (Resolution resolution = new Resolution(uuid))
+      {
+         for (DataStore datastore: datastores)
+         {
+            // only check derived product stores
+            if (!datastore.canHandleDerivedProducts())
+            {
+               continue;
+            }
+            // standard case, data store with keystore
+            if (datastoreNames.contains(datastore.getName()))
+            {
+               LOGGER.debug("Found local derived product in {}", datastore.getName());
+               resolution.add(datastore);
+            }
+            // case of data store without keystore, usually a remote data store
+            else if (!datastore.hasKeyStore())
+            {
+               resolution.add(datastore, () -> ((DerivedProductStore) datastore).hasDerivedProduct(uuid, tag));
+            }
+         }
+         List<DataStore> result = new ArrayList<>();
+         resolution.forEachRemaining(result::add);
+         return result;
+      }
+   }
 
-               // standard case, data store with keystore
-               if (datastoreNames.contains(datastore.getName()))
-               {
-                  LOGGER.debug("Found local derived product in {}", datastore.getName());
-                  return true;
-               }
-               // case of data store without keystore, usually a remote data store
-               if (!datastore.hasKeyStore() && ((DerivedProductStore) datastore).hasDerivedProduct(uuid, tag))
-               {
-                  LOGGER.debug("Found remote derived product in {}", datastore.getName());
-                  return true;
-               }
-               return false;
-            })
-            .collect(Collectors.toList());
+   /**
+    * Iterates over candidate data stores in priority order, skipping those that do not have the
+    * product.
+    * <p>
+    * Data stores that must be queried to know whether they have the product are queried
+    * concurrently as soon as they are added. The iterator only waits for the answer of the next
+    * candidate, so that the first data store having the product is returned as soon as it and the
+    * data stores of higher priority have answered. A data store that does not answer within
+    * {@link #LOOKUP_TIMEOUT} milliseconds is skipped.
+    */
+   private static final class Resolution implements Iterator<DataStore>, AutoCloseable
+   {
+      private final String uuid;
+      private final long start = System.currentTimeMillis();
+      private final List<DataStore> candidates = new ArrayList<>();
+      /** Pending queries, null for data stores known to have the product. */
+      private final List<Future<Boolean>> queries = new ArrayList<>();
+      private int index = 0;
+      private DataStore next = null;
+
+      Resolution(String uuid)
+      {
+         this.uuid = uuid;
+      }
+
+      /** Adds a candidate known to have the product. */
+      void add(DataStore datastore)
+      {
+         candidates.add(datastore);
+         queries.add(null);
+      }
+
+      /** Adds a candidate that must be queried. */
+      void add(DataStore datastore, Callable<Boolean> query)
+      {
+         candidates.add(datastore);
+         queries.add(LOOKUP_EXECUTOR.submit(query));
+      }
+
+      @Override
+      public boolean hasNext()
+      {
+         while (next == null && index < candidates.size())
+         {
+            DataStore candidate = candidates.get(index);
+            Future<Boolean> query = queries.get(index);
+            index++;
+            if (query == null || isFound(candidate, query))
+            {
+               next = candidate;
+            }
+         }
+         return next != null;
+      }
+
+      @Override
+      public DataStore next()
+      {
+         if (!hasNext())
+         {
+            throw new NoSuchElementException();
+         }
+         DataStore result = next;
+         next = null;
+         return result;
+      }
+
+      private boolean isFound(DataStore datastore, Future<Boolean> query)
+      {
+         try
+         {
+            long timeout = Math.max(0L, start + LOOKUP_TIMEOUT - System.currentTimeMillis());
+            if (query.get(timeout, TimeUnit.MILLISECONDS))
+            {
+               LOGGER.debug("Found product {} in {}", uuid, datastore.getName());
+               return true;
+            }
+         }
+         catch (TimeoutException e)
+         {
+            query.cancel(true);
+            LOGGER.warn("Data store {} did not answer in {}ms whether it has product {}",
+                  datastore.getName(), LOOKUP_TIMEOUT, uuid);
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            close();
+         }
+         catch (ExecutionException | CancellationException e)
+         {
+            LOGGER.warn("Cannot check whether data store {} has product {}", datastore.getName(), uuid, e);
+         }
+         return false;
+      }
+
+      /** Cancels queries whose answer is not needed anymore. */
+      @Override
+      public void close()
+      {
+         for (int i = index; i < queries.size(); i++)
+         {
+            Future<Boolean> query = queries.get(i);
+            if (query != null)
+            {
+               query.cancel(true);
+            }
+         }
+         index = candidates.size();
+      }
    }
 
    @Override
@@ -0,0 +1,355 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dhus.store.datastore;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import fr.gael.dhus.service.ProductService;
+import fr.gael.dhus.spring.context.ApplicationContextProvider;
+import fr.gael.dhus.util.MultipleDigestInputStream;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.dhus.AbstractProduct;
+import org.dhus.Product;
+import org.dhus.ProductConstants;
+
+import org.springframework.security.crypto.codec.Hex;
+
+/**
+ * Copies a product from a DataStore to another.
+ * <p>
+ * Checksums of the data read from the source are computed while copying and compared with the
+ * checksums of the product, the copy is only kept in the target DataStore if it is valid.
+ * When the source copy is to be deleted, the target copy is read again and compared with the
+ * source data, or at least its size is compared, so that the product is always referenced by at
+ * least one valid copy. A source copy whose target copy cannot be verified, or does not match, is
+ * not deleted, both copies are kept.
+ */
+final class ProductCopy
+{
+   private static final Logger LOGGER = LogManager.getLogger();
+
+   /** Algorithm of the checksum computed when the product has no known checksums. */
+   private static final String DEFAULT_ALGORITHM = "MD5";
+
+   private static final int BUFFER_SIZE = 1024 * 1024;
+
+   private ProductCopy() {}
+
+   /**
+    * Copies a product, its copy is verified against the checksums and size known by the database.
+    *
+    * @param uuid         of the product to copy
+    * @param source       DataStore containing the product
+    * @param target       DataStore to copy the product to
+    * @param deleteSource true to delete the product from the source DataStore once copied and verified
+    * @param limiter      limits the transfer rate in bytes per second, may be null
+    * @return the number of bytes read from the source DataStore
+    * @throws DataStoreException could not copy the product, or could not verify it before deleting its source
+    */
+   static long copy(String uuid, DataStore source, DataStore target, boolean deleteSource, RateLimiter limiter)
+         throws DataStoreException
+   {
+      fr.gael.dhus.database.object.Product dbProduct =
+            ApplicationContextProvider.getBean(ProductService.class).systemGetProduct(uuid);
+      Map<String, String> checksums = dbProduct != null && dbProduct.getDownload().getChecksums() != null
+            ? dbProduct.getDownload().getChecksums()
+            : Collections.<String, String>emptyMap();
+      Long size = dbProduct != null ? dbProduct.getSize() : null;
+      return copy(uuid, source, target, checksums, size, deleteSource, limiter);
+   }
+
+   /**
+    * Copies a product.
+    *
+    * @param uuid         of the product to copy
+    * @param source       DataStore containing the product
+    * @param target       DataStore to copy the product to
+    * @param checksums    known checksums of the product, algorithm to hexadecimal string (may be empty)
+    * @param size         known size of the product in bytes, may be null
+    * @param deleteSource true to delete the product from the source DataStore once copied and verified
+    * @param limiter      limits the transfer rate in bytes per second, may be null
+    * @return the number of bytes read from the source DataStore
+    * @throws DataStoreException could not copy the product, or could not verify it before deleting its source
+    */
+   static long copy(String uuid, DataStore source, DataStore target, Map<String, String> checksums, Long size,
+         boolean deleteSource, RateLimiter limiter) throws DataStoreException
+   {
+      long transferred = 0L;
+      // checksums and size the target copy must match
+      Map<String, String> expected = checksums;
+      Long expectedSize = size;
+      if (target.hasProduct(uuid))
+      {
+         // already copied, by a previous run of an interrupted migration
+         LOGGER.debug("Product {} already in DataStore {}", uuid, target.getName());
+      }
+      else
+      {
+         Product sourceProduct = source.get(uuid);
+         CopiedProduct copied = new CopiedProduct(sourceProduct, checksums, limiter);
+         if (size != null)
+         {
+            copied.setProperty(ProductConstants.DATA_SIZE, size);
+         }
+         try
+         {
+            target.set(uuid, copied);
+         }
+         finally
+         {
+            copied.close();
+         }
+         transferred = copied.getTransferred();
+
+         Map<String, String> computed = copied.getChecksums();
+         if (computed != null)
+         {
+            String mismatch = compare(checksums, computed);
+            if (mismatch != null)
+            {
+               target.deleteProduct(uuid);
+               throw new DataStoreException("Copy of product " + uuid + " to " + target.getName() + " is corrupted: " + mismatch);
+            }
+            expected = computed;
+            expectedSize = transferred;
+         }
+         else if (expectedSize == null && sourceProduct.hasImpl(File.class))
+         {
+            // hard linked, data not read
+            expectedSize = sourceProduct.getImpl(File.class).length();
+         }
+      }
+
+      if (deleteSource)
+      {
+         String mismatch = verify(uuid, target, expected, expectedSize);
+         if (mismatch != null)
+         {
+            throw new DataStoreException("Copy of product " + uuid + " to " + target.getName()
+                  + " cannot be verified, not deleted from " + source.getName() + ": " + mismatch);
+         }
+         source.deleteProduct(uuid);
+      }
+      return transferred;
+   }
+
+   /**
+    * Verifies the copy of a product in the target DataStore, by reading it again if checksums are
+    * known, or by comparing its size otherwise.
+    *
+    * @return null if the copy is valid, a description of the mismatch otherwise
+    */
+   private static String verify(String uuid, DataStore target, Map<String, String> expected, Long expectedSize)
+         throws DataStoreException
+   {
+      Product product = target.get(uuid);
+      if (!expected.isEmpty() && product.hasImpl(InputStream.class))
+      {
+         String[] algorithms = expected.keySet().toArray(new String[expected.size()]);
+         try (MultipleDigestInputStream stream =
+               new MultipleDigestInputStream(product.getImpl(InputStream.class), algorithms))
+         {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (stream.read(buffer) != -1); // read copy completely
+            return compare(expected, toHex(stream.getDigests()));
+         }
+         catch (IOException | NoSuchAlgorithmException e)
+         {
+            return "cannot read copy: " + e.getMessage();
+         }
+      }
+      Long size = product instanceof DataStoreProduct ? ((DataStoreProduct) product).getContentLength() : null;
+      if (expectedSize == null || size == null)
+      {
+         return "neither checksums nor size to compare";
+      }
+      if (!expectedSize.equals(size))
+      {
+         return "size expected " + expectedSize + ", got " + size;
+      }
+      return null;
+   }
+
+   /**
+    * Compares checksums of the same algorithms.
+    *
+    * @return null if checksums match, a description of the mismatch otherwise
+    */
+   private static String compare(Map<String, String> expected, Map<String, String> actual)
+   {
+      for (Map.Entry<String, String> entry: expected.entrySet())
+      {
+         String value = actual.get(entry.getKey());
+         if (value != null && !value.equalsIgnoreCase(entry.getValue()))
+         {
+            return entry.getKey() + " expected " + entry.getValue() + ", got " + value;
+         }
+      }
+      return null;
+   }
+
+   private static Map<String, String> toHex(Map<String, MessageDigest> digests)
+   {
+      Map<String, String> checksums = new HashMap<>();
+      digests.forEach((algorithm, digest) -> checksums.put(algorithm, new String(Hex.encode(digest.digest()))));
+      return checksums;
+   }
+
+   /** Source product whose stream is throttled and digested. */
+   private static final class CopiedProduct extends AbstractProduct
+   {
+      private final Product source;
+      private final String[] algorithms;
+      private final RateLimiter limiter;
+      private MultipleDigestInputStream stream = null;
+      private long transferred = 0L;
+
+      CopiedProduct(Product source, Map<String, String> checksums, RateLimiter limiter)
+      {
+         this.source = source;
+         this.algorithms = checksums.isEmpty()
+               ? new String[] { DEFAULT_ALGORITHM }
+               : checksums.keySet().toArray(new String[checksums.size()]);
+         this.limiter = limiter;
+         setName(source.getName());
+         // known checksums are not computed again by the target DataStore
+         checksums.forEach((algorithm, value) -> setProperty(ProductConstants.checksum(algorithm), value));
+      }
+
+      @Override
+      public boolean hasImpl(Class<?> cl)
+      {
+         // files may be hard linked by the target DataStore
+         return (cl.isAssignableFrom(File.class) && source.hasImpl(File.class))
+               || (cl.isAssignableFrom(InputStream.class) && source.hasImpl(InputStream.class));
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public synchronized <T> T getImpl(Class<? extends T> cl)
+      {
+         if (cl.isAssignableFrom(InputStream.class))
+         {
+            if (stream != null)
+            {
+               throw new IllegalStateException("Product " + getName() + " can only be read once");
+            }
+            try
+            {
+               stream = new MultipleDigestInputStream(
+                     new ThrottledInputStream(source.getImpl(InputStream.class)), algorithms);
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+               throw new UnsupportedOperationException("Invalid checksum algorithm", e);
+            }
+            return (T) stream;
+         }
+         if (cl.isAssignableFrom(File.class))
+         {
+            return source.getImpl(cl);
+         }
+         throw new UnsupportedOperationException("No implementation for " + cl.getName());
+      }
+
+      synchronized long getTransferred()
+      {
+         return transferred;
+      }
+
+      synchronized void close()
+      {
+         if (stream != null)
+         {
+            try
+            {
+               stream.close();
+            }
+            catch (IOException suppressed) {}
+         }
+      }
+
+      /**
+       * Returns the checksums of the data read from the source, must be called once closed.
+       *
+       * @return algorithm to hexadecimal string, or null if data has not been read (hard linked)
+       */
+      synchronized Map<String, String> getChecksums()
+      {
+         return stream == null ? null : toHex(stream.getDigests());
+      }
+
+      /** Counts transferred bytes and limits the transfer rate. */
+      private final class ThrottledInputStream extends FilterInputStream
+      {
+         ThrottledInputStream(InputStream in)
+         {
+            super(in);
+         }
+
+         @Override
+         public int read() throws IOException
+         {
+            int b = super.read();
+            if (b != -1)
+            {
+               transferred(1);
+            }
+            return b;
+         }
+
+         @Override
+         public int read(byte[] b, int off, int len) throws IOException
+         {
+            int count = super.read(b, off, len);
+            if (count > 0)
+            {
+               transferred(count);
+            }
+            return count;
+         }
+
+         private void transferred(int count)
+         {
+            synchronized (CopiedProduct.this)
+            {
+               transferred += count;
+            }
+            if (limiter != null)
+            {
+               limiter.acquire(count);
+            }
+         }
+      }
+   }
+}
@@ -26,6 +26,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -38,6 +45,8 @@ import org.dhus.store.datastore.DataStoreException;
 import org.dhus.store.datastore.ProductAlreadyExist;
 import org.dhus.store.datastore.ProductNotFoundException;
 import org.dhus.store.datastore.ReadOnlyDataStoreException;
+import org.dhus.store.datastore.StreamableProduct;
+import org.dhus.store.datastore.async.pdgs.ParallelProductDownloadManager;
 import org.dhus.store.datastore.config.PatternReplace;
 import org.dhus.store.ingestion.IngestibleProduct;
 
@@ -46,6 +55,8 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.MetricSet;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import fr.gael.dhus.database.object.KeyStoreEntry;
 import fr.gael.dhus.database.object.Order;
@@ -72,6 +83,13 @@ public abstract class AbstractAsyncCachedDataStore implements AsyncDataStore, Me
    protected static final SecurityService SECURITY_SERVICE =
          ApplicationContextProvider.getBean(SecurityService.class);
 
+   /**
+    * Period in milliseconds of the scan of pending orders by the {@link IngestTask}.
+    * Pending orders are started on submission and completion events, this scan is a safety net
+    * recovering orders left pending, after a restart for instance.
+    */
+   private static final long PENDING_SCAN_PERIOD = Long.getLong("dhus.async.pending_scan_period", 600_000L);
+
    /** DataStore cache. */
    private final DataStore cache;
 
@@ -104,6 +122,22 @@ public abstract class AbstractAsyncCachedDataStore implements AsyncDataStore, Me
    private final Meter acceptedFetchRate = new Meter();
    private final Meter refusedFetchRate = new Meter();
 
+   /** Starts pending orders when an order event is signalled. */
+   private final ExecutorService orderWorker;
+   private final AtomicBoolean orderEventPending = new AtomicBoolean(false);
+
+   /**
+    * Number of pending and running orders of this data store, loaded from the database at startup
+    * and reloaded by the safety net scan of pending orders.
+    */
+   private final AtomicInteger pendingOrders = new AtomicInteger();
+   private final AtomicInteger runningOrders = new AtomicInteger();
+
+   /** Uncounts the orders of this data store deleted through the OrderService. */
+   private final Consumer<Order> orderDeletionListener = this::orderDeleted;
+
+   /** Serializes fetch requests of a same product. */
+   private final Striped<Lock> fetchLocks = Striped.lock(64);
 
    protected AbstractAsyncCachedDataStore(String name, int priority, PatternReplace patternReplaceIn,
          PatternReplace patternReplaceOut, Integer maxPendingRequests, Integer maxRunningRequests,
@@ -133,6 +167,11 @@ public abstract class AbstractAsyncCachedDataStore implements AsyncDataStore, Me
 
       this.cache = cache;
 
+      this.orderWorker = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat(name.replace("%", "%%") + " order worker").setDaemon(true).build());
+      reloadOrderCounters();
+      ORDER_SERVICE.addDeletionListener(orderDeletionListener);
+
       metricSet = new HashMap<>();
       metricSet.put(MetricRegistry.name(METRIC_PREFIX, getName(), "gets"), getRate);
       metricSet.put(MetricRegistry.name(METRIC_PREFIX, getName(), "cache.hits"), cacheHit);
@@ -154,7 +193,9 @@ public abstract class AbstractAsyncCachedDataStore implements AsyncDataStore, Me
       LOGGER.info("fetch request for product {}", localIdentifier);
 
       Order order;
-      synchronized (this.name)
+      Lock lock = fetchLocks.get(uuid);
+      lock.lock();
+      try
       {
          // return existing order if found
          Order oldOrder = getAndLogExistingOrder(uuid, localIdentifier, size);
@@ -167,7 +208,19 @@ public abstract class AbstractAsyncCachedDataStore implements AsyncDataStore, Me
          enforceQueueQuota(username, localIdentifier, uuid, size);
 
          // create order as pending for now
-         order = ORDER_SERVICE.createPendingOrder(getName(), uuid);
+         try
+         {
+            order = ORDER_SERVICE.createPendingOrder(getName(), uuid);
+         }
+         catch (RuntimeException ex)
+         {
+            pendingOrders.decrementAndGet();
+            throw ex;
+         }
+      }
+      finally
+      {
+         lock.unlock();
       }
 
       logOrderStatusCode(order);
@@ -177,18 +230,8 @@ public abstract class AbstractAsyncCachedDataStore implements AsyncDataStore, Me
       // monitoring/reporting
       acceptedFetchRate.mark();
 
-      // Immediate fetch only if no pending orders
-      if (ORDER_SERVICE.countPendingOrdersByDataStore(getName()) == 1)
-      {
-         try
-         {
-            startOrder(order);
-         }
-         catch (DataStoreException e)
-         {
-            LOGGER.info("Order is still pending, cannot fetch immediately - Cause: {}", e.getMessage());
-         }
-      }
+      // the order worker starts the order as soon as the number of running orders allows it
+      signalOrderEvent();
       return ORDER_SERVICE.getOrder(order.getOrderId());
    }
    
@@ -299,6 +342,12 @@ public abstract class AbstractAsyncCachedDataStore implements AsyncDataStore, Me
       return cache.getProductList(skip, top);
    }
 
+   @Override
+   public List<String> getProductListAfter(String after, int top)
+   {
+      return cache.getProductListAfter(after, top);
+   }
+
    /**
     * Move product to cache and restore it by updating the online, checksum and content length fields in database
     *
@@ -381,7 +430,74 @@ public abstract class AbstractAsyncCachedDataStore implements AsyncDataStore, Me
     */
    protected void refreshOrder(String productUUID, String dataStoreName, String jobId, JobStatus jobStatus, Date estimatedDate, String statusMessage)
    {
+      Order previous = ORDER_SERVICE.getOrder(new Order.OrderId(dataStoreName, productUUID));
       ORDER_SERVICE.refreshOrCreateOrder(productUUID, dataStoreName, jobId, jobStatus, estimatedDate, statusMessage);
+      if (getName().equals(dataStoreName))
+      {
+         countOrder(previous != null ? previous.getStatus() : null, -1);
+         countOrder(jobStatus, 1);
+      }
+      if (jobStatus == JobStatus.COMPLETED || jobStatus == JobStatus.FAILED)
+      {
+         // a running order slot may have been released
+         signalOrderEvent();
+      }
+   }
+
+   /**
+    * Signals that an order has been submitted or has completed, so that pending orders are started.
+    * Signals raised while pending orders are not being started yet are coalesced.
+    */
+   protected final void signalOrderEvent()
+   {
+      if (orderEventPending.compareAndSet(false, true))
+      {
+         try
+         {
+            orderWorker.execute(this::processOrderEvent);
+         }
+         catch (RejectedExecutionException e)
+         {
+            // data store closed
+            orderEventPending.set(false);
+         }
+      }
+   }
+
+   private void processOrderEvent()
+   {
+      // events signalled from now on will cause another run
+      orderEventPending.set(false);
+      try
+      {
+         startPendingOrders();
+      }
+      catch (RuntimeException ex)
+      {
+         LOGGER.error("{} - Failed to start pending orders", getName(), ex);
+      }
+   }
+
+   /**
+    * Starts pending orders, in their order of submission, until the maximum number of running
+    * orders is reached.
+    */
+   private void startPendingOrders()
+   {
+      LOGGER.debug("{} - Checking pending orders", getName());
+      List<Order> pendingOrders = ORDER_SERVICE.getPendingOrdersByDataStore(getName());
+      for (Order pendingOrder: pendingOrders)
+      {
+         try
+         {
+            startOrder(pendingOrder);
+         }
+         catch (DataStoreException ex)
+         {
+            LOGGER.debug("{} - Maximum number of running order reached", getName());
+            break;
+         }
+      }
    }
 
    protected synchronized void startOrder(Order pendingOrder) throws DataStoreException
@@ -391,7 +507,8 @@ public abstract class AbstractAsyncCachedDataStore implements AsyncDataStore, Me
       {
          return;
       }
-      if (maxRunning())
+      // only this synchronized method starts orders, no need for a compare and set
+      if (runningOrders.get() >= maxRunningRequests)
       {
          // max running requests reached
          // do not submit any more orders to the remote
@@ -417,7 +534,11 @@ public abstract class AbstractAsyncCachedDataStore implements AsyncDataStore, Me
                orderedProduct.getUuid(),
                orderedProduct.getSize());
 
-         ORDER_SERVICE.setOrderRunning(orderedProduct.getUuid(), runningOrder.getJobId(), runningOrder.getEstimatedTime(), runningOrder.getStatusMessage());
+         if (ORDER_SERVICE.setOrderRunning(orderedProduct.getUuid(), runningOrder.getJobId(), runningOrder.getEstimatedTime(), runningOrder.getStatusMessage()))
+         {
+            pendingOrders.decrementAndGet();
+            runningOrders.incrementAndGet();
+         }
       }
       catch (DataStoreException ex)
       {
@@ -427,6 +548,42 @@ public abstract class AbstractAsyncCachedDataStore implements AsyncDataStore, Me
       }
    }
 
+   /**
+    * Queues the download of a product, on behalf of an owner of its order.
+    * Products ordered by more users are downloaded first.
+    *
+    * @param manager download manager
+    * @param product to download
+    * @param uuid    UUID of the product
+    * @param task    performing the download
+    * @return false if the download could not be queued
+    */
+   protected boolean submitDownload(ParallelProductDownloadManager manager, StreamableProduct product,
+         String uuid, Runnable task)
+   {
+      String user = null;
+      int priority = 0;
+      Order order = ORDER_SERVICE.getOrderByProductUuid(uuid);
+      if (order != null && !order.getOwners().isEmpty())
+      {
+         priority = order.getOwners().size();
+         user = order.getOwners().stream()
+               .map(owner -> owner.getKey().getOwner().getUsername())
+               .min(String::compareTo)
+               .get();
+      }
+      try
+      {
+         manager.submit(product, user, priority, task);
+         return true;
+      }
+      catch (RejectedExecutionException ex)
+      {
+         LOGGER.warn("{} - Cannot queue download of product {}: {}", getName(), product.getName(), ex.getMessage());
+         return false;
+      }
+   }
+
    /**
     * Does the given product exist in the cache backing this async dataStore?
     *
@@ -443,6 +600,8 @@ public abstract class AbstractAsyncCachedDataStore implements AsyncDataStore, Me
     */
    protected abstract class IngestTask extends TimerTask
    {
+      private long lastPendingScan = 0L;
+
       /**
        * Get the UUID from the given local product identifier.
        *
@@ -461,19 +620,13 @@ public abstract class AbstractAsyncCachedDataStore implements AsyncDataStore, Me
          try
          {
             LOGGER.debug("{} - Starting order management routine...", getName());
-            LOGGER.debug("{} - Checking pending orders", getName());
-            List<Order> pendingOrders = ORDER_SERVICE.getPendingOrdersByDataStore(getName());
-            for (Order pendingOrder: pendingOrders)
+            long now = System.currentTimeMillis();
+            if (now - lastPendingScan >= PENDING_SCAN_PERIOD)
             {
-               try
-               {
-                  startOrder (pendingOrder);
-               }
-               catch (DataStoreException ex)
-               {
-                  LOGGER.debug("{} - Maximum number of running order reached", getName());
-                  break;
-               }
+               lastPendingScan = now;
+               // orders may have been deleted, or changed by other instances
+               reloadOrderCounters();
+               signalOrderEvent();
             }
 
             LOGGER.debug("{} - Retrieving completed orders", getName());
@@ -540,9 +693,14 @@ public abstract class AbstractAsyncCachedDataStore implements AsyncDataStore, Me
       }
    }
 
+   /**
+    * Takes a pending order slot, must be followed by the creation of a pending order.
+    *
+    * @throws AsyncDataStoreException if the maximum number of pending orders is reached
+    */
    protected void enforceQueueQuota(String username, String localIdentifier, String uuid, Long size) throws AsyncDataStoreException
    {
-      if (maxPending())
+      if (!tryIncrement(pendingOrders, maxPendingRequests))
       {
          LOGGER.info("Fetch request from '{}' for product {} ({}) (~{} bytes) failed due to max active order per instance reached",
                username, localIdentifier, uuid, size);
@@ -556,19 +714,63 @@ public abstract class AbstractAsyncCachedDataStore implements AsyncDataStore, Me
       }
    }
 
-   private boolean maxRunning()
+   /** Increments the given counter unless it has reached the given maximum. */
+   private static boolean tryIncrement(AtomicInteger counter, int max)
+   {
+      while (true)
+      {
+         int current = counter.get();
+         if (current >= max)
+         {
+            return false;
+         }
+         if (counter.compareAndSet(current, current + 1))
+         {
+            return true;
+         }
+      }
+   }
+
+   private void countOrder(JobStatus status, int delta)
+   {
+      if (status == JobStatus.PENDING)
+      {
+         pendingOrders.addAndGet(delta);
+      }
+      else if (status == JobStatus.RUNNING)
+      {
+         runningOrders.addAndGet(delta);
+      }
+   }
+
+   /**
+    * Uncounts a deleted order of this data store, a deleted running order releases a running slot.
+    *
+    * @param order deleted order
+    */
+   private void orderDeleted(Order order)
    {
-      return ORDER_SERVICE.countRunningOrdersByDataStore(getName()) >= maxRunningRequests;
+      if (getName().equals(order.getOrderId().getDataStoreName()))
+      {
+         countOrder(order.getStatus(), -1);
+         if (order.getStatus() == JobStatus.RUNNING)
+         {
+            signalOrderEvent();
+         }
+      }
    }
 
-   private boolean maxPending()
+   /** Loads the number of pending and running orders from the database. */
+   private void reloadOrderCounters()
    {
-      return ORDER_SERVICE.countPendingOrdersByDataStore(getName()) >= maxPendingRequests;
+      pendingOrders.set(ORDER_SERVICE.countPendingOrdersByDataStore(getName()));
+      runningOrders.set(ORDER_SERVICE.countRunningOrdersByDataStore(getName()));
+      LOGGER.debug("{} - {} pending and {} running orders", getName(), pendingOrders.get(), runningOrders.get());
    }
 
    private int queueSize()
    {
-      return ORDER_SERVICE.countRunningOrdersByDataStore(getName());
+      return runningOrders.get();
    }
 
    private long currentSize()
@@ -638,4 +840,11 @@ public abstract class AbstractAsyncCachedDataStore implements AsyncDataStore, Me
    {
       return cache;
    }
+
+   @Override
+   public void close() throws Exception
+   {
+      ORDER_SERVICE.removeDeletionListener(orderDeletionListener);
+      orderWorker.shutdownNow();
+   }
 }
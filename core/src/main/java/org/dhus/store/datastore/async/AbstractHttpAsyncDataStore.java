@@ -225,7 +225,7 @@ public abstract class AbstractHttpAsyncDataStore extends AbstractAsyncCachedData
       StreamableProduct streamable = getStreamableProduct(remoteUuid, remoteIdentifier);
 
       // put the product in a queue to download it
-      parallelProductDownloadManager.submit(streamable, () ->
+      boolean queued = submitDownload(parallelProductDownloadManager, streamable, localUuid, () ->
       {
          try
          {
@@ -243,7 +243,10 @@ public abstract class AbstractHttpAsyncDataStore extends AbstractAsyncCachedData
                   statusMessage != null ? statusMessage : "Job failed");
          }
       });
-      LOGGER.info("Product download {} successfully queued", streamable.getName());
+      if (queued)
+      {
+         LOGGER.info("Product download {} successfully queued", streamable.getName());
+      }
    }
 
    protected int runJob(String jobId, String remoteIdentifier, String status, String remoteUuid,
@@ -317,5 +320,6 @@ public abstract class AbstractHttpAsyncDataStore extends AbstractAsyncCachedData
          catch (RuntimeException suppressed) {}
       }
       parallelProductDownloadManager.shutdownNow();
+      super.close();
    }
 }
@@ -164,6 +164,7 @@ public final class GmpDataStore extends AbstractAsyncCachedDataStore
          catch (RuntimeException suppressed) {}
       }
       this.dataSource.close();
+      super.close();
    }
 
    @Override
@@ -329,6 +329,20 @@ public class OndaDataStore extends AbstractHttpAsyncDataStore
       }
    }
 
+   @Override
+   public List<String> getProductListAfter(String after, int top)
+   {
+      List<KeyStoreEntry> entryList = keystore.getUnalteredProductEntriesAfter(after, top);
+      if (!entryList.isEmpty())
+      {
+         return toKeyList(entryList);
+      }
+      else
+      {
+         return super.getProductListAfter(after, top);
+      }
+   }
+
    private List<String> toKeyList(List<KeyStoreEntry> keyList)
    {
       // map keystore entries to uuids
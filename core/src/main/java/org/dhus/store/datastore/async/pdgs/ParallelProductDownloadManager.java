@@ -19,14 +19,22 @@
  */
 package org.dhus.store.datastore.async.pdgs;
 
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -35,15 +43,38 @@ import org.dhus.store.datastore.StreamableProduct;
 
 /**
  * Manages parallel product downloads.
- * This class is not thread safe.
+ * <p>
+ * Downloads are indexed by product name, a product cannot be queued twice. Finished downloads
+ * are removed as soon as they complete.
+ * <p>
+ * The download queue is bounded. Queued downloads are started by decreasing priority, downloads
+ * of the same priority are fairly shared between users: a user who queued many downloads does not
+ * delay the downloads of other users (start-time fair queuing).
+ * <p>
+ * This class is thread safe.
  */
 public class ParallelProductDownloadManager
 {
    private static final Logger LOGGER = LogManager.getLogger();
 
+   /** Maximum number of queued downloads, not including running downloads. */
+   private static final int MAX_QUEUED = Integer.getInteger("dhus.async.download_queue_size", 1000);
+
+   /** User of downloads submitted without user. */
+   private static final String NO_USER = "";
+
    private final ThreadPoolExecutor threadPool;
 
-   private final LinkedList<ProductDownload> runningDownloads = new LinkedList<>();
+   /** Queued and running downloads, by product name. */
+   private final ConcurrentMap<String, ProductDownload> downloads = new ConcurrentHashMap<>();
+
+   private final Semaphore queueSlots = new Semaphore(MAX_QUEUED);
+
+   /** Fair queuing state, guarded by this. */
+   private long virtualTime = 0L;
+   private final Map<String, Long> lastUserTags = new HashMap<>();
+
+   private final AtomicLong sequence = new AtomicLong();
 
    public ParallelProductDownloadManager(int maxPoolSize)
    {
@@ -51,32 +82,82 @@ public class ParallelProductDownloadManager
             maxPoolSize, // initial download pool size
             maxPoolSize, // maximum download pool size
             0, TimeUnit.SECONDS,
-            new LinkedBlockingDeque<>(),
-            new DaemonThreadFactory());
+            new PriorityBlockingQueue<>(),
+            new DaemonThreadFactory())
+      {
+         @Override
+         protected void beforeExecute(Thread thread, Runnable runnable)
+         {
+            super.beforeExecute(thread, runnable);
+            started((ProductDownload) runnable);
+         }
+      };
    }
 
    /**
-    * Submits a product download task to this manager.
-    * This method is not thread safe.
+    * Submits a product download task to this manager, without user and with the default priority.
     *
     * @param streamableProduct to download (must not be null)
     * @param task performing the product download (must not be null)
     * @return a non null future
+    * @throws RejectedExecutionException if the download queue is full or the product already queued
     */
    public Future<?> submit(StreamableProduct streamableProduct, Runnable task)
    {
-      Future<?> f = this.threadPool.submit(task);
-      ProductDownload downloadProduct = new ProductDownload(streamableProduct, f);
-      runningDownloads.add(downloadProduct);
-      LOGGER.debug("Adding download '{}'",streamableProduct.getName());
-      return f;
+      return submit(streamableProduct, NO_USER, 0, task);
+   }
+
+   /**
+    * Submits a product download task to this manager.
+    * If the download cannot be queued, the stream of the product is closed.
+    *
+    * @param streamableProduct to download (must not be null)
+    * @param user on behalf of whom the product is downloaded, may be null
+    * @param priority of the download, higher priority downloads are started first
+    * @param task performing the product download (must not be null)
+    * @return a non null future
+    * @throws RejectedExecutionException if the download queue is full or the product already queued
+    */
+   public Future<?> submit(StreamableProduct streamableProduct, String user, int priority, Runnable task)
+   {
+      String name = streamableProduct.getName();
+      if (!queueSlots.tryAcquire())
+      {
+         close(streamableProduct);
+         throw new RejectedExecutionException("Download queue is full, cannot queue product " + name);
+      }
+      ProductDownload download = new ProductDownload(streamableProduct, user == null ? NO_USER : user, priority, task);
+      if (downloads.putIfAbsent(name, download) != null)
+      {
+         queueSlots.release();
+         close(streamableProduct);
+         throw new RejectedExecutionException("Product " + name + " is already queued");
+      }
+      synchronized (this)
+      {
+         // start tag of the download: after the last download of the same user
+         long lastTag = lastUserTags.getOrDefault(download.user, 0L);
+         download.tag = Math.max(virtualTime, lastTag) + 1;
+         lastUserTags.put(download.user, download.tag);
+      }
+      try
+      {
+         threadPool.execute(download);
+      }
+      catch (RejectedExecutionException e)
+      {
+         downloads.remove(name, download);
+         queueSlots.release();
+         close(streamableProduct);
+         throw e;
+      }
+      LOGGER.debug("Adding download '{}' of user '{}' with priority {}", name, download.user, priority);
+      return download;
    }
 
    public boolean isAlreadyQueued(String productName)
    {
-      return runningDownloads.stream()
-            .filter(download -> download.getStreamableProduct().getName().equals(productName))
-            .findFirst().isPresent();
+      return downloads.containsKey(productName);
    }
 
    /**
@@ -86,7 +167,7 @@ public class ParallelProductDownloadManager
     */
    public void shutdownNow()
    {
-      this.runningDownloads.clear();
+      this.downloads.clear();
       try
       {
          this.threadPool.shutdown();
@@ -96,36 +177,55 @@ public class ParallelProductDownloadManager
    }
 
    /**
-    * Checks and manages running product downloads and.
-    * This method is not thread safe.
+    * Logs the state of product downloads.
+    * Finished downloads are removed when they complete.
     */
    public void checkProductDownloads()
    {
-      LOGGER.debug("--- Checking running downloads - "+runningDownloads);
-      Iterator<ProductDownload> it = runningDownloads.iterator();
-      while (it.hasNext())
+      LOGGER.debug("ParallelProductDownloadManager: {} downloads running, {} queued",
+            threadPool.getActiveCount(), threadPool.getQueue().size());
+   }
+
+   /** Called when a download starts, updates the virtual time of the fair queue. */
+   private synchronized void started(ProductDownload download)
+   {
+      queueSlots.release();
+      virtualTime = Math.max(virtualTime, download.tag);
+      // forget users whose downloads have all been started
+      lastUserTags.values().removeIf(tag -> tag <= virtualTime);
+   }
+
+   /** Called when a download completes. */
+   private void finished(ProductDownload download)
+   {
+      downloads.remove(download.getStreamableProduct().getName(), download);
+      if (download.isCancelled())
+      {
+         LOGGER.info("Download of product {} cancelled", download.getStreamableProduct().getName());
+         return;
+      }
+      try
+      {
+         download.get();
+         LOGGER.info("Product {} successfully downloaded", download.getStreamableProduct().getName());
+      }
+      catch (InterruptedException | ExecutionException e)
+      {
+         LOGGER.error("Product {} failed to download", download.getStreamableProduct().getName(), e);
+      }
+   }
+
+   private static void close(StreamableProduct product)
+   {
+      InputStream stream = product.getImpl(InputStream.class);
+      if (stream != null)
       {
-         ProductDownload task = it.next();
-         LOGGER.debug("Checking download '{}'",task.getStreamableProduct().getName());
-         if (task.isDone())
+         try
          {
-            try
-            {
-               task.getDownloadTask().get();
-               LOGGER.info("Product {} successfully downloaded", task.getStreamableProduct().getName());
-            }
-            catch (InterruptedException | ExecutionException e)
-            {
-               LOGGER.error("Product {} failed to download", task.getStreamableProduct().getName(), e);
-            }
-
-            // remove from running downloads list
-            it.remove();
-            // FIXME should tasks be removed as soon as they are done instead of waiting for a call to this method?
+            stream.close();
          }
+         catch (IOException suppressed) {}
       }
-      LOGGER.debug("ParallelProductDownloadManager: {} downloads running", runningDownloads.size());
-      LOGGER.debug("--- Running downloads left : "+runningDownloads);
    }
 
    /** Creates only daemon threads. */
@@ -141,53 +241,52 @@ public class ParallelProductDownloadManager
       }
    }
 
-   private static final class ProductDownload
+   /** A download, ordered by decreasing priority, then by fair queuing tag, then by submission. */
+   private final class ProductDownload extends FutureTask<Void> implements Comparable<ProductDownload>
    {
       private final StreamableProduct streamableProduct;
-      private final Future<?> downloadTask;
+      private final String user;
+      private final int priority;
+      private final long sequenceNumber = sequence.getAndIncrement();
+      private long tag;
 
-      public ProductDownload(StreamableProduct streamableProduct, Future<?> downloadTask)
+      public ProductDownload(StreamableProduct streamableProduct, String user, int priority, Runnable task)
       {
+         super(task, null);
          this.streamableProduct = streamableProduct;
-         this.downloadTask = downloadTask;
+         this.user = user;
+         this.priority = priority;
       }
 
-      public boolean isDone()
+      @Override
+      protected void done()
       {
-         return downloadTask.isDone();
+         finished(this);
       }
 
       @Override
-      public boolean equals(Object obj)
+      public int compareTo(ProductDownload other)
       {
-         if (obj == null || !ProductDownload.class.isAssignableFrom(obj.getClass()))
+         if (priority != other.priority)
          {
-            return false;
+            return Integer.compare(other.priority, priority);
          }
-         ProductDownload other = ProductDownload.class.cast(obj);
-         return other.streamableProduct.getName().equals(this.streamableProduct.getName());
-      }
-
-      @Override
-      public int hashCode()
-      {
-         return this.streamableProduct.getName().hashCode();
-      }
-
-      public Future<?> getDownloadTask()
-      {
-         return downloadTask;
+         if (tag != other.tag)
+         {
+            return Long.compare(tag, other.tag);
+         }
+         return Long.compare(sequenceNumber, other.sequenceNumber);
       }
 
       public StreamableProduct getStreamableProduct()
       {
          return streamableProduct;
       }
-      
+
       @Override
       public String toString()
       {
-         return "("+streamableProduct.getName()+" - "+(downloadTask.isDone()?"done":"running")+")";
+         return "("+streamableProduct.getName()+" - "+(isDone()?"done":"running")+")";
       }
    }
 }
@@ -165,6 +165,7 @@ public PdgsDataStore(String name, int priority, boolean isManager,
       }
 
       this.parallelProductDownloadManager.shutdownNow();
+      super.close();
    }
 
    @Override
@@ -399,7 +400,7 @@ public PdgsDataStore(String name, int priority, boolean isManager,
       product.setName(fileName);
 
       // put the product in a queue to download it
-      parallelProductDownloadManager.submit(product, () ->
+      boolean queued = submitDownload(parallelProductDownloadManager, product, uuid, () ->
       {
          try
          {
@@ -427,7 +428,14 @@ public PdgsDataStore(String name, int priority, boolean isManager,
          }
       });
 
-      LOGGER.info("Product download {} successfully queued", product.getName());
+      if (queued)
+      {
+         LOGGER.info("Product download {} successfully queued", product.getName());
+      }
+      else
+      {
+         silentlyClose(connection, inputStream);
+      }
    }
    
    @Override
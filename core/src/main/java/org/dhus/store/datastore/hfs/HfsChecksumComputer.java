@@ -0,0 +1,337 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dhus.store.datastore.hfs;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import fr.gael.dhus.database.object.KeyStoreEntry;
+import fr.gael.dhus.service.KeyStoreService;
+import fr.gael.dhus.service.ProductService;
+import fr.gael.dhus.spring.context.ApplicationContextProvider;
+import fr.gael.dhus.util.MultipleDigestInputStream;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.dhus.store.datastore.ProductNotFoundException;
+
+import org.springframework.security.crypto.codec.Hex;
+
+/**
+ * Computes or verifies checksums of hard linked products in the background, so that inserting a
+ * product by hard link does not read its data.
+ * <p>
+ * Computed checksums are added to the database record of the product. As the product may not be
+ * in the database yet when its checksums have been computed, they are saved in the
+ * {@value #PENDING_KEYSTORE} keystore and storing them is retried, after an increasing delay, as
+ * long as the data of the product exists. Pending checksums are resumed on the next start.
+ * <p>
+ * Verified checksums that do not match the data are reported in the {@value #MISMATCH_KEYSTORE}
+ * keystore, one entry per product and algorithm whose value is the expected and the computed
+ * checksums.
+ */
+final class HfsChecksumComputer
+{
+   private static final Logger LOGGER = LogManager.getLogger();
+
+   private static final int THREADS = Integer.getInteger("dhus.hfs.checksum.threads", 2);
+   private static final int BUFFER_SIZE = Integer.getInteger("dhus.hfs.checksum.buffer_size", 1024 * 1024);
+   private static final long STORE_RETRY_DELAY = Long.getLong("dhus.hfs.checksum.store_retry_delay", 30_000L);
+   private static final long STORE_MAX_RETRY_DELAY = Long.getLong("dhus.hfs.checksum.store_max_retry_delay", 600_000L);
+
+   /** Attempts after which a product still not found in the database is reported. */
+   private static final int STORE_WARN_ATTEMPTS = 10;
+
+   private static final String PENDING_KEYSTORE = "PendingHfsChecksums";
+   private static final String PENDING_TAG = "pending";
+   private static final String MISMATCH_KEYSTORE = "ChecksumMismatches";
+   private static final String SEPARATOR = "|";
+
+   private static final ScheduledExecutorService EXECUTOR;
+   static
+   {
+      ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(Math.max(1, THREADS),
+            new ThreadFactoryBuilder().setNameFormat("HfsChecksum-%d").setDaemon(true).build());
+      executor.setRemoveOnCancelPolicy(true);
+      EXECUTOR = executor;
+   }
+
+   /** UUIDs of the products whose checksums are waiting for their database record. */
+   private static final Set<String> PENDING = ConcurrentHashMap.newKeySet();
+
+   private static final AtomicBoolean RESUMED = new AtomicBoolean(false);
+
+   private HfsChecksumComputer() {}
+
+   /**
+    * Schedules the computation of checksums of a product's data.
+    *
+    * @param uuid       of the product to update once checksums are computed
+    * @param data       path to the product's data
+    * @param algorithms algorithms whose checksum is not known (may be empty)
+    * @param expected   known checksums to verify, algorithm to hexadecimal string (may be empty)
+    */
+   static void schedule(String uuid, Path data, String[] algorithms, Map<String, String> expected)
+   {
+      if (algorithms.length == 0 && expected.isEmpty())
+      {
+         return;
+      }
+      EXECUTOR.execute(() -> compute(uuid, data, algorithms, expected));
+   }
+
+   /**
+    * Schedules, once, the storage of the checksums left pending by the previous run, once the
+    * application is started.
+    */
+   static void resume()
+   {
+      if (RESUMED.compareAndSet(false, true))
+      {
+         EXECUTOR.schedule(HfsChecksumComputer::resumePending, STORE_RETRY_DELAY, TimeUnit.MILLISECONDS);
+      }
+   }
+
+   private static void resumePending()
+   {
+      try
+      {
+         List<KeyStoreEntry> entries = new ArrayList<>();
+         Iterator<KeyStoreEntry> it = getKeyStoreService().getOldestEntries(PENDING_KEYSTORE);
+         while (it.hasNext())
+         {
+            entries.add(it.next());
+         }
+         for (KeyStoreEntry entry: entries)
+         {
+            String uuid = entry.getEntryKey();
+            String[] fields = entry.getValue() == null ? new String[0] : entry.getValue().split("\\" + SEPARATOR, 2);
+            Map<String, String> checksums = fields.length == 2 ? decode(fields[0]) : null;
+            if (checksums == null || checksums.isEmpty())
+            {
+               LOGGER.error("Invalid pending checksums of product {}: {}", uuid, entry.getValue());
+               getKeyStoreService().deleteEntry(entry);
+            }
+            else if (PENDING.add(uuid))
+            {
+               // already saved
+               store(uuid, Paths.get(fields[1]), checksums, 2);
+            }
+         }
+         if (!entries.isEmpty())
+         {
+            LOGGER.info("Resumed the storage of checksums of {} products", entries.size());
+         }
+      }
+      catch (RuntimeException e)
+      {
+         LOGGER.error("Cannot resume the storage of pending checksums", e);
+      }
+   }
+
+   private static void compute(String uuid, Path data, String[] algorithms, Map<String, String> expected)
+   {
+      String[] toCompute = new String[algorithms.length + expected.size()];
+      System.arraycopy(algorithms, 0, toCompute, 0, algorithms.length);
+      int index = algorithms.length;
+      for (String algorithm: expected.keySet())
+      {
+         toCompute[index++] = algorithm;
+      }
+
+      Map<String, String> computed = new HashMap<>();
+      long start = System.currentTimeMillis();
+      try (MultipleDigestInputStream stream =
+            new MultipleDigestInputStream(Files.newInputStream(data), toCompute))
+      {
+         byte[] buffer = new byte[BUFFER_SIZE];
+         while (stream.read(buffer) != -1); // read file completely
+         for (Map.Entry<String, MessageDigest> entry: stream.getDigests().entrySet())
+         {
+            computed.put(entry.getKey(), new String(Hex.encode(entry.getValue().digest())));
+         }
+      }
+      catch (NoSuchFileException e)
+      {
+         LOGGER.debug("Product {} removed before its checksums could be computed", uuid);
+         return;
+      }
+      catch (IOException | NoSuchAlgorithmException e)
+      {
+         LOGGER.error("Cannot compute checksums of product {}", uuid, e);
+         return;
+      }
+      LOGGER.debug("Checksums of product {} computed in {}ms", uuid, System.currentTimeMillis() - start);
+
+      for (Map.Entry<String, String> entry: expected.entrySet())
+      {
+         String actual = computed.remove(entry.getKey());
+         if (!entry.getValue().equalsIgnoreCase(actual))
+         {
+            LOGGER.error("{} checksum mismatch for product {}: expected {}, computed {}",
+                  entry.getKey(), uuid, entry.getValue(), actual);
+            reportMismatch(uuid, entry.getKey(), entry.getValue(), actual);
+         }
+      }
+      if (!computed.isEmpty() && PENDING.add(uuid))
+      {
+         store(uuid, data, computed, 1);
+      }
+   }
+
+   /**
+    * Adds checksums to the database record of a product, saves them and retries later if the
+    * product is not in the database yet.
+    */
+   private static void store(String uuid, Path data, Map<String, String> checksums, int attempt)
+   {
+      try
+      {
+         ApplicationContextProvider.getBean(ProductService.class).addChecksums(uuid, checksums);
+         PENDING.remove(uuid);
+         if (attempt > 1)
+         {
+            deletePending(uuid);
+         }
+         return;
+      }
+      catch (ProductNotFoundException e)
+      {
+         if (!Files.exists(data))
+         {
+            // ingestion failed or product deleted
+            LOGGER.debug("Product {} removed before its checksums could be stored", uuid);
+            PENDING.remove(uuid);
+            deletePending(uuid);
+            return;
+         }
+         if (attempt == STORE_WARN_ATTEMPTS)
+         {
+            LOGGER.warn("Product {} still not found after {} attempts to store its checksums, retrying",
+                  uuid, attempt);
+         }
+      }
+      catch (RuntimeException e)
+      {
+         LOGGER.error("Cannot store checksums of product {} (attempt {}), retrying", uuid, attempt, e);
+      }
+      if (attempt == 1)
+      {
+         savePending(uuid, data, checksums);
+      }
+      long delay = Math.min(STORE_RETRY_DELAY * attempt, STORE_MAX_RETRY_DELAY);
+      EXECUTOR.schedule(() -> store(uuid, data, checksums, attempt + 1), delay, TimeUnit.MILLISECONDS);
+   }
+
+   private static void savePending(String uuid, Path data, Map<String, String> checksums)
+   {
+      try
+      {
+         getKeyStoreService().updateEntry(new KeyStoreEntry(PENDING_KEYSTORE, uuid, PENDING_TAG,
+               encode(checksums) + SEPARATOR + data.toAbsolutePath(), System.currentTimeMillis()));
+      }
+      catch (RuntimeException e)
+      {
+         LOGGER.warn("Cannot save pending checksums of product {}: {}", uuid, e.getMessage());
+      }
+   }
+
+   private static void deletePending(String uuid)
+   {
+      try
+      {
+         KeyStoreEntry entry = getKeyStoreService().getEntry(PENDING_KEYSTORE, uuid, PENDING_TAG);
+         if (entry != null)
+         {
+            getKeyStoreService().deleteEntry(entry);
+         }
+      }
+      catch (RuntimeException e)
+      {
+         LOGGER.warn("Cannot delete pending checksums of product {}: {}", uuid, e.getMessage());
+      }
+   }
+
+   private static void reportMismatch(String uuid, String algorithm, String expected, String actual)
+   {
+      try
+      {
+         getKeyStoreService().updateEntry(new KeyStoreEntry(MISMATCH_KEYSTORE, uuid, algorithm,
+               expected + SEPARATOR + actual, System.currentTimeMillis()));
+      }
+      catch (RuntimeException e)
+      {
+         LOGGER.error("Cannot report checksum mismatch of product {}", uuid, e);
+      }
+   }
+
+   private static KeyStoreService getKeyStoreService()
+   {
+      return ApplicationContextProvider.getBean(KeyStoreService.class);
+   }
+
+   /** Encodes checksums as `algorithm=checksum` pairs separated by `;`. */
+   private static String encode(Map<String, String> checksums)
+   {
+      StringBuilder sb = new StringBuilder();
+      for (Map.Entry<String, String> entry: checksums.entrySet())
+      {
+         if (sb.length() > 0)
+         {
+            sb.append(';');
+         }
+         sb.append(entry.getKey()).append('=').append(entry.getValue());
+      }
+      return sb.toString();
+   }
+
+   private static Map<String, String> decode(String value)
+   {
+      Map<String, String> checksums = new HashMap<>();
+      for (String pair: value.split(";"))
+      {
+         int index = pair.indexOf('=');
+         if (index > 0)
+         {
+            checksums.put(pair.substring(0, index), pair.substring(index + 1));
+         }
+      }
+      return checksums;
+   }
+}
@@ -22,13 +22,15 @@ package org.dhus.store.datastore.hfs;
 import fr.gael.dhus.util.MultipleDigestInputStream;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -46,6 +48,10 @@ public class HfsDataStore extends AbstractDataStore
 {
    private static final Logger LOGGER = LogManager.getLogger();
 
+   /** Ratio of hard linked products whose known checksums are verified. */
+   private static final double VERIFY_RATIO =
+         Double.parseDouble(System.getProperty("dhus.hfs.checksum.verify_ratio", "0.01"));
+
    /** The inner implementation of the hierarchical file system. */
    private HfsManager hfs;
 
@@ -70,49 +76,84 @@ public class HfsDataStore extends AbstractDataStore
       super(name, restriction, priority, maximumSize, currentSize, autoEviction);
       this.hfs = hfs;
       this.hashAlgorithms = hashAlgorithms;
+      reconcileCurrentSize();
+      HfsChecksumComputer.resume();
    }
 
-   private void put(Product product, Path destination) throws IOException, DataStoreException
+   @Override
+   protected long scanCurrentSize()
    {
-      if (product.hasImpl(File.class))
+      return hfs.sizeOfContent();
+   }
+
+   private void put(String uuid, Product product, Path destination) throws IOException, DataStoreException
+   {
+      // reserve space ahead of the transfer, may wait for the background eviction
+      long expectedSize = getExpectedSize(product);
+      reserveSpace(expectedSize);
+      try
       {
-         LOGGER.debug("Copying '{}' from file.",product.getName());
-         Path productPath = product.getImpl(File.class).toPath();
-         try
+         if (product.hasImpl(File.class))
          {
-            Files.createLink(destination, productPath);
-            computeAndSetChecksum(productPath.toFile(), product);
+            LOGGER.debug("Copying '{}' from file.",product.getName());
+            Path productPath = product.getImpl(File.class).toPath();
+            try
+            {
+               Files.createLink(destination, productPath);
+               scheduleChecksum(uuid, product, destination);
+            }
+            catch (UnsupportedOperationException | IOException e)
+            {
+               copyProduct(product, destination);
+            }
          }
-         catch (UnsupportedOperationException | IOException e)
+         else if (product.hasImpl(InputStream.class))
          {
+            LOGGER.debug("Copying '{}' from stream.",product.getName());
             copyProduct(product, destination);
          }
+         else
+         {
+            // Case of data is not a SPI or it does not support both File and InputStream accesses (unlikely)
+            throw new IOException("Input product \"" + product.getName() + "\" has no defined implementation for access");
+         }
+
+         long dataSize = Files.size(destination);
+         product.setProperty(ProductConstants.DATA_SIZE, dataSize);
+         LOGGER.debug("Size received for '{}' : {}",product.getName(), dataSize);
+
+         // report DataStore size increase, starts a background eviction if necessary
+         increaseCurrentSize(dataSize);
       }
-      else if (product.hasImpl(InputStream.class))
+      finally
+      {
+         releaseSpace(expectedSize);
+      }
+      product.closeProduct();
+   }
+
+   /**
+    * Returns the size of the data of the given product if it can be known before the transfer.
+    *
+    * @param product product to insert
+    * @return size in bytes, or 0 if unknown
+    */
+   private static long getExpectedSize(Product product)
+   {
+      if (product.hasImpl(File.class))
       {
-         LOGGER.debug("Copying '{}' from stream.",product.getName());
-         copyProduct(product, destination);
+         File file = product.getImpl(File.class);
+         if (file.isFile())
+         {
+            return file.length();
+         }
       }
-      else
+      Object size = product.getProperty(ProductConstants.DATA_SIZE);
+      if (size instanceof Number)
       {
-         // Case of data is not a SPI or it does not support both File and InputStream accesses (unlikely)
-         throw new IOException("Input product \"" + product.getName() + "\" has no defined implementation for access");
+         return ((Number) size).longValue();
       }
-
-      // handle size and eviction
-      long dataSize = Files.size(destination);
-      product.setProperty(ProductConstants.DATA_SIZE, dataSize);
-      LOGGER.debug("Size received for '{}' : {}",product.getName(), dataSize);
-
-      // TODO increase current size of datastore BEFORE calling
-      // on insert eviction, and change the way onInsertEviction
-      // checks the size of the datastore
-
-      // evicts products if necessary
-      onInsertEviction(dataSize);
-      // report DataStore size increase
-      increaseCurrentSize(dataSize);
-      product.closeProduct();
+      return 0L;
    }
 
    @Override
@@ -141,7 +182,7 @@ public class HfsDataStore extends AbstractDataStore
          String destination = HfsDataStoreUtils.generateResource(hfs.getPath(), path.toString());
          LOGGER.debug("Put product '{}' / {} into {}",product.getName(), uuid, destination);
          putResource(uuid, tag, destination);
-         put(product, path);
+         put(uuid, product, path);
       }
       catch (IOException e)
       {
@@ -162,11 +203,19 @@ public class HfsDataStore extends AbstractDataStore
          LOGGER.debug("HFS Path: {}, Resource Path: {}", hfs.getPath(), resourceLocation);
          String path = HfsDataStoreUtils.generatePath(hfs.getPath(), resourceLocation);
          LOGGER.debug("Complete Path: {}", path);
-         long dataSize = hfs.sizeOf(path);
-         hfs.delete(path);
+         beginStorageChange();
+         try
+         {
+            long dataSize = hfs.sizeOf(path);
+            hfs.delete(path);
 
-         // report DataStore size decrease
-         decreaseCurrentSize(dataSize);
+            // report DataStore size decrease
+            decreaseCurrentSize(dataSize);
+         }
+         finally
+         {
+            endStorageChange();
+         }
       }
       catch (IOException e)
       {
@@ -191,35 +240,35 @@ public class HfsDataStore extends AbstractDataStore
       return hfs.isContaining(new File(hfs.getPath(), resourceLocation));
    }
 
-   private void computeAndSetChecksum(File file, Product product)
-         throws IOException
+   /**
+    * Does not read the data of a hard linked product, checksums known from its source are kept,
+    * missing checksums are computed in the background and a sample of known checksums is verified.
+    *
+    * @param uuid        of the product
+    * @param product     product being inserted
+    * @param destination path to the hard link
+    */
+   private void scheduleChecksum(String uuid, Product product, Path destination)
    {
-      String[] algorithmToPerform = DataStores.checkHashAlgorithms(product, hashAlgorithms);
-      if (algorithmToPerform.length == 0)
+      if (hashAlgorithms == null || hashAlgorithms.length == 0)
       {
          return;
       }
-      byte[] buffer = new byte[1024 * 4];
-      MultipleDigestInputStream inputStream = null;
-      try
-      {
-         inputStream = new MultipleDigestInputStream(new FileInputStream(file), algorithmToPerform);
-         while (inputStream.read(buffer) != -1); // read file completely
-
-      }
-      catch (NoSuchAlgorithmException e)
-      {
-         // Should be never happen
-         throw new IOException("Invalid supported algorithms !", e);
-      }
-      finally
+      String[] algorithmToPerform = DataStores.checkHashAlgorithms(product, hashAlgorithms);
+      Map<String, String> toVerify = new HashMap<>();
+      if (algorithmToPerform.length < hashAlgorithms.length
+            && ThreadLocalRandom.current().nextDouble() < VERIFY_RATIO)
       {
-         if (inputStream != null)
+         for (String algorithm: hashAlgorithms)
          {
-            inputStream.close();
+            Object known = product.getProperty(ProductConstants.checksum(algorithm));
+            if (known != null)
+            {
+               toVerify.put(algorithm, known.toString());
+            }
          }
       }
-      DataStores.extractAndSetChecksum(inputStream, product);
+      HfsChecksumComputer.schedule(uuid, destination, algorithmToPerform, toVerify);
    }
 
    /**
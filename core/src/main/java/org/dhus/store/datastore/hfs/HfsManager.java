@@ -24,9 +24,12 @@ import fr.gael.dhus.datastore.HierarchicalDirectoryBuilder;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Objects;
 
 import org.apache.commons.io.FileUtils;
@@ -41,10 +44,14 @@ public class HfsManager
 {
    private static final Logger LOGGER = LogManager.getLogger();
 
+   /** Number of independent path allocation stripes. */
+   private static final int STRIPES =
+         Math.max(1, Integer.getInteger("dhus.hfs.stripes", Runtime.getRuntime().availableProcessors()));
+
    private String path;
    private Integer maxFileNo;
    private Integer maxItems;
-   private HierarchicalDirectoryBuilder hdb;
+   private volatile HierarchicalDirectoryBuilder hdb;
 
    @SuppressWarnings("unused")
    private HfsManager() {}
@@ -63,25 +70,35 @@ public class HfsManager
 
    public HierarchicalDirectoryBuilder getHierarchicalDirectoryBuilder()
    {
-      File root = new File(path);
-      if (!root.exists())
-      {
-         root.mkdirs();
-      }
-      if (hdb == null)
+      HierarchicalDirectoryBuilder builder = hdb;
+      if (builder == null)
       {
-         hdb = new HierarchicalDirectoryBuilder(root.getAbsoluteFile(), this.maxFileNo, this.maxItems);
+         synchronized (this)
+         {
+            builder = hdb;
+            if (builder == null)
+            {
+               File root = new File(path);
+               if (!root.exists())
+               {
+                  root.mkdirs();
+               }
+               builder = new HierarchicalDirectoryBuilder(root.getAbsoluteFile(), this.maxFileNo, this.maxItems, STRIPES);
+               hdb = builder;
+            }
+         }
       }
-      return hdb;
+      return builder;
    }
 
    /**
     * Returns the next existing available path of this HfsManager.
+    * Does not block other callers, see {@link HierarchicalDirectoryBuilder}.
     *
     * @param fileName Name of file that will be stored in the requested path
     * @return the path to an existing directory
     */
-   public synchronized File getNewPath(String fileName)
+   public File getNewPath(String fileName)
    {
       return getHierarchicalDirectoryBuilder().getDirectory(fileName);
    }
@@ -180,4 +197,47 @@ public class HfsManager
       }
    }
 
+   /**
+    * Computes the size (in bytes) of all the files in this HFS, files that cannot be read are ignored.
+    *
+    * @return the size of the content of this HFS, or -1 if it cannot be computed
+    */
+   public long sizeOfContent()
+   {
+      Path root = Paths.get(path);
+      if (!Files.isDirectory(root))
+      {
+         return -1L;
+      }
+      long[] size = { 0L }; // primitive wrapper (final modifier required here)
+      try
+      {
+         Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+         {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+            {
+               if (attrs.isRegularFile() && !file.getFileName().toString().startsWith("."))
+               {
+                  size[0] += attrs.size();
+               }
+               return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc)
+            {
+               // deleted meanwhile or not readable
+               return FileVisitResult.CONTINUE;
+            }
+         });
+      }
+      catch (IOException e)
+      {
+         LOGGER.warn("Cannot compute size of HFS {}: {}", path, e.getMessage());
+         return -1L;
+      }
+      return size[0];
+   }
+
 }
@@ -54,6 +54,16 @@ public class OpenStackDataStore extends AbstractDataStore
 {
    private static final Logger LOGGER = LogManager.getLogger();
 
+   /** Products larger than this size in bytes are uploaded in segments of this size. */
+   private static final int SEGMENT_SIZE =
+         Integer.getInteger("dhus.openstack.segment_size", 64 * 1024 * 1024);
+
+   /** Number of segments uploaded in parallel per product. */
+   private static final int UPLOAD_THREADS = Integer.getInteger("dhus.openstack.upload_threads", 4);
+
+   /** Number of attempts to upload a segment. */
+   private static final int SEGMENT_RETRIES = Integer.getInteger("dhus.openstack.segment_retries", 3);
+
    /** Array of hash sum algorithms to compute on product move (may be empty/null) */
    private final String[] hashAlgorithms;
 
@@ -164,7 +174,17 @@ public class OpenStackDataStore extends AbstractDataStore
 
          try (InputStream source = src)
          {
-            ostack.getOpenStackObject().putObject(source, product.getName(), container, region, product_size, user_data);
+            if (product_size < 0 || product_size > SEGMENT_SIZE)
+            {
+               // large or unknown size: parallel upload as a Static Large Object
+               new SwiftSegmentedUpload(ostack.getOpenStackObject().getSwiftApi(), region, container,
+                     SEGMENT_SIZE, UPLOAD_THREADS, SEGMENT_RETRIES)
+                     .upload(source, product.getName(), user_data);
+            }
+            else
+            {
+               ostack.getOpenStackObject().putObject(source, product.getName(), container, region, product_size, user_data);
+            }
          }
 
          if (MultipleDigestInputStream.class.isAssignableFrom(src.getClass()))
@@ -266,7 +286,9 @@ public class OpenStackDataStore extends AbstractDataStore
          BlobMetadata blobMetadata = open_stack.getMetadata(container, region, object_name);
          long dataSize = blobMetadata.getSize();
 
-         ostack.getOpenStackObject().deleteObject(object_name, this.container, this.region);
+         // also removes the segments of segmented objects
+         SwiftSegmentedUpload.delete(open_stack.getSwiftApi(), this.region, this.container, object_name,
+               blobMetadata.getUserMetadata());
 
          // report DataStore size decrease
          decreaseCurrentSize(dataSize);
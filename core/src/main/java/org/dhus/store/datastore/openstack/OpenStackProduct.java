@@ -96,6 +96,23 @@ public class OpenStackProduct extends AbstractProduct implements DataStoreProduc
       return SUPPORTED_CLASSES;
    }
 
+   /**
+    * Returns a stream of the data of this product that does not fetch data beyond the byte range
+    * requested by a download.
+    *
+    * @param range value of the HTTP Range header of the download request, may be null
+    * @return a stream of the data of this product, that ends at the end of the requested range
+    */
+   public InputStream getRangeInputStream(String range)
+   {
+      long end = SwiftRangeInputStream.getRangeEnd(range);
+      if (uuid != null || end < 0)
+      {
+         return getImpl(InputStream.class);
+      }
+      return new SwiftRangeInputStream(getURL().getUrl(), end);
+   }
+
    @Override
    public <T> T getImpl(Class<? extends T> cl) throws UnsupportedOperationException
    {
@@ -109,7 +126,8 @@ public class OpenStackProduct extends AbstractProduct implements DataStoreProduc
             }
             else
             {
-               return cl.cast(getURL().getUrl().openStream());
+               // ranged and parallel reads, skip() does not download data
+               return cl.cast(new SwiftRangeInputStream(getURL().getUrl()));
             }
          }
          catch (IOException e)
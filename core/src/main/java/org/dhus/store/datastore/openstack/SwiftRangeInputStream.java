@@ -0,0 +1,422 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dhus.store.datastore.openstack;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads a Swift object using HTTP Range requests.
+ * <p>
+ * {@link #skip(long)} does not transfer any data, so that byte range requests only download the
+ * requested range. If the end of the requested range is known, nothing is fetched beyond it.
+ * Sequential reads are served from chunks fetched in parallel ahead of the reading position, the
+ * number of chunks fetched ahead grows as the stream is read sequentially. Fetches of all streams
+ * run on a bounded pool of threads. Connections are reused through the JDK HTTP keep-alive cache.
+ * <p>
+ * If the server does not support ranges, the object is read sequentially from a single request.
+ */
+final class SwiftRangeInputStream extends InputStream
+{
+   private static final Logger LOGGER = LogManager.getLogger();
+
+   /** Size in bytes of chunks fetched by a single Range request. */
+   static final int CHUNK_SIZE = Integer.getInteger("dhus.openstack.read_chunk_size", 8 * 1024 * 1024);
+
+   /** Maximum number of chunks fetched ahead of the reading position. */
+   static final int PREFETCH = Math.max(1, Integer.getInteger("dhus.openstack.read_prefetch", 4));
+
+   /** Number of chunks fetched at the same time by all streams. */
+   private static final int THREADS = Math.max(1, Integer.getInteger("dhus.openstack.read_threads", 16));
+
+   private static final int ATTEMPTS = 3;
+
+   /** Single byte range with a last byte position: `bytes=first-last`. */
+   private static final Pattern BYTE_RANGE = Pattern.compile("\\s*bytes\\s*=\\s*(\\d+)\\s*-\\s*(\\d+)\\s*");
+
+   private static final ThreadPoolExecutor EXECUTOR;
+   static
+   {
+      EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder().setNameFormat("SwiftRead-%d").setDaemon(true).build());
+      EXECUTOR.allowCoreThreadTimeOut(true);
+   }
+
+   private final URL url;
+
+   /** Offset of the end of the data to read, exclusive, -1 to read until the end of object. */
+   private final long end;
+
+   /** Total length of the object, -1 until the first response. */
+   private long length = -1L;
+
+   /** Offset in the object of the next byte returned by this stream. */
+   private long position = 0L;
+
+   /** Offset in the object of the next chunk to fetch. */
+   private long nextFetch = 0L;
+
+   private final Deque<Future<byte[]>> window = new ArrayDeque<>(PREFETCH);
+
+   /** Number of chunks to fetch ahead, doubled at each chunk read sequentially. */
+   private int prefetch = 1;
+
+   private byte[] chunk = null;
+   private int chunkPosition = 0;
+
+   /** Used when the server does not support ranges. */
+   private InputStream sequential = null;
+
+   private boolean closed = false;
+
+   SwiftRangeInputStream(URL url)
+   {
+      this(url, -1L);
+   }
+
+   /**
+    * @param url of the object
+    * @param end offset of the byte following the last byte to read, -1 to read until the end of object
+    */
+   SwiftRangeInputStream(URL url, long end)
+   {
+      this.url = url;
+      this.end = end;
+   }
+
+   /**
+    * Returns the offset of the byte following the last byte requested by an HTTP Range header.
+    *
+    * @param range value of the Range header, may be null
+    * @return end of the range (exclusive), -1 if there is no single range with a last byte position
+    */
+   static long getRangeEnd(String range)
+   {
+      if (range == null)
+      {
+         return -1L;
+      }
+      Matcher matcher = BYTE_RANGE.matcher(range);
+      if (!matcher.matches())
+      {
+         return -1L;
+      }
+      try
+      {
+         long first = Long.parseLong(matcher.group(1));
+         long last = Long.parseLong(matcher.group(2));
+         return last < first ? -1L : last + 1;
+      }
+      catch (NumberFormatException e)
+      {
+         return -1L;
+      }
+   }
+
+   @Override
+   public int read() throws IOException
+   {
+      byte[] one = new byte[1];
+      int count = read(one, 0, 1);
+      return count == -1 ? -1 : one[0] & 0xFF;
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len) throws IOException
+   {
+      if (closed)
+      {
+         throw new IOException("Stream closed");
+      }
+      if (len == 0)
+      {
+         return 0;
+      }
+      if (sequential != null)
+      {
+         return sequential.read(b, off, len);
+      }
+      if (chunk == null || chunkPosition == chunk.length)
+      {
+         if (!nextChunk())
+         {
+            return sequential != null ? sequential.read(b, off, len) : -1;
+         }
+      }
+      int count = Math.min(len, chunk.length - chunkPosition);
+      if (end >= 0)
+      {
+         if (position >= end)
+         {
+            return -1;
+         }
+         count = (int) Math.min(count, end - position);
+      }
+      System.arraycopy(chunk, chunkPosition, b, off, count);
+      chunkPosition += count;
+      position += count;
+      return count;
+   }
+
+   @Override
+   public long skip(long n) throws IOException
+   {
+      if (n <= 0)
+      {
+         return 0;
+      }
+      if (sequential != null)
+      {
+         return sequential.skip(n);
+      }
+      long skipped = length < 0 ? n : Math.min(n, length - position);
+      if (chunk != null && skipped <= chunk.length - chunkPosition)
+      {
+         chunkPosition += skipped;
+      }
+      else
+      {
+         // drop buffered data, fetching restarts from the new position
+         chunk = null;
+         cancelWindow();
+         nextFetch = position + skipped;
+         prefetch = 1;
+      }
+      position += skipped;
+      return skipped;
+   }
+
+   @Override
+   public int available()
+   {
+      if (chunk == null)
+      {
+         return 0;
+      }
+      return chunk.length - chunkPosition;
+   }
+
+   @Override
+   public void close() throws IOException
+   {
+      closed = true;
+      chunk = null;
+      cancelWindow();
+      if (sequential != null)
+      {
+         sequential.close();
+      }
+   }
+
+   /**
+    * Makes the next chunk current, fills the prefetch window.
+    *
+    * @return false at end of object or if switched to sequential mode
+    */
+   private boolean nextChunk() throws IOException
+   {
+      if (length < 0)
+      {
+         // first request, synchronous to get the object length
+         byte[] first = fetchFirst(nextFetch);
+         if (first == null)
+         {
+            return false;
+         }
+         nextFetch += first.length;
+         window.addLast(CompletableFuture.completedFuture(first));
+      }
+      long limit = getLimit();
+      while (window.size() < prefetch && nextFetch < limit)
+      {
+         long start = nextFetch;
+         int size = (int) Math.min(CHUNK_SIZE, limit - start);
+         window.addLast(EXECUTOR.submit(() -> fetch(start, size)));
+         nextFetch += size;
+      }
+      prefetch = Math.min(PREFETCH, prefetch * 2);
+      Future<byte[]> next = window.pollFirst();
+      if (next == null)
+      {
+         return false;
+      }
+      try
+      {
+         chunk = next.get();
+         chunkPosition = 0;
+         return chunk.length > 0;
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException();
+      }
+      catch (ExecutionException e)
+      {
+         throw new IOException("Cannot read " + url.getPath(), e.getCause());
+      }
+   }
+
+   /** Returns the offset of the end of the data to fetch, the object length must be known. */
+   private long getLimit()
+   {
+      return end < 0 ? length : Math.min(end, length);
+   }
+
+   /** Fetches the first chunk and reads the object length, or switches to sequential mode. */
+   private byte[] fetchFirst(long start) throws IOException
+   {
+      if (end >= 0 && start >= end)
+      {
+         // nothing to read
+         return null;
+      }
+      long firstEnd = end < 0 ? start + CHUNK_SIZE : Math.min(start + CHUNK_SIZE, end);
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      connection.setRequestProperty("Range", "bytes=" + start + "-" + (firstEnd - 1));
+      int code = connection.getResponseCode();
+      if (code == 416)
+      {
+         // start is beyond the end of object
+         drain(connection);
+         length = start;
+         return null;
+      }
+      if (code == HttpURLConnection.HTTP_OK)
+      {
+         LOGGER.debug("Range requests not supported by {}, reading sequentially", url.getHost());
+         sequential = end < 0 ? connection.getInputStream() : ByteStreams.limit(connection.getInputStream(), end);
+         long toSkip = start;
+         while (toSkip > 0)
+         {
+            long count = sequential.skip(toSkip);
+            if (count <= 0)
+            {
+               break;
+            }
+            toSkip -= count;
+         }
+         return null;
+      }
+      if (code != HttpURLConnection.HTTP_PARTIAL)
+      {
+         drain(connection);
+         throw new IOException("Unexpected HTTP status " + code + " for " + url.getPath());
+      }
+      // Content-Range: bytes start-end/total
+      String contentRange = connection.getHeaderField("Content-Range");
+      length = Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1).trim());
+      int size = (int) Math.min(firstEnd - start, length - start);
+      return readBody(connection, size);
+   }
+
+   /** Fetches a range of the object, with retries. */
+   private byte[] fetch(long start, int size) throws IOException
+   {
+      IOException lastError = null;
+      for (int attempt = 1; attempt <= ATTEMPTS; attempt++)
+      {
+         if (closed || Thread.currentThread().isInterrupted())
+         {
+            throw new InterruptedIOException();
+         }
+         try
+         {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + (start + size - 1));
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_PARTIAL)
+            {
+               drain(connection);
+               throw new IOException("Unexpected HTTP status " + code + " for " + url.getPath());
+            }
+            return readBody(connection, size);
+         }
+         catch (IOException e)
+         {
+            lastError = e;
+            LOGGER.debug("Attempt {}/{} to read range {}+{} failed: {}", attempt, ATTEMPTS, start, size, e.getMessage());
+         }
+      }
+      throw lastError;
+   }
+
+   private static byte[] readBody(HttpURLConnection connection, int size) throws IOException
+   {
+      byte[] data = new byte[size];
+      try (InputStream in = connection.getInputStream())
+      {
+         int total = 0;
+         while (total < size)
+         {
+            int count = in.read(data, total, size - total);
+            if (count == -1)
+            {
+               throw new IOException("Premature end of range, expected " + size + " bytes, got " + total);
+            }
+            total += count;
+         }
+         // reading the body until its end allows the connection to be reused
+         while (in.read() != -1);
+      }
+      return data;
+   }
+
+   private static void drain(HttpURLConnection connection)
+   {
+      InputStream in = connection.getErrorStream();
+      if (in != null)
+      {
+         try (InputStream error = in)
+         {
+            while (error.read() != -1);
+         }
+         catch (IOException suppressed) {}
+      }
+   }
+
+   private void cancelWindow()
+   {
+      for (Future<byte[]> future: window)
+      {
+         future.cancel(true);
+      }
+      window.clear();
+   }
+}
@@ -0,0 +1,391 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dhus.store.datastore.openstack;
+
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+import org.jclouds.openstack.swift.v1.SwiftApi;
+import org.jclouds.openstack.swift.v1.domain.Segment;
+import org.jclouds.openstack.swift.v1.features.ObjectApi;
+
+import org.springframework.security.crypto.codec.Hex;
+
+/**
+ * Uploads an object to Swift as a Static Large Object (SLO).
+ * <p>
+ * The source stream is split into segments that are uploaded in parallel, each segment is sent
+ * with its MD5 so that Swift verifies it, and is retried on failure. The manifest is written once
+ * every segment has been uploaded. Reading the manifest object returns the concatenated segments.
+ * <p>
+ * Segments are read into buffers taken from a pool shared by all uploads, which holds at most
+ * {@code dhus.openstack.upload_buffers} buffers: memory usage is bounded to that number of
+ * segments, whatever the number of concurrent uploads.
+ */
+final class SwiftSegmentedUpload
+{
+   private static final Logger LOGGER = LogManager.getLogger();
+
+   /** User metadata set on manifests, used to delete their segments. */
+   static final String SEGMENTED_METADATA = "dhus-segmented";
+
+   /** Segments are stored in the same container, under this prefix. */
+   static final String SEGMENT_PREFIX = ".segments/";
+
+   /** Maximum number of segment buffers allocated by all uploads. */
+   private static final int MAX_BUFFERS = Math.max(1, Integer.getInteger("dhus.openstack.upload_buffers", 8));
+
+   static final BufferPool BUFFERS = new BufferPool(MAX_BUFFERS);
+
+   private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+         new ThreadFactoryBuilder().setNameFormat("SwiftUpload-%d").setDaemon(true).build());
+
+   private final SwiftApi swiftApi;
+   private final String region;
+   private final String container;
+   private final int segmentSize;
+   private final int threads;
+   private final int retries;
+
+   /**
+    * @param swiftApi    Swift API
+    * @param region      target region
+    * @param container   target container
+    * @param segmentSize size in bytes of segments
+    * @param threads     number of segments uploaded in parallel
+    * @param retries     number of attempts per segment
+    */
+   SwiftSegmentedUpload(SwiftApi swiftApi, String region, String container, int segmentSize, int threads,
+         int retries)
+   {
+      this.swiftApi = swiftApi;
+      this.region = region;
+      this.container = container;
+      this.segmentSize = segmentSize;
+      this.threads = Math.max(1, threads);
+      this.retries = Math.max(1, retries);
+   }
+
+   /**
+    * Uploads the given stream, which is read completely but not closed.
+    *
+    * @param source       data to upload
+    * @param objectName   name of the manifest object
+    * @param userMetadata user metadata to set on the manifest
+    * @throws IOException if the source cannot be read or a segment cannot be uploaded
+    */
+   void upload(InputStream source, String objectName, Map<String, String> userMetadata) throws IOException
+   {
+      ObjectApi objectApi = swiftApi.getObjectApi(region, container);
+      String segmentBase = SEGMENT_PREFIX + objectName + '/' + System.currentTimeMillis() + '/';
+      // segments of this upload being read or uploaded
+      Semaphore inFlight = new Semaphore(threads);
+      AtomicBoolean aborted = new AtomicBoolean(false);
+      List<Future<Segment>> uploads = new ArrayList<>();
+      try
+      {
+         for (int index = 0; ; index++)
+         {
+            inFlight.acquire();
+            byte[] buffer;
+            try
+            {
+               buffer = BUFFERS.acquire(segmentSize);
+            }
+            catch (InterruptedException e)
+            {
+               inFlight.release();
+               throw e;
+            }
+            int length;
+            try
+            {
+               length = readFully(source, buffer);
+            }
+            catch (IOException | RuntimeException e)
+            {
+               BUFFERS.release(buffer);
+               inFlight.release();
+               throw e;
+            }
+            if (length == 0 && index > 0)
+            {
+               BUFFERS.release(buffer);
+               inFlight.release();
+               break;
+            }
+            String segmentName = segmentBase + String.format("%08d", index);
+            uploads.add(EXECUTOR.submit(() ->
+            {
+               try
+               {
+                  return uploadSegment(objectApi, segmentName, buffer, length, aborted);
+               }
+               finally
+               {
+                  BUFFERS.release(buffer);
+                  inFlight.release();
+               }
+            }));
+            if (length < buffer.length)
+            {
+               break;
+            }
+         }
+
+         List<Segment> segments = new ArrayList<>(uploads.size());
+         for (Future<Segment> upload: uploads)
+         {
+            segments.add(upload.get());
+         }
+         Map<String, String> metadata = new HashMap<>(userMetadata);
+         metadata.put(SEGMENTED_METADATA, "true");
+         swiftApi.getStaticLargeObjectApi(region, container).replaceManifest(objectName, segments, metadata);
+         LOGGER.debug("Object {} uploaded in {} segments to {}/{}", objectName, segments.size(), region, container);
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         abort(objectApi, uploads, aborted);
+         throw new InterruptedIOException("Upload of " + objectName + " interrupted");
+      }
+      catch (ExecutionException e)
+      {
+         abort(objectApi, uploads, aborted);
+         throw new IOException("Cannot upload " + objectName, e.getCause());
+      }
+      catch (IOException | RuntimeException e)
+      {
+         abort(objectApi, uploads, aborted);
+         throw e;
+      }
+   }
+
+   private Segment uploadSegment(ObjectApi objectApi, String segmentName, byte[] buffer, int length,
+         AtomicBoolean aborted) throws IOException
+   {
+      if (aborted.get())
+      {
+         throw new IOException("Upload aborted");
+      }
+      byte[] md5;
+      try
+      {
+         MessageDigest digest = MessageDigest.getInstance("MD5");
+         digest.update(buffer, 0, length);
+         md5 = digest.digest();
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         throw new IOException(e);
+      }
+      String expectedEtag = new String(Hex.encode(md5));
+
+      RuntimeException lastError = null;
+      for (int attempt = 1; attempt <= retries && !aborted.get(); attempt++)
+      {
+         try
+         {
+            Payload payload = Payloads.newByteSourcePayload(ByteSource.wrap(buffer).slice(0, length));
+            payload.getContentMetadata().setContentLength((long) length);
+            payload.getContentMetadata().setContentMD5(HashCode.fromBytes(md5));
+            String etag = objectApi.put(segmentName, payload);
+            if (etag != null && !expectedEtag.equalsIgnoreCase(etag.replace("\"", "")))
+            {
+               throw new IllegalStateException("Checksum mismatch for segment " + segmentName);
+            }
+            if (aborted.get())
+            {
+               // the upload was aborted while this segment was sent, abort() does not know it
+               deleteSegment(objectApi, segmentName);
+               throw new IOException("Upload aborted");
+            }
+            return Segment.builder()
+                  .path(container + '/' + segmentName)
+                  .etag(expectedEtag)
+                  .sizeBytes(length)
+                  .build();
+         }
+         catch (RuntimeException e)
+         {
+            lastError = e;
+            LOGGER.warn("Attempt {}/{} to upload segment {} failed: {}", attempt, retries, segmentName, e.getMessage());
+         }
+      }
+      throw new IOException("Cannot upload segment " + segmentName, lastError);
+   }
+
+   /**
+    * Stops the upload and removes uploaded segments: waits for the segments being sent, those
+    * completing after the abort delete themselves.
+    */
+   private void abort(ObjectApi objectApi, List<Future<Segment>> uploads, AtomicBoolean aborted)
+   {
+      aborted.set(true);
+      for (Future<Segment> upload: uploads)
+      {
+         try
+         {
+            Segment segment = Uninterruptibles.getUninterruptibly(upload);
+            String path = segment.getPath();
+            deleteSegment(objectApi, path.substring(path.indexOf('/') + 1));
+         }
+         catch (ExecutionException suppressed) {}
+      }
+   }
+
+   private static void deleteSegment(ObjectApi objectApi, String segmentName)
+   {
+      try
+      {
+         objectApi.delete(segmentName);
+      }
+      catch (RuntimeException e)
+      {
+         LOGGER.warn("Cannot delete segment {} of an aborted upload: {}", segmentName, e.getMessage());
+      }
+   }
+
+   /**
+    * Deletes an object, and its segments if it is a manifest written by this class.
+    *
+    * @param swiftApi     Swift API
+    * @param region       region of the object
+    * @param container    container of the object
+    * @param objectName   name of the object
+    * @param userMetadata user metadata of the object
+    */
+   static void delete(SwiftApi swiftApi, String region, String container, String objectName,
+         Map<String, String> userMetadata)
+   {
+      if (userMetadata != null && userMetadata.containsKey(SEGMENTED_METADATA))
+      {
+         swiftApi.getStaticLargeObjectApi(region, container).delete(objectName);
+      }
+      else
+      {
+         swiftApi.getObjectApi(region, container).delete(objectName);
+      }
+   }
+
+   /** Reads until the buffer is full or the end of stream is reached, returns the number of bytes read. */
+   private static int readFully(InputStream source, byte[] buffer) throws IOException
+   {
+      int total = 0;
+      while (total < buffer.length)
+      {
+         int count = source.read(buffer, total, buffer.length - total);
+         if (count == -1)
+         {
+            break;
+         }
+         total += count;
+      }
+      return total;
+   }
+
+   /**
+    * Bounded pool of segment buffers shared by all uploads, released buffers are reused by
+    * uploads using the same segment size.
+    */
+   static final class BufferPool
+   {
+      private final Semaphore permits;
+      private final ConcurrentLinkedDeque<byte[]> free = new ConcurrentLinkedDeque<>();
+
+      BufferPool(int maxBuffers)
+      {
+         this.permits = new Semaphore(maxBuffers, true);
+      }
+
+      /**
+       * Takes a buffer, blocks while the maximum number of buffers are in use.
+       *
+       * @param size of the buffer
+       * @return a buffer of the given size
+       * @throws InterruptedException interrupted while waiting for a buffer
+       */
+      byte[] acquire(int size) throws InterruptedException
+      {
+         permits.acquire();
+         byte[] buffer;
+         while ((buffer = free.poll()) != null)
+         {
+            if (buffer.length == size)
+            {
+               return buffer;
+            }
+            // another segment size, let it be collected
+         }
+         try
+         {
+            return new byte[size];
+         }
+         catch (OutOfMemoryError e)
+         {
+            permits.release();
+            throw e;
+         }
+      }
+
+      /**
+       * Gives back a buffer taken by {@link #acquire(int)}.
+       *
+       * @param buffer to release
+       */
+      void release(byte[] buffer)
+      {
+         free.push(buffer);
+         permits.release();
+      }
+
+      /**
+       * @return number of buffers that can be taken without blocking
+       */
+      int available()
+      {
+         return permits.availablePermits();
+      }
+   }
+}
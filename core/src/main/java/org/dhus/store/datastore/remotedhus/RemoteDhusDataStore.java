@@ -19,23 +19,32 @@
  */
 package org.dhus.store.datastore.remotedhus;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import org.apache.olingo.odata2.api.ep.entry.ODataEntry;
 import org.apache.olingo.odata2.api.ep.feed.ODataFeed;
 import org.apache.olingo.odata2.api.exception.ODataException;
 
 import org.dhus.Product;
+import org.dhus.ProductConstants;
 import org.dhus.store.StoreException;
 import org.dhus.store.datastore.DataStore;
 import org.dhus.store.datastore.DataStoreException;
@@ -47,6 +56,7 @@ import org.dhus.store.derived.DerivedProductStore;
 import org.dhus.store.ingestion.IngestibleProduct;
 
 import fr.gael.dhus.olingo.ODataClient;
+import fr.gael.dhus.olingo.v1.Model;
 
 /**
  * Remote DHuS DataStore (RDDS).
@@ -56,6 +66,17 @@ public class RemoteDhusDataStore implements DataStore, DerivedProductStore
 {
    private static final Logger LOGGER = LogManager.getLogger();
 
+   /** Time to live in milliseconds of cached product existences. */
+   private static final long PRESENT_TTL = Long.getLong("dhus.rdds.cache.present_ttl", 300_000L);
+
+   /** Time to live in milliseconds of cached product absences. */
+   private static final long ABSENT_TTL = Long.getLong("dhus.rdds.cache.absent_ttl", 60_000L);
+
+   private static final long CACHE_SIZE = Long.getLong("dhus.rdds.cache.size", 100_000L);
+
+   /** Maximum number of products checked by a single remote request. */
+   private static final int BATCH_SIZE = Integer.getInteger("dhus.rdds.batch_size", 50);
+
    // datastore management fields
    private final String name;
    private final int priority;
@@ -73,6 +94,16 @@ public class RemoteDhusDataStore implements DataStore, DerivedProductStore
    // OData Client (may be null)
    private Optional<ODataClient> optODataClient;
 
+   // Existence cache, products known to be present (with their remote properties) or absent
+   private final Cache<String, Map<String, Object>> presentProducts = CacheBuilder.newBuilder()
+         .maximumSize(CACHE_SIZE)
+         .expireAfterWrite(PRESENT_TTL, TimeUnit.MILLISECONDS)
+         .build();
+   private final Cache<String, Boolean> absentProducts = CacheBuilder.newBuilder()
+         .maximumSize(CACHE_SIZE)
+         .expireAfterWrite(ABSENT_TTL, TimeUnit.MILLISECONDS)
+         .build();
+
    /**
     * Creates a new instance of the RDDS.
     *
@@ -121,11 +152,24 @@ public class RemoteDhusDataStore implements DataStore, DerivedProductStore
    public Product get(String uuid) throws DataStoreException
    {
       ODataClient odataClient = optODataClient.orElseThrow(this::remoteNotUpExSupplier);
+      if (absentProducts.getIfPresent(uuid) != null)
+      {
+         throw new ProductNotFoundException("Product " + uuid + " not found on " + getName());
+      }
 
       try
       {
          // may throw ProductNotFoundException, but means the remote is still alive
-         return RemoteDhusProduct.initialize(serviceUrl, uuid, login, password, odataClient);
+         RemoteDhusProduct product = RemoteDhusProduct.initialize(serviceUrl, uuid, login, password, odataClient);
+         Map<String, Object> metadata = presentProducts.asMap().putIfAbsent(uuid, Collections.emptyMap());
+         setChecksum(product, metadata);
+         return product;
+      }
+      catch (ProductNotFoundException e)
+      {
+         presentProducts.invalidate(uuid);
+         absentProducts.put(uuid, Boolean.FALSE);
+         throw e;
       }
       catch (IOException | InterruptedException e)
       {
@@ -153,33 +197,169 @@ public class RemoteDhusDataStore implements DataStore, DerivedProductStore
       }
    }
 
+   /**
+    * Sets the checksum known by the remote on a product, so that it is not computed again when the
+    * product is copied.
+    *
+    * @param product  product retrieved from the remote
+    * @param metadata remote properties of the product, may be null
+    */
+   private static void setChecksum(Product product, Map<String, Object> metadata)
+   {
+      Object checksum = metadata == null ? null : metadata.get("Checksum");
+      if (checksum instanceof Map)
+      {
+         Object algorithm = ((Map<?, ?>) checksum).get(Model.ALGORITHM);
+         Object value = ((Map<?, ?>) checksum).get(Model.VALUE);
+         if (algorithm != null && value != null)
+         {
+            product.setProperty(ProductConstants.checksum(algorithm.toString()), value.toString());
+         }
+      }
+   }
+
+   /**
+    * Checks the existence of a product, the result is cached, see {@link #PRESENT_TTL} and
+    * {@link #ABSENT_TTL}. Cache misses query the product entry, its data is not requested.
+    */
    @Override
    public boolean hasProduct(String uuid)
    {
+      return hasProducts(Collections.singleton(uuid)).get(uuid);
+   }
+
+   /**
+    * Checks the existence of many products, so that the following calls to {@link #hasProduct(String)}
+    * and {@link #get(String)} need no remote request.
+    */
+   @Override
+   public void prefetchProducts(Collection<String> uuids)
+   {
+      if (optODataClient.isPresent())
+      {
+         hasProducts(uuids);
+      }
+   }
+
+   /**
+    * Checks the existence of many products, products not in the existence cache are checked with one
+    * remote request per batch of {@link #BATCH_SIZE} UUIDs.
+    * OData v1 has no {@code in} operator, batches are filters of {@code Id eq} clauses joined by {@code or}.
+    *
+    * @param uuids UUIDs of products to check
+    * @return UUID to existence map, products that could not be checked are reported as not existing
+    */
+   public Map<String, Boolean> hasProducts(Collection<String> uuids)
+   {
+      Map<String, Boolean> result = new HashMap<>();
       if (!optODataClient.isPresent())
       {
          LOGGER.error("Cannot access product on remote DHuS instance: {} is down", getName());
-         return false;
+         uuids.forEach(uuid -> result.put(uuid, false));
+         return result;
       }
       ODataClient odataClient = optODataClient.get();
 
-      try
+      List<String> misses = new ArrayList<>();
+      for (String uuid: uuids)
+      {
+         Boolean cached = getCachedExistence(uuid);
+         if (cached != null)
+         {
+            result.put(uuid, cached);
+         }
+         else
+         {
+            misses.add(uuid);
+         }
+      }
+
+      for (int from = 0; from < misses.size(); from += BATCH_SIZE)
+      {
+         List<String> batch = misses.subList(from, Math.min(misses.size(), from + BATCH_SIZE));
+         try
+         {
+            Map<String, Map<String, Object>> found = queryProducts(odataClient, batch);
+            for (String uuid: batch)
+            {
+               Map<String, Object> metadata = found.get(uuid);
+               if (metadata != null)
+               {
+                  LOGGER.debug("{} has product {}", name, uuid);
+                  presentProducts.put(uuid, metadata);
+                  result.put(uuid, true);
+               }
+               else
+               {
+                  absentProducts.put(uuid, Boolean.FALSE);
+                  result.put(uuid, false);
+               }
+            }
+         }
+         catch (IOException | ODataException | InterruptedException | RuntimeException e)
+         {
+            LOGGER.error("A problem occured while checking distant DHuS products", e);
+            batch.forEach(uuid -> result.put(uuid, false));
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Returns the metadata of a product, as returned by the remote when its existence was checked.
+    *
+    * @param uuid UUID of product
+    * @return remote properties of the product, or null if not in cache
+    */
+   public Map<String, Object> getCachedMetadata(String uuid)
+   {
+      return presentProducts.getIfPresent(uuid);
+   }
+
+   /**
+    * @return true or false if the existence of the product is in cache, null otherwise
+    */
+   private Boolean getCachedExistence(String uuid)
+   {
+      if (presentProducts.getIfPresent(uuid) != null)
       {
-         RemoteDhusProduct product = RemoteDhusProduct.initialize(serviceUrl, uuid, login, password, odataClient);
-         LOGGER.debug("{} has product {}", name, product.getUuid());
-         product.close();
          return true;
       }
-      catch (ProductNotFoundException e)
+      if (absentProducts.getIfPresent(uuid) != null)
       {
          return false;
       }
-      catch (IOException | InterruptedException e)
+      return null;
+   }
+
+   /** Queries the remote for the given products, returns the properties of products found by UUID. */
+   private Map<String, Map<String, Object>> queryProducts(ODataClient odataClient, List<String> uuids)
+         throws IOException, ODataException, InterruptedException
+   {
+      StringBuilder filter = new StringBuilder();
+      for (String uuid: uuids)
       {
-         odataClient = null;
-         LOGGER.error("A problem occured while checking a distant DHuS product", e);
-         return false;
+         if (filter.length() > 0)
+         {
+            filter.append(" or ");
+         }
+         filter.append("Id eq '").append(uuid.replace("'", "''")).append('\'');
+      }
+      Map<String, String> params = new HashMap<>();
+      params.put("$filter", filter.toString());
+      params.put("$top", String.valueOf(uuids.size()));
+
+      Map<String, Map<String, Object>> found = new HashMap<>();
+      for (ODataEntry entry: odataClient.readFeed("/Products", params).getEntries())
+      {
+         Map<String, Object> properties = entry.getProperties();
+         Object id = properties.get("Id");
+         if (id != null)
+         {
+            found.put(id.toString(), properties);
+         }
       }
+      return found;
    }
 
    @Override
@@ -0,0 +1,361 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dhus.store.derived;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import fr.gael.dhus.database.object.KeyStoreEntry;
+import fr.gael.dhus.database.object.Product;
+import fr.gael.dhus.service.KeyStoreService;
+import fr.gael.dhus.service.ProductService;
+import fr.gael.dhus.service.SearchService;
+import fr.gael.dhus.spring.context.ApplicationContextProvider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.apache.solr.client.solrj.SolrServerException;
+
+import org.dhus.store.StoreException;
+import org.dhus.store.datastore.DataStoreManager;
+import org.dhus.store.datastore.DataStoreProduct;
+import org.dhus.store.ingestion.IngestibleRawProduct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Generates the default derived products (quicklook and thumbnail) of products out of their
+ * ingestion.
+ * <p>
+ * When enabled, products are published as soon as their data and metadata are stored, their
+ * derived products are then rendered from the stored data by a bounded pool of low priority
+ * workers. Until then, their derived products are reported as pending.
+ * <p>
+ * Pending generations are saved in a keystore: they are resumed on the next start, and failed
+ * generations are retried after an increasing delay, at most {@link #MAX_ATTEMPTS} times.
+ * Generations that do not fit in the queue of the workers are left in the keystore and queued
+ * later.
+ */
+public class DerivedProductGenerator
+{
+   private static final Logger LOGGER = LogManager.getLogger();
+
+   /** True to generate derived products out of the ingestion of products. */
+   public static final boolean ASYNC = Boolean.getBoolean("dhus.derived.async");
+
+   /** Number of derived products generated in parallel. */
+   private static final int THREADS = Math.max(1, Integer.getInteger("dhus.derived.threads", 2));
+
+   /** Priority of the threads generating derived products. */
+   private static final int PRIORITY = Math.min(Thread.MAX_PRIORITY,
+         Math.max(Thread.MIN_PRIORITY, Integer.getInteger("dhus.derived.priority", Thread.MIN_PRIORITY)));
+
+   /** Maximum number of generations waiting for a thread, others wait in the keystore. */
+   private static final int QUEUE_SIZE = Math.max(1, Integer.getInteger("dhus.derived.queue_size", 100));
+
+   /** Maximum number of attempts to generate the derived products of a product. */
+   private static final int MAX_ATTEMPTS = Math.max(1, Integer.getInteger("dhus.derived.max_attempts", 3));
+
+   /** Delay before the first retry of a failed generation in milliseconds, multiplied by the number of attempts. */
+   private static final long RETRY_DELAY = Long.getLong("dhus.derived.retry_delay", 300_000L);
+
+   /** Period of the checks for pending generations to queue, in milliseconds. */
+   private static final long CHECK_PERIOD = Long.getLong("dhus.derived.check_period", 60_000L);
+
+   /** Name of the keystore saving pending generations. */
+   private static final String KEYSTORE_NAME = "PendingDerivedProducts";
+   private static final String PENDING_TAG = "pending";
+   private static final String SEPARATOR = "|";
+
+   @Autowired
+   private KeyStoreService keyStoreService;
+
+   /** UUIDs of the products whose derived products are pending, mirrors the keystore. */
+   private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+   /** UUIDs of the products whose derived products are queued or being generated. */
+   private final Set<String> queued = ConcurrentHashMap.newKeySet();
+
+   private final ThreadPoolExecutor workers = new ThreadPoolExecutor(
+         THREADS, THREADS,
+         0L, TimeUnit.MILLISECONDS,
+         new LinkedBlockingQueue<>(QUEUE_SIZE),
+         new ThreadFactoryBuilder()
+               .setNameFormat("DerivedProductGenerator-%d")
+               .setPriority(PRIORITY)
+               .setDaemon(true)
+               .build());
+
+   private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(
+         new ThreadFactoryBuilder().setNameFormat("DerivedProductChecker").setDaemon(true).build());
+
+   /**
+    * Loads the pending generations saved in the keystore and starts checking for generations to
+    * queue.
+    */
+   public void start()
+   {
+      Iterator<KeyStoreEntry> entries = keyStoreService.getOldestEntries(KEYSTORE_NAME);
+      while (entries.hasNext())
+      {
+         pending.add(entries.next().getEntryKey());
+      }
+      if (!pending.isEmpty())
+      {
+         LOGGER.info("Resuming the generation of derived products of {} products", pending.size());
+      }
+      checker.scheduleWithFixedDelay(this::queuePending, 0L, CHECK_PERIOD, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Marks the derived products of a product as pending, must be called before the product is
+    * published, see {@link #submit(String)}.
+    *
+    * @param uuid            of the product
+    * @param targetDataStore name of the DataStore to store derived products into, may be null (all DataStores)
+    */
+   public void markPending(String uuid, String targetDataStore)
+   {
+      keyStoreService.createEntry(new KeyStoreEntry(KEYSTORE_NAME, uuid, PENDING_TAG,
+            encode(0, 0L, targetDataStore), System.currentTimeMillis()));
+      pending.add(uuid);
+   }
+
+   /**
+    * Queues the generation of the pending derived products of a published product.
+    * If the queue is full, the generation is queued later.
+    *
+    * @param uuid of the product
+    */
+   public void submit(String uuid)
+   {
+      if (!pending.contains(uuid) || !queued.add(uuid))
+      {
+         return;
+      }
+      try
+      {
+         workers.execute(() -> generate(uuid));
+      }
+      catch (RejectedExecutionException e)
+      {
+         queued.remove(uuid);
+         LOGGER.debug("Generation queue full, derived products of product {} will be generated later", uuid);
+      }
+   }
+
+   /**
+    * Forgets the pending derived products of a product, its derived products will not be generated.
+    *
+    * @param uuid of the product
+    */
+   public void cancel(String uuid)
+   {
+      if (pending.remove(uuid))
+      {
+         KeyStoreEntry entry = keyStoreService.getEntry(KEYSTORE_NAME, uuid, PENDING_TAG);
+         if (entry != null)
+         {
+            keyStoreService.deleteEntry(entry);
+         }
+      }
+   }
+
+   /**
+    * Returns true if the derived products of the given product are not generated yet.
+    *
+    * @param uuid of the product
+    * @return true if its derived products are pending
+    */
+   public boolean isPending(String uuid)
+   {
+      return pending.contains(uuid);
+   }
+
+   /** Queues the pending generations that are not queued and whose retry delay has elapsed. */
+   private void queuePending()
+   {
+      try
+      {
+         long now = System.currentTimeMillis();
+         List<String> uuids = new ArrayList<>();
+         Iterator<KeyStoreEntry> entries = keyStoreService.getOldestEntries(KEYSTORE_NAME);
+         while (uuids.size() < workers.getQueue().remainingCapacity() && entries.hasNext())
+         {
+            KeyStoreEntry entry = entries.next();
+            if (!queued.contains(entry.getEntryKey()) && getNextAttempt(entry) <= now)
+            {
+               uuids.add(entry.getEntryKey());
+            }
+         }
+         uuids.forEach(this::submit);
+      }
+      catch (RuntimeException e)
+      {
+         LOGGER.error("Cannot queue pending derived products", e);
+      }
+   }
+
+   private void generate(String uuid)
+   {
+      try
+      {
+         KeyStoreEntry entry = keyStoreService.getEntry(KEYSTORE_NAME, uuid, PENDING_TAG);
+         if (entry == null)
+         {
+            // cancelled
+            pending.remove(uuid);
+            return;
+         }
+         Product product = ApplicationContextProvider.getBean(ProductService.class).systemGetProduct(uuid);
+         if (product == null)
+         {
+            LOGGER.debug("Product {} deleted before the generation of its derived products", uuid);
+            remove(entry);
+            return;
+         }
+
+         String[] state = decode(entry.getValue());
+         if (state.length != 3)
+         {
+            LOGGER.error("Invalid state of pending derived products of product {}: {}", uuid, entry.getValue());
+            remove(entry);
+            return;
+         }
+         int attempts = Integer.parseInt(state[0]);
+         String targetDataStore = state[2].isEmpty() ? null : state[2];
+         long start = System.currentTimeMillis();
+         try
+         {
+            DataStoreManager dataStoreManager = ApplicationContextProvider.getBean(DataStoreManager.class);
+            IngestibleRawProduct ingestibleProduct = IngestibleRawProduct.fromDataStoreProduct(
+                  uuid, (DataStoreProduct) dataStoreManager.get(uuid), product);
+            try
+            {
+               ApplicationContextProvider.getBean(DerivedProductStoreService.class)
+                     .addDefaultDerivedProducts(ingestibleProduct, targetDataStore);
+            }
+            finally
+            {
+               ingestibleProduct.close();
+            }
+            LOGGER.info("Derived products of product {} generated in {}ms", uuid, System.currentTimeMillis() - start);
+            remove(entry);
+            reindex(product);
+         }
+         catch (StoreException | IOException | RuntimeException e)
+         {
+            attempts++;
+            if (attempts >= MAX_ATTEMPTS)
+            {
+               LOGGER.error("Cannot generate derived products of product {}, giving up after {} attempts",
+                     uuid, attempts, e);
+               remove(entry);
+               reindex(product);
+            }
+            else
+            {
+               LOGGER.warn("Cannot generate derived products of product {} (attempt {}/{}): {}",
+                     uuid, attempts, MAX_ATTEMPTS, e.getMessage());
+               entry.setValue(encode(attempts, System.currentTimeMillis() + RETRY_DELAY * attempts, targetDataStore));
+               keyStoreService.updateEntry(entry);
+            }
+         }
+      }
+      catch (RuntimeException e)
+      {
+         LOGGER.error("Cannot generate derived products of product {}", uuid, e);
+      }
+      finally
+      {
+         queued.remove(uuid);
+      }
+   }
+
+   private void remove(KeyStoreEntry entry)
+   {
+      keyStoreService.deleteEntry(entry);
+      pending.remove(entry.getEntryKey());
+   }
+
+   /** Updates the index entry of the product, which reports its derived products as pending. */
+   private static void reindex(Product product)
+   {
+      try
+      {
+         Product withIndexes = ApplicationContextProvider.getBean(ProductService.class)
+               .getProductWithIndexes(product.getId());
+         if (withIndexes != null)
+         {
+            ApplicationContextProvider.getBean(SearchService.class).index(withIndexes);
+         }
+      }
+      catch (IOException | SolrServerException | RuntimeException e)
+      {
+         LOGGER.warn("Cannot reindex product {}: {}", product.getUuid(), e.getMessage());
+      }
+   }
+
+   private static String encode(int attempts, long nextAttempt, String targetDataStore)
+   {
+      return String.join(SEPARATOR, Integer.toString(attempts), Long.toString(nextAttempt),
+            targetDataStore == null ? "" : targetDataStore);
+   }
+
+   private static String[] decode(String value)
+   {
+      return value.split("\\" + SEPARATOR, 3);
+   }
+
+   private static long getNextAttempt(KeyStoreEntry entry)
+   {
+      try
+      {
+         return Long.parseLong(decode(entry.getValue())[1]);
+      }
+      catch (RuntimeException e)
+      {
+         return 0L;
+      }
+   }
+
+   /** Stops generating derived products, pending generations are resumed on the next start. */
+   @PreDestroy
+   public void shutdown()
+   {
+      checker.shutdownNow();
+      workers.shutdownNow();
+   }
+}
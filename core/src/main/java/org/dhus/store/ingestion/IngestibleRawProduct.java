@@ -19,6 +19,7 @@
  */
 package org.dhus.store.ingestion;
 
+import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -67,6 +68,7 @@ import org.xml.sax.SAXException;
 
 import fr.gael.dhus.database.object.MetadataIndex;
 import fr.gael.dhus.database.object.config.product.ProductConfiguration;
+import fr.gael.dhus.datastore.processing.ImageRenderer;
 import fr.gael.dhus.datastore.processing.InconsistentImageScale;
 import fr.gael.dhus.datastore.processing.ProcessingUtils;
 import fr.gael.dhus.factory.MetadataFactory;
@@ -191,7 +193,20 @@ public class IngestibleRawProduct implements IngestibleProduct
          node = node.getFirstChild();
       }
 
-      return new IngestibleRawProduct(uuid, resourceLocation, node, dataStoreProduct, true, databaseProduct.getIngestionDate(), false);
+      IngestibleRawProduct product = new IngestibleRawProduct(uuid, resourceLocation, node, dataStoreProduct, true,
+            databaseProduct.getIngestionDate(), false);
+
+      // the class resolved by the ingestion of the product, its signatures are not evaluated again
+      String itemClass = databaseProduct.getItemClass();
+      if (itemClass != null)
+      {
+         product.drbCortexItemClass = DrbCortexItemClass.getCortexItemClassByName(itemClass);
+         if (product.drbCortexItemClass != null)
+         {
+            product.itemClass = itemClass;
+         }
+      }
+      return product;
    }
 
    private IngestibleRawProduct(String uuid, String productUrl, DrbNode productNode, Product physicalProduct, boolean readOnlySource, Date ingestionDate, boolean onDemand)
@@ -423,6 +438,7 @@ public class IngestibleRawProduct implements IngestibleProduct
    {
       if (productNode != null)
       {
+         ProcessingUtils.forgetClassOfNode(productNode);
          closeNode(productNode);
       }
 
@@ -587,72 +603,72 @@ public class IngestibleRawProduct implements IngestibleProduct
          LOGGER.warn("Quicklook \"cutting\" parameter is deprecated, will be ignored");
       }
 
-      LOGGER.info("Generating Quicklook {}x{} from {}x{} image",
-            quicklook_width, quicklook_height,
-            input_image.getWidth(), input_image.getHeight());
-
-      RenderedImage image = null;
-      try
-      {
-         image = ProcessingUtils.resizeImage(input_image, quicklook_width, quicklook_height);
-      }
-      catch (InconsistentImageScale e)
-      {
-         LOGGER.error("Cannot resize image: {}", e.getMessage());
-         SdiImageFactory.close(input_list);
-         return;
-      }
+      int thumbnail_width = productConfiguration.getThumbnailConfiguration().getWidth();
+      int thumbnail_height = productConfiguration.getThumbnailConfiguration().getHeight();
 
-      // Manages the quicklook output
       File image_directory = WorkingDirectory.getTempDirectoryFile();
-
       String identifier = getIdentifier();
-      File quicklook = new File(image_directory, identifier + "-ql.jpg");
-      try
+
+      // the thumbnail is reduced from the quicklook, the product image is read once
+      try (ImageRenderer.Reservation reservation =
+            ImageRenderer.reserve(input_image, quicklook_width, quicklook_height))
       {
-         if (ImageIO.write(image, "jpg", quicklook))
+         LOGGER.info("Generating Quicklook {}x{} from {}x{} image",
+               quicklook_width, quicklook_height,
+               input_image.getWidth(), input_image.getHeight());
+
+         BufferedImage quicklook_image = ImageRenderer.reduce(input_image, quicklook_width, quicklook_height);
+
+         // Manages the quicklook output
+         File quicklook = new File(image_directory, identifier + ProcessingUtils.QUICKLOOK_SUFFIX);
+         try
+         {
+            if (ImageRenderer.writeJpeg(quicklook_image, quicklook))
+            {
+               this.quicklook = quicklook;
+            }
+         }
+         catch (IOException e)
          {
-            this.quicklook = quicklook;
+            LOGGER.error("Cannot save quicklook.", e);
          }
-      }
-      catch (IOException e)
-      {
-         LOGGER.error("Cannot save quicklook.", e);
-      }
 
-      // Generate Thumbnail
-      int thumbnail_width = productConfiguration.getThumbnailConfiguration().getWidth();
-      int thumbnail_height = productConfiguration.getThumbnailConfiguration().getHeight();
+         // Generate Thumbnail
+         LOGGER.info("Generating Thumbnail {}x{} from {}x{} quicklook",
+               thumbnail_width, thumbnail_height,
+               quicklook_image.getWidth(), quicklook_image.getHeight());
 
-      LOGGER.info("Generating Thumbnail {}x{} from {}x{} image",
-            thumbnail_width, thumbnail_height,
-            input_image.getWidth(), input_image.getHeight());
+         BufferedImage thumbnail_image = ImageRenderer.reduce(quicklook_image, thumbnail_width, thumbnail_height);
 
-      try
-      {
-         image = ProcessingUtils.resizeImage(input_image, thumbnail_width, thumbnail_height);
+         // Manages the thumbnail output
+         File thumbnail = new File(image_directory, identifier + ProcessingUtils.THUMBNAIL_SUFFIX);
+         try
+         {
+            if (ImageRenderer.writeJpeg(thumbnail_image, thumbnail))
+            {
+               this.thumbnail = thumbnail;
+            }
+         }
+         catch (IOException e)
+         {
+            LOGGER.error("Cannot save thumbnail", e);
+         }
       }
       catch (InconsistentImageScale e)
       {
          LOGGER.error("Cannot resize image: {}", e.getMessage());
-         SdiImageFactory.close(input_list);
          return;
       }
-
-      // Manages the thumbnail output
-      File thumbnail = new File(image_directory, identifier + "-th.jpg");
-      try
+      catch (InterruptedException e)
       {
-         if (ImageIO.write(image, "jpg", thumbnail))
-         {
-            this.thumbnail = thumbnail;
-         }
+         Thread.currentThread().interrupt();
+         LOGGER.warn("Product images extraction interrupted");
+         return;
       }
-      catch (IOException e)
+      finally
       {
-         LOGGER.error("Cannot save thumbnail", e);
+         SdiImageFactory.close(input_list);
       }
-      SdiImageFactory.close(input_list);
 
       LOGGER.info(" - Product images extraction done in {} ms", (System.currentTimeMillis() - start));
    }
@@ -109,4 +109,15 @@ public interface KeyStore
     * @return list of KeyStoreEntriy
     */
    public List<KeyStoreEntry> getUnalteredProductEntries(int skip, int top);
+
+   /**
+    * Returns a non-null list of KeyStore Entries referencing unaltered products, ordered by key.
+    * Unlike {@link #getUnalteredProductEntries(int, int)}, pages are not shifted by concurrent
+    * removals.
+    *
+    * @param afterKey returned entries have a key strictly greater than this one, may be null
+    * @param top maximum number of entries to return (size of returned list it at most `top`)
+    * @return list of KeyStoreEntriy
+    */
+   public List<KeyStoreEntry> getUnalteredProductEntriesAfter(String afterKey, int top);
 }
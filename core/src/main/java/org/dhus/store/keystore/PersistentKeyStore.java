@@ -134,4 +134,10 @@ public class PersistentKeyStore implements KeyStore
    {
       return keyStoreService.getUnalteredProductEntries(name, skip, top);
    }
+
+   @Override
+   public List<KeyStoreEntry> getUnalteredProductEntriesAfter(String afterKey, int top)
+   {
+      return keyStoreService.getUnalteredProductEntriesAfter(name, afterKey, top);
+   }
 }
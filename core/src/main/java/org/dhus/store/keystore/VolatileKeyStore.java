@@ -21,6 +21,7 @@ package org.dhus.store.keystore;
 
 import fr.gael.dhus.database.object.KeyStoreEntry;
 
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -117,6 +118,16 @@ public class VolatileKeyStore implements KeyStore
       return Util.subList(entries, skip, top);
    }
 
+   @Override
+   public List<KeyStoreEntry> getUnalteredProductEntriesAfter(String afterKey, int top)
+   {
+      return getUnalteredProductEntries().stream()
+            .filter(entry -> afterKey == null || entry.getEntryKey().compareTo(afterKey) > 0)
+            .sorted(Comparator.comparing(KeyStoreEntry::getEntryKey))
+            .limit(top)
+            .collect(Collectors.toList());
+   }
+
    public static class VolatileKey
    {
       private final String key;
@@ -167,6 +178,6 @@ public class VolatileKeyStore implements KeyStore
    @Override
    public Iterator<KeyStoreEntry> getUnalteredScrollableProductEntries()
    {
-      return null;
+      return getUnalteredProductEntries().iterator();
    }
 }
@@ -78,6 +78,22 @@ public class MetadataStoreService implements MetadataStore
    }
 
    public void deleteProduct(String uuid, boolean storeAsDeleted, String cause) throws StoreException
+   {
+      deleteProduct(uuid, storeAsDeleted, cause, true);
+   }
+
+   /**
+    * Deletes a product from the MetadataStores.
+    *
+    * @param uuid            of product to delete
+    * @param storeAsDeleted  {@code true} to keep this product as deleted
+    * @param cause           of the deletion
+    * @param removeFromIndex {@code false} if the caller will remove the product from the index
+    *                        later on using {@link #deleteProductsFromIndex(List)}
+    * @throws StoreException could not perform operation
+    */
+   public void deleteProduct(String uuid, boolean storeAsDeleted, String cause, boolean removeFromIndex)
+         throws StoreException
    {
       LOGGER.info("Deleting product {} from MetadataStores", uuid);
       List<Throwable> throwables = new LinkedList<>();
@@ -91,15 +107,32 @@ public class MetadataStoreService implements MetadataStore
       {
          throwables.add(e);
       }
-      try
+      if (removeFromIndex)
       {
-         solrMetadataStore.deleteProduct(uuid);
+         try
+         {
+            solrMetadataStore.deleteProduct(uuid);
+         }
+         catch (StoreException | RuntimeException e)
+         {
+            throwables.add(e);
+         }
       }
-      catch (StoreException | RuntimeException e)
+      DataStores.throwErrors(throwables, "deleteProductMetadata", uuid);
+   }
+
+   /**
+    * Removes a batch of products from the index only.
+    *
+    * @param uuids of products to remove from the index
+    */
+   public void deleteProductsFromIndex(List<String> uuids)
+   {
+      if (!uuids.isEmpty())
       {
-         throwables.add(e);
+         LOGGER.info("Removing {} products from the index", uuids.size());
+         solrMetadataStore.deleteProducts(uuids);
       }
-      DataStores.throwErrors(throwables, "deleteProductMetadata", uuid);
    }
 
    @Override
@@ -139,6 +172,29 @@ public class MetadataStoreService implements MetadataStore
       return relationalMetadataStore.getOnlineProductUUIDs(filter, orderBy, collectionName, safe, skip, top);
    }
 
+   /**
+    * Keyset paginated listing of products.
+    *
+    * @param after last product of the previous page, null to get the first page
+    * @see fr.gael.dhus.service.ProductService#getProductUUIDs(fr.gael.dhus.olingo.v1.visitor.ProductSQLVisitor, String, boolean, LoggableProduct, int, int)
+    */
+   public List<LoggableProduct> getProductUUIDs(String filter, String orderBy, String collectionName, boolean safe,
+         LoggableProduct after, int skip, int top) throws StoreException
+   {
+      return relationalMetadataStore.getProductUUIDs(filter, orderBy, collectionName, safe, after, skip, top);
+   }
+
+   /**
+    * Keyset paginated listing of online products.
+    *
+    * @param after last product of the previous page, null to get the first page
+    */
+   public List<LoggableProduct> getOnlineProductUUIDs(String filter, String orderBy, String collectionName,
+         boolean safe, LoggableProduct after, int skip, int top) throws StoreException
+   {
+      return relationalMetadataStore.getOnlineProductUUIDs(filter, orderBy, collectionName, safe, after, skip, top);
+   }
+
    public List<LoggableProduct> getProductUUIDsWithin(String filter, String orderBy,
          String collectionName, boolean safe, List<String> productUUIDs) throws StoreException
    {
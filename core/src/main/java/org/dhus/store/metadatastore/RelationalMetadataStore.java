@@ -190,22 +190,43 @@ public class RelationalMetadataStore implements MetadataStore
    public List<LoggableProduct> getProductUUIDs(String filter, String orderBy, String collectionName, boolean safe, int skip, int top)
          throws StoreException
    {
-      return internalGetProductUUIDs(filter, orderBy, collectionName, safe, skip, top);
+      return internalGetProductUUIDs(filter, orderBy, collectionName, safe, false, null, skip, top);
+   }
+
+   /**
+    * Keyset paginated listing, see {@link ProductService#getProductUUIDs(ProductSQLVisitor, String, boolean, LoggableProduct, int, int)}.
+    */
+   public List<LoggableProduct> getProductUUIDs(String filter, String orderBy, String collectionName, boolean safe,
+         LoggableProduct after, int skip, int top) throws StoreException
+   {
+      return internalGetProductUUIDs(filter, orderBy, collectionName, safe, true, after, skip, top);
    }
 
    public List<LoggableProduct> getOnlineProductUUIDs(String filter, String orderBy, String collectionName, boolean safe, int skip, int top)
          throws StoreException
    {
-      String newFilter;
+      return internalGetProductUUIDs(onlineFilter(filter), orderBy, collectionName, safe, false, null, skip, top);
+   }
+
+   /**
+    * Keyset paginated listing of online products.
+    */
+   public List<LoggableProduct> getOnlineProductUUIDs(String filter, String orderBy, String collectionName,
+         boolean safe, LoggableProduct after, int skip, int top) throws StoreException
+   {
+      return internalGetProductUUIDs(onlineFilter(filter), orderBy, collectionName, safe, true, after, skip, top);
+   }
+
+   private static String onlineFilter(String filter)
+   {
       if (filter == null)
       {
-         newFilter = "Online eq true";
+         return "Online eq true";
       }
       else
       {
-         newFilter = filter + " and Online eq true";
+         return filter + " and Online eq true";
       }
-      return internalGetProductUUIDs(newFilter, orderBy, collectionName, safe, skip, top);
    }
 
    public List<LoggableProduct> getProductUUIDsWithin(String filter, String orderBy,
@@ -234,11 +255,11 @@ public class RelationalMetadataStore implements MetadataStore
       // add list to the filter
       filter += "(" + quotedUuidsWithCommas + ")";
 
-      return internalGetProductUUIDs(filter, orderBy, collectionName, safe, 0, Integer.MAX_VALUE);
+      return internalGetProductUUIDs(filter, orderBy, collectionName, safe, false, null, 0, Integer.MAX_VALUE);
    }
 
-   private List<LoggableProduct> internalGetProductUUIDs(String filter, String orderBy, String collectionName, boolean safe, int skip, int top)
-         throws StoreException
+   private List<LoggableProduct> internalGetProductUUIDs(String filter, String orderBy, String collectionName,
+         boolean safe, boolean keyset, LoggableProduct after, int skip, int top) throws StoreException
    {
       try
       {
@@ -257,6 +278,10 @@ public class RelationalMetadataStore implements MetadataStore
          }
 
          ProductSQLVisitor visitor = new ProductSQLVisitor(filterExpression, orderByExpression);
+         if (keyset)
+         {
+            return productService.getProductUUIDs(visitor, collectionName, safe, after, skip, top);
+         }
          return productService.getProductUUIDs(visitor, collectionName, safe, skip, top);
       }
       catch (ODataApplicationException | ODataMessageException e)
@@ -88,6 +88,16 @@ public class SolrMetadataStore implements MetadataStore
       searchService.removeProduct(uuid);
    }
 
+   /**
+    * Removes several products from the index in one request.
+    *
+    * @param uuids of products to remove
+    */
+   public void deleteProducts(List<String> uuids)
+   {
+      searchService.removeProducts(uuids);
+   }
+
    @Override
    public boolean hasProduct(String uuid)
    {
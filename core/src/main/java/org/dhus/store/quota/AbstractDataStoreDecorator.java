@@ -19,6 +19,7 @@
  */
 package org.dhus.store.quota;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
@@ -100,6 +101,12 @@ public abstract class AbstractDataStoreDecorator<DST extends DataStore> implemen
       return this.decorated.hasProduct(uuid);
    }
 
+   @Override
+   public void prefetchProducts(Collection<String> uuids)
+   {
+      this.decorated.prefetchProducts(uuids);
+   }
+
    @Override
    public boolean canAccess(String resource_location)
    {
@@ -124,6 +131,12 @@ public abstract class AbstractDataStoreDecorator<DST extends DataStore> implemen
       return this.decorated.getProductList();
    }
 
+   @Override
+   public List<String> getProductListAfter(String after, int top)
+   {
+      return this.decorated.getProductListAfter(after, top);
+   }
+
    @Override
    public void close() throws Exception
    {
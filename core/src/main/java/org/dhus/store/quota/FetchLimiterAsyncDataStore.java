@@ -27,10 +27,22 @@ import fr.gael.dhus.database.object.User;
 import fr.gael.dhus.service.SecurityService;
 import fr.gael.dhus.service.StoreQuotaService;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -38,7 +50,6 @@ import org.apache.logging.log4j.Logger;
 import org.dhus.Product;
 import org.dhus.ProductConstants;
 import org.dhus.api.JobStatus;
-import org.dhus.store.StoreException;
 import org.dhus.store.datastore.DataStore;
 import org.dhus.store.datastore.DataStoreException;
 import org.dhus.store.datastore.async.AsyncDataStore;
@@ -52,10 +63,26 @@ public final class FetchLimiterAsyncDataStore extends AbstractDataStoreDecorator
    private static final Logger LOGGER = LogManager.getLogger();
    public static final String NAME = "ASYNC_FETCH_LIMITER";
 
+   /** Persists quota entries in the background, shared by all instances to keep changes ordered. */
+   private static final ExecutorService PERSIST_EXECUTOR = Executors.newSingleThreadExecutor(
+         new ThreadFactoryBuilder().setNameFormat("FetchQuota-%d").setDaemon(true).build());
+
+   /** Period in milliseconds after which the fetches of a user are forgotten, and reloaded from the database on next access. */
+   private static final long RELOAD_PERIOD = Long.getLong("dhus.quota.fetch.reload_period", 600_000L);
+
    private final StoreQuotaService storeQuotaService;
    private final SecurityService securityService;
    private final int maxFetchsInParallel;
 
+   /** Products whose fetch has been requested and is not finished, by user, users without fetches are forgotten. */
+   private final ConcurrentMap<UUID, UserFetches> userFetches = new ConcurrentHashMap<>();
+
+   /** Serializes quota checks of a same user. */
+   private final Striped<Lock> userLocks = Striped.lock(64);
+
+   /** Time of the last check for stale users. */
+   private final AtomicLong lastForget = new AtomicLong(System.currentTimeMillis());
+
    /**
     * Create new instance
     *
@@ -117,34 +144,224 @@ public final class FetchLimiterAsyncDataStore extends AbstractDataStoreDecorator
             return oldOrder;
          }
 
-         UpdateUserCallback param1 = new UpdateUserCallback(userUuid);
          toFetch.setProperty("username", username);
-         FetchCallbacks param234 = new FetchCallbacks(toFetch, userUuid, username);
+         boolean reserved;
          try
          {
-            // synchronized block added to avoid an issue with Hibernate's caching (StaleStateException)
-            synchronized (userUuid)
-            {
-               // Update of quota entries + check + insertion of new quota entry, all done in a transaction
-               storeQuotaService.performQuotaCappedOperation(param1, param234, param234, param234);
-            }
-            if (param234.order != null)
+            reserved = reserveFetch(userUuid, username, toFetch, productUuid);
+         }
+         catch (QuotaException ex)
+         {
+            throw new DataStoreException(ex);
+         }
+
+         // the quota is reserved, fetches of a same user may run in parallel
+         Order order;
+         try
+         {
+            order = decorated.fetch(toFetch);
+         }
+         catch (DataStoreException | RuntimeException ex)
+         {
+            if (reserved)
             {
-               return param234.order;
+               releaseFetch(userUuid, productUuid);
             }
+            throw ex;
+         }
+         if (order == null)
+         {
             // The decorated AsyncDS does not conform to the AsyncDataStore interface
             throw new DataStoreException("Decorated AsyncDS: Fetch operation should not return null");
          }
-         catch (DataStoreException ex)
+         if (reserved)
          {
+            persistFetch(userUuid, productUuid);
+         }
+         return order;
+      }
+      throw new DataStoreException("Cannot porform quota capped operation due to current user not set");
+   }
+
+   /**
+    * Takes a fetch slot of the given user.
+    *
+    * @return false if the user has already requested the fetch of this product
+    * @throws QuotaException the user has reached the maximum number of fetches in parallel
+    */
+   private boolean reserveFetch(UUID userUuid, String username, AsyncProduct toFetch, String productUuid)
+         throws QuotaException
+   {
+      forgetStaleUsers();
+      Lock lock = userLocks.get(userUuid);
+      lock.lock();
+      try
+      {
+         UserFetches fetches = getFetches(userUuid);
+         if (fetches.products.contains(productUuid))
+         {
+            return false;
+         }
+         if (fetches.products.size() >= maxFetchsInParallel)
+         {
+            // only check the state of orders when the quota seems to be reached
+            removeFinishedFetches(userUuid, fetches);
+         }
+         if (fetches.products.size() >= maxFetchsInParallel) // Quota reached
+         {
+            QuotaException ex = new ParallelFetchResquestQuotaException(username, maxFetchsInParallel, toFetch);
+            LOGGER.info(ex.getMessage());
             throw ex;
          }
-         catch (StoreException ex)
+         fetches.products.add(productUuid);
+         fetches.unpersisted++;
+         return true;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /** Persists a reserved fetch slot once the fetch has been requested. */
+   private void persistFetch(UUID userUuid, String productUuid)
+   {
+      Lock lock = userLocks.get(userUuid);
+      lock.lock();
+      try
+      {
+         long datetime = System.currentTimeMillis();
+         persist(() -> storeQuotaService.insertQuotaEntry(decorated.getName(), NAME, userUuid, productUuid, datetime));
+         UserFetches fetches = userFetches.get(userUuid);
+         if (fetches != null)
          {
-            throw new DataStoreException(ex);
+            fetches.unpersisted--;
          }
       }
-      throw new DataStoreException("Cannot porform quota capped operation due to current user not set");
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /** Frees a reserved fetch slot whose fetch could not be requested. */
+   private void releaseFetch(UUID userUuid, String productUuid)
+   {
+      Lock lock = userLocks.get(userUuid);
+      lock.lock();
+      try
+      {
+         UserFetches fetches = userFetches.get(userUuid);
+         if (fetches != null)
+         {
+            fetches.products.remove(productUuid);
+            fetches.unpersisted--;
+            forgetIfIdle(userUuid, fetches);
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Returns the products whose fetch has been requested by the given user, loaded from the
+    * database on first access. Must be called with the lock of the user held.
+    */
+   private UserFetches getFetches(UUID userUuid)
+   {
+      UserFetches fetches = userFetches.get(userUuid);
+      if (fetches == null)
+      {
+         // loaded by the persisting thread, after the changes of this user still being persisted
+         List<StoreQuota> entries = Futures.getUnchecked(PERSIST_EXECUTOR.submit(
+               () -> storeQuotaService.getQuotaEntries(decorated.getName(), NAME, userUuid)));
+         Set<String> products = new HashSet<>();
+         for (StoreQuota entry: entries)
+         {
+            products.add(entry.getIdentifier());
+         }
+         fetches = new UserFetches(products, System.currentTimeMillis());
+         userFetches.put(userUuid, fetches);
+      }
+      return fetches;
+   }
+
+   /** Removes completed and failed fetches. Must be called with the lock of the user held. */
+   private void removeFinishedFetches(UUID userUuid, UserFetches fetches)
+   {
+      Iterator<String> it = fetches.products.iterator();
+      while (it.hasNext())
+      {
+         String productUuid = it.next();
+         Order order = decorated.getOrder(productUuid);
+         if (order == null || order.getStatus() == JobStatus.COMPLETED || order.getStatus() == JobStatus.FAILED)
+         {
+            it.remove();
+            persist(() -> storeQuotaService.deleteQuotaEntry(decorated.getName(), NAME, userUuid, productUuid));
+         }
+      }
+   }
+
+   /** Forgets a user without fetches, they are reloaded on next access. Must be called with the lock of the user held. */
+   private void forgetIfIdle(UUID userUuid, UserFetches fetches)
+   {
+      if (fetches.products.isEmpty() && fetches.unpersisted == 0)
+      {
+         userFetches.remove(userUuid, fetches);
+      }
+   }
+
+   /**
+    * Forgets the users loaded more than {@link #RELOAD_PERIOD} milliseconds ago, at most once per
+    * period, so that idle users do not stay in memory and the entries changed by other instances
+    * are reloaded. Users being checked are skipped.
+    */
+   private void forgetStaleUsers()
+   {
+      long now = System.currentTimeMillis();
+      long last = lastForget.get();
+      if (now - last < RELOAD_PERIOD || !lastForget.compareAndSet(last, now))
+      {
+         return;
+      }
+      for (UUID userUuid: userFetches.keySet())
+      {
+         Lock lock = userLocks.get(userUuid);
+         if (lock.tryLock())
+         {
+            try
+            {
+               UserFetches fetches = userFetches.get(userUuid);
+               if (fetches != null && fetches.unpersisted == 0 && now - fetches.loaded > RELOAD_PERIOD)
+               {
+                  userFetches.remove(userUuid, fetches);
+               }
+            }
+            finally
+            {
+               lock.unlock();
+            }
+         }
+      }
+   }
+
+   /** Runs a change of quota entries in the background, changes are run in submission order. */
+   private static void persist(Runnable change)
+   {
+      PERSIST_EXECUTOR.execute(() ->
+      {
+         try
+         {
+            change.run();
+         }
+         catch (RuntimeException ex)
+         {
+            // entries are only inserted and deleted, a concurrent change of the same entry fails
+            LOGGER.warn("Cannot persist quota entry: {}", ex.getMessage());
+         }
+      });
    }
 
    @Override
@@ -176,6 +393,12 @@ public final class FetchLimiterAsyncDataStore extends AbstractDataStoreDecorator
       return decorated.getProductList(skip, top);
    }
 
+   @Override
+   public List<String> getProductListAfter(String after, int top)
+   {
+      return decorated.getProductListAfter(after, top);
+   }
+
    @Override
    public List<Order> getOrderList()
    {
@@ -188,6 +411,25 @@ public final class FetchLimiterAsyncDataStore extends AbstractDataStoreDecorator
       return decorated.getOrder(uuid);
    }
 
+   /** Fetches of a user, guarded by the lock of the user. */
+   private static final class UserFetches
+   {
+      /** Products whose fetch has been requested and is not finished. */
+      private final Set<String> products;
+
+      /** Time of loading from the database. */
+      private final long loaded;
+
+      /** Number of reserved fetches not yet submitted to the persisting thread. */
+      private int unpersisted = 0;
+
+      private UserFetches(Set<String> products, long loaded)
+      {
+         this.products = products;
+         this.loaded = loaded;
+      }
+   }
+
    /** Quota aware async product. */
    private class AsyncProductDecorator extends AsyncProduct
    {
@@ -214,85 +456,6 @@ public final class FetchLimiterAsyncDataStore extends AbstractDataStoreDecorator
 
    }
 
-   /* That callback deletes outdated quota entries of given user */
-   private class UpdateUserCallback implements StoreQuotaService.Callback.Update
-   {
-      private final UUID userUUID;
-
-      public UpdateUserCallback(UUID userUUID)
-      {
-         this.userUUID = userUUID;
-      }
-
-      @Override
-      public void update(StoreQuotaService svc)
-      {
-         List<StoreQuota> quotaEntries = svc.getQuotaEntries(decorated.getName(), NAME, userUUID);
-         Iterator<StoreQuota> it = quotaEntries.iterator();
-         while (it.hasNext())
-         {
-            StoreQuota lycos = it.next();
-            Order order = decorated.getOrder(lycos.getIdentifier());
-            if (order == null || (order != null && (order.getStatus() == JobStatus.COMPLETED || order.getStatus() == JobStatus.FAILED)))
-            {
-               svc.deleteQuotaEntry(lycos);
-            }
-         }
-      }
-
-   }
-
-   /* Those callbacks do a check, a quota capped operation, and then update quota entries of given user */
-   private class FetchCallbacks
-         implements StoreQuotaService.Callback.Check, StoreQuotaService.Callback.Perform, StoreQuotaService.Callback.Update
-   {
-      private final AsyncProduct toFetch;
-      private final UUID userUUID;
-      private final String username;
-      private Order order = null; // the order of a successful fetch request
-
-      public FetchCallbacks(AsyncProduct productToFetch, UUID userUUID, String username)
-      {
-         this.toFetch = productToFetch;
-         this.userUUID = userUUID;
-         this.username = username;
-      }
-
-      /* Returns `true` if can call fetch() */
-      @Override
-      public boolean check(StoreQuotaService svc) throws QuotaException
-      {
-         // Check if fetch request already issued
-         if (!svc.hasQuotaEntry(decorated.getName(), NAME, userUUID, (String) toFetch.getProperty(ProductConstants.UUID)))
-         {
-            int count = svc.countQuotaEntries(decorated.getName(), NAME, userUUID);
-
-            if (count >= maxFetchsInParallel) // Quota reached
-            {
-               QuotaException ex = new ParallelFetchResquestQuotaException(username, maxFetchsInParallel, toFetch);
-               LOGGER.info(ex.getMessage());
-               throw ex;
-            }
-            return true;
-         }
-         return false;
-      }
-
-      /* Quota capped operation */
-      @Override
-      public void perform() throws StoreException
-      {
-         this.order = decorated.fetch(toFetch);
-      }
-
-      /* Updates quotas if `perform()` succeeded */
-      @Override
-      public void update(StoreQuotaService svc)
-      {
-         svc.insertQuotaEntry(decorated.getName(), NAME, userUUID, (String) toFetch.getProperty(ProductConstants.UUID), System.currentTimeMillis());
-      }
-   }
-
    @Override
    public Order getAndLogExistingOrder(String uuid, String localIdentifier, Long size)
    {
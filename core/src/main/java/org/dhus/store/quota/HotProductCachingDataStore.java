@@ -0,0 +1,446 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dhus.store.quota;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import fr.gael.dhus.database.object.KeyStoreEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.dhus.Product;
+import org.dhus.store.datastore.DataStore;
+import org.dhus.store.datastore.DataStoreException;
+import org.dhus.store.datastore.DataStoreProduct;
+import org.dhus.store.datastore.hfs.HfsManager;
+import org.dhus.store.datastore.hfs.HfsProduct;
+import org.dhus.store.derived.DerivedProductStore;
+import org.dhus.store.keystore.KeyStore;
+import org.dhus.store.keystore.PersistentKeyStore;
+
+/**
+ * Read-through cache of frequently downloaded products, in front of a slow DataStore.
+ * <p>
+ * A product accessed at least {@link #THRESHOLD} times within {@link #WINDOW} milliseconds is
+ * copied to a local HFS area, later accesses are served from that copy. A product is copied once
+ * at a time, readers of a product being copied wait for its copy up to {@link #FILL_WAIT}
+ * milliseconds, and are served by the slow DataStore if it does not complete in time. A copy
+ * completing after its product has been deleted or replaced is discarded.
+ * <p>
+ * Copies are registered in the `{name}-hot` keystore so that they survive restarts, the least
+ * recently used copies are evicted to keep the local area within its maximum size.
+ *
+ * @param <DST> type of the decorated DataStore
+ */
+public class HotProductCachingDataStore<DST extends DataStore> extends AbstractDataStoreDecorator<DST>
+{
+   private static final Logger LOGGER = LogManager.getLogger();
+
+   /** Number of accesses within the window that promotes a product to the cache. */
+   static final int THRESHOLD = Math.max(1, Integer.getInteger("dhus.hotcache.threshold", 3));
+
+   /** Window in milliseconds in which accesses to a product are counted. */
+   private static final long WINDOW = Long.getLong("dhus.hotcache.window", 86_400_000L);
+
+   /** Maximum number of products whose accesses are counted. */
+   private static final int TRACKED = Integer.getInteger("dhus.hotcache.tracked", 100_000);
+
+   /** Maximum time in milliseconds a reader waits for the copy in progress of its product. */
+   private static final long FILL_WAIT = Long.getLong("dhus.hotcache.fill_wait", 30_000L);
+
+   private static final ExecutorService FILL_EXECUTOR = Executors.newCachedThreadPool(
+         new ThreadFactoryBuilder().setNameFormat("HotCacheFill-%d").setDaemon(true).build());
+
+   private final HfsManager hfs;
+   private final KeyStore keystore;
+   private final long maximumSize;
+
+   /** Cached copies in least recently used order, guarded by itself. */
+   private final LinkedHashMap<String, CachedCopy> copies = new LinkedHashMap<>(16, 0.75f, true);
+   private long currentSize = 0L;
+
+   private final Cache<String, AtomicInteger> accesses;
+
+   /** Copies in progress, by UUID. */
+   private final ConcurrentMap<String, Fill> fills = new ConcurrentHashMap<>();
+
+   /**
+    * Creates a new caching decorator.
+    *
+    * @param decorated   slow DataStore
+    * @param path        path of the local HFS area
+    * @param maximumSize maximum size in bytes of the local HFS area
+    */
+   public HotProductCachingDataStore(DST decorated, String path, long maximumSize)
+   {
+      this(decorated, path, maximumSize, new PersistentKeyStore(decorated.getName() + "-hot"));
+   }
+
+   /**
+    * Creates a new caching decorator registering its copies in the given keystore.
+    *
+    * @param decorated   slow DataStore
+    * @param path        path of the local HFS area
+    * @param maximumSize maximum size in bytes of the local HFS area
+    * @param keystore    keystore of the copies
+    */
+   HotProductCachingDataStore(DST decorated, String path, long maximumSize, KeyStore keystore)
+   {
+      super(decorated);
+      this.hfs = new HfsManager(path, 10, 1024);
+      this.keystore = keystore;
+      this.maximumSize = maximumSize;
+      this.accesses = CacheBuilder.newBuilder()
+            .expireAfterWrite(WINDOW, TimeUnit.MILLISECONDS)
+            .maximumSize(TRACKED)
+            .build();
+      loadCopies();
+   }
+
+   /** Reloads the copies registered in the keystore, drops entries whose file is missing. */
+   private void loadCopies()
+   {
+      List<String> missing = new ArrayList<>();
+      Iterator<KeyStoreEntry> entries = keystore.getUnalteredScrollableProductEntries();
+      while (entries.hasNext())
+      {
+         KeyStoreEntry entry = entries.next();
+         File file = new File(entry.getValue());
+         if (file.isFile())
+         {
+            synchronized (copies)
+            {
+               copies.put(entry.getEntryKey(), new CachedCopy(file, file.length()));
+               currentSize += file.length();
+            }
+         }
+         else
+         {
+            missing.add(entry.getEntryKey());
+         }
+      }
+      missing.forEach(uuid -> keystore.remove(uuid, UNALTERED_PRODUCT_TAG));
+      LOGGER.info("Hot product cache of {}: {} products, {} bytes", getName(), copies.size(), currentSize);
+   }
+
+   @Override
+   public Product get(String uuid) throws DataStoreException
+   {
+      CachedCopy copy = getCopy(uuid);
+      if (copy != null)
+      {
+         return new HfsProduct(copy.file);
+      }
+
+      Fill fill = fills.get(uuid);
+      if (fill == null && isHot(uuid))
+      {
+         Fill newFill = new Fill();
+         fill = fills.putIfAbsent(uuid, newFill);
+         if (fill == null)
+         {
+            fill = newFill;
+            FILL_EXECUTOR.execute(() -> fill(uuid, newFill));
+         }
+      }
+      if (fill != null)
+      {
+         copy = awaitCopy(uuid, fill);
+         if (copy != null)
+         {
+            return new HfsProduct(copy.file);
+         }
+      }
+      return this.decorated.get(uuid);
+   }
+
+   /**
+    * Waits for a copy in progress, up to {@link #FILL_WAIT} milliseconds.
+    *
+    * @return the copy, or null if it did not complete in time or failed
+    * @throws DataStoreException if interrupted while waiting
+    */
+   private CachedCopy awaitCopy(String uuid, Fill fill) throws DataStoreException
+   {
+      try
+      {
+         if (fill.done.await(FILL_WAIT, TimeUnit.MILLISECONDS))
+         {
+            return getCopy(uuid);
+         }
+         LOGGER.debug("Copy of product {} of {} still in progress, not waited for", uuid, getName());
+         return null;
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         throw new DataStoreException("Interrupted while waiting for the copy of product " + uuid);
+      }
+   }
+
+   @Override
+   public boolean hasProduct(String uuid)
+   {
+      return getCopy(uuid) != null || this.decorated.hasProduct(uuid);
+   }
+
+   @Override
+   public void set(String uuid, Product product) throws DataStoreException
+   {
+      this.decorated.set(uuid, product);
+      evict(uuid);
+   }
+
+   @Override
+   public void deleteProduct(String uuid) throws DataStoreException
+   {
+      try
+      {
+         this.decorated.deleteProduct(uuid);
+      }
+      finally
+      {
+         evict(uuid);
+      }
+   }
+
+   /** Returns the cached copy of a product, or null if the product is not cached. */
+   private CachedCopy getCopy(String uuid)
+   {
+      CachedCopy copy;
+      synchronized (copies)
+      {
+         copy = copies.get(uuid);
+      }
+      if (copy != null && !copy.file.isFile())
+      {
+         LOGGER.warn("Cached copy {} of product {} has been removed", copy.file, uuid);
+         evict(uuid);
+         return null;
+      }
+      return copy;
+   }
+
+   /** Counts an access to a product, returns true if the product must be cached. */
+   private boolean isHot(String uuid)
+   {
+      AtomicInteger count = accesses.asMap().computeIfAbsent(uuid, key -> new AtomicInteger());
+      return count.incrementAndGet() >= THRESHOLD;
+   }
+
+   /** Copies a product to the local HFS area. */
+   private void fill(String uuid, Fill fill)
+   {
+      try
+      {
+         if (copy(uuid, fill) == null && !fill.discarded)
+         {
+            // not cacheable, do not try again until the access window expires
+            accesses.put(uuid, new AtomicInteger(Integer.MIN_VALUE));
+         }
+      }
+      catch (DataStoreException | IOException | RuntimeException e)
+      {
+         LOGGER.warn("Cannot cache product {} of {}: {}", uuid, getName(), e.getMessage());
+      }
+      finally
+      {
+         fills.remove(uuid, fill);
+         fill.done.countDown();
+      }
+   }
+
+   /** Returns true if a copy of the given product is in progress. */
+   boolean isFilling(String uuid)
+   {
+      return fills.containsKey(uuid);
+   }
+
+   /** Copies a product to the local HFS area, returns null if the product cannot be cached. */
+   private CachedCopy copy(String uuid, Fill fill) throws DataStoreException, IOException
+   {
+      Product product = this.decorated.get(uuid);
+      Long size = product instanceof DataStoreProduct ? ((DataStoreProduct) product).getContentLength() : null;
+      if (size != null && size > maximumSize)
+      {
+         LOGGER.debug("Product {} is larger than the hot product cache of {}", uuid, getName());
+         return null;
+      }
+      if (!product.hasImpl(InputStream.class))
+      {
+         return null;
+      }
+      String name = product.getName() != null ? product.getName() : uuid;
+      Path target = hfs.getNewPath(name).toPath().resolve(name);
+      Path part = target.resolveSibling(name + ".part");
+
+      long start = System.currentTimeMillis();
+      try (InputStream source = product.getImpl(InputStream.class))
+      {
+         Files.copy(source, part, StandardCopyOption.REPLACE_EXISTING);
+         Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (IOException | RuntimeException e)
+      {
+         Files.deleteIfExists(part);
+         throw e;
+      }
+      CachedCopy copy = new CachedCopy(target.toFile(), Files.size(target));
+      synchronized (copies)
+      {
+         if (!fill.discarded)
+         {
+            copies.put(uuid, copy);
+            currentSize += copy.size;
+         }
+      }
+      if (fill.discarded)
+      {
+         LOGGER.debug("Product {} of {} deleted or replaced while being cached", uuid, getName());
+         hfs.delete(target.toString());
+         return null;
+      }
+      // registered after the copy, an entry left by a concurrent eviction is dropped on next start
+      keystore.put(uuid, UNALTERED_PRODUCT_TAG, target.toString());
+      accesses.invalidate(uuid);
+      LOGGER.info("Product {} of {} cached in {}ms", uuid, getName(), System.currentTimeMillis() - start);
+      evictLeastRecentlyUsed();
+      return copy;
+   }
+
+   /** Evicts least recently used copies until the local HFS area is within its maximum size. */
+   private void evictLeastRecentlyUsed()
+   {
+      List<Map.Entry<String, CachedCopy>> evicted = new ArrayList<>();
+      synchronized (copies)
+      {
+         Iterator<Map.Entry<String, CachedCopy>> it = copies.entrySet().iterator();
+         while (currentSize > maximumSize && it.hasNext())
+         {
+            Map.Entry<String, CachedCopy> eldest = it.next();
+            evicted.add(eldest);
+            currentSize -= eldest.getValue().size;
+            it.remove();
+         }
+      }
+      for (Map.Entry<String, CachedCopy> entry: evicted)
+      {
+         LOGGER.debug("Evicting product {} from the hot product cache of {}", entry.getKey(), getName());
+         deleteCopy(entry.getKey(), entry.getValue());
+      }
+   }
+
+   /** Removes the cached copy of a product, if any, and discards its copy in progress. */
+   private void evict(String uuid)
+   {
+      CachedCopy copy;
+      synchronized (copies)
+      {
+         Fill fill = fills.remove(uuid);
+         if (fill != null)
+         {
+            fill.discarded = true;
+         }
+         copy = copies.remove(uuid);
+         if (copy != null)
+         {
+            currentSize -= copy.size;
+         }
+      }
+      accesses.invalidate(uuid);
+      if (copy != null)
+      {
+         deleteCopy(uuid, copy);
+      }
+   }
+
+   private void deleteCopy(String uuid, CachedCopy copy)
+   {
+      keystore.remove(uuid, UNALTERED_PRODUCT_TAG);
+      try
+      {
+         hfs.delete(copy.file.getPath());
+      }
+      catch (IOException e)
+      {
+         LOGGER.warn("Cannot delete cached copy {} of product {}", copy.file, uuid, e);
+      }
+   }
+
+   /** A copy in progress. */
+   private static final class Fill
+   {
+      /** Set, with the lock of the copies held, when the product is deleted or replaced. */
+      private volatile boolean discarded = false;
+
+      /** Released once the copy completed or failed, readers of the product wait for it. */
+      private final CountDownLatch done = new CountDownLatch(1);
+   }
+
+   private static final class CachedCopy
+   {
+      private final File file;
+      private final long size;
+
+      private CachedCopy(File file, long size)
+      {
+         this.file = file;
+         this.size = size;
+      }
+   }
+
+   public static class HotProductCachingDerivedDataStore<DPDST extends DataStore & DerivedProductStore>
+         extends HotProductCachingDataStore<DPDST>
+         implements AbstractDataStoreDecorator.DataStoreDecoratorHelper
+   {
+      public HotProductCachingDerivedDataStore(DPDST decorated, String path, long maximumSize)
+      {
+         super(decorated, path, maximumSize);
+      }
+
+      @Override
+      public DerivedProductStore getDecorated()
+      {
+         return this.decorated;
+      }
+   }
+}
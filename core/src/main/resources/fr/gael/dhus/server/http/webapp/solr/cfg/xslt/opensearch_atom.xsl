@@ -181,6 +181,14 @@
                              <ondemand><xsl:value-of select="false()"/></ondemand>
                         </xsl:otherwise>
                     </xsl:choose>
+                    <xsl:choose>
+                        <xsl:when test="bool[@name='derivedpending']">
+                             <derivedpending><xsl:value-of select="bool[@name='derivedpending']"/></derivedpending>
+                        </xsl:when>
+                        <xsl:otherwise>
+                             <derivedpending><xsl:value-of select="false()"/></derivedpending>
+                        </xsl:otherwise>
+                    </xsl:choose>
                     <xsl:copy-of select="date" />
                     <xsl:copy-of select="boolean" />
                     <xsl:copy-of select="int[@name != 'id' and @name != '_version_']" />
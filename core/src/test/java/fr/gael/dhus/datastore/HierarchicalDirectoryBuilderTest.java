@@ -2,6 +2,15 @@ package fr.gael.dhus.datastore;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
@@ -73,6 +82,50 @@ public class HierarchicalDirectoryBuilderTest
       Assert.assertTrue (f2.getAbsolutePath ().contains ("x0/x1"));
    }
      
+   @Test
+   public void getDirectoryStriped() throws IOException
+   {
+      HierarchicalDirectoryBuilder db=new HierarchicalDirectoryBuilder(tmp,3,5,2);
+      Set<String> paths = new HashSet<> ();
+      for (int i = 0; i < 20; i++)
+      {
+         File f = db.getDirectory ("file");
+         Assert.assertTrue (f.exists ());
+         new File (f, "file").createNewFile ();
+         // a name is never allocated twice in the same directory
+         Assert.assertTrue (paths.add (f.getAbsolutePath ()));
+      }
+   }
+
+   @Test
+   public void getDirectoryStripedConcurrent() throws Exception
+   {
+      final HierarchicalDirectoryBuilder db=new HierarchicalDirectoryBuilder(tmp,3,5,4);
+      final Map<String, Integer> counts = new ConcurrentHashMap<> ();
+      ExecutorService executor = Executors.newFixedThreadPool (8);
+      List<Future<?>> futures = new ArrayList<> ();
+      for (int i = 0; i < 400; i++)
+      {
+         futures.add (executor.submit (() ->
+         {
+            File f = db.getDirectory (null);
+            counts.merge (f.getAbsolutePath (), 1, Integer::sum);
+         }));
+      }
+      for (Future<?> future: futures)
+      {
+         future.get ();
+      }
+      executor.shutdown ();
+      int total = 0;
+      for (Integer count: counts.values ())
+      {
+         Assert.assertTrue (count <= 5);
+         total += count;
+      }
+      Assert.assertEquals (total, 400);
+   }
+
    @AfterMethod
    public void finalize_me()
    {
@@ -0,0 +1,123 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.dhus.datastore.processing;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.imageio.ImageIO;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ImageRendererTest
+{
+   @Test
+   public void reduce() throws InconsistentImageScale
+   {
+      BufferedImage source = new BufferedImage(4000, 1000, BufferedImage.TYPE_3BYTE_BGR);
+
+      BufferedImage quicklook = ImageRenderer.reduce(source, 512, 512);
+      Assert.assertEquals(quicklook.getWidth(), 1024, 1);
+      Assert.assertEquals(quicklook.getHeight(), 256, 1);
+
+      BufferedImage thumbnail = ImageRenderer.reduce(quicklook, 64, 64);
+      Assert.assertEquals(thumbnail.getWidth(), 128, 1);
+      Assert.assertEquals(thumbnail.getHeight(), 32, 1);
+   }
+
+   @Test
+   public void writeJpeg() throws IOException
+   {
+      File output = File.createTempFile("renderer", ".jpg");
+      try
+      {
+         // the JPEG writer is reused
+         for (int i = 0; i < 2; i++)
+         {
+            Assert.assertTrue(ImageRenderer.writeJpeg(new BufferedImage(32, 16, BufferedImage.TYPE_3BYTE_BGR), output));
+            BufferedImage written = ImageIO.read(output);
+            Assert.assertEquals(written.getWidth(), 32);
+            Assert.assertEquals(written.getHeight(), 16);
+         }
+      }
+      finally
+      {
+         output.delete();
+      }
+   }
+
+   @Test
+   public void reserve() throws InconsistentImageScale, InterruptedException
+   {
+      BufferedImage source = new BufferedImage(4000, 1000, BufferedImage.TYPE_3BYTE_BGR);
+      int available = ImageRenderer.getAvailableMemory();
+      try (ImageRenderer.Reservation reservation = ImageRenderer.reserve(source, 512, 512))
+      {
+         // about 1024x256 pixels of 3 bytes
+         Assert.assertTrue(reservation.getReservedMemory() >= 768);
+         Assert.assertEquals(ImageRenderer.getAvailableMemory(), available - reservation.getReservedMemory());
+
+         // released twice: second release does nothing
+         reservation.close();
+         Assert.assertEquals(reservation.getReservedMemory(), 0);
+         Assert.assertEquals(ImageRenderer.getAvailableMemory(), available);
+      }
+      Assert.assertEquals(ImageRenderer.getAvailableMemory(), available);
+   }
+
+   @Test(timeOut = 30_000)
+   public void reserveBlocksOnceBudgetExhausted() throws Exception
+   {
+      // a huge rendering takes the whole budget
+      BufferedImage source = new BufferedImage(1, 1, BufferedImage.TYPE_3BYTE_BGR);
+      ImageRenderer.Reservation whole = ImageRenderer.reserve(source, 100_000, 100_000);
+      Assert.assertEquals(ImageRenderer.getAvailableMemory(), 0);
+
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try
+      {
+         Future<ImageRenderer.Reservation> second = executor.submit(() -> ImageRenderer.reserve(source, 1, 1));
+         try
+         {
+            second.get(200, TimeUnit.MILLISECONDS);
+            Assert.fail("Reservation should wait for memory");
+         }
+         catch (TimeoutException expected) {}
+
+         whole.close();
+         try (ImageRenderer.Reservation reservation = second.get(10, TimeUnit.SECONDS))
+         {
+            Assert.assertEquals(reservation.getReservedMemory(), 1);
+         }
+      }
+      finally
+      {
+         whole.close();
+         executor.shutdownNow();
+      }
+   }
+}
@@ -0,0 +1,200 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.dhus.datastore.processing;
+
+import com.hp.hpl.jena.ontology.OntClass;
+import com.hp.hpl.jena.ontology.OntModel;
+import com.hp.hpl.jena.ontology.OntModelSpec;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ItemClassIndexTest
+{
+   private static final String DRB = "http://www.gael.fr/drb#";
+   private static final String TEST = "http://www.gael.fr/test#";
+
+   private OntModel model;
+   private Property signature;
+   private Property nameMatch;
+   private Property xqueryTest;
+   private int count;
+
+   @BeforeMethod
+   public void init()
+   {
+      // sub and super classes are inferred transitively, as in the DrbCortex model
+      model = ModelFactory.createOntologyModel(OntModelSpec.OWL_MEM_TRANS_INF);
+      signature = model.createProperty(DRB + "signature");
+      nameMatch = model.createProperty(DRB + "nameMatch");
+      xqueryTest = model.createProperty(DRB + "xqueryTest");
+      count = 0;
+   }
+
+   @Test
+   public void nameXQuery()
+   {
+      List<Pattern> patterns = xqueryPatterns("\n   matches (name(), \"S1(A|B)_.*\\.SAFE\")\n   ");
+      Assert.assertEquals(patterns.size(), 1);
+      Assert.assertEquals(patterns.get(0).pattern(), "S1(A|B)_.*\\.SAFE");
+      Assert.assertEquals(patterns.get(0).flags(), 0);
+
+      patterns = xqueryPatterns("fn:matches(name(),\"gom_.*\\.n1\",\"i\")");
+      Assert.assertEquals(patterns.get(0).flags(), Pattern.CASE_INSENSITIVE);
+      Assert.assertTrue(ItemClassIndex.accepts(patterns, "GOM_EXT_2PNPDE20070312.N1"));
+
+      // quotes are escaped by doubling them
+      patterns = xqueryPatterns("matches(name(), \"a\"\"b\")");
+      Assert.assertEquals(patterns.get(0).pattern(), "a\"b");
+
+      patterns = xqueryPatterns("matches(name(), \"\")");
+      Assert.assertTrue(ItemClassIndex.accepts(patterns, "anything"));
+   }
+
+   @Test
+   public void irreducibleXQuery()
+   {
+      // tests more than the name of the item
+      Assert.assertNull(xqueryPatterns("matches(name(), \"S1.*\") and exists(manifest.safe)"));
+      Assert.assertNull(xqueryPatterns("exists(manifest.safe)"));
+      Assert.assertNull(xqueryPatterns("matches(name(..), \"S1.*\")"));
+      Assert.assertNull(xqueryPatterns("matches(string(name()), \"S1.*\")"));
+      // flags other than case insensitivity
+      Assert.assertNull(xqueryPatterns("matches(name(), \"S1.*\", \"x\")"));
+      // not a Java regular expression
+      Assert.assertNull(xqueryPatterns("matches(name(), \"S1(\")"));
+   }
+
+   @Test
+   public void nameMatch()
+   {
+      OntClass cl = newClass();
+      addNameMatch(cl, " S2_.*\\.SAFE ");
+      List<Pattern> patterns = ItemClassIndex.getNamePatterns(cl);
+      Assert.assertEquals(patterns.size(), 1);
+
+      // matches anywhere in the name, as the signature
+      Assert.assertTrue(ItemClassIndex.accepts(patterns, "S2_A.SAFE"));
+      Assert.assertTrue(ItemClassIndex.accepts(patterns, "old-S2_A.SAFE.zip"));
+      Assert.assertFalse(ItemClassIndex.accepts(patterns, "S1_A.SAFE"));
+      Assert.assertFalse(ItemClassIndex.accepts(patterns, null));
+   }
+
+   @Test
+   public void superAndSubClasses()
+   {
+      OntClass product = newClass();
+      addNameMatch(product, "S[12]_.*");
+      OntClass s1 = newClass(product);
+      addXQuery(s1, "matches(name(), \"S1_.*\\.SAFE\")");
+      OntClass s1Grd = newClass(s1);
+      addNameMatch(s1Grd, "GRD");
+      OntClass other = newClass();
+      addNameMatch(other, "GOM_.*");
+
+      // never stricter than the patterns of its super-classes
+      List<Pattern> s1Patterns = ItemClassIndex.getNamePatterns(s1);
+      Assert.assertTrue(ItemClassIndex.accepts(s1Patterns, "S1_A.SAFE"));
+      Assert.assertTrue(ItemClassIndex.accepts(s1Patterns, "S2_A.SAFE"));
+      Assert.assertFalse(ItemClassIndex.accepts(s1Patterns, "GOM_A.N1"));
+
+      // nor than the patterns of its sub-classes, even indirect ones
+      List<Pattern> productPatterns = ItemClassIndex.getNamePatterns(product);
+      Assert.assertTrue(ItemClassIndex.accepts(productPatterns, "S2_A.SAFE"));
+      Assert.assertTrue(ItemClassIndex.accepts(productPatterns, "A_GRD"));
+      Assert.assertFalse(ItemClassIndex.accepts(productPatterns, "GOM_A.N1"));
+
+      List<Pattern> grdPatterns = ItemClassIndex.getNamePatterns(s1Grd);
+      Assert.assertTrue(ItemClassIndex.accepts(grdPatterns, "S2_A.SAFE"));
+      Assert.assertTrue(ItemClassIndex.accepts(grdPatterns, "A_GRD"));
+
+      // unrelated classes are not affected
+      List<Pattern> otherPatterns = ItemClassIndex.getNamePatterns(other);
+      Assert.assertTrue(ItemClassIndex.accepts(otherPatterns, "GOM_A.N1"));
+      Assert.assertFalse(ItemClassIndex.accepts(otherPatterns, "S1_A.SAFE"));
+   }
+
+   @Test
+   public void irreducibleClasses()
+   {
+      OntClass product = newClass();
+      addNameMatch(product, "S1_.*");
+      OntClass safe = newClass(product);
+      addXQuery(safe, "exists(manifest.safe)");
+      OntClass grd = newClass(product);
+      addNameMatch(grd, "S1_.*GRD.*");
+
+      // a class whose signature cannot be reduced to a name test makes its whole hierarchy irreducible
+      Assert.assertNull(ItemClassIndex.getNamePatterns(safe));
+      Assert.assertNull(ItemClassIndex.getNamePatterns(product));
+      Assert.assertTrue(ItemClassIndex.accepts(null, "manifest.safe"));
+      Assert.assertTrue(ItemClassIndex.accepts(null, null));
+
+      // siblings are not affected
+      List<Pattern> grdPatterns = ItemClassIndex.getNamePatterns(grd);
+      Assert.assertNotNull(grdPatterns);
+      Assert.assertTrue(ItemClassIndex.accepts(grdPatterns, "S1_A_SLC"));
+      Assert.assertFalse(ItemClassIndex.accepts(grdPatterns, "manifest.safe"));
+
+      // without signature, or with a signature that is not a resource
+      Assert.assertNull(ItemClassIndex.getNamePatterns(newClass()));
+      OntClass literal = newClass();
+      literal.addProperty(signature, "S1_.*");
+      Assert.assertNull(ItemClassIndex.getNamePatterns(literal));
+
+      // a signature without test
+      OntClass empty = newClass();
+      empty.addProperty(signature, model.createResource());
+      Assert.assertNull(ItemClassIndex.getNamePatterns(empty));
+   }
+
+   private List<Pattern> xqueryPatterns(String xquery)
+   {
+      OntClass cl = newClass();
+      addXQuery(cl, xquery);
+      return ItemClassIndex.getNamePatterns(cl);
+   }
+
+   private OntClass newClass(OntClass... superClasses)
+   {
+      OntClass cl = model.createClass(TEST + "class" + count++);
+      for (OntClass superClass: superClasses)
+      {
+         cl.addSuperClass(superClass);
+      }
+      return cl;
+   }
+
+   private void addNameMatch(OntClass cl, String regex)
+   {
+      cl.addProperty(signature, model.createResource().addProperty(nameMatch, regex));
+   }
+
+   private void addXQuery(OntClass cl, String xquery)
+   {
+      cl.addProperty(signature, model.createResource().addProperty(xqueryTest, xquery));
+   }
+}
@@ -0,0 +1,245 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.dhus.datastore.scanner;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import fr.gael.dhus.database.object.KeyStoreEntry;
+import fr.gael.dhus.service.KeyStoreService;
+import fr.gael.dhus.spring.context.ApplicationContextProvider;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.FileUtils;
+
+import org.springframework.context.ApplicationContext;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FileScannerTest
+{
+   private static final long FULL_SCAN_PERIOD = Long.getLong("dhus.scanner.full_scan_period", 86_400_000L);
+
+   private Path root;
+   private Path a;
+   private Path b;
+   /** Trusted modification date, long before the scans. */
+   private long modified;
+
+   @BeforeMethod
+   public void init() throws IOException
+   {
+      ApplicationContext context = mock(ApplicationContext.class);
+      when(context.getBean(KeyStoreService.class)).thenReturn(new MemoryKeyStoreService());
+      new ApplicationContextProvider().setApplicationContext(context);
+
+      root = Files.createTempDirectory("filescanner");
+      a = Files.createDirectory(root.resolve("a"));
+      b = Files.createDirectory(root.resolve("b"));
+      Files.write(a.resolve("p1.dat"), new byte[1]);
+      Files.write(b.resolve("p2.dat"), new byte[1]);
+      Files.write(b.resolve("ignored.txt"), new byte[1]);
+      modified = (System.currentTimeMillis() - 60_000L) / 1000L * 1000L;
+      touch(root, modified);
+      touch(a, modified);
+      touch(b, modified);
+   }
+
+   @AfterMethod
+   public void cleanup() throws IOException
+   {
+      FileUtils.deleteDirectory(root.toFile());
+   }
+
+   @Test
+   public void unchangedDirectory() throws InterruptedException
+   {
+      TestScanner scanner = new TestScanner();
+      Assert.assertEquals(scanner.scan(), 2);
+      Assert.assertEquals(retrieved(scanner), names("p1.dat", "p2.dat"));
+      Assert.assertEquals(scanner.skippedDirectories, 0);
+
+      // nothing is listed nor matched again, only the scanned directory is opened
+      Assert.assertEquals(scanner.scan(), 0);
+      Assert.assertEquals(scanner.skippedDirectories, 3);
+      Assert.assertEquals(scanner.scannedFiles, 1);
+
+      // modified but with the same entries: listed, not matched again
+      touch(a, modified + 2_000L);
+      Assert.assertEquals(scanner.scan(), 0);
+      Assert.assertEquals(scanner.skippedDirectories, 3);
+   }
+
+   @Test
+   public void addedFile() throws IOException, InterruptedException
+   {
+      TestScanner scanner = new TestScanner();
+      Assert.assertEquals(scanner.scan(), 2);
+
+      Files.write(a.resolve("p3.dat"), new byte[1]);
+      touch(a, modified + 2_000L);
+      // only the entries of the modified directory are matched again
+      Assert.assertEquals(scanner.scan(), 2);
+      Assert.assertEquals(retrieved(scanner), names("p1.dat", "p3.dat"));
+      Assert.assertEquals(scanner.skippedDirectories, 2);
+
+      Assert.assertEquals(scanner.scan(), 0);
+      Assert.assertEquals(scanner.skippedDirectories, 3);
+   }
+
+   @Test
+   public void renamedEntry() throws IOException, InterruptedException
+   {
+      TestScanner scanner = new TestScanner();
+      Assert.assertEquals(scanner.scan(), 2);
+
+      // same number of entries, other names
+      Files.move(b.resolve("p2.dat"), b.resolve("p4.dat"));
+      touch(b, modified + 2_000L);
+      Assert.assertEquals(scanner.scan(), 1);
+      Assert.assertEquals(retrieved(scanner), names("p4.dat"));
+      Assert.assertEquals(scanner.skippedDirectories, 2);
+
+      // a renamed sub-directory is scanned, its former state is forgotten
+      Files.move(a, root.resolve("c"));
+      touch(root, modified + 2_000L);
+      Assert.assertEquals(scanner.scan(), 1);
+      Assert.assertEquals(retrieved(scanner), names("p1.dat"));
+
+      Assert.assertEquals(scanner.scan(), 0);
+      Assert.assertEquals(scanner.skippedDirectories, 3);
+   }
+
+   @Test
+   public void expiredState() throws InterruptedException
+   {
+      TestScanner scanner = new TestScanner();
+      Assert.assertEquals(scanner.scan(), 2);
+      Assert.assertEquals(scanner.scan(), 0);
+
+      // all directories are scanned again once their state expired
+      scanner.scanTime = System.currentTimeMillis() + FULL_SCAN_PERIOD + 60_000L;
+      Assert.assertEquals(scanner.scan(), 2);
+      Assert.assertEquals(retrieved(scanner), names("p1.dat", "p2.dat"));
+      Assert.assertEquals(scanner.skippedDirectories, 0);
+
+      scanner.scanTime = System.currentTimeMillis();
+      Assert.assertEquals(scanner.scan(), 0);
+      Assert.assertEquals(scanner.skippedDirectories, 3);
+   }
+
+   @Test
+   public void racyModificationDate() throws IOException, InterruptedException
+   {
+      // modified at the time of the scan
+      TestScanner scanner = new TestScanner();
+      scanner.scanTime = modified + 1_000L;
+      Assert.assertEquals(scanner.scan(), 2);
+
+      // modified again with the same date, the directory is still listed
+      Files.write(a.resolve("p3.dat"), new byte[1]);
+      touch(a, modified);
+      scanner.scanTime = System.currentTimeMillis();
+      Assert.assertEquals(scanner.scan(), 2);
+      Assert.assertEquals(retrieved(scanner), names("p1.dat", "p3.dat"));
+
+      // trusted once the scan happens long enough after the modification
+      Assert.assertEquals(scanner.scan(), 0);
+      Assert.assertEquals(scanner.skippedDirectories, 3);
+      Assert.assertEquals(scanner.scannedFiles, 1);
+   }
+
+   private static void touch(Path path, long time)
+   {
+      Assert.assertTrue(path.toFile().setLastModified(time));
+   }
+
+   private static Set<String> names(String... names)
+   {
+      return new TreeSet<>(Arrays.asList(names));
+   }
+
+   private static Set<String> retrieved(FileScanner scanner)
+   {
+      return scanner.getScanList().stream()
+            .map(url -> new File(url.getUrl().getPath()).getName())
+            .collect(Collectors.toCollection(TreeSet::new));
+   }
+
+   /** Incremental scanner of the temporary tree, scanning at a given time. */
+   private final class TestScanner extends FileScanner
+   {
+      private long scanTime = System.currentTimeMillis();
+
+      private TestScanner()
+      {
+         super(root.toString(), true);
+         setUserPattern(".*\\.dat");
+      }
+
+      @Override
+      DirectorySnapshot loadSnapshot()
+      {
+         return DirectorySnapshot.load(1L, getFingerprint(), scanTime);
+      }
+   }
+
+   /** KeyStoreService keeping entries in memory. */
+   private static final class MemoryKeyStoreService extends KeyStoreService
+   {
+      private final ConcurrentMap<KeyStoreEntry.Key, KeyStoreEntry> entries = new ConcurrentHashMap<>();
+
+      @Override
+      public void createEntry(KeyStoreEntry entry)
+      {
+         entries.put(entry.getKey(), entry);
+      }
+
+      @Override
+      public void deleteEntry(KeyStoreEntry entry)
+      {
+         entries.remove(entry.getKey());
+      }
+
+      @Override
+      public Iterator<KeyStoreEntry> getOldestEntries(String keyStoreName)
+      {
+         return entries.values().stream()
+               .filter(entry -> entry.getKeyStore().equals(keyStoreName))
+               .sorted((x, y) -> Long.compare(x.getInsertionDate(), y.getInsertionDate()))
+               .collect(Collectors.toList())
+               .iterator();
+      }
+   }
+}
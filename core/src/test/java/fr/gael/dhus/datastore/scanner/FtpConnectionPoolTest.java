@@ -0,0 +1,131 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.dhus.datastore.scanner;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+
+import org.mockftpserver.fake.FakeFtpServer;
+import org.mockftpserver.fake.UserAccount;
+import org.mockftpserver.fake.filesystem.FileEntry;
+import org.mockftpserver.fake.filesystem.FileSystem;
+import org.mockftpserver.fake.filesystem.UnixFakeFileSystem;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class FtpConnectionPoolTest
+{
+   private static final int PORT = 8090;
+
+   private FakeFtpServer fakeFtpServer;
+   private URL url;
+
+   @BeforeClass
+   public void startftp() throws IOException
+   {
+      fakeFtpServer = new FakeFtpServer();
+      fakeFtpServer.setServerControlPort(PORT);
+
+      FileSystem fileSystem = new UnixFakeFileSystem();
+      fileSystem.add(new FileEntry("/data/a.N1", "A"));
+      fileSystem.add(new FileEntry("/data/b.N1", "B"));
+      fakeFtpServer.setFileSystem(fileSystem);
+      fakeFtpServer.addUserAccount(new UserAccount("user", "password", "/"));
+      fakeFtpServer.start();
+
+      url = new URL("ftp://localhost:" + PORT + "/data");
+   }
+
+   @Test
+   public void reuse() throws IOException, InterruptedException
+   {
+      try (FtpConnectionPool pool = new FtpConnectionPool(url, "user", "password", 2))
+      {
+         FTPClient client = pool.borrow();
+         FTPFile[] entries = client.listFiles("/data");
+         Assert.assertEquals(entries.length, 2);
+         pool.release(client);
+         Assert.assertEquals(pool.getIdleCount(), 1);
+
+         // the idle connection is reused
+         Assert.assertSame(pool.borrow(), client);
+         Assert.assertEquals(pool.getIdleCount(), 0);
+         pool.invalidate(client);
+         Assert.assertFalse(client.isConnected());
+      }
+   }
+
+   @Test(timeOut = 10_000)
+   public void bounded() throws IOException, InterruptedException
+   {
+      try (FtpConnectionPool pool = new FtpConnectionPool(url, "user", "password", 1))
+      {
+         FTPClient client = pool.borrow();
+
+         CountDownLatch borrowed = new CountDownLatch(1);
+         Thread lister = new Thread(() ->
+         {
+            try
+            {
+               pool.release(pool.borrow());
+               borrowed.countDown();
+            }
+            catch (IOException | InterruptedException suppressed) {}
+         });
+         lister.start();
+         Assert.assertFalse(borrowed.await(200, TimeUnit.MILLISECONDS));
+
+         pool.release(client);
+         Assert.assertTrue(borrowed.await(5, TimeUnit.SECONDS));
+      }
+   }
+
+   @Test(timeOut = 10_000)
+   public void badLogin() throws InterruptedException
+   {
+      try (FtpConnectionPool pool = new FtpConnectionPool(url, "user", "wrong", 1))
+      {
+         // the connection is given back on failure
+         for (int i = 0; i < 2; i++)
+         {
+            try
+            {
+               pool.borrow();
+               Assert.fail("Login must fail");
+            }
+            catch (IOException expected) {}
+         }
+      }
+   }
+
+   @AfterClass
+   public void stopftp()
+   {
+      fakeFtpServer.stop();
+   }
+}
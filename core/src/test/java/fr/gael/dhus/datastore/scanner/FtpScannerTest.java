@@ -0,0 +1,154 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.dhus.datastore.scanner;
+
+import fr.gael.drb.impl.ftp.FtpFactory;
+import fr.gael.drb.impl.ftp.FtpNode;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.mockftpserver.core.command.Command;
+import org.mockftpserver.core.command.CommandNames;
+import org.mockftpserver.core.session.Session;
+import org.mockftpserver.fake.FakeFtpServer;
+import org.mockftpserver.fake.UserAccount;
+import org.mockftpserver.fake.command.ListCommandHandler;
+import org.mockftpserver.fake.filesystem.FileEntry;
+import org.mockftpserver.fake.filesystem.FileSystem;
+import org.mockftpserver.fake.filesystem.UnixFakeFileSystem;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class FtpScannerTest
+{
+   private static final int PORT = 8091;
+   private static final int WIDTH = 4;
+
+   /** Time to list a directory in milliseconds, so that listings overlap. */
+   private static final long LIST_DELAY = 100L;
+
+   private FakeFtpServer fakeFtpServer;
+   private final Set<String> products = new TreeSet<>();
+   private final AtomicInteger runningListings = new AtomicInteger();
+   private final AtomicInteger maxRunningListings = new AtomicInteger();
+
+   @BeforeClass
+   public void startftp()
+   {
+      fakeFtpServer = new FakeFtpServer();
+      fakeFtpServer.setServerControlPort(PORT);
+
+      // /data/d<i>/P_<i>.SAFE/manifest.safe and /data/d<i>/d<i><j>/P_<i><j>.N1,
+      // names with spaces as /data/P_ dir.SAFE/manifest.safe and /data/d0/d00/P_with space.N1
+      FileSystem fileSystem = new UnixFakeFileSystem();
+      fileSystem.add(new FileEntry("/data/P_ dir.SAFE/manifest.safe", "<XFDU/>"));
+      products.add("/data/P_ dir.SAFE");
+      fileSystem.add(new FileEntry("/data/d0/d00/P_with space.N1", "DATA"));
+      products.add("/data/d0/d00/P_with space.N1");
+      for (int i = 0; i < WIDTH; i++)
+      {
+         String directory = "/data/d" + i;
+         String safe = directory + "/P_" + i + ".SAFE";
+         fileSystem.add(new FileEntry(safe + "/manifest.safe", "<XFDU/>"));
+         products.add(safe);
+         for (int j = 0; j < WIDTH; j++)
+         {
+            String subdirectory = directory + "/d" + i + j;
+            fileSystem.add(new FileEntry(subdirectory + "/P_" + i + j + ".N1", "DATA"));
+            fileSystem.add(new FileEntry(subdirectory + "/ignored_" + i + j + ".txt", "DATA"));
+            products.add(subdirectory + "/P_" + i + j + ".N1");
+         }
+      }
+      fakeFtpServer.setFileSystem(fileSystem);
+      fakeFtpServer.addUserAccount(new UserAccount("user", "password", "/"));
+
+      fakeFtpServer.setCommandHandler(CommandNames.LIST, new ListCommandHandler()
+      {
+         @Override
+         protected void handle(Command command, Session session)
+         {
+            int running = runningListings.incrementAndGet();
+            maxRunningListings.accumulateAndGet(running, Math::max);
+            try
+            {
+               Thread.sleep(LIST_DELAY);
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+            }
+            finally
+            {
+               runningListings.decrementAndGet();
+            }
+            super.handle(command, session);
+         }
+      });
+      fakeFtpServer.start();
+   }
+
+   @Test(timeOut = 60_000)
+   public void scanNestedTree() throws InterruptedException, MalformedURLException
+   {
+      FtpScanner scanner = new FtpScanner("ftp://localhost:" + PORT + "/data", true, "user", "password");
+      try
+      {
+         scanner.setUserPattern("P_.*");
+         Assert.assertEquals(scanner.scan(), products.size());
+
+         // products are retrieved with the URLs of their DRB nodes, the origins of ingested products
+         Set<String> expected = new TreeSet<>();
+         for (String product: products)
+         {
+            FtpNode node = (FtpNode) new FtpFactory().open(
+                  new URL("ftp", "localhost", PORT, product), "user", "password");
+            expected.add(node.getUrl().toString());
+         }
+         Set<String> retrieved = scanner.getScanList().stream()
+               .map(url -> url.getUrl().toString())
+               .collect(Collectors.toCollection(TreeSet::new));
+         Assert.assertEquals(retrieved, expected);
+         // root, directories and the SAFE product of the root, SAFE products and sub-directories of
+         // the directories, files of the sub-directories: the SAFE products are not navigated
+         Assert.assertEquals(scanner.scannedFiles, 1 + WIDTH + 1 + WIDTH * (1 + WIDTH) + WIDTH * WIDTH * 2 + 1);
+
+         // sibling directories are listed in parallel
+         Assert.assertTrue(maxRunningListings.get() > 1, "Directories listed one at a time");
+      }
+      finally
+      {
+         scanner.close();
+      }
+   }
+
+   @AfterClass
+   public void stopftp()
+   {
+      fakeFtpServer.stop();
+   }
+}
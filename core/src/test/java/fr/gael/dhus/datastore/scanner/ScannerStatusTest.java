@@ -0,0 +1,118 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.dhus.datastore.scanner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ScannerStatusTest
+{
+   @Test
+   public void completesAfterScan()
+   {
+      ScannerStatus status = new ScannerStatus();
+      status.setStatus(ScannerStatus.STATUS_RUNNING);
+      status.startScan();
+
+      // the only discovered product is ingested while the scan is running
+      status.incrementTotalProcessed();
+      status.startIngestion();
+      status.endIngestion();
+      Assert.assertEquals(status.getStatus(), ScannerStatus.STATUS_RUNNING);
+
+      status.incrementTotalProcessed();
+      status.endScan();
+      Assert.assertEquals(status.getStatus(), ScannerStatus.STATUS_RUNNING);
+
+      status.startIngestion();
+      status.endIngestion();
+      Assert.assertEquals(status.getStatus(), ScannerStatus.STATUS_OK);
+      Assert.assertEquals(status.getProcessed(), 2);
+   }
+
+   @Test
+   public void completesAtEndOfScan()
+   {
+      ScannerStatus status = new ScannerStatus();
+      status.setStatus(ScannerStatus.STATUS_RUNNING);
+      status.startScan();
+      status.incrementTotalProcessed();
+      status.error("file:/data/product", new Exception("failure"));
+      Assert.assertEquals(status.getStatus(), ScannerStatus.STATUS_RUNNING);
+
+      status.endScan();
+      Assert.assertEquals(status.getStatus(), ScannerStatus.STATUS_ERROR);
+   }
+
+   @Test(timeOut = 10_000)
+   public void awaitInbox() throws InterruptedException
+   {
+      ScannerStatus status = new ScannerStatus();
+      status.startScan();
+      status.incrementTotalProcessed();
+      status.incrementTotalProcessed();
+
+      // not full
+      status.awaitInbox(3);
+
+      CountDownLatch released = new CountDownLatch(1);
+      Thread scanner = new Thread(() ->
+      {
+         try
+         {
+            status.awaitInbox(2);
+            released.countDown();
+         }
+         catch (InterruptedException suppressed) {}
+      });
+      scanner.start();
+      Assert.assertFalse(released.await(200, TimeUnit.MILLISECONDS));
+
+      status.endIngestion();
+      Assert.assertTrue(released.await(5, TimeUnit.SECONDS));
+   }
+
+   @Test(timeOut = 10_000)
+   public void awaitInboxStopped() throws InterruptedException
+   {
+      ScannerStatus status = new ScannerStatus();
+      status.startScan();
+      status.incrementTotalProcessed();
+
+      CountDownLatch released = new CountDownLatch(1);
+      Thread scanner = new Thread(() ->
+      {
+         try
+         {
+            status.awaitInbox(1);
+            released.countDown();
+         }
+         catch (InterruptedException suppressed) {}
+      });
+      scanner.start();
+      Assert.assertFalse(released.await(200, TimeUnit.MILLISECONDS));
+
+      status.setStopped(true);
+      Assert.assertTrue(released.await(5, TimeUnit.SECONDS));
+   }
+}
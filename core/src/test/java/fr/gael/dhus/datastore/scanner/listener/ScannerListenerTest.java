@@ -0,0 +1,96 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.dhus.datastore.scanner.listener;
+
+import fr.gael.dhus.datastore.scanner.URLExt;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ScannerListenerTest
+{
+   @Test
+   public void checksInBatches() throws MalformedURLException
+   {
+      Set<String> ingested = new HashSet<>(Arrays.asList("file:/data/1", "file:/data/4"));
+      List<Integer> queries = new ArrayList<>();
+      ScannerListener listener = new ScannerListener(3)
+      {
+         @Override
+         protected Set<String> getExistingOrigins(Collection<String> origins)
+         {
+            queries.add(origins.size());
+            Set<String> existing = new HashSet<>(origins);
+            existing.retainAll(ingested);
+            return existing;
+         }
+      };
+      List<URL> submitted = new ArrayList<>();
+      listener.setConsumer(submitted::add);
+
+      for (int i = 0; i < 5; i++)
+      {
+         add(listener, "file:/data/" + i);
+      }
+      Assert.assertEquals(queries, Arrays.asList(3));
+      Assert.assertEquals(submitted, Arrays.asList(new URL("file:/data/0"), new URL("file:/data/2")));
+
+      listener.flush();
+      Assert.assertEquals(queries, Arrays.asList(3, 2));
+      Assert.assertEquals(submitted,
+            Arrays.asList(new URL("file:/data/0"), new URL("file:/data/2"), new URL("file:/data/3")));
+
+      // nothing left to check
+      listener.flush();
+      Assert.assertEquals(queries.size(), 2);
+   }
+
+   @Test
+   public void resetDiscardsBatch() throws MalformedURLException
+   {
+      ScannerListener listener = new ScannerListener(10)
+      {
+         @Override
+         protected Set<String> getExistingOrigins(Collection<String> origins)
+         {
+            Assert.fail("No product to check");
+            return null;
+         }
+      };
+      listener.setConsumer(url -> Assert.fail("No product to submit"));
+      add(listener, "file:/data/0");
+      listener.reset();
+      listener.flush();
+   }
+
+   private static void add(ScannerListener listener, String url) throws MalformedURLException
+   {
+      listener.addedElement(new Event<>(EventType.ADD, new URLExt(new URL(url), false), 0));
+   }
+}
@@ -0,0 +1,168 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.dhus.service;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+
+import com.google.common.collect.Lists;
+
+import fr.gael.dhus.database.object.KeyStoreEntry;
+import fr.gael.dhus.search.SolrDao;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SearchServiceTest
+{
+   @InjectMocks
+   private SearchService service;
+
+   @Mock
+   private SolrDao solrDao;
+
+   @Spy
+   private MemoryKeyStoreService keyStoreService = new MemoryKeyStoreService();
+
+   /** Products of each delete request sent to Solr. */
+   private final List<Set<String>> requests = new ArrayList<>();
+
+   @BeforeMethod
+   public void init()
+   {
+      MockitoAnnotations.initMocks(this);
+      requests.clear();
+   }
+
+   @Test
+   public void failedRemovalRetriedWithNextBatch() throws Exception
+   {
+      doAnswer(invocation ->
+      {
+         requests.add(new TreeSet<>(Lists.newArrayList((Iterable<String>) invocation.getArgument(0))));
+         throw new IOException("Solr is down");
+      }).when(solrDao).removeProducts(any());
+      service.removeProducts(Arrays.asList("a", "b"));
+
+      // tried again before saving the products to remove later
+      Assert.assertEquals(requests, Arrays.asList(set("a", "b"), set("a", "b")));
+      Assert.assertEquals(pending(), set("a", "b"));
+
+      // still failing, products are saved once
+      requests.clear();
+      service.removeProducts(Collections.singletonList("c"));
+      Assert.assertEquals(requests.get(0), set("a", "b", "c"));
+      Assert.assertEquals(pending(), set("a", "b", "c"));
+      Assert.assertEquals(keyStoreService.entries.size(), 3);
+
+      requests.clear();
+      doAnswer(invocation ->
+      {
+         requests.add(new TreeSet<>(Lists.newArrayList((Iterable<String>) invocation.getArgument(0))));
+         return null;
+      }).when(solrDao).removeProducts(any());
+      service.removeProducts(Collections.singletonList("d"));
+      Assert.assertEquals(requests, Collections.singletonList(set("a", "b", "c", "d")));
+      Assert.assertTrue(pending().isEmpty());
+
+      // nothing to remove, no request
+      service.removeProducts(Collections.emptyList());
+      Assert.assertEquals(requests.size(), 1);
+   }
+
+   @Test
+   public void emptyBatchRemovesPendingProducts() throws Exception
+   {
+      keyStoreService.createEntry(new KeyStoreEntry("PendingIndexRemovals", "a", "pending", "", 0L));
+      doAnswer(invocation ->
+      {
+         requests.add(new TreeSet<>(Lists.newArrayList((Iterable<String>) invocation.getArgument(0))));
+         return null;
+      }).when(solrDao).removeProducts(any());
+
+      service.removeProducts(Collections.emptyList());
+      Assert.assertEquals(requests, Collections.singletonList(set("a")));
+      Assert.assertTrue(pending().isEmpty());
+   }
+
+   private Set<String> pending()
+   {
+      Set<String> uuids = new TreeSet<>();
+      keyStoreService.getOldestEntries("PendingIndexRemovals").forEachRemaining(entry -> uuids.add(entry.getEntryKey()));
+      return uuids;
+   }
+
+   private static Set<String> set(String... uuids)
+   {
+      return new TreeSet<>(Arrays.asList(uuids));
+   }
+
+   /** KeyStoreService keeping entries in memory. */
+   static class MemoryKeyStoreService extends KeyStoreService
+   {
+      private final ConcurrentMap<KeyStoreEntry.Key, KeyStoreEntry> entries = new ConcurrentHashMap<>();
+
+      @Override
+      public void createEntry(KeyStoreEntry entry)
+      {
+         entries.put(entry.getKey(), entry);
+      }
+
+      @Override
+      public boolean exists(String keyStoreName, String entryKey, String tag)
+      {
+         return entries.containsKey(new KeyStoreEntry.Key(keyStoreName, entryKey, tag));
+      }
+
+      @Override
+      public void deleteEntry(KeyStoreEntry entry)
+      {
+         entries.remove(entry.getKey());
+      }
+
+      @Override
+      public Iterator<KeyStoreEntry> getOldestEntries(String keyStoreName)
+      {
+         return entries.values().stream()
+               .filter(entry -> entry.getKeyStore().equals(keyStoreName))
+               .sorted((a, b) -> Long.compare(a.getInsertionDate(), b.getInsertionDate()))
+               .collect(Collectors.toList())
+               .iterator();
+      }
+   }
+}
@@ -0,0 +1,91 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gael.dhus.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class MultipleDigestInputStreamTest
+{
+   private static final String[] ALGORITHMS = { "MD5", "SHA-1", "SHA-256", "SHA-512" };
+
+   private static byte[] data (int length)
+   {
+      byte[] data = new byte[length];
+      new Random (42L).nextBytes (data);
+      return data;
+   }
+
+   private static void assertDigests (byte[] data, Map<String, MessageDigest> digests)
+         throws NoSuchAlgorithmException
+   {
+      Assert.assertEquals (digests.size (), ALGORITHMS.length);
+      for (String algorithm: ALGORITHMS)
+      {
+         byte[] expected = MessageDigest.getInstance (algorithm).digest (data);
+         Assert.assertEquals (digests.get (algorithm).digest (), expected, algorithm);
+      }
+   }
+
+   @Test
+   public void testArrayRead () throws IOException, NoSuchAlgorithmException
+   {
+      // spans several buffers and ends with a partial one
+      byte[] data = data (MultipleDigestInputStream.BUFFER_SIZE * 3 + 1234);
+      try (MultipleDigestInputStream is =
+            new MultipleDigestInputStream (new ByteArrayInputStream (data), ALGORITHMS))
+      {
+         byte[] buffer = new byte[7919];
+         while (is.read (buffer) != -1);
+         assertDigests (data, is.getDigests ());
+      }
+   }
+
+   @Test
+   public void testByteRead () throws IOException, NoSuchAlgorithmException
+   {
+      byte[] data = data (MultipleDigestInputStream.BUFFER_SIZE + 17);
+      MultipleDigestInputStream is =
+            new MultipleDigestInputStream (new ByteArrayInputStream (data), ALGORITHMS);
+      while (is.read () != -1);
+      is.close ();
+      assertDigests (data, is.getDigests ());
+   }
+
+   @Test
+   public void testSingleAlgorithm () throws IOException, NoSuchAlgorithmException
+   {
+      byte[] data = data (100_000);
+      try (MultipleDigestInputStream is = new MultipleDigestInputStream (
+            new ByteArrayInputStream (data), new String[] { "MD5" }))
+      {
+         while (is.read (new byte[4096]) != -1);
+         Assert.assertEquals (is.getMessageDigest ("MD5").digest (),
+               MessageDigest.getInstance ("MD5").digest (data));
+      }
+   }
+}
@@ -0,0 +1,270 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dhus.store.datastore;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import fr.gael.dhus.database.object.KeyStoreEntry;
+import fr.gael.dhus.service.KeyStoreService;
+import fr.gael.dhus.service.ProductService;
+import fr.gael.dhus.spring.context.ApplicationContextProvider;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+
+import org.springframework.context.ApplicationContext;
+import org.springframework.security.crypto.codec.Hex;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class DataStoreMigrationTest
+{
+   static
+   {
+      // retries failed copies without waiting
+      System.setProperty("dhus.migration.retry_delay", "0");
+   }
+
+   private static final int PRODUCTS = 250;
+
+   private MemoryDataStore source;
+   private MemoryDataStore target;
+   private ProductService productService;
+   private MemoryKeyStoreService keyStoreService;
+
+   @BeforeMethod
+   public void init()
+   {
+      source = new MemoryDataStore("source");
+      target = new MemoryDataStore("target");
+      productService = mock(ProductService.class);
+      keyStoreService = new MemoryKeyStoreService();
+
+      DataStoreManager manager = mock(DataStoreManager.class);
+      when(manager.getDataStoreByName("source")).thenReturn(source);
+      when(manager.getDataStoreByName("target")).thenReturn(target);
+      ApplicationContext context = mock(ApplicationContext.class);
+      when(context.getBean(DataStoreManager.class)).thenReturn(manager);
+      when(context.getBean(ProductService.class)).thenReturn(productService);
+      when(context.getBean(KeyStoreService.class)).thenReturn(keyStoreService);
+      new ApplicationContextProvider().setApplicationContext(context);
+
+      for (int i = 0; i < PRODUCTS; i++)
+      {
+         String uuid = uuid(i);
+         byte[] data = ("data of product " + uuid).getBytes();
+         source.products.put(uuid, data);
+         fr.gael.dhus.database.object.Product dbProduct = new fr.gael.dhus.database.object.Product();
+         fr.gael.dhus.database.object.Product.Download download = new fr.gael.dhus.database.object.Product.Download();
+         download.setChecksums(Collections.singletonMap("SHA-256", hex("SHA-256", data)));
+         dbProduct.setDownload(download);
+         dbProduct.setSize((long) data.length);
+         when(productService.systemGetProduct(uuid)).thenReturn(dbProduct);
+      }
+   }
+
+   @Test
+   public void copyAll()
+   {
+      Map<String, byte[]> expected = new ConcurrentSkipListMap<>(source.products);
+      DataStoreMigration migration = new DataStoreMigration("source", "target", 4, 0L, true);
+      migration.run();
+
+      Assert.assertEquals(migration.getStatus(), DataStoreMigration.Status.COMPLETED);
+      Assert.assertEquals(migration.getCopiedProducts(), PRODUCTS);
+      Assert.assertEquals(migration.getFailedProducts(), 0L);
+      Assert.assertEquals(target.products.keySet(), expected.keySet());
+      expected.forEach((uuid, data) -> Assert.assertEquals(target.products.get(uuid), data, uuid));
+      Assert.assertTrue(source.products.isEmpty());
+      Assert.assertTrue(DataStoreMigration.loadUnfinished().isEmpty());
+   }
+
+   @Test
+   public void corruptSourceNotCopied()
+   {
+      // data of the source copy does not match the checksums of the product
+      String corrupted = uuid(7);
+      source.products.get(corrupted)[0] ^= 1;
+      DataStoreMigration migration = new DataStoreMigration("source", "target", 4, 0L, true);
+      migration.run();
+
+      Assert.assertEquals(migration.getStatus(), DataStoreMigration.Status.FAILED);
+      Assert.assertEquals(migration.getCopiedProducts(), PRODUCTS - 1);
+      Assert.assertEquals(migration.getFailedProducts(), 1L);
+      // the corrupted copy is dropped, the source copy is kept
+      Assert.assertFalse(target.products.containsKey(corrupted));
+      Assert.assertEquals(source.products.keySet(), Collections.singleton(corrupted));
+      Assert.assertEquals(getFailures(migration.getName()), Collections.singletonList(corrupted));
+      // resumed on next start, to retry the failed product
+      Assert.assertEquals(DataStoreMigration.loadUnfinished().size(), 1);
+   }
+
+   @Test
+   public void corruptCopyKeepsSource()
+   {
+      String corrupted = uuid(7);
+      target.corrupted.add(corrupted);
+      DataStoreMigration migration = new DataStoreMigration("source", "target", 4, 0L, true);
+      migration.run();
+
+      // the copy read again does not match the checksums of the product
+      Assert.assertEquals(migration.getStatus(), DataStoreMigration.Status.FAILED);
+      Assert.assertEquals(migration.getFailedProducts(), 1L);
+      Assert.assertEquals(source.products.keySet(), Collections.singleton(corrupted));
+      Assert.assertEquals(getFailures(migration.getName()), Collections.singletonList(corrupted));
+   }
+
+   @Test
+   public void corruptCopyWithoutChecksumsKeepsSource()
+   {
+      String corrupted = uuid(3);
+      when(productService.systemGetProduct(corrupted)).thenReturn(null);
+      target.corrupted.add(corrupted);
+      DataStoreMigration migration = new DataStoreMigration("source", "target", 2, 0L, true);
+      migration.run();
+
+      // checksums computed while reading the source do not match the copy read again
+      Assert.assertEquals(migration.getStatus(), DataStoreMigration.Status.FAILED);
+      Assert.assertEquals(source.products.keySet(), Collections.singleton(corrupted));
+      Assert.assertEquals(getFailures(migration.getName()), Collections.singletonList(corrupted));
+   }
+
+   @Test
+   public void failedCopyRetried()
+   {
+      String failing = uuid(5);
+      source.failures.put(failing, 1);
+      DataStoreMigration migration = new DataStoreMigration("source", "target", 4, 0L, false);
+      migration.run();
+
+      Assert.assertEquals(migration.getStatus(), DataStoreMigration.Status.COMPLETED);
+      Assert.assertEquals(migration.getFailedProducts(), 0L);
+      Assert.assertEquals(target.products.size(), PRODUCTS);
+      Assert.assertEquals(source.products.size(), PRODUCTS);
+      Assert.assertTrue(getFailures(migration.getName()).isEmpty());
+   }
+
+   @Test
+   public void resume()
+   {
+      // state saved by a stopped run: products up to the 100th processed, the 10th failed
+      String name = DataStoreMigration.getName("source", "target");
+      keyStoreService.createEntry(new KeyStoreEntry("DataStoreMigrations", name, "state",
+            "source|target|4|0|false|" + uuid(99), System.currentTimeMillis()));
+      keyStoreService.createEntry(new KeyStoreEntry("DataStoreMigrationFailures", uuid(10), name,
+            "cannot read", System.currentTimeMillis()));
+
+      List<DataStoreMigration> migrations = DataStoreMigration.loadUnfinished();
+      Assert.assertEquals(migrations.size(), 1);
+      DataStoreMigration migration = migrations.get(0);
+      migration.run();
+
+      Assert.assertEquals(migration.getStatus(), DataStoreMigration.Status.COMPLETED);
+      Assert.assertEquals(migration.getCopiedProducts(), PRODUCTS - 100 + 1);
+      Assert.assertTrue(target.products.containsKey(uuid(10)));
+      Assert.assertFalse(target.products.containsKey(uuid(11)));
+      Assert.assertFalse(target.products.containsKey(uuid(99)));
+      Assert.assertTrue(target.products.containsKey(uuid(100)));
+      Assert.assertTrue(getFailures(name).isEmpty());
+      Assert.assertTrue(DataStoreMigration.loadUnfinished().isEmpty());
+   }
+
+   private List<String> getFailures(String migration)
+   {
+      List<String> uuids = new ArrayList<>();
+      keyStoreService.getOldestEntries("DataStoreMigrationFailures").forEachRemaining(entry ->
+      {
+         if (entry.getTag().equals(migration))
+         {
+            uuids.add(entry.getEntryKey());
+         }
+      });
+      return uuids;
+   }
+
+   private static String uuid(int index)
+   {
+      return String.format("00000000-0000-0000-0000-%012d", index);
+   }
+
+   private static String hex(String algorithm, byte[] data)
+   {
+      try
+      {
+         return new String(Hex.encode(MessageDigest.getInstance(algorithm).digest(data)));
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /** KeyStoreService keeping entries in memory. */
+   private static final class MemoryKeyStoreService extends KeyStoreService
+   {
+      private final ConcurrentMap<KeyStoreEntry.Key, KeyStoreEntry> entries = new ConcurrentHashMap<>();
+
+      @Override
+      public void createEntry(KeyStoreEntry entry)
+      {
+         entries.put(entry.getKey(), entry);
+      }
+
+      @Override
+      public KeyStoreEntry getEntry(String keyStoreName, String entryKey, String tag)
+      {
+         return entries.get(new KeyStoreEntry.Key(keyStoreName, entryKey, tag));
+      }
+
+      @Override
+      public void updateEntry(KeyStoreEntry entry)
+      {
+         entries.put(entry.getKey(), entry);
+      }
+
+      @Override
+      public void deleteEntry(KeyStoreEntry entry)
+      {
+         entries.remove(entry.getKey());
+      }
+
+      @Override
+      public Iterator<KeyStoreEntry> getOldestEntries(String keyStoreName)
+      {
+         return entries.values().stream()
+               .filter(entry -> entry.getKeyStore().equals(keyStoreName))
+               .sorted((a, b) -> Long.compare(a.getInsertionDate(), b.getInsertionDate()))
+               .collect(Collectors.toList())
+               .iterator();
+      }
+   }
+}
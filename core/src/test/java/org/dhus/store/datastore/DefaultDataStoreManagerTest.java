@@ -0,0 +1,121 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dhus.store.datastore;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import fr.gael.dhus.service.ProductService;
+import fr.gael.dhus.spring.context.ApplicationContextProvider;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.context.ApplicationContext;
+import org.springframework.security.crypto.codec.Hex;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class DefaultDataStoreManagerTest
+{
+   private static final String UUID = "00000000-0000-0000-0000-000000000001";
+   private static final byte[] DATA = "data of product".getBytes();
+
+   private MemoryDataStore source;
+   private MemoryDataStore target;
+   private ProductService productService;
+   private DefaultDataStoreManager manager;
+
+   @BeforeMethod
+   public void init() throws NoSuchAlgorithmException
+   {
+      source = new MemoryDataStore("source");
+      target = new MemoryDataStore("target");
+      source.products.put(UUID, DATA.clone());
+      manager = new DefaultDataStoreManager();
+      manager.add(source);
+      manager.add(target);
+
+      fr.gael.dhus.database.object.Product dbProduct = new fr.gael.dhus.database.object.Product();
+      fr.gael.dhus.database.object.Product.Download download = new fr.gael.dhus.database.object.Product.Download();
+      download.setChecksums(Collections.singletonMap("MD5",
+            new String(Hex.encode(MessageDigest.getInstance("MD5").digest(DATA)))));
+      dbProduct.setDownload(download);
+      dbProduct.setSize((long) DATA.length);
+      productService = mock(ProductService.class);
+      when(productService.systemGetProduct(UUID)).thenReturn(dbProduct);
+
+      ApplicationContext context = mock(ApplicationContext.class);
+      when(context.getBean(ProductService.class)).thenReturn(productService);
+      new ApplicationContextProvider().setApplicationContext(context);
+   }
+
+   @Test
+   public void copyProduct() throws DataStoreException
+   {
+      manager.copyProduct(UUID, "source", "target", false);
+      Assert.assertEquals(target.products.get(UUID), DATA);
+      Assert.assertEquals(source.products.get(UUID), DATA);
+   }
+
+   @Test
+   public void moveProduct() throws DataStoreException
+   {
+      manager.copyProduct(UUID, "source", "target", true);
+      Assert.assertEquals(target.products.get(UUID), DATA);
+      Assert.assertFalse(source.products.containsKey(UUID));
+   }
+
+   @Test
+   public void corruptSourceNotCopied()
+   {
+      // the data of the source does not match the checksum known by the database
+      source.products.get(UUID)[0] ^= 1;
+      try
+      {
+         manager.copyProduct(UUID, "source", "target", true);
+         Assert.fail("Corrupted copy should be refused");
+      }
+      catch (DataStoreException expected) {}
+      Assert.assertFalse(target.products.containsKey(UUID));
+      Assert.assertTrue(source.products.containsKey(UUID));
+   }
+
+   @Test
+   public void prefetchProducts()
+   {
+      // data stores without keystore are asked for whole pages of products
+      List<String> page = Arrays.asList(UUID, "00000000-0000-0000-0000-000000000002");
+      manager.prefetchProducts(page);
+      Assert.assertEquals(source.prefetched, page);
+      Assert.assertEquals(target.prefetched, page);
+   }
+
+   @Test(expectedExceptions = DataStoreException.class)
+   public void unknownDataStore() throws DataStoreException
+   {
+      manager.copyProduct(UUID, "source", "unknown", false);
+   }
+}
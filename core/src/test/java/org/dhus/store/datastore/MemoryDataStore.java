@@ -0,0 +1,167 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dhus.store.datastore;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.io.IOUtils;
+
+import org.dhus.Product;
+import org.dhus.store.ingestion.IngestibleProduct;
+
+/** DataStore keeping products in memory, may corrupt stored data and fail to get products. */
+final class MemoryDataStore implements DataStore
+{
+   private final String name;
+   final ConcurrentMap<String, byte[]> products = new ConcurrentSkipListMap<>();
+   final Set<String> corrupted = ConcurrentHashMap.newKeySet();
+   final ConcurrentMap<String, Integer> failures = new ConcurrentHashMap<>();
+   final List<String> prefetched = new CopyOnWriteArrayList<>();
+
+   MemoryDataStore(String name)
+   {
+      this.name = name;
+   }
+
+   @Override
+   public String getName()
+   {
+      return name;
+   }
+
+   @Override
+   public int getPriority()
+   {
+      return 0;
+   }
+
+   @Override
+   public Product get(String uuid) throws DataStoreException
+   {
+      Integer remaining = failures.computeIfPresent(uuid, (key, count) -> count - 1);
+      if (remaining != null && remaining >= 0)
+      {
+         throw new DataStoreException("Cannot read product " + uuid);
+      }
+      byte[] data = products.get(uuid);
+      if (data == null)
+      {
+         throw new ProductNotFoundException();
+      }
+      StreamableProduct product = new StreamableProduct(new ByteArrayInputStream(data));
+      product.setName(uuid);
+      return product;
+   }
+
+   @Override
+   public void set(String uuid, Product product) throws DataStoreException
+   {
+      try (InputStream stream = product.getImpl(InputStream.class))
+      {
+         byte[] data = IOUtils.toByteArray(stream);
+         if (corrupted.contains(uuid))
+         {
+            data[0] ^= 1;
+         }
+         products.put(uuid, data);
+      }
+      catch (IOException e)
+      {
+         throw new DataStoreException(e);
+      }
+   }
+
+   @Override
+   public void addProduct(IngestibleProduct inProduct)
+   {
+      throw new UnsupportedOperationException();
+   }
+
+   @Override
+   public void deleteProduct(String uuid)
+   {
+      products.remove(uuid);
+   }
+
+   @Override
+   public boolean hasProduct(String uuid)
+   {
+      return products.containsKey(uuid);
+   }
+
+   @Override
+   public boolean canAccess(String resource_location)
+   {
+      return false;
+   }
+
+   @Override
+   public boolean addProductReference(String uuid, Product product)
+   {
+      return false;
+   }
+
+   @Override
+   public Iterator<String> getScrollableProductResults()
+   {
+      return getProductList().iterator();
+   }
+
+   @Override
+   public List<String> getProductList()
+   {
+      return new ArrayList<>(products.keySet());
+   }
+
+   @Override
+   public boolean canHandleDerivedProducts()
+   {
+      return false;
+   }
+
+   @Override
+   public boolean canModifyReferences()
+   {
+      return false;
+   }
+
+   @Override
+   public void prefetchProducts(Collection<String> uuids)
+   {
+      prefetched.addAll(uuids);
+   }
+
+   @Override
+   public boolean hasKeyStore()
+   {
+      return false;
+   }
+}
@@ -0,0 +1,126 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dhus.store.datastore.async.pdgs;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.dhus.store.datastore.StreamableProduct;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ParallelProductDownloadManagerTest
+{
+   @Test
+   public void priorityAndFairness() throws Exception
+   {
+      ParallelProductDownloadManager manager = new ParallelProductDownloadManager(1);
+      try
+      {
+         List<String> started = Collections.synchronizedList(new ArrayList<>());
+         List<Future<?>> futures = new ArrayList<>();
+         CountDownLatch gate = new CountDownLatch(1);
+         CountDownLatch running = new CountDownLatch(1);
+         futures.add(manager.submit(product("blocking"), () ->
+         {
+            running.countDown();
+            try
+            {
+               gate.await();
+            }
+            catch (InterruptedException suppressed) {}
+         }));
+         Assert.assertTrue(running.await(10, TimeUnit.SECONDS));
+
+         for (String name: Arrays.asList("a0", "a1", "a2"))
+         {
+            futures.add(manager.submit(product(name), "alice", 0, () -> started.add(name)));
+         }
+         for (String name: Arrays.asList("b0", "b1"))
+         {
+            futures.add(manager.submit(product(name), "bob", 0, () -> started.add(name)));
+         }
+         futures.add(manager.submit(product("urgent"), "carol", 1, () -> started.add("urgent")));
+         Assert.assertTrue(manager.isAlreadyQueued("a1"));
+
+         gate.countDown();
+         for (Future<?> future: futures)
+         {
+            future.get(10, TimeUnit.SECONDS);
+         }
+         Assert.assertEquals(started, Arrays.asList("urgent", "a0", "b0", "a1", "b1", "a2"));
+
+         // completed downloads are forgotten by their done() callback, which may run after get() returns
+         long deadline = System.currentTimeMillis() + 10_000L;
+         for (String name: Arrays.asList("blocking", "urgent", "a0", "a1", "a2", "b0", "b1"))
+         {
+            while (manager.isAlreadyQueued(name) && System.currentTimeMillis() < deadline)
+            {
+               Thread.sleep(10);
+            }
+            Assert.assertFalse(manager.isAlreadyQueued(name), name);
+         }
+      }
+      finally
+      {
+         manager.shutdownNow();
+      }
+   }
+
+   @Test(expectedExceptions = RejectedExecutionException.class)
+   public void duplicateRejected()
+   {
+      ParallelProductDownloadManager manager = new ParallelProductDownloadManager(1);
+      CountDownLatch gate = new CountDownLatch(1);
+      try
+      {
+         Runnable blocking = () ->
+         {
+            try
+            {
+               gate.await();
+            }
+            catch (InterruptedException suppressed) {}
+         };
+         manager.submit(product("product"), blocking);
+         manager.submit(product("product"), blocking);
+      }
+      finally
+      {
+         gate.countDown();
+         manager.shutdownNow();
+      }
+   }
+
+   private static StreamableProduct product(String name)
+   {
+      StreamableProduct product = new StreamableProduct(new ByteArrayInputStream(new byte[0]));
+      product.setName(name);
+      return product;
+   }
+}
@@ -0,0 +1,205 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dhus.store.datastore.openstack;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests SwiftRangeInputStream against a minimal HTTP server that supports single byte ranges.
+ */
+public class SwiftRangeInputStreamTest
+{
+   private final byte[] data = new byte[SwiftRangeInputStream.CHUNK_SIZE * 3 + 12345];
+   private final AtomicLong served = new AtomicLong();
+   private HttpServer server;
+   private URL url;
+
+   @BeforeClass
+   public void startServer() throws IOException
+   {
+      new Random(7L).nextBytes(data);
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/ranged", exchange -> serve(exchange, true));
+      server.createContext("/plain", exchange -> serve(exchange, false));
+      server.start();
+      url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/ranged");
+   }
+
+   @AfterClass
+   public void stopServer()
+   {
+      server.stop(0);
+   }
+
+   private void serve(HttpExchange exchange, boolean ranged) throws IOException
+   {
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      int start = 0;
+      int end = data.length - 1;
+      int status = 200;
+      if (ranged && range != null)
+      {
+         String[] bounds = range.substring("bytes=".length()).split("-");
+         start = Integer.parseInt(bounds[0]);
+         end = Math.min(end, Integer.parseInt(bounds[1]));
+         if (start >= data.length)
+         {
+            exchange.sendResponseHeaders(416, -1);
+            exchange.close();
+            return;
+         }
+         status = 206;
+         exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+      }
+      int length = end - start + 1;
+      exchange.sendResponseHeaders(status, length);
+      try (OutputStream out = exchange.getResponseBody())
+      {
+         out.write(data, start, length);
+      }
+      served.addAndGet(length);
+   }
+
+   private static byte[] readAll(InputStream in) throws IOException
+   {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[10000];
+      int count;
+      while ((count = in.read(buffer)) != -1)
+      {
+         out.write(buffer, 0, count);
+      }
+      return out.toByteArray();
+   }
+
+   @Test
+   public void testFullRead() throws IOException
+   {
+      try (InputStream in = new SwiftRangeInputStream(url))
+      {
+         Assert.assertEquals(readAll(in), data);
+      }
+   }
+
+   @Test
+   public void testSkipDoesNotDownload() throws IOException
+   {
+      int offset = SwiftRangeInputStream.CHUNK_SIZE * 2 + 100;
+      served.set(0);
+      try (InputStream in = new SwiftRangeInputStream(url))
+      {
+         Assert.assertEquals(in.skip(offset), offset);
+         Assert.assertEquals(readAll(in), Arrays.copyOfRange(data, offset, data.length));
+      }
+      Assert.assertEquals(served.get(), data.length - offset);
+   }
+
+   @Test
+   public void testSkipPastEnd() throws IOException
+   {
+      try (InputStream in = new SwiftRangeInputStream(url))
+      {
+         in.skip(data.length + 10);
+         Assert.assertEquals(in.read(), -1);
+      }
+   }
+
+   @Test
+   public void testRangeEnd() throws IOException
+   {
+      int offset = SwiftRangeInputStream.CHUNK_SIZE + 100;
+      int size = 1000;
+      served.set(0);
+      try (InputStream in = new SwiftRangeInputStream(url, offset + size))
+      {
+         Assert.assertEquals(in.skip(offset), offset);
+         Assert.assertEquals(readAll(in), Arrays.copyOfRange(data, offset, offset + size));
+      }
+      // nothing is fetched beyond the end of the range
+      Assert.assertEquals(served.get(), size);
+   }
+
+   @Test
+   public void testRangeEndAcrossChunks() throws IOException
+   {
+      int offset = 100;
+      int end = SwiftRangeInputStream.CHUNK_SIZE * 2 + 50;
+      served.set(0);
+      try (InputStream in = new SwiftRangeInputStream(url, end))
+      {
+         in.skip(offset);
+         Assert.assertEquals(readAll(in), Arrays.copyOfRange(data, offset, end));
+      }
+      Assert.assertEquals(served.get(), end - offset);
+   }
+
+   @Test
+   public void testSmallReadDoesNotPrefetch() throws IOException
+   {
+      served.set(0);
+      try (InputStream in = new SwiftRangeInputStream(url))
+      {
+         byte[] buffer = new byte[100];
+         Assert.assertEquals(in.read(buffer), 100);
+      }
+      // the first chunk only, chunks are fetched ahead once the stream is read sequentially
+      Assert.assertEquals(served.get(), SwiftRangeInputStream.CHUNK_SIZE);
+   }
+
+   @Test
+   public void testGetRangeEnd()
+   {
+      Assert.assertEquals(SwiftRangeInputStream.getRangeEnd(null), -1L);
+      Assert.assertEquals(SwiftRangeInputStream.getRangeEnd("bytes=100-199"), 200L);
+      Assert.assertEquals(SwiftRangeInputStream.getRangeEnd("bytes=0-0"), 1L);
+      // open, suffix and multiple ranges: end unknown
+      Assert.assertEquals(SwiftRangeInputStream.getRangeEnd("bytes=100-"), -1L);
+      Assert.assertEquals(SwiftRangeInputStream.getRangeEnd("bytes=-500"), -1L);
+      Assert.assertEquals(SwiftRangeInputStream.getRangeEnd("bytes=0-10,20-30"), -1L);
+      Assert.assertEquals(SwiftRangeInputStream.getRangeEnd("bytes=200-100"), -1L);
+   }
+
+   @Test
+   public void testWithoutRangeSupport() throws IOException
+   {
+      URL plain = new URL(url, "/plain");
+      try (InputStream in = new SwiftRangeInputStream(plain))
+      {
+         in.skip(1000);
+         Assert.assertEquals(readAll(in), Arrays.copyOfRange(data, 1000, data.length));
+      }
+   }
+}
@@ -0,0 +1,315 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dhus.store.datastore.openstack;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.Constants;
+import org.jclouds.ContextBuilder;
+import org.jclouds.openstack.swift.v1.SwiftApi;
+
+import org.springframework.security.crypto.codec.Hex;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests SwiftSegmentedUpload against a minimal in-process Keystone v2 and Swift server.
+ */
+public class SwiftSegmentedUploadTest
+{
+   private static final String REGION = "RegionOne";
+   private static final String CONTAINER = "products";
+   private static final String ACCOUNT = "/v1/AUTH_test/";
+   private static final int SEGMENT_SIZE = 1000;
+
+   /** Stored objects, by name in the container. */
+   private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+
+   /** Stored manifests, by name in the container. */
+   private final Map<String, String> manifests = new ConcurrentHashMap<>();
+
+   /** Number of failures to return for a segment, by index, negative to always fail. */
+   private final Map<Integer, AtomicInteger> failures = new ConcurrentHashMap<>();
+
+   private HttpServer server;
+   private SwiftApi swiftApi;
+
+   @BeforeClass
+   public void startServer() throws IOException
+   {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/v2.0/tokens", this::authenticate);
+      server.createContext(ACCOUNT, this::serve);
+      server.start();
+
+      Properties overrides = new Properties();
+      // retries are performed by SwiftSegmentedUpload
+      overrides.setProperty(Constants.PROPERTY_MAX_RETRIES, "0");
+      swiftApi = ContextBuilder.newBuilder("openstack-swift")
+            .endpoint("http://127.0.0.1:" + server.getAddress().getPort() + "/v2.0/")
+            .credentials("test:user", "password")
+            .overrides(overrides)
+            .buildApi(SwiftApi.class);
+   }
+
+   @AfterClass
+   public void stopServer() throws IOException
+   {
+      swiftApi.close();
+      server.stop(0);
+   }
+
+   @BeforeMethod
+   public void clear()
+   {
+      objects.clear();
+      manifests.clear();
+      failures.clear();
+   }
+
+   private void authenticate(HttpExchange exchange) throws IOException
+   {
+      drain(exchange.getRequestBody());
+      String endpoint = "http://127.0.0.1:" + server.getAddress().getPort() + ACCOUNT.substring(0, ACCOUNT.length() - 1);
+      String access = "{\"access\":{"
+            + "\"token\":{\"id\":\"token\",\"expires\":\"2099-01-01T00:00:00Z\","
+            + "\"tenant\":{\"id\":\"test\",\"name\":\"test\"}},"
+            + "\"serviceCatalog\":[{\"type\":\"object-store\",\"name\":\"swift\",\"endpoints\":[{"
+            + "\"region\":\"" + REGION + "\",\"tenantId\":\"test\","
+            + "\"publicURL\":\"" + endpoint + "\",\"internalURL\":\"" + endpoint + "\"}]}],"
+            + "\"user\":{\"id\":\"user\",\"name\":\"user\",\"roles\":[]}}}";
+      byte[] body = access.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody())
+      {
+         out.write(body);
+      }
+   }
+
+   private void serve(HttpExchange exchange) throws IOException
+   {
+      String path = exchange.getRequestURI().getPath();
+      String query = exchange.getRequestURI().getQuery();
+      String name = path.substring(ACCOUNT.length() + CONTAINER.length() + 1);
+      byte[] body = drain(exchange.getRequestBody());
+      int status;
+      String etag = null;
+      switch (exchange.getRequestMethod())
+      {
+         case "PUT":
+            AtomicInteger failure = name.startsWith(SwiftSegmentedUpload.SEGMENT_PREFIX)
+                  ? failures.get(Integer.parseInt(name.substring(name.lastIndexOf('/') + 1)))
+                  : null;
+            if (failure != null && (failure.get() < 0 || failure.getAndDecrement() > 0))
+            {
+               // Swift rejects segments whose MD5 does not match their data
+               status = 422;
+            }
+            else if (query != null && query.contains("multipart-manifest=put"))
+            {
+               manifests.put(name, new String(body, StandardCharsets.UTF_8));
+               etag = md5(body);
+               status = 201;
+            }
+            else
+            {
+               objects.put(name, body);
+               etag = md5(body);
+               status = 201;
+            }
+            break;
+         case "DELETE":
+            status = objects.remove(name) != null || manifests.remove(name) != null ? 204 : 404;
+            break;
+         default:
+            status = 405;
+      }
+      if (etag != null)
+      {
+         exchange.getResponseHeaders().add("ETag", etag);
+      }
+      exchange.sendResponseHeaders(status, -1);
+      exchange.close();
+   }
+
+   private static byte[] drain(InputStream in) throws IOException
+   {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int count;
+      while ((count = in.read(buffer)) != -1)
+      {
+         out.write(buffer, 0, count);
+      }
+      return out.toByteArray();
+   }
+
+   private static String md5(byte[] data)
+   {
+      try
+      {
+         return new String(Hex.encode(MessageDigest.getInstance("MD5").digest(data)));
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static byte[] random(int size)
+   {
+      byte[] data = new byte[size];
+      new Random(size).nextBytes(data);
+      return data;
+   }
+
+   /** Returns the uploaded segments, by name. */
+   private Map<String, byte[]> segments()
+   {
+      Map<String, byte[]> segments = new TreeMap<>();
+      objects.forEach((name, data) ->
+      {
+         if (name.startsWith(SwiftSegmentedUpload.SEGMENT_PREFIX))
+         {
+            segments.put(name, data);
+         }
+      });
+      return segments;
+   }
+
+   private SwiftSegmentedUpload newUpload(int retries)
+   {
+      return new SwiftSegmentedUpload(swiftApi, REGION, CONTAINER, SEGMENT_SIZE, 2, retries);
+   }
+
+   @Test
+   public void upload() throws IOException
+   {
+      int buffers = SwiftSegmentedUpload.BUFFERS.available();
+      byte[] data = random(SEGMENT_SIZE * 2 + 500);
+      newUpload(1).upload(new ByteArrayInputStream(data), "product.zip", Collections.singletonMap("uuid", "1"));
+
+      Map<String, byte[]> segments = segments();
+      Assert.assertEquals(segments.size(), 3);
+      ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+      for (byte[] segment: segments.values())
+      {
+         concatenated.write(segment);
+      }
+      Assert.assertEquals(concatenated.toByteArray(), data);
+
+      // the manifest lists the segments in order
+      String manifest = manifests.get("product.zip");
+      Assert.assertNotNull(manifest);
+      int previous = -1;
+      for (String name: segments.keySet())
+      {
+         int index = manifest.indexOf(CONTAINER + '/' + name);
+         Assert.assertTrue(index > previous, name);
+         previous = index;
+      }
+      Assert.assertEquals(SwiftSegmentedUpload.BUFFERS.available(), buffers);
+   }
+
+   @Test
+   public void uploadSegmentSizeMultiple() throws IOException
+   {
+      byte[] data = random(SEGMENT_SIZE * 2);
+      newUpload(1).upload(new ByteArrayInputStream(data), "product.zip", Collections.emptyMap());
+      Assert.assertEquals(segments().size(), 2);
+      Assert.assertTrue(manifests.containsKey("product.zip"));
+   }
+
+   @Test
+   public void retrySegment() throws IOException
+   {
+      byte[] data = random(SEGMENT_SIZE * 3);
+      failures.put(1, new AtomicInteger(1));
+      newUpload(2).upload(new ByteArrayInputStream(data), "product.zip", Collections.emptyMap());
+      Assert.assertEquals(segments().size(), 3);
+      Assert.assertTrue(manifests.containsKey("product.zip"));
+   }
+
+   @Test
+   public void abortRemovesSegments()
+   {
+      int buffers = SwiftSegmentedUpload.BUFFERS.available();
+      byte[] data = random(SEGMENT_SIZE * 5);
+      failures.put(1, new AtomicInteger(-1));
+      try
+      {
+         newUpload(2).upload(new ByteArrayInputStream(data), "product.zip", Collections.emptyMap());
+         Assert.fail("Upload must fail");
+      }
+      catch (IOException expected) {}
+      Assert.assertTrue(segments().isEmpty(), "orphan segments: " + segments().keySet());
+      Assert.assertFalse(manifests.containsKey("product.zip"));
+      Assert.assertEquals(SwiftSegmentedUpload.BUFFERS.available(), buffers);
+   }
+
+   @Test(timeOut = 10_000)
+   public void bufferPoolBounded() throws InterruptedException
+   {
+      SwiftSegmentedUpload.BufferPool pool = new SwiftSegmentedUpload.BufferPool(1);
+      byte[] buffer = pool.acquire(10);
+      Assert.assertEquals(pool.available(), 0);
+
+      Thread other = new Thread(() ->
+      {
+         try
+         {
+            pool.release(pool.acquire(10));
+         }
+         catch (InterruptedException suppressed) {}
+      });
+      other.start();
+      other.join(200);
+      Assert.assertTrue(other.isAlive());
+
+      pool.release(buffer);
+      other.join();
+      Assert.assertEquals(pool.available(), 1);
+      // released buffers are reused
+      Assert.assertSame(pool.acquire(10), buffer);
+   }
+}
@@ -0,0 +1,229 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dhus.store.quota;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import fr.gael.dhus.database.object.Order;
+import fr.gael.dhus.database.object.User;
+import fr.gael.dhus.service.SecurityService;
+import fr.gael.dhus.service.StoreQuotaService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dhus.ProductConstants;
+import org.dhus.api.JobStatus;
+import org.dhus.store.datastore.DataStoreException;
+import org.dhus.store.datastore.async.AsyncDataStore;
+import org.dhus.store.datastore.async.AsyncProduct;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FetchLimiterAsyncDataStoreTest
+{
+   private static final String STORE_NAME = "async";
+   private static final int MAX_FETCHES = 3;
+
+   private AsyncDataStore decorated;
+   private StoreQuotaService storeQuotaService;
+   private SecurityService securityService;
+   private final ThreadLocal<User> currentUser = new ThreadLocal<>();
+
+   @BeforeMethod
+   public void init() throws DataStoreException
+   {
+      Order running = order(JobStatus.RUNNING);
+      decorated = mock(AsyncDataStore.class);
+      when(decorated.getName()).thenReturn(STORE_NAME);
+      when(decorated.getOrder(anyString())).thenReturn(running);
+      when(decorated.fetch(any(AsyncProduct.class))).thenReturn(running);
+
+      storeQuotaService = mock(StoreQuotaService.class);
+      when(storeQuotaService.getQuotaEntries(anyString(), anyString(), any(UUID.class)))
+            .thenReturn(Collections.emptyList());
+
+      securityService = mock(SecurityService.class);
+      when(securityService.getCurrentUser()).thenAnswer(invocation -> currentUser.get());
+   }
+
+   @Test(timeOut = 30_000)
+   public void parallelFetchesOfManyUsers() throws Exception
+   {
+      int users = 4;
+      int requestsPerUser = 16;
+      FetchLimiterAsyncDataStore limiter =
+            new FetchLimiterAsyncDataStore(decorated, securityService, storeQuotaService, MAX_FETCHES);
+
+      ExecutorService executor = Executors.newFixedThreadPool(users * 4);
+      try
+      {
+         CountDownLatch start = new CountDownLatch(1);
+         List<AtomicInteger> accepted = new ArrayList<>();
+         List<AtomicInteger> rejected = new ArrayList<>();
+         List<Future<?>> futures = new ArrayList<>();
+         for (int u = 0; u < users; u++)
+         {
+            User user = user("user" + u);
+            AtomicInteger userAccepted = new AtomicInteger();
+            AtomicInteger userRejected = new AtomicInteger();
+            accepted.add(userAccepted);
+            rejected.add(userRejected);
+            for (int i = 0; i < requestsPerUser; i++)
+            {
+               String productUuid = user.getUsername() + "-product" + i;
+               futures.add(executor.submit(() ->
+               {
+                  currentUser.set(user);
+                  start.await();
+                  try
+                  {
+                     limiter.fetch(product(productUuid));
+                     userAccepted.incrementAndGet();
+                  }
+                  catch (DataStoreException ex)
+                  {
+                     Assert.assertTrue(ex.getCause() instanceof QuotaException);
+                     userRejected.incrementAndGet();
+                  }
+                  return null;
+               }));
+            }
+         }
+         start.countDown();
+         for (Future<?> future: futures)
+         {
+            future.get(10, TimeUnit.SECONDS);
+         }
+
+         for (int u = 0; u < users; u++)
+         {
+            Assert.assertEquals(accepted.get(u).get(), MAX_FETCHES);
+            Assert.assertEquals(rejected.get(u).get(), requestsPerUser - MAX_FETCHES);
+         }
+         // fetches of each user are loaded once, and persisted once per accepted fetch
+         verify(storeQuotaService, times(users))
+               .getQuotaEntries(eq(STORE_NAME), eq(FetchLimiterAsyncDataStore.NAME), any(UUID.class));
+         verify(storeQuotaService, timeout(5_000).times(users * MAX_FETCHES)).insertQuotaEntry(
+               eq(STORE_NAME), eq(FetchLimiterAsyncDataStore.NAME), any(UUID.class), anyString(), anyLong());
+      }
+      finally
+      {
+         executor.shutdownNow();
+      }
+   }
+
+   @Test
+   public void finishedFetchDeletedByFullKey() throws DataStoreException
+   {
+      FetchLimiterAsyncDataStore limiter =
+            new FetchLimiterAsyncDataStore(decorated, securityService, storeQuotaService, 1);
+      User user = user("alice");
+      UUID userUuid = UUID.fromString(user.getUUID());
+      currentUser.set(user);
+
+      limiter.fetch(product("first"));
+      try
+      {
+         limiter.fetch(product("second"));
+         Assert.fail("Quota should be reached");
+      }
+      catch (DataStoreException ex)
+      {
+         Assert.assertTrue(ex.getCause() instanceof QuotaException);
+      }
+
+      when(decorated.getOrder("first")).thenReturn(order(JobStatus.COMPLETED));
+      limiter.fetch(product("second"));
+      verify(storeQuotaService, timeout(5_000))
+            .deleteQuotaEntry(STORE_NAME, FetchLimiterAsyncDataStore.NAME, userUuid, "first");
+      verify(storeQuotaService, never()).deleteQuotaEntry(anyString(), anyString(), eq("first"));
+   }
+
+   @Test
+   public void failedFetchReleased() throws DataStoreException
+   {
+      FetchLimiterAsyncDataStore limiter =
+            new FetchLimiterAsyncDataStore(decorated, securityService, storeQuotaService, 1);
+      currentUser.set(user("bob"));
+
+      when(decorated.fetch(any(AsyncProduct.class)))
+            .thenThrow(new DataStoreException("unavailable"))
+            .thenReturn(order(JobStatus.RUNNING));
+      try
+      {
+         limiter.fetch(product("first"));
+         Assert.fail("Fetch should fail");
+      }
+      catch (DataStoreException ex)
+      {
+         Assert.assertEquals(ex.getMessage(), "unavailable");
+      }
+      // the slot of the failed fetch is free, the forgotten user is reloaded
+      limiter.fetch(product("second"));
+      verify(storeQuotaService, times(2))
+            .getQuotaEntries(eq(STORE_NAME), eq(FetchLimiterAsyncDataStore.NAME), any(UUID.class));
+      verify(storeQuotaService, timeout(5_000)).insertQuotaEntry(
+            eq(STORE_NAME), eq(FetchLimiterAsyncDataStore.NAME), any(UUID.class), eq("second"), anyLong());
+   }
+
+   private static User user(String name)
+   {
+      User user = new User();
+      user.setUsername(name);
+      user.setUUID(UUID.randomUUID().toString());
+      return user;
+   }
+
+   private static AsyncProduct product(String uuid)
+   {
+      AsyncProduct product = new AsyncProduct(null);
+      product.setName(uuid);
+      product.setProperty(ProductConstants.UUID, uuid);
+      product.setProperty(ProductConstants.DATA_SIZE, 0L);
+      return product;
+   }
+
+   private static Order order(JobStatus status)
+   {
+      Order order = new Order();
+      order.setStatus(status);
+      return order;
+   }
+}
@@ -0,0 +1,303 @@
+/*
+ * Data Hub Service (DHuS) - For Space data distribution.
+ * Copyright (C) 2019 GAEL Systems
+ *
+ * This file is part of DHuS software sources.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dhus.store.quota;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import org.dhus.Product;
+import org.dhus.store.datastore.DataStore;
+import org.dhus.store.datastore.DataStoreException;
+import org.dhus.store.datastore.ProductNotFoundException;
+import org.dhus.store.datastore.StreamableProduct;
+import org.dhus.store.datastore.hfs.HfsProduct;
+import org.dhus.store.keystore.KeyStore;
+import org.dhus.store.keystore.VolatileKeyStore;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class HotProductCachingDataStoreTest
+{
+   static
+   {
+      // readers of a blocked copy are served by the decorated DataStore without waiting too long
+      System.setProperty("dhus.hotcache.fill_wait", "1000");
+   }
+
+   private static final long TIMEOUT = 10_000L;
+
+   private Path directory;
+   private DataStore decorated;
+   private KeyStore keystore;
+
+   @BeforeMethod
+   public void init() throws IOException
+   {
+      directory = Files.createTempDirectory("hotcache");
+      decorated = mock(DataStore.class);
+      when(decorated.getName()).thenReturn("slow");
+      keystore = new VolatileKeyStore();
+   }
+
+   @AfterMethod
+   public void cleanup() throws IOException
+   {
+      FileUtils.deleteDirectory(directory.toFile());
+   }
+
+   @Test
+   public void promotion() throws Exception
+   {
+      HotProductCachingDataStore<DataStore> cache = newCache(1024);
+      byte[] data = data(10, 'a');
+      serve("a", data);
+
+      for (int i = 1; i < HotProductCachingDataStore.THRESHOLD; i++)
+      {
+         Assert.assertFalse(cache.get("a") instanceof HfsProduct);
+         Assert.assertFalse(cache.isFilling("a"));
+      }
+      // the reader starting the copy waits for it
+      Product product = cache.get("a");
+      Assert.assertTrue(product instanceof HfsProduct);
+      Assert.assertFalse(cache.isFilling("a"));
+      verify(decorated, times(HotProductCachingDataStore.THRESHOLD)).get("a");
+      try (InputStream stream = product.getImpl(InputStream.class))
+      {
+         Assert.assertEquals(IOUtils.toByteArray(stream), data);
+      }
+      Assert.assertNotNull(keystore.get("a", DataStore.UNALTERED_PRODUCT_TAG));
+   }
+
+   @Test
+   public void singleFlightFill() throws Exception
+   {
+      HotProductCachingDataStore<DataStore> cache = newCache(1024);
+      CountDownLatch release = new CountDownLatch(1);
+      serveBlocking("b", data(10, 'b'), release, new CountDownLatch(1));
+
+      // the copy does not complete in time, the reader starting it is served by the decorated DataStore
+      int reads = startFill(cache, "b");
+      Assert.assertTrue(cache.isFilling("b"));
+
+      // concurrent readers wait for the copy in progress
+      ExecutorService readers = Executors.newFixedThreadPool(5);
+      try
+      {
+         List<Future<Product>> products = new ArrayList<>();
+         for (int i = 0; i < 5; i++)
+         {
+            products.add(readers.submit(() -> cache.get("b")));
+         }
+         release.countDown();
+         for (Future<Product> product: products)
+         {
+            Assert.assertTrue(product.get(TIMEOUT, TimeUnit.MILLISECONDS) instanceof HfsProduct);
+         }
+      }
+      finally
+      {
+         readers.shutdownNow();
+      }
+
+      // one more read for the single copy
+      verify(decorated, times(reads + 1)).get("b");
+      Assert.assertTrue(cache.get("b") instanceof HfsProduct);
+      verify(decorated, times(reads + 1)).get("b");
+   }
+
+   @Test
+   public void leastRecentlyUsedEviction() throws Exception
+   {
+      HotProductCachingDataStore<DataStore> cache = newCache(25);
+      serve("a", data(10, 'a'));
+      serve("b", data(10, 'b'));
+      serve("c", data(10, 'c'));
+
+      promote(cache, "a");
+      promote(cache, "b");
+      // makes b the least recently used copy
+      Assert.assertTrue(cache.get("a") instanceof HfsProduct);
+      promote(cache, "c");
+
+      Assert.assertTrue(cache.get("a") instanceof HfsProduct);
+      Assert.assertTrue(cache.get("c") instanceof HfsProduct);
+      Assert.assertFalse(cache.get("b") instanceof HfsProduct);
+      Assert.assertNull(keystore.get("b", DataStore.UNALTERED_PRODUCT_TAG));
+      Assert.assertEquals(countFiles(), 2L);
+   }
+
+   @Test
+   public void reloadAtStartup() throws Exception
+   {
+      HotProductCachingDataStore<DataStore> cache = newCache(1024);
+      serve("a", data(10, 'a'));
+      // the last read is served by the copy
+      int reads = promote(cache, "a");
+      keystore.put("missing", DataStore.UNALTERED_PRODUCT_TAG, directory.resolve("missing").toString());
+
+      HotProductCachingDataStore<DataStore> restarted = newCache(1024);
+      Assert.assertTrue(restarted.get("a") instanceof HfsProduct);
+      verify(decorated, times(reads)).get("a");
+      // entries whose copy is missing are dropped
+      Assert.assertNull(keystore.get("missing", DataStore.UNALTERED_PRODUCT_TAG));
+   }
+
+   @Test(expectedExceptions = ProductNotFoundException.class)
+   public void deletedWhileFilling() throws Exception
+   {
+      HotProductCachingDataStore<DataStore> cache = newCache(1024);
+      CountDownLatch release = new CountDownLatch(1);
+      CountDownLatch closed = new CountDownLatch(1);
+      serveBlocking("d", data(10, 'd'), release, closed);
+
+      startFill(cache, "d");
+      Assert.assertTrue(cache.isFilling("d"));
+      cache.deleteProduct("d");
+      verify(decorated).deleteProduct("d");
+      when(decorated.get("d")).thenThrow(new ProductNotFoundException());
+      release.countDown();
+
+      // the copy completing after the deletion is discarded
+      Assert.assertTrue(closed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while (countFiles() != 0L && System.currentTimeMillis() < deadline)
+      {
+         Thread.sleep(10);
+      }
+      Assert.assertEquals(countFiles(), 0L);
+      Assert.assertNull(keystore.get("d", DataStore.UNALTERED_PRODUCT_TAG));
+      cache.get("d");
+   }
+
+   private HotProductCachingDataStore<DataStore> newCache(long maximumSize)
+   {
+      return new HotProductCachingDataStore<>(decorated, directory.toString(), maximumSize, keystore);
+   }
+
+   /** Gets a product enough times to start its copy, returns the number of gets. */
+   private static int startFill(HotProductCachingDataStore<DataStore> cache, String uuid) throws DataStoreException
+   {
+      for (int i = 0; i < HotProductCachingDataStore.THRESHOLD; i++)
+      {
+         cache.get(uuid);
+      }
+      return HotProductCachingDataStore.THRESHOLD;
+   }
+
+   /** Gets a product enough times to copy it, returns the number of gets. */
+   private static int promote(HotProductCachingDataStore<DataStore> cache, String uuid) throws Exception
+   {
+      int reads = startFill(cache, uuid);
+      awaitFill(cache, uuid);
+      return reads;
+   }
+
+   private static void awaitFill(HotProductCachingDataStore<DataStore> cache, String uuid) throws InterruptedException
+   {
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while (cache.isFilling(uuid))
+      {
+         Assert.assertTrue(System.currentTimeMillis() < deadline, "Copy of " + uuid + " not completed");
+         Thread.sleep(10);
+      }
+   }
+
+   private void serve(String uuid, byte[] data) throws DataStoreException
+   {
+      when(decorated.get(uuid)).thenAnswer(invocation -> product(uuid, new ByteArrayInputStream(data)));
+   }
+
+   /** Serves a product whose data cannot be read until released. */
+   private void serveBlocking(String uuid, byte[] data, CountDownLatch release, CountDownLatch closed)
+         throws DataStoreException
+   {
+      when(decorated.get(uuid)).thenAnswer(invocation -> product(uuid,
+            new FilterInputStream(new ByteArrayInputStream(data))
+            {
+               @Override
+               public int read(byte[] b, int off, int len) throws IOException
+               {
+                  try
+                  {
+                     release.await();
+                  }
+                  catch (InterruptedException e)
+                  {
+                     throw new IOException(e);
+                  }
+                  return super.read(b, off, len);
+               }
+
+               @Override
+               public void close() throws IOException
+               {
+                  super.close();
+                  closed.countDown();
+               }
+            }));
+   }
+
+   private long countFiles() throws IOException
+   {
+      try (Stream<Path> paths = Files.walk(directory))
+      {
+         return paths.filter(Files::isRegularFile).count();
+      }
+   }
+
+   private static StreamableProduct product(String uuid, InputStream stream)
+   {
+      StreamableProduct product = new StreamableProduct(stream);
+      product.setName(uuid);
+      return product;
+   }
+
+   private static byte[] data(int size, char value)
+   {
+      byte[] data = new byte[size];
+      Arrays.fill(data, (byte) value);
+      return data;
+   }
+}